@@ -0,0 +1,90 @@
+package benchmark;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.proxy.LocalTransientUserProfileStore;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.UserProfile;
+import server.daemons.BulkRecommendationJob;
+import server.daemons.GenerateRecommendationDaemon;
+import server.daemons.GenerateRecommendationDaemon.ScoringMode;
+
+/**
+ * Users per second of the bulk recommendation job, against recommending to each user separately.
+ * Each operation is one user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class BulkRecommendationBenchmark {
+    private static final PreferenceCategory CATEGORY = PreferenceCategory.BOOKS;
+    private static final int NUM_USERS = 5000;
+    private static final int AVERAGE_DEGREE = 8;
+    private static final int BATCH_SIZE = 1000;
+    private static final int K = 10;
+    
+    @Param({ "10000", "100000" })
+    public int numPreferences;
+    
+    @Param({ "10", "100" })
+    public int userPreferences;
+    
+    private LocalTransientPreferenceCorrelationGraph graph;
+    private LocalTransientUserProfileStore userStore;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        PowerLawGraphGenerator generator = new PowerLawGraphGenerator(436);
+        graph = new LocalTransientPreferenceCorrelationGraph();
+        Preference[] catalog = generator.addCategory(graph, CATEGORY, numPreferences,
+                AVERAGE_DEGREE);
+        userStore = generator.generateUserStore(Collections.singletonMap(CATEGORY, catalog),
+                NUM_USERS, userPreferences);
+    }
+    
+    /**
+     * The whole job, including building the correlation matrix.
+     */
+    @Benchmark
+    @OperationsPerInvocation(NUM_USERS)
+    public void bulkJob(Blackhole blackhole) {
+        new BulkRecommendationJob(BATCH_SIZE, K).run(CATEGORY, userStore, graph,
+                (user, recommendations) -> blackhole.consume(recommendations));
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(NUM_USERS)
+    public void neighborhoodPerUser(Blackhole blackhole) {
+        GenerateRecommendationDaemon daemon = new GenerateRecommendationDaemon(BATCH_SIZE,
+                ScoringMode.NEIGHBORHOOD);
+        Iterator<List<UserProfile>> batches = userStore.batchGetProfiles(BATCH_SIZE);
+        while (batches.hasNext()) {
+            for (UserProfile user : batches.next()) {
+                blackhole.consume(daemon.getRecommendations(CATEGORY, user, graph, K));
+            }
+        }
+    }
+}
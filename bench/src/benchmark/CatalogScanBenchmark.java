@@ -0,0 +1,131 @@
+package benchmark;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.Recommendation;
+import data.structure.UserProfile;
+import server.daemons.GenerateRecommendationDaemon;
+
+/**
+ * Recommendation latency and throughput of the catalog scan, which scores every preference in the
+ * category, across category sizes, correlation degrees, batch sizes and user profile sizes. Run
+ * with -prof gc for the allocation rate.
+ * 
+ * Graphs of more than MAX_CORRELATIONS correlations do not fit in the heap of the fork, so those
+ * combinations of numPreferences and averageDegree fail in setup. Pick the combinations to run with
+ * -p, e.g. -p numPreferences=10000 -p averageDegree=8,64,512.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class CatalogScanBenchmark {
+    private static final PreferenceCategory CATEGORY = PreferenceCategory.BOOKS;
+    private static final int NUM_USERS = 64;
+    private static final long MAX_CORRELATIONS = 16000000;
+    private static final int K = 10;
+    
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int numPreferences;
+    
+    /**
+     * Average number of correlations per preference. Catalogs of popular items have hubs with far
+     * more, which is where a lookup that is linear in the degree shows.
+     */
+    @Param({ "8", "64", "512" })
+    public int averageDegree;
+    
+    @Param({ "100", "1000", "10000" })
+    public int batchSize;
+    
+    @Param({ "10", "100" })
+    public int userPreferences;
+    
+    /**
+     * Threads that score batches in parallel, 0 scores every batch on the calling thread.
+     */
+    @Param({ "0", "4" })
+    public int parallelism;
+    
+    private LocalTransientPreferenceCorrelationGraph graph;
+    private UserProfile[] users;
+    private ExecutorService executor;
+    private GenerateRecommendationDaemon daemon;
+    private int nextUser;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ((long) numPreferences * averageDegree > MAX_CORRELATIONS) {
+            throw new IllegalStateException(String.format(
+                    "%d preferences of degree %d do not fit in the heap!", numPreferences,
+                    averageDegree));
+        }
+        PowerLawGraphGenerator generator = new PowerLawGraphGenerator(436);
+        graph = new LocalTransientPreferenceCorrelationGraph();
+        Preference[] catalog = generator.addCategory(graph, CATEGORY, numPreferences,
+                averageDegree);
+        users = new UserProfile[NUM_USERS];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = generator.generateUser("user" + i,
+                    Collections.singletonMap(CATEGORY, catalog), userPreferences);
+        }
+        
+        if (parallelism == 0) {
+            daemon = new GenerateRecommendationDaemon(batchSize);
+        } else {
+            executor = new ForkJoinPool(parallelism);
+            daemon = new GenerateRecommendationDaemon(batchSize, executor, 2 * parallelism);
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Rotates through the users, so no single user's preferences stay hot in cache.
+     *
+     * @return next user
+     */
+    private UserProfile nextUser() {
+        nextUser = (nextUser + 1) % users.length;
+        return users[nextUser];
+    }
+    
+    @Benchmark
+    public Optional<Recommendation> getRecommendation() {
+        return daemon.getRecommendation(CATEGORY, nextUser(), graph);
+    }
+    
+    @Benchmark
+    public List<Recommendation> getTopRecommendations() {
+        return daemon.getRecommendations(CATEGORY, nextUser(), graph, K);
+    }
+}
@@ -0,0 +1,112 @@
+package benchmark;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+import data.proxy.adapter.DDBPreferenceAdapter;
+import data.proxy.adapter.DDBPreferenceAdapter.CorrelationFormat;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+
+/**
+ * Encoding and decoding of a preference Item with its correlations stored as a map or packed into
+ * one binary attribute. The size of the Item, as DynamoDB counts it against the 400KB limit, is
+ * printed once per trial. Correlated preferences are catalog-style IDs across all categories.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class CorrelationEncodingBenchmark {
+    private static final int CATALOG_SIZE = 1000000;
+    
+    @Param({ "100", "1000", "10000" })
+    public int numCorrelations;
+    
+    @Param({ "MAP", "PACKED" })
+    public CorrelationFormat format;
+    
+    private Preference preference;
+    private Item item;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(436);
+        PreferenceCategory[] categories = PreferenceCategory.values();
+        preference = new Preference("book0", PreferenceCategory.BOOKS, numCorrelations);
+        while (preference.getCorrelations().size() < numCorrelations) {
+            PreferenceCategory category = categories[random.nextInt(categories.length)];
+            preference.addCorrelation(new PreferenceCorrelation(new Preference(category.name()
+                    .toLowerCase() + random.nextInt(CATALOG_SIZE), category), 1 + random
+                    .nextInt(1000)));
+        }
+        item = new DDBPreferenceAdapter(preference, format).toDBModel();
+        System.out.println();
+        System.out.println(String.format("%s Item with %d correlations: %d bytes", format,
+                numCorrelations, itemSize(item)));
+    }
+    
+    @Benchmark
+    public Item encode() {
+        return new DDBPreferenceAdapter(preference, format).toDBModel();
+    }
+    
+    @Benchmark
+    public Preference decode() {
+        return new DDBPreferenceAdapter(item).toObject();
+    }
+    
+    /**
+     * Estimates the size of an Item the way DynamoDB does: the UTF-8 length of each attribute name
+     * plus the size of its value, where a number takes 1 byte per 2 significant digits plus 1, and
+     * a map takes 3 bytes plus 1 byte and the name and value size of each element.
+     *
+     * @param item
+     * @return size in bytes
+     */
+    private static long itemSize(Item item) {
+        long size = 0;
+        for (Entry<String, Object> attribute : item.attributes()) {
+            size += attribute.getKey().getBytes(StandardCharsets.UTF_8).length
+                    + valueSize(attribute.getValue());
+        }
+        return size;
+    }
+    
+    private static long valueSize(Object value) {
+        if (value instanceof String) {
+            return ((String) value).getBytes(StandardCharsets.UTF_8).length;
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof Number) {
+            BigDecimal number = new BigDecimal(value.toString()).stripTrailingZeros();
+            return (number.precision() + 1) / 2 + 1;
+        } else if (value instanceof Map) {
+            long size = 3;
+            for (Entry<?, ?> element : ((Map<?, ?>) value).entrySet()) {
+                size += 1 + element.getKey().toString().getBytes(StandardCharsets.UTF_8).length
+                        + valueSize(element.getValue());
+            }
+            return size;
+        }
+        throw new IllegalArgumentException("Unexpected attribute type " + value.getClass() + "!");
+    }
+}
@@ -0,0 +1,97 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+
+import data.proxy.DDBPreferenceCorrelationGraph;
+import data.proxy.LocalTransientDynamoDBClient;
+import data.proxy.LocalTransientDynamoDBClient.LatencyModel;
+import data.proxy.LocalTransientDynamoDBClient.Operation;
+import data.proxy.adapter.DDBPreferenceAdapter;
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * Time for DDBPreferenceCorrelationGraph to apply the updates of one user's new preference, i.e.
+ * one UpdateItem per preference the user already has, against LocalTransientDynamoDBClient with
+ * log-normal latencies of a median of MEDIAN_MILLIS and a 99th percentile of P99_MILLIS. A write
+ * batch size of 1 submits the updates one at a time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DynamoDBGraphBenchmark {
+    private static final String TABLE_NAME = "PreferenceCorrelations";
+    private static final PreferenceCategory CATEGORY = PreferenceCategory.BOOKS;
+    private static final int USER_PREFERENCES = 16;
+    private static final long MEDIAN_MILLIS = 4;
+    private static final long P99_MILLIS = 20;
+    private static final UserProfile USER = new UserProfile("user");
+    
+    @Param({ "1", "4", "16" })
+    public int writeBatchSize;
+    
+    private LocalTransientDynamoDBClient client;
+    private ExecutorService writeExecutor;
+    private DDBPreferenceCorrelationGraph graph;
+    private int next;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        client = new LocalTransientDynamoDBClient(436);
+        client.createTable(TABLE_NAME, DDBPreferenceAdapter.PREFERENCE_ID_ATTRIBUTE);
+        client.setLatency(LatencyModel.logNormal(MEDIAN_MILLIS, P99_MILLIS, TimeUnit.MILLISECONDS));
+        writeExecutor = Executors.newFixedThreadPool(writeBatchSize);
+        graph = new DDBPreferenceCorrelationGraph(new DynamoDB(client), TABLE_NAME,
+                writeBatchSize > 1 ? writeExecutor : null, writeBatchSize);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        writeExecutor.shutdown();
+        System.out.println();
+        System.out.println(String.format("%d UpdateItem calls, %.0f write units",
+                client.getRequestCount(Operation.UPDATE_ITEM),
+                client.getConsumedWriteCapacity(TABLE_NAME)));
+    }
+    
+    @Benchmark
+    public List<Boolean> updatePreferences() {
+        Preference added = new Preference("book" + (next++ % 1000), CATEGORY);
+        List<UpdatePreferenceRequest> requests = new ArrayList<UpdatePreferenceRequest>(
+                USER_PREFERENCES);
+        for (int i = 0; i < USER_PREFERENCES; i++) {
+            UpdatePreferenceRequest request = new UpdatePreferenceRequest(new Preference("owned"
+                    + i, CATEGORY));
+            request.addCorrelationDelta(new PreferenceCorrelation(added), 1);
+            requests.add(request);
+        }
+        return graph.updatePreferences(requests, USER, UpdateAction.INC_CORRELATION);
+    }
+}
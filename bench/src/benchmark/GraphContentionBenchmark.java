@@ -0,0 +1,149 @@
+package benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.proxy.ConcurrentPreferenceCorrelationGraph;
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.proxy.PreferenceCorrelationGraph;
+import data.proxy.ShardedPreferenceCorrelationGraph;
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * Throughput of updatePreference() when many threads share one in-memory graph, at 1, 2 and 4
+ * threads and one thread per core. The synchronized graph is LocalTransientPreferenceCorrelationGraph
+ * behind a single lock, which is the only way to share it. With an exponent of 0 every preference
+ * is equally likely to be updated, with 1 a few hot preferences get most of the updates. The
+ * sharded graph has one worker thread per core.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class GraphContentionBenchmark {
+    private static final PreferenceCategory CATEGORY = PreferenceCategory.BOOKS;
+    private static final int NUM_REQUESTS = 1 << 16;
+    private static final UserProfile USER = new UserProfile("user");
+    
+    @Param({ "synchronized", "concurrent", "sharded" })
+    public String graphType;
+    
+    @Param({ "100000" })
+    public int numPreferences;
+    
+    @Param({ "0.0", "1.0" })
+    public double exponent;
+    
+    private PreferenceCorrelationGraph graph;
+    private Object lock;
+    private UpdatePreferenceRequest[] requests;
+    
+    /**
+     * The position of a thread in the shared requests.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private int next;
+        
+        @Setup(Level.Trial)
+        public void setUp() {
+            // Threads start at different requests, so they do not update in lockstep
+            next = new Random().nextInt(NUM_REQUESTS);
+        }
+        
+        private int next() {
+            next = (next + 1) & (NUM_REQUESTS - 1);
+            return next;
+        }
+    }
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("synchronized".equals(graphType)) {
+            graph = new LocalTransientPreferenceCorrelationGraph();
+            lock = new Object();
+        } else if ("sharded".equals(graphType)) {
+            graph = new ShardedPreferenceCorrelationGraph(Runtime.getRuntime().availableProcessors());
+        } else {
+            graph = new ConcurrentPreferenceCorrelationGraph();
+        }
+        
+        Preference[] catalog = new Preference[numPreferences];
+        for (int rank = 0; rank < numPreferences; rank++) {
+            catalog[rank] = new Preference(CATEGORY.name().toLowerCase() + rank, CATEGORY);
+        }
+        // Each request is one of the updates that UpdatePreferenceDaemon sends for an addition
+        ZipfSampler sampler = new ZipfSampler(numPreferences, exponent, new Random(436));
+        requests = new UpdatePreferenceRequest[NUM_REQUESTS];
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            UpdatePreferenceRequest request = new UpdatePreferenceRequest(catalog[sampler.next()]);
+            request.updatePopularity(UpdateAction.INC_CORRELATION);
+            request.addCorrelationUpdate(new PreferenceCorrelation(catalog[sampler.next()]),
+                    UpdateAction.INC_CORRELATION);
+            requests[i] = request;
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (graph instanceof ShardedPreferenceCorrelationGraph) {
+            ((ShardedPreferenceCorrelationGraph) graph).close();
+        }
+    }
+    
+    private boolean update(ThreadState thread) {
+        UpdatePreferenceRequest request = requests[thread.next()];
+        if (lock == null) {
+            return graph.updatePreference(request, USER, UpdateAction.INC_CORRELATION);
+        }
+        synchronized (lock) {
+            return graph.updatePreference(request, USER, UpdateAction.INC_CORRELATION);
+        }
+    }
+    
+    @Benchmark
+    @Threads(1)
+    public boolean updatePreference1Thread(ThreadState thread) {
+        return update(thread);
+    }
+    
+    @Benchmark
+    @Threads(2)
+    public boolean updatePreference2Threads(ThreadState thread) {
+        return update(thread);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public boolean updatePreference4Threads(ThreadState thread) {
+        return update(thread);
+    }
+    
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean updatePreferencePerCore(ThreadState thread) {
+        return update(thread);
+    }
+}
@@ -0,0 +1,92 @@
+package benchmark;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.proxy.LocalTransientUserProfileStore;
+import data.structure.PreferenceCategory;
+import data.structure.UserProfile;
+import server.daemons.GraphRebuildJob;
+import server.daemons.GraphRebuildJob.RebuildStats;
+
+/**
+ * Time to rebuild the graph from every user profile with GraphRebuildJob, counting on one thread or
+ * several. Users have USER_PREFERENCES books each, drawn from a power law over the catalog, and the
+ * rebuilt graph is written to an in-memory graph. The users and correlations per second of the
+ * last run are printed after each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class GraphRebuildBenchmark {
+    private static final PreferenceCategory CATEGORY = PreferenceCategory.BOOKS;
+    private static final int NUM_PREFERENCES = 10000;
+    private static final int USER_PREFERENCES = 8;
+    private static final int BATCH_SIZE = 1000;
+    
+    @Param({ "100000", "1000000" })
+    public int numUsers;
+    
+    @Param({ "1", "4" })
+    public int parallelism;
+    
+    private LocalTransientUserProfileStore userStore;
+    private ExecutorService executor;
+    private RebuildStats lastStats;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(436);
+        ZipfSampler sampler = new ZipfSampler(NUM_PREFERENCES, 1.0, random);
+        userStore = new LocalTransientUserProfileStore();
+        for (int i = 0; i < numUsers; i++) {
+            UserProfile user = new UserProfile("user" + i);
+            Set<Integer> ranks = new HashSet<Integer>();
+            while (ranks.size() < USER_PREFERENCES) {
+                ranks.add(sampler.next());
+            }
+            for (int rank : ranks) {
+                user.addPreference(CATEGORY, CATEGORY.name().toLowerCase() + rank);
+            }
+            userStore.write(user);
+        }
+        executor = parallelism == 1 ? null : Executors.newFixedThreadPool(parallelism);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        System.out.println(lastStats);
+    }
+    
+    @Benchmark
+    public LocalTransientPreferenceCorrelationGraph rebuild() {
+        LocalTransientPreferenceCorrelationGraph graph = new LocalTransientPreferenceCorrelationGraph();
+        lastStats = new GraphRebuildJob(BATCH_SIZE, executor, parallelism).run(userStore, graph);
+        return graph;
+    }
+}
@@ -0,0 +1,112 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.proxy.DurablePreferenceCorrelationGraph;
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * Time to reopen a DurablePreferenceCorrelationGraph, either from a snapshot alone or by replaying
+ * a log of every change. Each preference is correlated with AVERAGE_DEGREE others, and each logged
+ * update adds all of the correlations of one preference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class GraphRecoveryBenchmark {
+    private static final PreferenceCategory CATEGORY = PreferenceCategory.BOOKS;
+    private static final int AVERAGE_DEGREE = 100;
+    private static final int WRITE_BATCH_SIZE = 100;
+    private static final UserProfile USER = new UserProfile("user");
+    
+    @Param({ "1000000", "10000000" })
+    public int numEdges;
+    
+    @Param({ "snapshot", "log" })
+    public String recoverFrom;
+    
+    private Path directory;
+    private DurablePreferenceCorrelationGraph recovered;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("GraphRecoveryBenchmark");
+        DurablePreferenceCorrelationGraph graph = new DurablePreferenceCorrelationGraph(directory
+                .toFile(), Long.MAX_VALUE);
+        
+        int numPreferences = numEdges / AVERAGE_DEGREE;
+        Preference[] catalog = new Preference[numPreferences];
+        for (int i = 0; i < numPreferences; i++) {
+            catalog[i] = new Preference(CATEGORY.name().toLowerCase() + i, CATEGORY);
+        }
+        List<UpdatePreferenceRequest> batch = new ArrayList<UpdatePreferenceRequest>();
+        for (int i = 0; i < numPreferences; i++) {
+            UpdatePreferenceRequest request = new UpdatePreferenceRequest(catalog[i]);
+            request.updatePopularity(UpdateAction.INC_CORRELATION);
+            for (int j = 1; j <= AVERAGE_DEGREE; j++) {
+                request.addCorrelationUpdate(new PreferenceCorrelation(catalog[(i + j * 7919)
+                        % numPreferences]), UpdateAction.INC_CORRELATION);
+            }
+            batch.add(request);
+            if (batch.size() == WRITE_BATCH_SIZE || i == numPreferences - 1) {
+                graph.updatePreferences(batch, USER, UpdateAction.INC_CORRELATION);
+                batch.clear();
+            }
+        }
+        if ("snapshot".equals(recoverFrom)) {
+            graph.snapshot();
+        }
+        graph.close();
+    }
+    
+    @TearDown(Level.Invocation)
+    public void closeRecovered() {
+        if (recovered != null) {
+            recovered.close();
+            recovered = null;
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+    
+    @Benchmark
+    public DurablePreferenceCorrelationGraph recover() {
+        recovered = new DurablePreferenceCorrelationGraph(directory.toFile(), Long.MAX_VALUE);
+        return recovered;
+    }
+}
@@ -0,0 +1,89 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.proxy.MappedPreferenceCorrelationGraph;
+import data.proxy.PreferenceCorrelationGraph;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+
+/**
+ * Reads of random preferences from a graph held on the heap and from the same graph written to a
+ * memory-mapped file, and the time to open the file. Each preference is correlated with
+ * AVERAGE_DEGREE others.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MappedGraphBenchmark {
+    private static final PreferenceCategory CATEGORY = PreferenceCategory.BOOKS;
+    private static final int AVERAGE_DEGREE = 100;
+    private static final int BATCH_SIZE = 1000;
+    
+    @Param({ "1000000", "10000000" })
+    public int numEdges;
+    
+    @Param({ "heap", "mapped" })
+    public String store;
+    
+    private int numPreferences;
+    private File file;
+    private PreferenceCorrelationGraph graph;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        numPreferences = numEdges / AVERAGE_DEGREE;
+        LocalTransientPreferenceCorrelationGraph heapGraph = new LocalTransientPreferenceCorrelationGraph();
+        for (int i = 0; i < numPreferences; i++) {
+            Preference preference = new Preference(CATEGORY.name().toLowerCase() + i, CATEGORY, 1);
+            for (int j = 1; j <= AVERAGE_DEGREE; j++) {
+                preference.addCorrelation(new PreferenceCorrelation(new Preference(CATEGORY.name()
+                        .toLowerCase() + ((i + j * 7919) % numPreferences), CATEGORY), j));
+            }
+            heapGraph.putPreference(preference);
+        }
+        
+        file = File.createTempFile("MappedGraphBenchmark", ".csr");
+        MappedPreferenceCorrelationGraph.write(heapGraph, file, BATCH_SIZE);
+        graph = "heap".equals(store) ? heapGraph : new MappedPreferenceCorrelationGraph(file);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Preference getPreference() {
+        int i = ThreadLocalRandom.current().nextInt(numPreferences);
+        return graph.getPreference(CATEGORY.name().toLowerCase() + i, CATEGORY);
+    }
+    
+    /**
+     * Opens the file, whichever store is read from.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public MappedPreferenceCorrelationGraph open() {
+        return new MappedPreferenceCorrelationGraph(file);
+    }
+}
@@ -0,0 +1,96 @@
+package benchmark;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.Recommendation;
+import data.structure.UserProfile;
+import server.daemons.GenerateRecommendationDaemon;
+
+/**
+ * Recommending in every category with one scan of the graph, against one scan per category.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class MultiCategoryBenchmark {
+    private static final int NUM_USERS = 64;
+    private static final int AVERAGE_DEGREE = 8;
+    private static final int BATCH_SIZE = 1000;
+    
+    /**
+     * The number of preferences in each category.
+     */
+    @Param({ "1000", "10000", "100000" })
+    public int numPreferences;
+    
+    @Param({ "10", "100" })
+    public int userPreferences;
+    
+    private final Set<PreferenceCategory> categories = EnumSet.allOf(PreferenceCategory.class);
+    private LocalTransientPreferenceCorrelationGraph graph;
+    private UserProfile[] users;
+    private GenerateRecommendationDaemon daemon;
+    private int nextUser;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        PowerLawGraphGenerator generator = new PowerLawGraphGenerator(436);
+        graph = new LocalTransientPreferenceCorrelationGraph();
+        Map<PreferenceCategory, Preference[]> catalogs = new EnumMap<PreferenceCategory, Preference[]>(
+                PreferenceCategory.class);
+        for (PreferenceCategory category : categories) {
+            catalogs.put(category,
+                    generator.addCategory(graph, category, numPreferences, AVERAGE_DEGREE));
+        }
+        users = new UserProfile[NUM_USERS];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = generator.generateUser("user" + i, catalogs, userPreferences);
+        }
+        daemon = new GenerateRecommendationDaemon(BATCH_SIZE);
+    }
+    
+    private UserProfile nextUser() {
+        nextUser = (nextUser + 1) % users.length;
+        return users[nextUser];
+    }
+    
+    @Benchmark
+    public Map<PreferenceCategory, Optional<Recommendation>> singleScan() {
+        return daemon.getRecommendationsByCategory(categories, nextUser(), graph);
+    }
+    
+    @Benchmark
+    public Map<PreferenceCategory, Optional<Recommendation>> scanPerCategory() {
+        UserProfile user = nextUser();
+        Map<PreferenceCategory, Optional<Recommendation>> recommendations = new EnumMap<PreferenceCategory, Optional<Recommendation>>(
+                PreferenceCategory.class);
+        for (PreferenceCategory category : categories) {
+            recommendations.put(category, daemon.getRecommendation(category, user, graph));
+        }
+        return recommendations;
+    }
+}
@@ -0,0 +1,90 @@
+package benchmark;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.Recommendation;
+import data.structure.UserProfile;
+import server.daemons.GenerateRecommendationDaemon;
+import server.daemons.GenerateRecommendationDaemon.ScoringMode;
+
+/**
+ * Recommendation latency and throughput of neighborhood scoring, which only visits the
+ * correlations of the user's own preferences, across category sizes and user profile sizes. Run
+ * with -prof gc for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class NeighborhoodBenchmark {
+    private static final PreferenceCategory CATEGORY = PreferenceCategory.BOOKS;
+    private static final int NUM_USERS = 256;
+    private static final int AVERAGE_DEGREE = 8;
+    private static final int K = 10;
+    
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int numPreferences;
+    
+    @Param({ "10", "100", "1000" })
+    public int userPreferences;
+    
+    private LocalTransientPreferenceCorrelationGraph graph;
+    private UserProfile[] users;
+    private GenerateRecommendationDaemon daemon;
+    private int nextUser;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        PowerLawGraphGenerator generator = new PowerLawGraphGenerator(436);
+        graph = new LocalTransientPreferenceCorrelationGraph();
+        Preference[] catalog = generator.addCategory(graph, CATEGORY, numPreferences,
+                AVERAGE_DEGREE);
+        users = new UserProfile[NUM_USERS];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = generator.generateUser("user" + i,
+                    Collections.singletonMap(CATEGORY, catalog), userPreferences);
+        }
+        daemon = new GenerateRecommendationDaemon(1, ScoringMode.NEIGHBORHOOD);
+    }
+    
+    /**
+     * Rotates through the users, so no single user's neighborhood stays hot in cache.
+     *
+     * @return next user
+     */
+    private UserProfile nextUser() {
+        nextUser = (nextUser + 1) % users.length;
+        return users[nextUser];
+    }
+    
+    @Benchmark
+    public Optional<Recommendation> getRecommendation() {
+        return daemon.getRecommendation(CATEGORY, nextUser(), graph);
+    }
+    
+    @Benchmark
+    public List<Recommendation> getTopRecommendations() {
+        return daemon.getRecommendations(CATEGORY, nextUser(), graph, K);
+    }
+}
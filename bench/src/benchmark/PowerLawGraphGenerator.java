@@ -0,0 +1,140 @@
+package benchmark;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.proxy.LocalTransientUserProfileStore;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * Generates synthetic preference correlation graphs whose popularities and correlations follow a
+ * power law, as real catalogs do: a few preferences are very popular and correlated with a large
+ * share of the catalog, while most preferences are rare and have few correlations. Both the number
+ * of correlations of a preference and the choice of their destinations favor popular preferences.
+ * Everything is derived from the seed, so a seed always generates the same graph and users.
+ */
+public class PowerLawGraphGenerator {
+    private static final double DEFAULT_EXPONENT = 1.0;
+    private static final int MAX_WEIGHT = 50;
+    
+    private final Random random;
+    private final double exponent;
+    
+    /**
+     * Constructor for a generator with a Zipf exponent of 1.
+     *
+     * @param seed
+     */
+    public PowerLawGraphGenerator(long seed) {
+        this(seed, DEFAULT_EXPONENT);
+    }
+    
+    /**
+     *
+     * @param seed
+     * @param exponent Skew of popularities and correlations, 0 is uniform
+     */
+    public PowerLawGraphGenerator(long seed, double exponent) {
+        this.random = new Random(seed);
+        this.exponent = exponent;
+    }
+    
+    /**
+     * Adds a category of preferences to a graph.
+     *
+     * @param graph
+     * @param category
+     * @param numPreferences
+     * @param averageDegree The average number of correlations per preference
+     * @return The new preferences, ordered from most to least popular
+     * @throws IllegalArgumentException if numPreferences or averageDegree is less than 1
+     */
+    public Preference[] addCategory(LocalTransientPreferenceCorrelationGraph graph,
+            PreferenceCategory category, int numPreferences, int averageDegree) {
+        if (numPreferences < 1 || averageDegree < 1) {
+            throw new IllegalArgumentException(
+                    "There must be at least one preference and one correlation per preference!");
+        }
+        
+        Preference[] preferences = new Preference[numPreferences];
+        int maxPopularity = numPreferences * MAX_WEIGHT;
+        for (int rank = 0; rank < numPreferences; rank++) {
+            int popularity = (int) Math.max(MAX_WEIGHT, maxPopularity
+                    * Math.pow(rank + 1, -this.exponent));
+            preferences[rank] = new Preference(category.name().toLowerCase() + rank, category,
+                    popularity);
+        }
+        
+        // Scale the power law degrees so that they average out to averageDegree
+        double degreeScale = 0.0;
+        for (int rank = 0; rank < numPreferences; rank++) {
+            degreeScale += Math.pow(rank + 1, -this.exponent / 2);
+        }
+        degreeScale = averageDegree * numPreferences / degreeScale;
+        
+        ZipfSampler destinations = new ZipfSampler(numPreferences, this.exponent, this.random);
+        for (int rank = 0; rank < numPreferences; rank++) {
+            int degree = (int) Math.min(numPreferences - 1,
+                    Math.max(1, Math.round(degreeScale * Math.pow(rank + 1, -this.exponent / 2))));
+            for (int i = 0; i < degree; i++) {
+                int destination = destinations.next();
+                if (destination != rank) {
+                    preferences[rank].addCorrelation(new PreferenceCorrelation(
+                            preferences[destination], 1 + this.random.nextInt(MAX_WEIGHT)));
+                }
+            }
+            graph.putPreference(preferences[rank]);
+        }
+        return preferences;
+    }
+    
+    /**
+     * Generates a user whose preferences are drawn from the given categories, favoring popular
+     * preferences.
+     *
+     * @param userId
+     * @param catalogs Preferences of each category, ordered from most to least popular
+     * @param numPreferences The number of preferences of the user in each category
+     * @return user profile
+     */
+    public UserProfile generateUser(String userId, Map<PreferenceCategory, Preference[]> catalogs,
+            int numPreferences) {
+        Map<PreferenceCategory, Set<Preference>> preferences = new HashMap<PreferenceCategory, Set<Preference>>();
+        for (Map.Entry<PreferenceCategory, Preference[]> catalog : catalogs.entrySet()) {
+            Preference[] catalogPreferences = catalog.getValue();
+            ZipfSampler sampler = new ZipfSampler(catalogPreferences.length, this.exponent,
+                    this.random);
+            Set<Preference> userPreferences = new HashSet<Preference>();
+            int target = Math.min(numPreferences, catalogPreferences.length);
+            while (userPreferences.size() < target) {
+                userPreferences.add(catalogPreferences[sampler.next()]);
+            }
+            preferences.put(catalog.getKey(), userPreferences);
+        }
+        return new UserProfile(userId, preferences);
+    }
+    
+    /**
+     * Generates users and writes them to a new in-memory user profile store.
+     *
+     * @param catalogs See {@link #generateUser(String, Map, int)}
+     * @param numUsers
+     * @param numPreferences The number of preferences of each user in each category
+     * @return user profile store
+     */
+    public LocalTransientUserProfileStore generateUserStore(
+            Map<PreferenceCategory, Preference[]> catalogs, int numUsers, int numPreferences) {
+        LocalTransientUserProfileStore store = new LocalTransientUserProfileStore();
+        for (int i = 0; i < numUsers; i++) {
+            store.write(generateUser("user" + i, catalogs, numPreferences));
+        }
+        return store;
+    }
+}
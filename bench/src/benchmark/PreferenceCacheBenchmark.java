@@ -0,0 +1,83 @@
+package benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.proxy.CachingPreferenceCorrelationGraph;
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+
+/**
+ * Reads through CachingPreferenceCorrelationGraph, where most reads follow a Zipf distribution over
+ * a power-law graph and every SCAN_INTERVAL-th read is the next preference of a sequential scan of
+ * the catalog, as a batch job would make. The hit rate of each trial is printed, and the miss rate
+ * is the fraction of reads, and so of read units, that would still reach DynamoDB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class PreferenceCacheBenchmark {
+    private static final PreferenceCategory CATEGORY = PreferenceCategory.BOOKS;
+    private static final int NUM_PREFERENCES = 100000;
+    private static final int AVERAGE_DEGREE = 8;
+    private static final double ZIPF_EXPONENT = 1.0;
+    private static final int SCAN_INTERVAL = 4;
+    
+    /**
+     * The maximum total weight of the cache, i.e. cached preferences plus their correlations.
+     */
+    @Param({ "10000", "100000" })
+    public long maxWeight;
+    
+    private Preference[] catalog;
+    private ZipfSampler sampler;
+    private CachingPreferenceCorrelationGraph cache;
+    private int reads;
+    private int nextScanned;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        PowerLawGraphGenerator generator = new PowerLawGraphGenerator(436);
+        LocalTransientPreferenceCorrelationGraph graph = new LocalTransientPreferenceCorrelationGraph();
+        catalog = generator.addCategory(graph, CATEGORY, NUM_PREFERENCES, AVERAGE_DEGREE);
+        sampler = new ZipfSampler(NUM_PREFERENCES, ZIPF_EXPONENT, new Random(436));
+        cache = new CachingPreferenceCorrelationGraph(graph, maxWeight);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println(String.format("Hit rate %.3f, %d evictions, weight %d of %d",
+                cache.getHitRate(), cache.getEvictionCount(), cache.getWeight(), maxWeight));
+    }
+    
+    @Benchmark
+    public Preference getPreference() {
+        Preference preference;
+        if (++reads % SCAN_INTERVAL == 0) {
+            preference = catalog[nextScanned];
+            nextScanned = (nextScanned + 1) % NUM_PREFERENCES;
+        } else {
+            preference = catalog[sampler.next()];
+        }
+        return cache.getPreference(preference.getID(), CATEGORY);
+    }
+}
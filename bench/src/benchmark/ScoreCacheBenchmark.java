@@ -0,0 +1,116 @@
+package benchmark;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.Recommendation;
+import data.structure.UserProfile;
+import server.daemons.GenerateRecommendationDaemon;
+import server.daemons.GenerateRecommendationDaemon.ScoringMode;
+import server.daemons.RecommendationScoreCache;
+import server.daemons.UpdatePreferenceDaemon;
+
+/**
+ * Reading recommendations from RecommendationScoreCache against recalculating them, and the cost
+ * that keeping the cached scores up to date adds to every preference update.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ScoreCacheBenchmark {
+    private static final PreferenceCategory CATEGORY = PreferenceCategory.BOOKS;
+    private static final int NUM_PREFERENCES = 10000;
+    private static final int AVERAGE_DEGREE = 8;
+    private static final int USER_PREFERENCES = 20;
+    private static final int K = 10;
+    
+    /**
+     * The number of users whose scores are cached, and kept up to date on every update.
+     */
+    @Param({ "0", "100", "1000" })
+    public int cachedUsers;
+    
+    private LocalTransientPreferenceCorrelationGraph graph;
+    private UserProfile[] users;
+    private Preference[] catalog;
+    private UpdatePreferenceDaemon updater;
+    private RecommendationScoreCache cache;
+    private GenerateRecommendationDaemon daemon;
+    private UserProfile updatingUser;
+    private int nextUser;
+    private int nextUpdate;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        PowerLawGraphGenerator generator = new PowerLawGraphGenerator(436);
+        graph = new LocalTransientPreferenceCorrelationGraph();
+        catalog = generator.addCategory(graph, CATEGORY, NUM_PREFERENCES, AVERAGE_DEGREE);
+        users = new UserProfile[Math.max(cachedUsers, 1)];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = generator.generateUser("user" + i,
+                    Collections.singletonMap(CATEGORY, catalog), USER_PREFERENCES);
+        }
+        updatingUser = generator.generateUser("updater",
+                Collections.singletonMap(CATEGORY, catalog), USER_PREFERENCES);
+        
+        updater = new UpdatePreferenceDaemon(graph);
+        cache = new RecommendationScoreCache(graph, users.length);
+        updater.addUpdateListener(cache);
+        for (int i = 0; i < cachedUsers; i++) {
+            cache.getRecommendations(CATEGORY, users[i], K);
+        }
+        daemon = new GenerateRecommendationDaemon(1, ScoringMode.NEIGHBORHOOD);
+    }
+    
+    private UserProfile nextUser() {
+        nextUser = (nextUser + 1) % users.length;
+        return users[nextUser];
+    }
+    
+    @Benchmark
+    public List<Recommendation> cachedTopRecommendations() {
+        return cache.getRecommendations(CATEGORY, nextUser(), K);
+    }
+    
+    @Benchmark
+    public List<Recommendation> recalculatedTopRecommendations() {
+        return daemon.getRecommendations(CATEGORY, nextUser(), graph, K);
+    }
+    
+    /**
+     * One user adds a popular preference and then removes it again, so the graph returns to where
+     * it started and every cached entry has to absorb both updates.
+     */
+    @Benchmark
+    public void addAndRemovePreference() {
+        Preference preference = catalog[nextUpdate];
+        nextUpdate = (nextUpdate + 1) % 100;
+        if (updatingUser.getPreferencesForCategory(CATEGORY).contains(preference)) {
+            return;
+        }
+        updater.propagateAddedPreference(updatingUser,
+                updatingUser.addPreference(CATEGORY, preference.getID()));
+        updater.propagateRemovedPreference(updatingUser,
+                updatingUser.removePreference(CATEGORY, preference.getID()));
+    }
+}
@@ -0,0 +1,103 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import util.DoubleScoreTable;
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.PreferenceDictionary;
+import data.structure.UserProfile;
+
+/**
+ * Accumulating a user's correlation scores into a primitive DoubleScoreTable keyed by the handles
+ * of a PreferenceDictionary, against the boxed HashMap<Preference, Double> it replaced. The
+ * handles are assigned as the scores are accumulated, as scoring does. Run with -prof gc to
+ * compare the allocation per request (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScoreTableBenchmark {
+    private static final PreferenceCategory CATEGORY = PreferenceCategory.BOOKS;
+    private static final int NUM_PREFERENCES = 100000;
+    private static final int AVERAGE_DEGREE = 8;
+    
+    @Param({ "10", "100", "1000" })
+    public int userPreferences;
+    
+    private Preference[] candidates;
+    private double[] ratios;
+    
+    /**
+     * Flattens the correlations of one user's preferences into the sequence of (candidate, ratio)
+     * additions that scoring performs.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        PowerLawGraphGenerator generator = new PowerLawGraphGenerator(436);
+        LocalTransientPreferenceCorrelationGraph graph = new LocalTransientPreferenceCorrelationGraph();
+        Preference[] catalog = generator.addCategory(graph, CATEGORY, NUM_PREFERENCES,
+                AVERAGE_DEGREE);
+        UserProfile user = generator.generateUser("user",
+                Collections.singletonMap(CATEGORY, catalog), userPreferences);
+        
+        List<Preference> candidateList = new ArrayList<Preference>();
+        List<Double> ratioList = new ArrayList<Double>();
+        Set<Preference> userPrefs = user.getPreferencesForCategory(CATEGORY);
+        for (Preference userPref : userPrefs) {
+            Preference source = graph.getPreference(userPref.getID(), CATEGORY);
+            for (PreferenceCorrelation correlation : source.getCorrelations()) {
+                candidateList.add(correlation.getToPreference());
+                ratioList.add(correlation.getCorrelationRatio(source.getPopularity()));
+            }
+        }
+        candidates = candidateList.toArray(new Preference[candidateList.size()]);
+        ratios = new double[ratioList.size()];
+        for (int i = 0; i < ratios.length; i++) {
+            ratios[i] = ratioList.get(i);
+        }
+    }
+    
+    @Benchmark
+    public Map<Preference, Double> boxedHashMap() {
+        Map<Preference, Double> scores = new HashMap<Preference, Double>();
+        for (int i = 0; i < candidates.length; i++) {
+            scores.merge(candidates[i], ratios[i], Double::sum);
+        }
+        return scores;
+    }
+    
+    @Benchmark
+    public DoubleScoreTable primitiveTable() {
+        PreferenceDictionary dictionary = new PreferenceDictionary();
+        DoubleScoreTable scores = new DoubleScoreTable();
+        for (int i = 0; i < candidates.length; i++) {
+            scores.add(dictionary.encode(candidates[i]), ratios[i]);
+        }
+        return scores;
+    }
+}
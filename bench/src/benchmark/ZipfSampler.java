@@ -0,0 +1,52 @@
+package benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Samples ranks 0 to n - 1 from a Zipf distribution, i.e. rank r is drawn with probability
+ * proportional to 1 / (r + 1)^exponent. Sampling is a binary search of the cumulative distribution,
+ * which is computed once.
+ */
+public class ZipfSampler {
+    private final double[] cumulative;
+    private final Random random;
+    
+    /**
+     *
+     * @param n The number of ranks
+     * @param exponent Skew of the distribution, 0 is uniform
+     * @param random Source of randomness, which should be seeded for repeatable samples
+     * @throws IllegalArgumentException if n is less than 1 or exponent is negative
+     */
+    public ZipfSampler(int n, double exponent, Random random) {
+        if (n < 1) {
+            throw new IllegalArgumentException("There must be at least one rank!");
+        }
+        if (exponent < 0) {
+            throw new IllegalArgumentException("Exponent cannot be negative!");
+        }
+        this.cumulative = new double[n];
+        this.random = random;
+        
+        double total = 0.0;
+        for (int rank = 0; rank < n; rank++) {
+            total += Math.pow(rank + 1, -exponent);
+            this.cumulative[rank] = total;
+        }
+        for (int rank = 0; rank < n; rank++) {
+            this.cumulative[rank] /= total;
+        }
+    }
+    
+    /**
+     *
+     * @return a random rank, where low ranks are the most likely
+     */
+    public int next() {
+        int index = Arrays.binarySearch(this.cumulative, this.random.nextDouble());
+        // A miss returns -(insertion point) - 1, and the insertion point is the sampled rank
+        int rank = index >= 0 ? index : -index - 1;
+        return Math.min(rank, this.cumulative.length - 1);
+    }
+}
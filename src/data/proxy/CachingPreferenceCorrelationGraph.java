@@ -0,0 +1,480 @@
+package data.proxy;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * CachingPreferenceCorrelationGraph keeps recently read preferences of another graph in memory, so
+ * that repeated reads of hot preferences do not go back to the underlying graph. Each entry is
+ * weighed by its number of correlations plus one, and the cache holds at most maxWeight in total.
+ * 
+ * Eviction is segmented LRU: a preference that is read for the first time enters a probationary
+ * segment, and only moves to the protected segment, which holds up to 80% of the weight, when it is
+ * read again. Entries leave the protected segment back into the probationary one, and are only
+ * evicted from there, so a scan of many preferences that are each read once cannot flush the
+ * preferences that are read over and over.
+ * 
+ * Writes go straight to the underlying graph and drop the preferences they change from the cache,
+ * including the correlated preferences when the graph has symmetric correlations, where a delete
+ * drops the whole cache. A read that overlaps a write of the same preference is not cached, so
+ * the cache never keeps a preference from before a write that has completed; reads of other
+ * preferences are cached as usual. Entries can also expire a fixed time after
+ * they were read from the underlying graph, which bounds how long writes made by other processes
+ * go unseen. Batch reads are passed through without being cached.
+ * 
+ * Cached preferences are shared between readers and must not be modified.
+ */
+public class CachingPreferenceCorrelationGraph implements PreferenceCorrelationGraph {
+    
+    private static final double PROTECTED_SHARE = 0.8;
+    
+    private final PreferenceCorrelationGraph graph;
+    private final long maxWeight;
+    private final long maxProtectedWeight;
+    private final long expireAfterWriteNanos;
+    private final Ticker ticker;
+    private final LinkedHashMap<Preference, CachedPreference> probation;
+    private final LinkedHashMap<Preference, CachedPreference> protectedSegment;
+    private long probationWeight;
+    private long protectedWeight;
+    // The preferences being read from the underlying graph, so writes can mark those reads stale
+    private final HashMap<Preference, PendingRead> pendingReads;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    
+    /**
+     * A cached preference, with its weight and the time it was read from the underlying graph.
+     */
+    private static class CachedPreference {
+        private final Preference preference;
+        private final long weight;
+        private final long loadedAt;
+        
+        private CachedPreference(Preference preference, long loadedAt) {
+            this.preference = preference;
+            this.weight = weigh(preference);
+            this.loadedAt = loadedAt;
+        }
+    }
+    
+    /**
+     * The reads of one preference that are in flight. Each write of the preference increments the
+     * version, so a read can tell whether a write overlapped it.
+     */
+    private static class PendingRead {
+        private int readers;
+        private long version;
+    }
+    
+    /**
+     * Constructor for a cache whose entries do not expire.
+     * 
+     * @param graph The graph that reads and writes are passed to
+     * @param maxWeight The maximum total weight of the cached preferences
+     * @throws IllegalArgumentException if graph is null or maxWeight is less than 1
+     */
+    public CachingPreferenceCorrelationGraph(PreferenceCorrelationGraph graph, long maxWeight) {
+        this(graph, maxWeight, 0, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Constructor for a cache whose entries expire a fixed time after they were read.
+     * 
+     * @param graph The graph that reads and writes are passed to
+     * @param maxWeight The maximum total weight of the cached preferences
+     * @param expireAfterWrite The time an entry is kept after it was read from the graph, or 0 to
+     *        keep entries until they are evicted
+     * @param unit
+     * @throws IllegalArgumentException if graph is null, maxWeight is less than 1 or
+     *         expireAfterWrite is negative
+     */
+    public CachingPreferenceCorrelationGraph(PreferenceCorrelationGraph graph, long maxWeight,
+            long expireAfterWrite, TimeUnit unit) {
+        this(graph, maxWeight, expireAfterWrite, unit, Ticker.systemTicker());
+    }
+    
+    /**
+     * Constructor that also sets the source of time, for tests.
+     * 
+     * @param graph
+     * @param maxWeight
+     * @param expireAfterWrite
+     * @param unit
+     * @param ticker
+     */
+    CachingPreferenceCorrelationGraph(PreferenceCorrelationGraph graph, long maxWeight,
+            long expireAfterWrite, TimeUnit unit, Ticker ticker) {
+        if (graph == null) {
+            throw new IllegalArgumentException("Graph cannot be null!");
+        }
+        if (maxWeight < 1) {
+            throw new IllegalArgumentException("Max weight must be at least 1!");
+        }
+        if (expireAfterWrite < 0) {
+            throw new IllegalArgumentException("Expiry time cannot be negative!");
+        }
+        this.graph = graph;
+        this.maxWeight = maxWeight;
+        this.maxProtectedWeight = (long) (maxWeight * PROTECTED_SHARE);
+        this.expireAfterWriteNanos = unit.toNanos(expireAfterWrite);
+        this.ticker = ticker;
+        this.probation = new LinkedHashMap<Preference, CachedPreference>(16, 0.75f, true);
+        this.protectedSegment = new LinkedHashMap<Preference, CachedPreference>(16, 0.75f, true);
+        this.pendingReads = new HashMap<Preference, PendingRead>();
+    }
+    
+    /**
+     * {@inheritDoc} Reads the underlying graph only if the preference is not cached.
+     */
+    @Override
+    public Preference getPreference(String id, PreferenceCategory category) {
+        Preference key = new Preference(id, category);
+        PendingRead pending;
+        long versionBefore;
+        synchronized (this) {
+            CachedPreference cached = lookup(key);
+            if (cached != null) {
+                this.hits++;
+                return cached.preference;
+            }
+            this.misses++;
+            pending = this.pendingReads.computeIfAbsent(key, k -> new PendingRead());
+            pending.readers++;
+            versionBefore = pending.version;
+        }
+        
+        // Read the graph without holding the lock, so other reads are not blocked
+        long loadedAt = this.ticker.read();
+        Preference preference = null;
+        try {
+            preference = this.graph.getPreference(id, category);
+        } finally {
+            synchronized (this) {
+                if (preference != null && versionBefore == pending.version
+                        && !this.probation.containsKey(key)
+                        && !this.protectedSegment.containsKey(key)) {
+                    admit(key, new CachedPreference(preference, loadedAt));
+                }
+                if (--pending.readers == 0) {
+                    this.pendingReads.remove(key);
+                }
+            }
+        }
+        return preference;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(PreferenceCategory category, int batchSize) {
+        return this.graph.batchGetPreferences(category, batchSize);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(Set<PreferenceCategory> categories,
+            int batchSize) {
+        return this.graph.batchGetPreferences(categories, batchSize);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putPreference(Preference preference) {
+        try {
+            this.graph.putPreference(preference);
+        } finally {
+            synchronized (this) {
+                invalidate(preference);
+                if (this.graph.hasSymmetricCorrelations()) {
+                    for (PreferenceCorrelation correlation : preference.getCorrelations()) {
+                        invalidate(correlation.getToPreference());
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean updatePreference(UpdatePreferenceRequest request, UserProfile user,
+            UpdateAction action) {
+        try {
+            return this.graph.updatePreference(request, user, action);
+        } finally {
+            synchronized (this) {
+                invalidate(request);
+            }
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests,
+            UserProfile user, UpdateAction action) {
+        try {
+            return this.graph.updatePreferences(requests, user, action);
+        } finally {
+            synchronized (this) {
+                for (UpdatePreferenceRequest request : requests) {
+                    invalidate(request);
+                }
+            }
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete(String id, PreferenceCategory category) {
+        try {
+            this.graph.delete(id, category);
+        } finally {
+            synchronized (this) {
+                if (this.graph.hasSymmetricCorrelations()) {
+                    // The pairs of the deleted preference go with it, and a preference that is not
+                    // cached gives no way of knowing which preferences they belonged to
+                    invalidateAll();
+                } else {
+                    invalidate(new Preference(id, category));
+                }
+            }
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasSymmetricCorrelations() {
+        return this.graph.hasSymmetricCorrelations();
+    }
+    
+    /**
+     * Drops a preference from the cache, e.g. after it was changed by another process.
+     * 
+     * @param id
+     * @param category
+     */
+    public synchronized void invalidate(String id, PreferenceCategory category) {
+        invalidate(new Preference(id, category));
+    }
+    
+    /**
+     * Drops every preference from the cache.
+     */
+    public synchronized void invalidateAll() {
+        for (PendingRead pending : this.pendingReads.values()) {
+            pending.version++;
+        }
+        this.probation.clear();
+        this.protectedSegment.clear();
+        this.probationWeight = 0;
+        this.protectedWeight = 0;
+    }
+    
+    /**
+     * 
+     * @return The number of reads that were served from the cache
+     */
+    public synchronized long getHitCount() {
+        return this.hits;
+    }
+    
+    /**
+     * 
+     * @return The number of reads that went to the underlying graph
+     */
+    public synchronized long getMissCount() {
+        return this.misses;
+    }
+    
+    /**
+     * 
+     * @return The fraction of reads that were served from the cache, or 0 if there were none
+     */
+    public synchronized double getHitRate() {
+        long reads = this.hits + this.misses;
+        return reads == 0 ? 0 : (double) this.hits / reads;
+    }
+    
+    /**
+     * 
+     * @return The number of entries evicted to make room for others
+     */
+    public synchronized long getEvictionCount() {
+        return this.evictions;
+    }
+    
+    /**
+     * 
+     * @return The number of entries dropped because they expired
+     */
+    public synchronized long getExpirationCount() {
+        return this.expirations;
+    }
+    
+    /**
+     * 
+     * @return The number of cached preferences
+     */
+    public synchronized int size() {
+        return this.probation.size() + this.protectedSegment.size();
+    }
+    
+    /**
+     * 
+     * @return The total weight of the cached preferences
+     */
+    public synchronized long getWeight() {
+        return this.probationWeight + this.protectedWeight;
+    }
+    
+    /**
+     * Weighs a preference by its number of correlations plus one, which roughly tracks its size
+     * in memory.
+     * 
+     * @param preference
+     * @return weight
+     */
+    private static long weigh(Preference preference) {
+        return preference.getCorrelations().size() + 1L;
+    }
+    
+    /**
+     * Finds a cached preference, promoting it to the protected segment if it was on probation.
+     * Expired entries are dropped.
+     * 
+     * @param key
+     * @return cached preference, or null if it is not cached
+     */
+    private CachedPreference lookup(Preference key) {
+        CachedPreference cached = this.protectedSegment.get(key);
+        if (cached == null) {
+            cached = this.probation.get(key);
+            if (cached == null) {
+                return null;
+            }
+        }
+        
+        if (this.expireAfterWriteNanos > 0
+                && this.ticker.read() - cached.loadedAt >= this.expireAfterWriteNanos) {
+            remove(key);
+            this.expirations++;
+            return null;
+        }
+        
+        if (this.probation.remove(key) != null) {
+            this.probationWeight -= cached.weight;
+            this.protectedSegment.put(key, cached);
+            this.protectedWeight += cached.weight;
+            // Demote the least recently used protected entries to make room
+            Iterator<CachedPreference> eldest = this.protectedSegment.values().iterator();
+            while (this.protectedWeight > this.maxProtectedWeight && eldest.hasNext()) {
+                CachedPreference demoted = eldest.next();
+                if (demoted == cached) {
+                    break;
+                }
+                eldest.remove();
+                this.protectedWeight -= demoted.weight;
+                this.probation.put(demoted.preference, demoted);
+                this.probationWeight += demoted.weight;
+            }
+        }
+        return cached;
+    }
+    
+    /**
+     * Adds a preference to the probationary segment, evicting the least recently used entries
+     * until the cache is within its weight.
+     * 
+     * @param key
+     * @param cached
+     */
+    private void admit(Preference key, CachedPreference cached) {
+        if (cached.weight > this.maxWeight) {
+            return;
+        }
+        this.probation.put(key, cached);
+        this.probationWeight += cached.weight;
+        while (this.probationWeight + this.protectedWeight > this.maxWeight) {
+            LinkedHashMap<Preference, CachedPreference> segment = this.probation.isEmpty()
+                    ? this.protectedSegment : this.probation;
+            Iterator<CachedPreference> eldest = segment.values().iterator();
+            CachedPreference evicted = eldest.next();
+            eldest.remove();
+            if (segment == this.probation) {
+                this.probationWeight -= evicted.weight;
+            } else {
+                this.protectedWeight -= evicted.weight;
+            }
+            this.evictions++;
+        }
+    }
+    
+    /**
+     * Drops the preferences an update changes.
+     * 
+     * @param request
+     */
+    private void invalidate(UpdatePreferenceRequest request) {
+        invalidate(request.getPreferenceToUpdate());
+        if (this.graph.hasSymmetricCorrelations()) {
+            for (PreferenceCorrelation correlation : request.getCorrelationDeltas().keySet()) {
+                invalidate(correlation.getToPreference());
+            }
+        }
+    }
+    
+    /**
+     * Drops a preference, and makes sure no read that overlapped the change caches it again.
+     * 
+     * @param preference
+     */
+    private void invalidate(Preference preference) {
+        PendingRead pending = this.pendingReads.get(preference);
+        if (pending != null) {
+            pending.version++;
+        }
+        remove(preference);
+    }
+    
+    /**
+     * 
+     * @param key
+     */
+    private void remove(Preference key) {
+        CachedPreference cached = this.probation.remove(key);
+        if (cached != null) {
+            this.probationWeight -= cached.weight;
+        }
+        cached = this.protectedSegment.remove(key);
+        if (cached != null) {
+            this.protectedWeight -= cached.weight;
+        }
+    }
+}
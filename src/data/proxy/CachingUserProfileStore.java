@@ -0,0 +1,222 @@
+package data.proxy;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import data.structure.UserProfile;
+
+/**
+ * CachingUserProfileStore keeps recently used profiles of another store in memory, up to a maximum
+ * number of profiles, and also remembers for a short time which IDs have no profile. Logging in a
+ * new user then costs one read of the underlying store rather than two, and repeated lookups of an
+ * ID that does not exist only reach the store once per window.
+ * 
+ * Writes and deletes go through to the underlying store before the cache is updated: a written
+ * profile is cached as it was written, and a deleted ID is remembered as missing. A read that
+ * overlaps a write or delete is not cached, so the cache never keeps a profile from before a write
+ * that has completed. Profiles can also expire a fixed time after they were cached, which bounds
+ * how long writes made by other processes go unseen. Batch reads are passed through without being
+ * cached.
+ * 
+ * Cached profiles are shared between readers, like the profiles of LocalTransientUserProfileStore.
+ */
+public class CachingUserProfileStore implements UserProfileStore {
+    
+    private final UserProfileStore store;
+    private final Cache<String, UserProfile> profiles;
+    private final Cache<String, Boolean> missingIds;
+    // Incremented by every write, so a read can tell whether a write overlapped it
+    private long writes;
+    private long hits;
+    private long missingHits;
+    private long misses;
+    
+    /**
+     * Constructor requires the store to cache and how long to keep profiles and missing IDs.
+     * 
+     * @param store The store that reads and writes are passed to
+     * @param maxProfiles The maximum number of profiles, and separately of missing IDs, to keep
+     * @param expireAfterWrite The time a profile is kept after it was cached, or 0 to keep
+     *        profiles until they are evicted
+     * @param missingExpireAfterWrite The time an ID is remembered as missing, or 0 to not remember
+     *        missing IDs at all
+     * @param unit
+     * @throws IllegalArgumentException if store is null, maxProfiles is less than 1 or either time
+     *         is negative
+     */
+    public CachingUserProfileStore(UserProfileStore store, int maxProfiles, long expireAfterWrite,
+            long missingExpireAfterWrite, TimeUnit unit) {
+        this(store, maxProfiles, expireAfterWrite, missingExpireAfterWrite, unit, Ticker
+                .systemTicker());
+    }
+    
+    /**
+     * Constructor that also sets the source of time, for tests.
+     * 
+     * @param store
+     * @param maxProfiles
+     * @param expireAfterWrite
+     * @param missingExpireAfterWrite
+     * @param unit
+     * @param ticker
+     */
+    CachingUserProfileStore(UserProfileStore store, int maxProfiles, long expireAfterWrite,
+            long missingExpireAfterWrite, TimeUnit unit, Ticker ticker) {
+        if (store == null) {
+            throw new IllegalArgumentException("Store cannot be null!");
+        }
+        if (maxProfiles < 1) {
+            throw new IllegalArgumentException("The cache must hold at least one profile!");
+        }
+        if (expireAfterWrite < 0 || missingExpireAfterWrite < 0) {
+            throw new IllegalArgumentException("Expiry time cannot be negative!");
+        }
+        this.store = store;
+        CacheBuilder<Object, Object> profilesBuilder = CacheBuilder.newBuilder()
+                .maximumSize(maxProfiles).ticker(ticker);
+        if (expireAfterWrite > 0) {
+            profilesBuilder.expireAfterWrite(expireAfterWrite, unit);
+        }
+        this.profiles = profilesBuilder.build();
+        this.missingIds = CacheBuilder.newBuilder().maximumSize(maxProfiles)
+                .expireAfterWrite(missingExpireAfterWrite, unit).ticker(ticker).build();
+    }
+    
+    /**
+     * {@inheritDoc} Writes the profile to the underlying store, then caches it.
+     */
+    @Override
+    public void write(UserProfile profile) {
+        boolean written = false;
+        try {
+            this.store.write(profile);
+            written = true;
+        } finally {
+            synchronized (this) {
+                this.writes++;
+                this.missingIds.invalidate(profile.getId());
+                if (written) {
+                    this.profiles.put(profile.getId(), profile);
+                } else {
+                    this.profiles.invalidate(profile.getId());
+                }
+            }
+        }
+    }
+    
+    /**
+     * {@inheritDoc} Deletes the profile from the underlying store, then remembers the ID as
+     * missing.
+     */
+    @Override
+    public void delete(String id) {
+        boolean deleted = false;
+        try {
+            this.store.delete(id);
+            deleted = true;
+        } finally {
+            synchronized (this) {
+                this.writes++;
+                this.profiles.invalidate(id);
+                if (deleted) {
+                    this.missingIds.put(id, Boolean.TRUE);
+                } else {
+                    this.missingIds.invalidate(id);
+                }
+            }
+        }
+    }
+    
+    /**
+     * {@inheritDoc} Reads the underlying store only if the profile is not cached and the ID is not
+     * remembered as missing.
+     */
+    @Override
+    public UserProfile getProfile(String id) {
+        long writesBefore;
+        synchronized (this) {
+            UserProfile profile = this.profiles.getIfPresent(id);
+            if (profile != null) {
+                this.hits++;
+                return profile;
+            }
+            if (this.missingIds.getIfPresent(id) != null) {
+                this.missingHits++;
+                return null;
+            }
+            this.misses++;
+            writesBefore = this.writes;
+        }
+        
+        // Read the store without holding the lock, so other reads are not blocked
+        UserProfile profile = this.store.getProfile(id);
+        
+        synchronized (this) {
+            if (writesBefore == this.writes) {
+                if (profile != null) {
+                    this.profiles.put(id, profile);
+                } else {
+                    this.missingIds.put(id, Boolean.TRUE);
+                }
+            }
+        }
+        return profile;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<List<UserProfile>> batchGetProfiles(int batchSize) {
+        return this.store.batchGetProfiles(batchSize);
+    }
+    
+    /**
+     * Drops a profile, or a missing ID, from the cache, e.g. after it was changed by another
+     * process.
+     * 
+     * @param id
+     */
+    public synchronized void invalidate(String id) {
+        this.writes++;
+        this.profiles.invalidate(id);
+        this.missingIds.invalidate(id);
+    }
+    
+    /**
+     * 
+     * @return The number of reads that returned a cached profile
+     */
+    public synchronized long getHitCount() {
+        return this.hits;
+    }
+    
+    /**
+     * 
+     * @return The number of reads that returned null for an ID remembered as missing
+     */
+    public synchronized long getMissingHitCount() {
+        return this.missingHits;
+    }
+    
+    /**
+     * 
+     * @return The number of reads that went to the underlying store
+     */
+    public synchronized long getMissCount() {
+        return this.misses;
+    }
+    
+    /**
+     * 
+     * @return The number of cached profiles
+     */
+    public synchronized long size() {
+        return this.profiles.size();
+    }
+}
@@ -0,0 +1,194 @@
+package data.proxy;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Iterators;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * ConcurrentPreferenceCorrelationGraph keeps the preference correlation graph in memory, like
+ * LocalTransientPreferenceCorrelationGraph, but may be shared by any number of threads without
+ * external locking. Popularities and correlation weights are atomic counters, so concurrent
+ * updates of the same preference never lose an increment and never block each other.
+ * 
+ * Preferences read from the graph are copies. Each counter in a copy is current, but a copy taken
+ * while updates are in flight may include some of the counters of an update and not others. An
+ * update that races with putPreference() or delete() of the same preference may be lost, just as
+ * it would be if it had been applied before them.
+ */
+public class ConcurrentPreferenceCorrelationGraph implements PreferenceCorrelationGraph {
+    
+    private final Map<PreferenceCategory, ConcurrentMap<String, Node>> preferences;
+    
+    /**
+     * The counters of a stored preference.
+     */
+    private static class Node {
+        private final Preference preference;
+        private final AtomicInteger popularity;
+        private final ConcurrentMap<Preference, AtomicInteger> weights;
+        
+        /**
+         * 
+         * @param id
+         * @param category
+         * @param popularity
+         */
+        private Node(String id, PreferenceCategory category, int popularity) {
+            this.preference = new Preference(id, category);
+            this.popularity = new AtomicInteger(popularity);
+            this.weights = new ConcurrentHashMap<Preference, AtomicInteger>();
+        }
+        
+        /**
+         * Adds a delta to the weight of the correlation to a preference, adding the correlation if
+         * it does not exist yet.
+         * 
+         * @param toPreference
+         * @param delta
+         */
+        private void adjustWeight(Preference toPreference, int delta) {
+            // ConcurrentHashMap.computeIfAbsent() locks its bin even when the key is present, which
+            // would serialize the updates of a hot correlation
+            AtomicInteger weight = this.weights.get(toPreference);
+            if (weight == null) {
+                weight = this.weights.computeIfAbsent(
+                        new Preference(toPreference.getID(), toPreference.getCategory()),
+                        key -> new AtomicInteger());
+            }
+            weight.addAndGet(delta);
+        }
+        
+        /**
+         * Copies the counters into a Preference.
+         * 
+         * @return preference
+         */
+        private Preference toPreference() {
+            Preference copy = new Preference(this.preference.getID(),
+                    this.preference.getCategory(), this.popularity.get());
+            for (Entry<Preference, AtomicInteger> weight : this.weights.entrySet()) {
+                copy.addCorrelation(new PreferenceCorrelation(weight.getKey(), weight.getValue()
+                        .get()));
+            }
+            return copy;
+        }
+    }
+    
+    /**
+     * Basic default constructor for ConcurrentPreferenceCorrelationGraph.
+     */
+    public ConcurrentPreferenceCorrelationGraph() {
+        // Every category is created up front, so the outer map is never written after this
+        this.preferences = new EnumMap<PreferenceCategory, ConcurrentMap<String, Node>>(
+                PreferenceCategory.class);
+        for (PreferenceCategory category : PreferenceCategory.values()) {
+            this.preferences.put(category, new ConcurrentHashMap<String, Node>());
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Preference getPreference(String id, PreferenceCategory category) {
+        Node node = this.preferences.get(category).get(id);
+        return node == null ? null : node.toPreference();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(PreferenceCategory category, int batchSize) {
+        return batchGetPreferences(EnumSet.of(category), batchSize);
+    }
+    
+    /**
+     * {@inheritDoc} The batches reflect updates made while they are being read, as far as they
+     * have got.
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(Set<PreferenceCategory> categories,
+            int batchSize) {
+        List<Iterator<Preference>> categoryPreferences = new ArrayList<Iterator<Preference>>();
+        for (PreferenceCategory category : categories) {
+            categoryPreferences.add(Iterators.transform(this.preferences.get(category).values()
+                    .iterator(), Node::toPreference));
+        }
+        return Iterators.partition(Iterators.concat(categoryPreferences.iterator()), batchSize);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putPreference(Preference preference) {
+        Node node = new Node(preference.getID(), preference.getCategory(),
+                preference.getPopularity());
+        for (PreferenceCorrelation correlation : preference.getCorrelations()) {
+            node.adjustWeight(correlation.getToPreference(), correlation.getWeight());
+        }
+        this.preferences.get(preference.getCategory()).put(preference.getID(), node);
+    }
+    
+    /**
+     * {@inheritDoc} The counters are updated atomically, without locking.
+     */
+    @Override
+    public boolean updatePreference(UpdatePreferenceRequest request, UserProfile user,
+            UpdateAction action) {
+        Preference preferenceToUpdate = request.getPreferenceToUpdate();
+        ConcurrentMap<String, Node> category = this.preferences.get(preferenceToUpdate
+                .getCategory());
+        Node node = category.get(preferenceToUpdate.getID());
+        if (node == null) {
+            node = category.computeIfAbsent(preferenceToUpdate.getID(), id -> new Node(id,
+                    preferenceToUpdate.getCategory(), 0));
+        }
+        
+        node.popularity.addAndGet(request.getPopularityDelta());
+        for (Entry<PreferenceCorrelation, Integer> update : request.getCorrelationDeltas()
+                .entrySet()) {
+            node.adjustWeight(update.getKey().getToPreference(), update.getValue());
+        }
+        return true;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests,
+            UserProfile user, UpdateAction action) {
+        List<Boolean> applied = new ArrayList<Boolean>(requests.size());
+        for (UpdatePreferenceRequest request : requests) {
+            applied.add(updatePreference(request, user, action));
+        }
+        return applied;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete(String id, PreferenceCategory category) {
+        this.preferences.get(category).remove(id);
+    }
+}
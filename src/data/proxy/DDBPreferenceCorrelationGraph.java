@@ -2,26 +2,36 @@ package data.proxy;
 
 import static data.proxy.adapter.DDBPreferenceAdapter.PREFERENCE_ID_ATTRIBUTE;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.Page;
 import com.amazonaws.services.dynamodbv2.document.ScanFilter;
-import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.UpdateItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
 import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 
 import data.proxy.adapter.DDBIdempotencyManager;
 import data.proxy.adapter.DDBPreferenceAdapter;
+import data.proxy.adapter.DDBPreferenceAdapter.CorrelationFormat;
 import data.proxy.adapter.DDBUpdatePreferenceRequestAdapter;
 import data.proxy.request.UpdatePreferenceRequest;
 import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
@@ -31,15 +41,70 @@ import data.structure.UserProfile;
 
 public class DDBPreferenceCorrelationGraph implements PreferenceCorrelationGraph {
     
+    // Number of correlation attributes added by updates that a packed Item may collect before they
+    // are folded into its packed attribute
+    static final int COMPACTION_THRESHOLD = 32;
+    
     private final Table preferenceTable;
+    private final ExecutorService writeExecutor;
+    private final int writeBatchSize;
+    private final CorrelationFormat correlationFormat;
     
     /**
-     * Constructor requires a client and a table name, both of which are validated.
+     * Constructor requires a client and a table name, both of which are validated. Batch updates
+     * are submitted one request at a time.
      * 
      * @param client
      * @param preferenceTable
      */
     public DDBPreferenceCorrelationGraph(DynamoDB client, String preferenceTable) {
+        this(client, preferenceTable, null, 1);
+    }
+    
+    /**
+     * Constructor for a graph that submits batch updates in groups of writeBatchSize concurrent
+     * UpdateItem requests on the supplied executor. DynamoDB has no batch form of UpdateItem, so
+     * this is what turns the k round trips of a batch into k / writeBatchSize sequential waves.
+     * 
+     * @param client
+     * @param preferenceTable
+     * @param writeExecutor Executor that submits the requests of a group. It is owned by the
+     *        caller, who is responsible for shutting it down. It should have at least
+     *        writeBatchSize threads.
+     * @param writeBatchSize The maximum number of UpdateItem requests in flight at once
+     * @throws IllegalArgumentException if writeBatchSize is less than 1
+     */
+    public DDBPreferenceCorrelationGraph(DynamoDB client, String preferenceTable,
+            ExecutorService writeExecutor, int writeBatchSize) {
+        this(client, preferenceTable, writeExecutor, writeBatchSize, CorrelationFormat.MAP);
+    }
+    
+    /**
+     * Constructor for a graph that also chooses the format putPreference stores correlations in.
+     * Items in either format can be read, so a table can be moved to the packed format by simply
+     * putting its preferences again. In the packed format, once an update leaves
+     * COMPACTION_THRESHOLD correlation attributes of its own on an Item, they are folded into the
+     * packed attribute by a further conditional update.
+     * 
+     * @param client
+     * @param preferenceTable
+     * @param writeExecutor
+     * @param writeBatchSize
+     * @param correlationFormat
+     * @throws IllegalArgumentException if writeBatchSize is less than 1 or correlationFormat is
+     *         null
+     */
+    public DDBPreferenceCorrelationGraph(DynamoDB client, String preferenceTable,
+            ExecutorService writeExecutor, int writeBatchSize, CorrelationFormat correlationFormat) {
+        if (writeBatchSize < 1) {
+            throw new IllegalArgumentException("Write batch size must be at least 1!");
+        }
+        if (correlationFormat == null) {
+            throw new IllegalArgumentException("Correlation format cannot be null!");
+        }
+        this.writeExecutor = writeExecutor;
+        this.writeBatchSize = writeBatchSize;
+        this.correlationFormat = correlationFormat;
         try {
             Table table = client.getTable(preferenceTable);
             validateTableDescription(table.describe());
@@ -70,7 +135,7 @@ public class DDBPreferenceCorrelationGraph implements PreferenceCorrelationGraph
      * {@inheritDoc}
      */
     public void putPreference(Preference preference) {
-        Item item = new DDBPreferenceAdapter(preference).toDBModel();
+        Item item = new DDBPreferenceAdapter(preference, this.correlationFormat).toDBModel();
         this.preferenceTable.putItem(item);
     }
     
@@ -78,19 +143,157 @@ public class DDBPreferenceCorrelationGraph implements PreferenceCorrelationGraph
      * {@inheritDoc}
      */
     @Override
-    public void updatePreference(UpdatePreferenceRequest request, UserProfile user,
+    public boolean updatePreference(UpdatePreferenceRequest request, UserProfile user,
             UpdateAction action) {
         UpdateItemSpec spec = new DDBUpdatePreferenceRequestAdapter(request).toDBModel();
         
         // Add idempotency guard.
-        spec = DDBIdempotencyManager.makeUpdateIdempotent(spec, user, action);
+        spec = DDBIdempotencyManager.makeUpdateIdempotent(spec, request.getToken());
+        
+        // The packed format needs the updated Item to tell whether it is due for compaction
+        if (this.correlationFormat == CorrelationFormat.PACKED) {
+            spec.withReturnValues(ReturnValue.ALL_NEW);
+        }
         
         // Submit update.
+        UpdateItemOutcome outcome;
         try {
-            this.preferenceTable.updateItem(spec);
+            outcome = this.preferenceTable.updateItem(spec);
         } catch (ConditionalCheckFailedException e) {
             // If the conditional check fails, then that simply means that we have already performed
             // the update.
+            return false;
+        }
+        
+        if (this.correlationFormat == CorrelationFormat.PACKED && outcome.getItem() != null) {
+            compact(outcome.getItem());
+        }
+        return true;
+    }
+    
+    /**
+     * Folds the correlation attributes added by updates into the packed attribute of an Item, if
+     * it holds at least COMPACTION_THRESHOLD of them. The update that triggered the compaction has
+     * already been applied, so a compaction that fails, e.g. because another update changed the
+     * Item in between, is left to a later update rather than failing this one.
+     * 
+     * @param item The Item as the update left it
+     */
+    private void compact(Item item) {
+        if (DDBPreferenceAdapter.getUpdatedCorrelationAttributes(item).size()
+                < COMPACTION_THRESHOLD) {
+            return;
+        }
+        UpdateItemSpec compaction = DDBPreferenceAdapter.buildCompaction(item);
+        if (compaction == null) {
+            return;
+        }
+        try {
+            this.preferenceTable.updateItem(compaction);
+        } catch (AmazonClientException e) {
+            // The weights are still summed on read, and the next update tries again
+        }
+    }
+    
+    /**
+     * {@inheritDoc} Without an executor the requests are submitted one at a time. Otherwise they
+     * are submitted in groups of writeBatchSize concurrent requests, and each group finishes before
+     * the next one starts. A failed request does not stop the others, which are independent items;
+     * once all have been tried, the first failure is thrown as a PartialUpdateException.
+     */
+    @Override
+    public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests,
+            UserProfile user, UpdateAction action) {
+        List<Boolean> applied = new ArrayList<Boolean>(requests.size());
+        RuntimeException failure = null;
+        if (this.writeExecutor == null) {
+            for (UpdatePreferenceRequest request : requests) {
+                try {
+                    applied.add(updatePreference(request, user, action));
+                } catch (RuntimeException e) {
+                    applied.add(null);
+                    failure = addFailure(failure, e);
+                }
+            }
+        } else {
+            for (List<UpdatePreferenceRequest> group : Lists.partition(requests,
+                    this.writeBatchSize)) {
+                List<Callable<Boolean>> updates = new ArrayList<Callable<Boolean>>(group.size());
+                for (UpdatePreferenceRequest request : group) {
+                    updates.add(() -> updatePreference(request, user, action));
+                }
+                for (Future<Boolean> update : invokeGroup(updates, applied, requests.size())) {
+                    try {
+                        applied.add(awaitUpdate(update));
+                    } catch (RuntimeException e) {
+                        applied.add(null);
+                        failure = addFailure(failure, e);
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw new PartialUpdateException(applied, failure);
+        }
+        return applied;
+    }
+    
+    /**
+     * Keeps the first failure of a batch, with the later ones suppressed by it.
+     * 
+     * @param failure The first failure so far, or null
+     * @param e
+     * @return first failure
+     */
+    private static RuntimeException addFailure(RuntimeException failure, RuntimeException e) {
+        if (failure == null) {
+            return e;
+        }
+        failure.addSuppressed(e);
+        return failure;
+    }
+    
+    /**
+     * Submits a group of updates to the executor and waits for all of them to finish. If the wait
+     * is interrupted, the updates of this group and the later ones are reported as not run.
+     * 
+     * @param updates
+     * @param applied The outcomes of the earlier groups
+     * @param batchSize The number of requests in the whole batch
+     * @return finished updates
+     * @throws PartialUpdateException if interrupted
+     */
+    private List<Future<Boolean>> invokeGroup(List<Callable<Boolean>> updates,
+            List<Boolean> applied, int batchSize) {
+        try {
+            return this.writeExecutor.invokeAll(updates);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            while (applied.size() < batchSize) {
+                applied.add(null);
+            }
+            throw new PartialUpdateException(applied, new IllegalStateException(
+                    "Interrupted while updating preferences!", e));
+        }
+    }
+    
+    /**
+     * Gets the outcome of a finished update.
+     * 
+     * @param update
+     * @return true if the update was applied
+     */
+    private static boolean awaitUpdate(Future<Boolean> update) {
+        try {
+            return update.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while updating preferences!", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Preference update failed!", e.getCause());
         }
     }
     
@@ -100,7 +303,7 @@ public class DDBPreferenceCorrelationGraph implements PreferenceCorrelationGraph
     public void delete(String id, PreferenceCategory category) {
         this.preferenceTable.deleteItem(PREFERENCE_ID_ATTRIBUTE,
                 DDBPreferenceAdapter.buildDbIdFromComponents(id, category));
-        
+    
     }
     
     /**
@@ -116,17 +319,40 @@ public class DDBPreferenceCorrelationGraph implements PreferenceCorrelationGraph
         }
     }
     
-    private List<Preference> getPreferences(Page<Item, ScanOutcome> page) {
-    	Iterator<Item> iterator = page.iterator();
-    	return Stream.generate(iterator::next).map(item -> new DDBPreferenceAdapter(item).toObject()).collect(Collectors.toList());
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(PreferenceCategory category,
+            int batchSize) {
+        return batchGetPreferences(EnumSet.of(category), batchSize);
+    }
+    
+    /**
+     * {@inheritDoc} This is a single scan of the table. A scan takes one filter per attribute, so
+     * only a single category is filtered by DynamoDB; the Items of several categories are filtered
+     * as they are read, and regrouped into full batches.
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(Set<PreferenceCategory> categories,
+            int batchSize) {
+        if (categories.isEmpty()) {
+            return Collections.emptyIterator();
+        }
+        
+        ScanSpec spec = new ScanSpec().withMaxPageSize(batchSize);
+        if (categories.size() == 1) {
+            // Match the category prefix of the key, so an ID that happens to contain a category
+            // name is not picked up.
+            PreferenceCategory category = categories.iterator().next();
+            spec.withScanFilters(new ScanFilter(PREFERENCE_ID_ATTRIBUTE)
+                    .beginsWith(DDBPreferenceAdapter.buildDbIdFromComponents("", category)));
+        }
+        
+        Iterator<Item> items = Iterators.filter(this.preferenceTable.scan(spec).iterator(),
+                item -> categories.contains(DDBPreferenceAdapter.parseCategoryFromDbString(item
+                        .getString(PREFERENCE_ID_ATTRIBUTE))));
+        return Iterators.partition(Iterators.transform(items,
+                item -> new DDBPreferenceAdapter(item).toObject()), batchSize);
     }
-
-	@Override
-	public Iterator<List<Preference>> batchGetPreferences(
-			PreferenceCategory category, int batchSize) {
-		Stream<Page<Item, ScanOutcome>> rawStream = StreamSupport.stream(this.preferenceTable.scan(
-				new ScanFilter(PREFERENCE_ID_ATTRIBUTE).contains(category.toString()))
-			.pages().spliterator(), false);
-		return rawStream.map(page -> getPreferences(page)).iterator();
-	}
 }
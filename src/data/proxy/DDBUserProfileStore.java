@@ -2,11 +2,17 @@ package data.proxy;
 
 import static data.proxy.adapter.DDBUserProfileAdapter.USER_ID_ATTRIBUTE;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.stream.StreamSupport;
 
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Page;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
@@ -81,4 +87,27 @@ public class DDBUserProfileStore implements UserProfileStore {
             return new DDBUserProfileAdapter(item).toObject();
         }
     }
+    
+    /**
+     * Converts a page of scanned Items to UserProfiles.
+     * 
+     * @param page
+     * @return user profiles
+     */
+    private List<UserProfile> getProfiles(Page<Item, ScanOutcome> page) {
+        List<UserProfile> profiles = new ArrayList<UserProfile>();
+        for (Item item : page) {
+            profiles.add(new DDBUserProfileAdapter(item).toObject());
+        }
+        return profiles;
+    }
+    
+    /**
+     * {@inheritDoc} This is a single scan of the table, with one page per batch.
+     */
+    public Iterator<List<UserProfile>> batchGetProfiles(int batchSize) {
+        ScanSpec spec = new ScanSpec().withMaxPageSize(batchSize);
+        return StreamSupport.stream(this.userTable.scan(spec).pages().spliterator(), false)
+                .map(page -> getProfiles(page)).iterator();
+    }
 }
@@ -0,0 +1,435 @@
+package data.proxy;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.common.collect.Iterators;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.CorrelationCodec;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * DurablePreferenceCorrelationGraph keeps the preference correlation graph in memory, like
+ * LocalTransientPreferenceCorrelationGraph, but survives restarts. Every put, update and delete is
+ * appended to a write-ahead log in the given directory before it is applied, and a compact snapshot
+ * of the whole graph is written once snapshotInterval changes have been logged since the last one.
+ * Opening the graph again recovers it from the snapshot and the changes logged since.
+ * 
+ * A change is durable when the method that made it returns. Concurrent writers share their fsyncs,
+ * so the cost of syncing is spread over every change made while the previous sync was running. A
+ * change may be seen by readers shortly before it is durable. A snapshot is written from a copy of
+ * the graph, so writers only wait while the graph is copied and the log is started afresh, not
+ * while the snapshot is written and synced.
+ * 
+ * The graph may be shared by any number of threads. Preferences read from it are copies.
+ */
+public class DurablePreferenceCorrelationGraph implements PreferenceCorrelationGraph,
+        AutoCloseable {
+    
+    private static final String LOG_NAME = "graph";
+    private static final byte UPDATE = 2;
+    private static final byte DELETE = 3;
+    // A put, with its correlations packed by CorrelationCodec
+    private static final byte PUT = 4;
+    // Logged updates carry their deltas, so the user and action they are replayed with do not
+    // matter to the in-memory graph
+    private static final UserProfile REPLAY_USER = new UserProfile("WriteAheadLogReplay");
+    
+    private final LocalTransientPreferenceCorrelationGraph graph;
+    private final long snapshotInterval;
+    private final WriteAheadLog log;
+    // Shares one Preference between all of the correlations to it while recovering
+    private Map<Preference, Preference> recoveredKeys;
+    
+    /**
+     * Constructor opens the graph stored in a directory, or creates an empty one.
+     * 
+     * @param directory Directory holding the log and snapshot, which is created if necessary
+     * @param snapshotInterval The number of changes logged between snapshots
+     * @throws IllegalArgumentException if directory is null or snapshotInterval is less than 1
+     * @throws java.io.UncheckedIOException if the graph cannot be recovered
+     */
+    public DurablePreferenceCorrelationGraph(File directory, long snapshotInterval) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Directory cannot be null!");
+        }
+        if (snapshotInterval < 1) {
+            throw new IllegalArgumentException("Snapshot interval must be at least 1!");
+        }
+        this.graph = new LocalTransientPreferenceCorrelationGraph();
+        this.snapshotInterval = snapshotInterval;
+        this.recoveredKeys = new HashMap<Preference, Preference>();
+        this.log = new WriteAheadLog(directory, LOG_NAME, this::readSnapshot, this::replay);
+        this.recoveredKeys = null;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Preference getPreference(String id, PreferenceCategory category) {
+        return copyOf(this.graph.getPreference(id, category));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(PreferenceCategory category, int batchSize) {
+        return batchGetPreferences(EnumSet.of(category), batchSize);
+    }
+    
+    /**
+     * {@inheritDoc} The preferences are copied up front, so the batches do not see later changes.
+     */
+    @Override
+    public synchronized Iterator<List<Preference>> batchGetPreferences(
+            Set<PreferenceCategory> categories, int batchSize) {
+        List<Preference> copies = new ArrayList<Preference>();
+        Iterator<List<Preference>> batches = this.graph.batchGetPreferences(categories, batchSize);
+        while (batches.hasNext()) {
+            for (Preference preference : batches.next()) {
+                copies.add(copyOf(preference));
+            }
+        }
+        return Iterators.partition(copies.iterator(), batchSize);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putPreference(Preference preference) {
+        long sequence;
+        synchronized (this) {
+            sequence = this.log.append(out -> writePut(out, preference));
+            this.graph.putPreference(copyOf(preference));
+        }
+        commit(sequence);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean updatePreference(UpdatePreferenceRequest request, UserProfile user,
+            UpdateAction action) {
+        long sequence;
+        boolean applied;
+        synchronized (this) {
+            sequence = this.log.append(out -> writeUpdate(out, request));
+            applied = this.graph.updatePreference(request, user, action);
+        }
+        commit(sequence);
+        return applied;
+    }
+    
+    /**
+     * {@inheritDoc} The whole batch is made durable by a single sync.
+     */
+    @Override
+    public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests,
+            UserProfile user, UpdateAction action) {
+        long sequence = 0;
+        List<Boolean> applied;
+        synchronized (this) {
+            for (UpdatePreferenceRequest request : requests) {
+                sequence = this.log.append(out -> writeUpdate(out, request));
+            }
+            applied = this.graph.updatePreferences(requests, user, action);
+        }
+        commit(sequence);
+        return applied;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete(String id, PreferenceCategory category) {
+        long sequence;
+        synchronized (this) {
+            sequence = this.log.append(out -> {
+                out.writeByte(DELETE);
+                writeKey(out, new Preference(id, category));
+            });
+            this.graph.delete(id, category);
+        }
+        commit(sequence);
+    }
+    
+    /**
+     * Writes a snapshot of the whole graph now, and discards the log it covers.
+     * 
+     * @throws java.io.UncheckedIOException if the snapshot cannot be written
+     */
+    public void snapshot() {
+        snapshot(true);
+    }
+    
+    /**
+     * Copies the graph and starts a new log under the monitor, then writes the copy as a snapshot
+     * without holding it.
+     * 
+     * @param force false to write the snapshot only if snapshotInterval changes have been logged
+     *        since the last one
+     */
+    private void snapshot(boolean force) {
+        long coveredGeneration;
+        List<Preference> stored = new ArrayList<Preference>();
+        synchronized (this) {
+            // Another writer may have written the snapshot already
+            if (!force && this.log.getRecordsSinceSnapshot() < this.snapshotInterval) {
+                return;
+            }
+            Iterator<List<Preference>> batches = this.graph.batchGetPreferences(EnumSet
+                    .allOf(PreferenceCategory.class), 1024);
+            while (batches.hasNext()) {
+                for (Preference preference : batches.next()) {
+                    stored.add(copyOf(preference));
+                }
+            }
+            coveredGeneration = this.log.rotate();
+        }
+        this.log.writeSnapshot(coveredGeneration, out -> writeSnapshot(out, stored));
+    }
+    
+    /**
+     * Syncs the log and closes it. Later changes are rejected.
+     */
+    @Override
+    public synchronized void close() {
+        this.log.close();
+    }
+    
+    /**
+     * Makes the changes logged up to a sequence number durable, then writes a snapshot if enough
+     * changes have been logged since the last one.
+     * 
+     * @param sequence
+     */
+    private void commit(long sequence) {
+        this.log.sync(sequence);
+        if (this.log.getRecordsSinceSnapshot() >= this.snapshotInterval) {
+            snapshot(false);
+        }
+    }
+    
+    /**
+     * Writes the graph as a dictionary of every stored or correlated preference, followed by the
+     * stored preferences, whose correlations refer to the dictionary by index.
+     * 
+     * @param out
+     * @param stored Copies of the stored preferences
+     * @throws IOException
+     */
+    private static void writeSnapshot(DataOutput out, List<Preference> stored)
+            throws IOException {
+        Map<Preference, Integer> dictionary = new HashMap<Preference, Integer>();
+        List<Preference> keys = new ArrayList<Preference>();
+        for (Preference preference : stored) {
+            indexOf(preference, dictionary, keys);
+            for (PreferenceCorrelation correlation : preference.getCorrelations()) {
+                indexOf(correlation.getToPreference(), dictionary, keys);
+            }
+        }
+        
+        out.writeInt(keys.size());
+        for (Preference key : keys) {
+            writeKey(out, key);
+        }
+        out.writeInt(stored.size());
+        for (Preference preference : stored) {
+            out.writeInt(dictionary.get(preference));
+            out.writeInt(preference.getPopularity());
+            out.writeInt(preference.getCorrelations().size());
+            for (PreferenceCorrelation correlation : preference.getCorrelations()) {
+                out.writeInt(dictionary.get(correlation.getToPreference()));
+                out.writeInt(correlation.getWeight());
+            }
+        }
+    }
+    
+    /**
+     * Gets the index of a preference in the snapshot dictionary, adding it if necessary.
+     * 
+     * @param preference
+     * @param dictionary
+     * @param keys
+     * @return index
+     */
+    private static int indexOf(Preference preference, Map<Preference, Integer> dictionary,
+            List<Preference> keys) {
+        Integer index = dictionary.get(preference);
+        if (index == null) {
+            index = keys.size();
+            dictionary.put(preference, index);
+            keys.add(preference);
+        }
+        return index;
+    }
+    
+    /**
+     * Loads a snapshot written by writeSnapshot().
+     * 
+     * @param in
+     * @throws IOException
+     */
+    private void readSnapshot(DataInput in) throws IOException {
+        Preference[] keys = new Preference[in.readInt()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = readKey(in);
+        }
+        int numStored = in.readInt();
+        for (int i = 0; i < numStored; i++) {
+            Preference key = keys[in.readInt()];
+            Preference preference = new Preference(key.getID(), key.getCategory(), in.readInt());
+            int numCorrelations = in.readInt();
+            for (int j = 0; j < numCorrelations; j++) {
+                preference.addCorrelation(new PreferenceCorrelation(keys[in.readInt()], in
+                        .readInt()));
+            }
+            this.graph.putPreference(preference);
+        }
+    }
+    
+    /**
+     * Applies a logged change to the in-memory graph.
+     * 
+     * @param in
+     * @throws IOException
+     */
+    private void replay(DataInput in) throws IOException {
+        byte type = in.readByte();
+        Preference key = readKey(in);
+        switch (type) {
+        case PUT:
+            Preference preference = new Preference(key.getID(), key.getCategory(), in.readInt());
+            byte[] correlations = new byte[in.readInt()];
+            in.readFully(correlations);
+            CorrelationCodec.decode(correlations, (id, category, weight) -> preference
+                    .addCorrelation(new PreferenceCorrelation(intern(new Preference(id, category)),
+                            weight)));
+            this.graph.putPreference(preference);
+            break;
+        case UPDATE:
+            UpdatePreferenceRequest request = new UpdatePreferenceRequest(key);
+            request.addPopularityDelta(in.readInt());
+            int numDeltas = in.readInt();
+            for (int i = 0; i < numDeltas; i++) {
+                request.addCorrelationDelta(new PreferenceCorrelation(readKey(in)), in.readInt());
+            }
+            this.graph.updatePreference(request, REPLAY_USER, UpdateAction.INC_CORRELATION);
+            break;
+        case DELETE:
+            this.graph.delete(key.getID(), key.getCategory());
+            break;
+        default:
+            throw new IOException("Unknown log record type " + type + "!");
+        }
+    }
+    
+    /**
+     * Logs a put.
+     * 
+     * @param out
+     * @param preference
+     * @throws IOException
+     */
+    private static void writePut(DataOutput out, Preference preference) throws IOException {
+        out.writeByte(PUT);
+        writeKey(out, preference);
+        out.writeInt(preference.getPopularity());
+        byte[] correlations = CorrelationCodec.encode(preference.getCorrelations());
+        out.writeInt(correlations.length);
+        out.write(correlations);
+    }
+    
+    /**
+     * Logs an update.
+     * 
+     * @param out
+     * @param request
+     * @throws IOException
+     */
+    private static void writeUpdate(DataOutput out, UpdatePreferenceRequest request)
+            throws IOException {
+        out.writeByte(UPDATE);
+        writeKey(out, request.getPreferenceToUpdate());
+        out.writeInt(request.getPopularityDelta());
+        out.writeInt(request.getCorrelationDeltas().size());
+        for (Entry<PreferenceCorrelation, Integer> delta : request.getCorrelationDeltas()
+                .entrySet()) {
+            writeKey(out, delta.getKey().getToPreference());
+            out.writeInt(delta.getValue());
+        }
+    }
+    
+    /**
+     * Writes the category and ID of a preference.
+     * 
+     * @param out
+     * @param preference
+     * @throws IOException
+     */
+    private static void writeKey(DataOutput out, Preference preference) throws IOException {
+        out.writeUTF(preference.getCategory().name());
+        out.writeUTF(preference.getID());
+    }
+    
+    /**
+     * Reads the category and ID of a preference.
+     * 
+     * @param in
+     * @return preference, shared with every other read of the same key while recovering
+     * @throws IOException
+     */
+    private Preference readKey(DataInput in) throws IOException {
+        PreferenceCategory category = PreferenceCategory.valueOf(in.readUTF());
+        return intern(new Preference(in.readUTF(), category));
+    }
+    
+    /**
+     * 
+     * @param key
+     * @return preference shared with every other recovered key of the same identity
+     */
+    private Preference intern(Preference key) {
+        Preference recovered = this.recoveredKeys.putIfAbsent(key, key);
+        return recovered == null ? key : recovered;
+    }
+    
+    /**
+     * Copies a preference and its correlations.
+     * 
+     * @param preference
+     * @return copy, or null if preference is null
+     */
+    private static Preference copyOf(Preference preference) {
+        if (preference == null) {
+            return null;
+        }
+        Preference copy = new Preference(preference.getID(), preference.getCategory(),
+                preference.getPopularity());
+        for (PreferenceCorrelation correlation : preference.getCorrelations()) {
+            copy.addCorrelation(new PreferenceCorrelation(correlation.getToPreference(),
+                    correlation.getWeight()));
+        }
+        return copy;
+    }
+}
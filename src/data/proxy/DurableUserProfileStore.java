@@ -0,0 +1,266 @@
+package data.proxy;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.common.collect.Iterators;
+
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.UserProfile;
+
+/**
+ * DurableUserProfileStore keeps user profiles in memory, like LocalTransientUserProfileStore, but
+ * survives restarts. Every write and delete is appended to a write-ahead log in the given
+ * directory, and a snapshot of every profile is written once snapshotInterval changes have been
+ * logged since the last one. See DurablePreferenceCorrelationGraph.
+ * 
+ * The store may be shared by any number of threads. Profiles are copied on the way in and out, so
+ * a change to a profile is only stored when the profile is written.
+ */
+public class DurableUserProfileStore implements UserProfileStore, AutoCloseable {
+    
+    private static final String LOG_NAME = "profiles";
+    private static final byte WRITE = 1;
+    private static final byte DELETE = 2;
+    
+    private final Map<String, UserProfile> userProfiles;
+    private final long snapshotInterval;
+    private final WriteAheadLog log;
+    
+    /**
+     * Constructor opens the profiles stored in a directory, or creates an empty store.
+     * 
+     * @param directory Directory holding the log and snapshot, which is created if necessary
+     * @param snapshotInterval The number of changes logged between snapshots
+     * @throws IllegalArgumentException if directory is null or snapshotInterval is less than 1
+     * @throws java.io.UncheckedIOException if the profiles cannot be recovered
+     */
+    public DurableUserProfileStore(File directory, long snapshotInterval) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Directory cannot be null!");
+        }
+        if (snapshotInterval < 1) {
+            throw new IllegalArgumentException("Snapshot interval must be at least 1!");
+        }
+        this.userProfiles = new HashMap<String, UserProfile>();
+        this.snapshotInterval = snapshotInterval;
+        this.log = new WriteAheadLog(directory, LOG_NAME, this::readSnapshot, this::replay);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(UserProfile profile) {
+        UserProfile copy = copyOf(profile);
+        long sequence;
+        synchronized (this) {
+            sequence = this.log.append(out -> {
+                out.writeByte(WRITE);
+                writeProfile(out, copy);
+            });
+            this.userProfiles.put(copy.getId(), copy);
+        }
+        commit(sequence);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete(String id) {
+        long sequence;
+        synchronized (this) {
+            sequence = this.log.append(out -> {
+                out.writeByte(DELETE);
+                out.writeUTF(id);
+            });
+            this.userProfiles.remove(id);
+        }
+        commit(sequence);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized UserProfile getProfile(String id) {
+        UserProfile profile = this.userProfiles.get(id);
+        return profile == null ? null : copyOf(profile);
+    }
+    
+    /**
+     * {@inheritDoc} The profiles are copied up front, so the batches do not see later changes.
+     */
+    @Override
+    public synchronized Iterator<List<UserProfile>> batchGetProfiles(int batchSize) {
+        List<UserProfile> copies = new ArrayList<UserProfile>(this.userProfiles.size());
+        for (UserProfile profile : this.userProfiles.values()) {
+            copies.add(copyOf(profile));
+        }
+        return Iterators.partition(copies.iterator(), batchSize);
+    }
+    
+    /**
+     * Writes a snapshot of every profile now, and discards the log it covers. Writers only wait
+     * while the profiles are copied, not while the snapshot is written.
+     * 
+     * @throws java.io.UncheckedIOException if the snapshot cannot be written
+     */
+    public void snapshot() {
+        snapshot(true);
+    }
+    
+    /**
+     * Copies the profiles and starts a new log under the monitor, then writes the copy as a
+     * snapshot without holding it.
+     * 
+     * @param force false to write the snapshot only if snapshotInterval changes have been logged
+     *        since the last one
+     */
+    private void snapshot(boolean force) {
+        long coveredGeneration;
+        List<UserProfile> profiles;
+        synchronized (this) {
+            // Another writer may have written the snapshot already
+            if (!force && this.log.getRecordsSinceSnapshot() < this.snapshotInterval) {
+                return;
+            }
+            // Stored profiles are replaced rather than changed, so the references suffice
+            profiles = new ArrayList<UserProfile>(this.userProfiles.values());
+            coveredGeneration = this.log.rotate();
+        }
+        this.log.writeSnapshot(coveredGeneration, out -> writeSnapshot(out, profiles));
+    }
+    
+    /**
+     * Syncs the log and closes it. Later changes are rejected.
+     */
+    @Override
+    public synchronized void close() {
+        this.log.close();
+    }
+    
+    /**
+     * Makes the changes logged up to a sequence number durable, then writes a snapshot if enough
+     * changes have been logged since the last one.
+     * 
+     * @param sequence
+     */
+    private void commit(long sequence) {
+        this.log.sync(sequence);
+        if (this.log.getRecordsSinceSnapshot() >= this.snapshotInterval) {
+            snapshot(false);
+        }
+    }
+    
+    /**
+     * Writes a snapshot of profiles. Package-private so that tests can hold a snapshot while it is
+     * being written.
+     * 
+     * @param out
+     * @param profiles
+     * @throws IOException
+     */
+    void writeSnapshot(DataOutput out, List<UserProfile> profiles) throws IOException {
+        out.writeInt(profiles.size());
+        for (UserProfile profile : profiles) {
+            writeProfile(out, profile);
+        }
+    }
+    
+    /**
+     * Loads a snapshot.
+     * 
+     * @param in
+     * @throws IOException
+     */
+    private void readSnapshot(DataInput in) throws IOException {
+        int numProfiles = in.readInt();
+        for (int i = 0; i < numProfiles; i++) {
+            UserProfile profile = readProfile(in);
+            this.userProfiles.put(profile.getId(), profile);
+        }
+    }
+    
+    /**
+     * Applies a logged change.
+     * 
+     * @param in
+     * @throws IOException
+     */
+    private void replay(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case WRITE:
+            UserProfile profile = readProfile(in);
+            this.userProfiles.put(profile.getId(), profile);
+            break;
+        case DELETE:
+            this.userProfiles.remove(in.readUTF());
+            break;
+        default:
+            throw new IOException("Unknown log record type " + type + "!");
+        }
+    }
+    
+    /**
+     * Writes the ID of a profile and the IDs of its preferences, by category.
+     * 
+     * @param out
+     * @param profile
+     * @throws IOException
+     */
+    private static void writeProfile(DataOutput out, UserProfile profile) throws IOException {
+        out.writeUTF(profile.getId());
+        out.writeInt(profile.getPreferences().size());
+        for (Entry<PreferenceCategory, Set<Preference>> entry : profile.getPreferences()
+                .entrySet()) {
+            out.writeUTF(entry.getKey().name());
+            out.writeInt(entry.getValue().size());
+            for (Preference preference : entry.getValue()) {
+                out.writeUTF(preference.getID());
+            }
+        }
+    }
+    
+    /**
+     * Reads a profile written by writeProfile().
+     * 
+     * @param in
+     * @return profile
+     * @throws IOException
+     */
+    private static UserProfile readProfile(DataInput in) throws IOException {
+        UserProfile profile = new UserProfile(in.readUTF());
+        int numCategories = in.readInt();
+        for (int i = 0; i < numCategories; i++) {
+            PreferenceCategory category = PreferenceCategory.valueOf(in.readUTF());
+            int numPreferences = in.readInt();
+            for (int j = 0; j < numPreferences; j++) {
+                profile.addPreference(category, in.readUTF());
+            }
+        }
+        return profile;
+    }
+    
+    /**
+     * Copies a profile, so later changes to it are not stored until it is written again.
+     * 
+     * @param profile
+     * @return copy
+     */
+    private static UserProfile copyOf(UserProfile profile) {
+        return new UserProfile(profile.getId(), profile.getPreferences());
+    }
+}
@@ -0,0 +1,1320 @@
+package data.proxy;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeAction;
+import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ConditionalOperator;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.CreateTableResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteTableResult;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.ListTablesRequest;
+import com.amazonaws.services.dynamodbv2.model.ListTablesResult;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.Select;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TableStatus;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateTableResult;
+import com.google.common.base.Ticker;
+
+/**
+ * LocalTransientDynamoDBClient is an in-process stand-in for DynamoDB, which keeps its tables in
+ * memory, so that DDBPreferenceCorrelationGraph and DDBUserProfileStore can be tested and
+ * benchmarked offline. It is passed to the document API like any other client, i.e.
+ * new DynamoDB(client).
+ * 
+ * It supports the operations and the legacy request parameters those classes use: tables with a
+ * string hash key, GetItem, PutItem, DeleteItem, UpdateItem with PUT, ADD and DELETE actions,
+ * Expected conditions and paged Scans with a scan filter, a limit and segments. As in DynamoDB,
+ * attribute names in updates are taken literally rather than as document paths, a scan limit
+ * counts the items evaluated rather than returned, and an Item may not be larger than 400KB.
+ * Expressions, queries, batch operations and secondary indexes are not supported.
+ * 
+ * To behave like a remote table it can also:
+ * <ul>
+ * <li>Wait before each call, for a time drawn from a LatencyModel set per operation.</li>
+ * <li>Limit each table to its provisioned read and write capacity units per second, counted as
+ * DynamoDB counts them, and throw ProvisionedThroughputExceededException once they are used up.
+ * Unlike DynamoDB, which keeps up to 5 minutes of unused capacity, only one second of it is kept,
+ * so that limits take effect within a short run.</li>
+ * <li>Throw ProvisionedThroughputExceededException at random, for a set fraction of item and
+ * scan calls.</li>
+ * </ul>
+ * The SDK's retries are not applied, so callers see every throttled call, as they would with a
+ * client configured not to retry.
+ */
+public class LocalTransientDynamoDBClient extends AmazonDynamoDBClient {
+    
+    private static final String SERVICE_NAME = "AmazonDynamoDBv2";
+    private static final int MAX_ITEM_BYTES = 400 * 1024;
+    private static final int MAX_PAGE_BYTES = 1024 * 1024;
+    private static final int READ_UNIT_BYTES = 4 * 1024;
+    private static final int WRITE_UNIT_BYTES = 1024;
+    
+    /**
+     * The calls that can be delayed and counted.
+     */
+    public enum Operation {
+        GET_ITEM, PUT_ITEM, UPDATE_ITEM, DELETE_ITEM, SCAN, DESCRIBE_TABLE
+    }
+    
+    /**
+     * A distribution of the time a call takes.
+     */
+    @FunctionalInterface
+    public interface LatencyModel {
+        
+        /**
+         * Draws the latency of a call.
+         * 
+         * @param random
+         * @return latency in nanoseconds
+         */
+        long nextNanos(Random random);
+        
+        /**
+         * 
+         * @return a model of calls that do not wait
+         */
+        static LatencyModel none() {
+            return random -> 0;
+        }
+        
+        /**
+         * 
+         * @param latency
+         * @param unit
+         * @return a model of calls that all take the same time
+         * @throws IllegalArgumentException if latency is negative
+         */
+        static LatencyModel fixed(long latency, TimeUnit unit) {
+            if (latency < 0) {
+                throw new IllegalArgumentException("Latency cannot be negative!");
+            }
+            long nanos = unit.toNanos(latency);
+            return random -> nanos;
+        }
+        
+        /**
+         * 
+         * @param min
+         * @param max
+         * @param unit
+         * @return a model of calls whose times are spread evenly between min and max
+         * @throws IllegalArgumentException if min is negative or greater than max
+         */
+        static LatencyModel uniform(long min, long max, TimeUnit unit) {
+            if (min < 0 || min > max) {
+                throw new IllegalArgumentException("Latency range is invalid!");
+            }
+            long minNanos = unit.toNanos(min);
+            long spreadNanos = unit.toNanos(max) - minNanos;
+            return random -> minNanos + (long) (random.nextDouble() * spreadNanos);
+        }
+        
+        /**
+         * A log-normal model, which has the long tail of the latencies of a remote service.
+         * 
+         * @param median
+         * @param p99 The 99th percentile latency
+         * @param unit
+         * @return a model of calls whose times are log-normally distributed
+         * @throws IllegalArgumentException if median is not positive or is greater than p99
+         */
+        static LatencyModel logNormal(long median, long p99, TimeUnit unit) {
+            if (median <= 0 || median > p99) {
+                throw new IllegalArgumentException("Latency percentiles are invalid!");
+            }
+            double mu = Math.log(unit.toNanos(median));
+            // 2.326 is the 99th percentile of the standard normal distribution
+            double sigma = (Math.log(unit.toNanos(p99)) - mu) / 2.326;
+            return random -> (long) Math.exp(mu + sigma * random.nextGaussian());
+        }
+    }
+    
+    /**
+     * Capacity units that are refilled continuously at the provisioned rate, of which at most one
+     * second's worth is kept. A call is let through as long as any units are left, and then takes
+     * all the units it used, as DynamoDB does.
+     */
+    private static class CapacityBucket {
+        private final Ticker ticker;
+        private long unitsPerSecond;
+        private double available;
+        private long lastRefill;
+        private double consumed;
+        
+        private CapacityBucket(Ticker ticker, long unitsPerSecond) {
+            this.ticker = ticker;
+            setUnitsPerSecond(unitsPerSecond);
+        }
+        
+        private synchronized void setUnitsPerSecond(long unitsPerSecond) {
+            this.unitsPerSecond = unitsPerSecond;
+            this.available = unitsPerSecond;
+            this.lastRefill = this.ticker.read();
+        }
+        
+        private synchronized long getUnitsPerSecond() {
+            return this.unitsPerSecond;
+        }
+        
+        private synchronized double getConsumed() {
+            return this.consumed;
+        }
+        
+        /**
+         * Takes units from the bucket, if any are left. A rate of 0 is unlimited.
+         * 
+         * @param units
+         * @return true if the call may go ahead
+         */
+        private synchronized boolean tryConsume(double units) {
+            if (this.unitsPerSecond > 0) {
+                long now = this.ticker.read();
+                this.available = Math.min(this.unitsPerSecond, this.available
+                        + (now - this.lastRefill) * this.unitsPerSecond / 1e9);
+                this.lastRefill = now;
+                if (this.available <= 0) {
+                    return false;
+                }
+                this.available -= units;
+            }
+            this.consumed += units;
+            return true;
+        }
+    }
+    
+    /**
+     * A table, whose items are kept in key order so that scans can be paged. Stored items are
+     * never changed, only replaced, so they can be read without locking. Writes lock the table,
+     * so that conditions are checked atomically.
+     */
+    private static class LocalTable {
+        private final String name;
+        private final String hashKey;
+        private final Date creationDateTime = new Date();
+        private final NavigableMap<String, Map<String, AttributeValue>> items;
+        private final CapacityBucket reads;
+        private final CapacityBucket writes;
+        
+        private LocalTable(String name, String hashKey, Ticker ticker, long readUnits,
+                long writeUnits) {
+            this.name = name;
+            this.hashKey = hashKey;
+            this.items = new ConcurrentSkipListMap<String, Map<String, AttributeValue>>();
+            this.reads = new CapacityBucket(ticker, readUnits);
+            this.writes = new CapacityBucket(ticker, writeUnits);
+        }
+    }
+    
+    private final Map<String, LocalTable> tables = new ConcurrentHashMap<String, LocalTable>();
+    private final Random random;
+    private final Ticker ticker;
+    // Replaced rather than changed, so calls can read it without locking
+    private volatile Map<Operation, LatencyModel> latencies;
+    private volatile double throttleProbability;
+    private final Map<Operation, AtomicLong> requestCounts = new EnumMap<Operation, AtomicLong>(
+            Operation.class);
+    private final AtomicLong throttledRequests = new AtomicLong();
+    
+    /**
+     * Constructor for a client with no tables, no latency and no throttling.
+     */
+    public LocalTransientDynamoDBClient() {
+        this(new Random(), Ticker.systemTicker());
+    }
+    
+    /**
+     * Constructor for a client whose latencies and injected throttling repeat from run to run.
+     * 
+     * @param seed
+     */
+    public LocalTransientDynamoDBClient(long seed) {
+        this(new Random(seed), Ticker.systemTicker());
+    }
+    
+    /**
+     * Constructor that also sets the source of time of the capacity limits, for tests.
+     * 
+     * @param random
+     * @param ticker
+     */
+    LocalTransientDynamoDBClient(Random random, Ticker ticker) {
+        // Credentials are never sent anywhere, but the SDK requires some
+        super(new BasicAWSCredentials("local", "local"));
+        this.random = random;
+        this.ticker = ticker;
+        Map<Operation, LatencyModel> latencies = new EnumMap<Operation, LatencyModel>(
+                Operation.class);
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, LatencyModel.none());
+            this.requestCounts.put(operation, new AtomicLong());
+        }
+        this.latencies = latencies;
+    }
+    
+    /**
+     * Creates a table with a string hash key and no capacity limits.
+     * 
+     * @param tableName
+     * @param hashKey The name of the hash key attribute
+     * @throws ResourceInUseException if the table already exists
+     */
+    public void createTable(String tableName, String hashKey) {
+        addTable(new LocalTable(tableName, hashKey, this.ticker, 0, 0));
+    }
+    
+    /**
+     * Sets the capacity units per second a table may use. Reads and writes of a table with 0
+     * units of either are not limited.
+     * 
+     * @param tableName
+     * @param readUnits
+     * @param writeUnits
+     * @throws IllegalArgumentException if either is negative
+     * @throws ResourceNotFoundException if the table does not exist
+     */
+    public void setProvisionedThroughput(String tableName, long readUnits, long writeUnits) {
+        if (readUnits < 0 || writeUnits < 0) {
+            throw new IllegalArgumentException("Capacity units cannot be negative!");
+        }
+        LocalTable table = getTable(tableName);
+        table.reads.setUnitsPerSecond(readUnits);
+        table.writes.setUnitsPerSecond(writeUnits);
+    }
+    
+    /**
+     * Sets the latency of every operation.
+     * 
+     * @param latency
+     * @throws IllegalArgumentException if latency is null
+     */
+    public void setLatency(LatencyModel latency) {
+        for (Operation operation : Operation.values()) {
+            setLatency(operation, latency);
+        }
+    }
+    
+    /**
+     * Sets the latency of one operation.
+     * 
+     * @param operation
+     * @param latency
+     * @throws IllegalArgumentException if latency is null
+     */
+    public synchronized void setLatency(Operation operation, LatencyModel latency) {
+        if (latency == null) {
+            throw new IllegalArgumentException("Latency model cannot be null!");
+        }
+        Map<Operation, LatencyModel> latencies = new EnumMap<Operation, LatencyModel>(
+                this.latencies);
+        latencies.put(operation, latency);
+        this.latencies = latencies;
+    }
+    
+    /**
+     * Sets the fraction of item and scan calls that throw ProvisionedThroughputExceededException
+     * regardless of the capacity left.
+     * 
+     * @param throttleProbability
+     * @throws IllegalArgumentException if throttleProbability is not between 0 and 1
+     */
+    public void setThrottleProbability(double throttleProbability) {
+        if (throttleProbability < 0 || throttleProbability > 1) {
+            throw new IllegalArgumentException("Throttle probability must be between 0 and 1!");
+        }
+        this.throttleProbability = throttleProbability;
+    }
+    
+    /**
+     * 
+     * @param operation
+     * @return The number of calls of the operation, including those that failed
+     */
+    public long getRequestCount(Operation operation) {
+        return this.requestCounts.get(operation).get();
+    }
+    
+    /**
+     * 
+     * @return The number of calls that threw ProvisionedThroughputExceededException
+     */
+    public long getThrottledRequestCount() {
+        return this.throttledRequests.get();
+    }
+    
+    /**
+     * 
+     * @param tableName
+     * @return The read capacity units used by calls to the table that were not throttled
+     * @throws ResourceNotFoundException if the table does not exist
+     */
+    public double getConsumedReadCapacity(String tableName) {
+        return getTable(tableName).reads.getConsumed();
+    }
+    
+    /**
+     * 
+     * @param tableName
+     * @return The write capacity units used by calls to the table that were not throttled
+     * @throws ResourceNotFoundException if the table does not exist
+     */
+    public double getConsumedWriteCapacity(String tableName) {
+        return getTable(tableName).writes.getConsumed();
+    }
+    
+    /**
+     * {@inheritDoc} The table must have a single string hash key. Its provisioned throughput is
+     * enforced.
+     */
+    @Override
+    public CreateTableResult createTable(CreateTableRequest request) {
+        List<KeySchemaElement> keySchema = request.getKeySchema();
+        if (keySchema == null || keySchema.size() != 1
+                || !KeyType.HASH.toString().equals(keySchema.get(0).getKeyType())) {
+            throw new UnsupportedOperationException("Only tables with a hash key are supported!");
+        }
+        String hashKey = keySchema.get(0).getAttributeName();
+        if (request.getAttributeDefinitions() != null) {
+            for (AttributeDefinition definition : request.getAttributeDefinitions()) {
+                if (hashKey.equals(definition.getAttributeName())
+                        && !ScalarAttributeType.S.toString().equals(
+                                definition.getAttributeType())) {
+                    throw new UnsupportedOperationException("Only string hash keys are supported!");
+                }
+            }
+        }
+        ProvisionedThroughput throughput = request.getProvisionedThroughput();
+        long readUnits = 0;
+        long writeUnits = 0;
+        if (throughput != null) {
+            readUnits = throughput.getReadCapacityUnits();
+            writeUnits = throughput.getWriteCapacityUnits();
+        }
+        LocalTable table = new LocalTable(request.getTableName(), hashKey, this.ticker, readUnits,
+                writeUnits);
+        addTable(table);
+        return new CreateTableResult().withTableDescription(describe(table));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DeleteTableResult deleteTable(DeleteTableRequest request) {
+        LocalTable table = this.tables.remove(request.getTableName());
+        if (table == null) {
+            throw tableNotFound(request.getTableName());
+        }
+        return new DeleteTableResult().withTableDescription(describe(table));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ListTablesResult listTables(ListTablesRequest request) {
+        List<String> names = new ArrayList<String>(this.tables.keySet());
+        Collections.sort(names);
+        return new ListTablesResult().withTableNames(names);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DescribeTableResult describeTable(DescribeTableRequest request) {
+        startCall(Operation.DESCRIBE_TABLE, false);
+        return new DescribeTableResult().withTable(describe(getTable(request.getTableName())));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public GetItemResult getItem(GetItemRequest request) {
+        startCall(Operation.GET_ITEM, true);
+        rejectExpression(request.getProjectionExpression());
+        LocalTable table = getTable(request.getTableName());
+        Map<String, AttributeValue> item = table.items.get(keyOf(table, request.getKey()));
+        
+        long bytes = item == null ? 0 : sizeOf(item);
+        consumeRead(table, bytes, request.getConsistentRead());
+        
+        GetItemResult result = new GetItemResult();
+        if (item != null) {
+            result.setItem(project(item, request.getAttributesToGet()));
+        }
+        return result;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PutItemResult putItem(PutItemRequest request) {
+        startCall(Operation.PUT_ITEM, true);
+        rejectExpression(request.getConditionExpression());
+        LocalTable table = getTable(request.getTableName());
+        String key = keyOf(table, request.getItem());
+        Map<String, AttributeValue> item = copy(request.getItem());
+        long bytes = sizeOf(item);
+        checkItemSize(bytes);
+        
+        Map<String, AttributeValue> old;
+        synchronized (table) {
+            old = table.items.get(key);
+            consumeWrite(table, Math.max(bytes, old == null ? 0 : sizeOf(old)));
+            checkExpected(old, request.getExpected(), request.getConditionalOperator());
+            table.items.put(key, item);
+        }
+        
+        PutItemResult result = new PutItemResult();
+        if (ReturnValue.ALL_OLD.toString().equals(request.getReturnValues()) && old != null) {
+            result.setAttributes(copy(old));
+        }
+        return result;
+    }
+    
+    /**
+     * {@inheritDoc} Updates of an item that does not exist create it.
+     */
+    @Override
+    public UpdateItemResult updateItem(UpdateItemRequest request) {
+        startCall(Operation.UPDATE_ITEM, true);
+        rejectExpression(request.getUpdateExpression());
+        rejectExpression(request.getConditionExpression());
+        LocalTable table = getTable(request.getTableName());
+        String key = keyOf(table, request.getKey());
+        Map<String, AttributeValueUpdate> updates = request.getAttributeUpdates();
+        if (updates == null) {
+            updates = Collections.emptyMap();
+        }
+        
+        Map<String, AttributeValue> old;
+        Map<String, AttributeValue> item;
+        synchronized (table) {
+            old = table.items.get(key);
+            item = old == null ? copy(request.getKey()) : new HashMap<String, AttributeValue>(old);
+            for (Entry<String, AttributeValueUpdate> update : updates.entrySet()) {
+                applyUpdate(table, item, update.getKey(), update.getValue());
+            }
+            long bytes = sizeOf(item);
+            checkItemSize(bytes);
+            
+            consumeWrite(table, Math.max(bytes, old == null ? 0 : sizeOf(old)));
+            checkExpected(old, request.getExpected(), request.getConditionalOperator());
+            table.items.put(key, item);
+        }
+        
+        UpdateItemResult result = new UpdateItemResult();
+        String returnValues = request.getReturnValues();
+        if (returnValues == null || ReturnValue.NONE.toString().equals(returnValues)) {
+            return result;
+        }
+        switch (ReturnValue.fromValue(returnValues)) {
+        case ALL_OLD:
+            return old == null ? result : result.withAttributes(copy(old));
+        case UPDATED_OLD:
+            return old == null ? result : result.withAttributes(project(old, updates.keySet()));
+        case ALL_NEW:
+            return result.withAttributes(copy(item));
+        default:
+            return result.withAttributes(project(item, updates.keySet()));
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DeleteItemResult deleteItem(DeleteItemRequest request) {
+        startCall(Operation.DELETE_ITEM, true);
+        rejectExpression(request.getConditionExpression());
+        LocalTable table = getTable(request.getTableName());
+        String key = keyOf(table, request.getKey());
+        
+        Map<String, AttributeValue> old;
+        synchronized (table) {
+            old = table.items.get(key);
+            consumeWrite(table, old == null ? 0 : sizeOf(old));
+            checkExpected(old, request.getExpected(), request.getConditionalOperator());
+            table.items.remove(key);
+        }
+        
+        DeleteItemResult result = new DeleteItemResult();
+        if (ReturnValue.ALL_OLD.toString().equals(request.getReturnValues()) && old != null) {
+            result.setAttributes(copy(old));
+        }
+        return result;
+    }
+    
+    /**
+     * {@inheritDoc} Items are scanned in key order. A page ends once Limit items, or 1MB of
+     * items, have been evaluated, and a segment holds the items whose keys hash to it.
+     */
+    @Override
+    public ScanResult scan(ScanRequest request) {
+        startCall(Operation.SCAN, true);
+        rejectExpression(request.getFilterExpression());
+        rejectExpression(request.getProjectionExpression());
+        LocalTable table = getTable(request.getTableName());
+        int limit = request.getLimit() == null ? Integer.MAX_VALUE : request.getLimit();
+        if (limit < 1) {
+            throw validationException("Limit must be at least 1");
+        }
+        Integer totalSegments = request.getTotalSegments();
+        Integer segment = request.getSegment();
+        if ((totalSegments == null) != (segment == null)
+                || (totalSegments != null && (segment < 0 || segment >= totalSegments))) {
+            throw validationException("Segment and TotalSegments are invalid");
+        }
+        boolean countOnly = Select.COUNT.toString().equals(request.getSelect());
+        
+        NavigableMap<String, Map<String, AttributeValue>> remaining = table.items;
+        if (request.getExclusiveStartKey() != null) {
+            remaining = table.items.tailMap(keyOf(table, request.getExclusiveStartKey()), false);
+        }
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+        int scanned = 0;
+        int count = 0;
+        long bytes = 0;
+        String lastKey = null;
+        boolean more = false;
+        for (Entry<String, Map<String, AttributeValue>> entry : remaining.entrySet()) {
+            if (totalSegments != null
+                    && Math.floorMod(entry.getKey().hashCode(), totalSegments) != segment) {
+                continue;
+            }
+            if (scanned == limit || bytes >= MAX_PAGE_BYTES) {
+                more = true;
+                break;
+            }
+            Map<String, AttributeValue> item = entry.getValue();
+            scanned++;
+            bytes += sizeOf(item);
+            lastKey = entry.getKey();
+            if (matches(item, request.getScanFilter(), request.getConditionalOperator())) {
+                count++;
+                if (!countOnly) {
+                    items.add(project(item, request.getAttributesToGet()));
+                }
+            }
+        }
+        consumeRead(table, bytes, null);
+        
+        ScanResult result = new ScanResult().withCount(count).withScannedCount(scanned);
+        if (!countOnly) {
+            result.setItems(items);
+        }
+        if (more) {
+            result.setLastEvaluatedKey(Collections.singletonMap(table.hashKey,
+                    new AttributeValue(lastKey)));
+        }
+        return result;
+    }
+    
+    /**
+     * {@inheritDoc} Not supported.
+     */
+    @Override
+    public QueryResult query(QueryRequest request) {
+        throw new UnsupportedOperationException("Query is not supported!");
+    }
+    
+    /**
+     * {@inheritDoc} Not supported.
+     */
+    @Override
+    public BatchGetItemResult batchGetItem(BatchGetItemRequest request) {
+        throw new UnsupportedOperationException("BatchGetItem is not supported!");
+    }
+    
+    /**
+     * {@inheritDoc} Not supported.
+     */
+    @Override
+    public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request) {
+        throw new UnsupportedOperationException("BatchWriteItem is not supported!");
+    }
+    
+    /**
+     * {@inheritDoc} Not supported, use setProvisionedThroughput instead.
+     */
+    @Override
+    public UpdateTableResult updateTable(UpdateTableRequest request) {
+        throw new UnsupportedOperationException("UpdateTable is not supported!");
+    }
+    
+    /**
+     * Counts a call, waits for its latency and throttles it at random.
+     * 
+     * @param operation
+     * @param mayThrottle Whether the call is one that throttling is injected into
+     */
+    private void startCall(Operation operation, boolean mayThrottle) {
+        this.requestCounts.get(operation).incrementAndGet();
+        long nanos = this.latencies.get(operation).nextNanos(this.random);
+        if (nanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortedException("Interrupted while calling DynamoDB!", e);
+            }
+        }
+        double throttleProbability = this.throttleProbability;
+        if (mayThrottle && throttleProbability > 0
+                && this.random.nextDouble() < throttleProbability) {
+            throw throttled();
+        }
+    }
+    
+    /**
+     * Takes the read capacity of a call, or throttles it. Reads are eventually consistent by
+     * default, and those take half a unit per 4KB.
+     * 
+     * @param table
+     * @param bytes
+     * @param consistentRead
+     */
+    private void consumeRead(LocalTable table, long bytes, Boolean consistentRead) {
+        double units = Math.max(1, (bytes + READ_UNIT_BYTES - 1) / READ_UNIT_BYTES);
+        if (!Boolean.TRUE.equals(consistentRead)) {
+            units /= 2;
+        }
+        if (!table.reads.tryConsume(units)) {
+            throw throttled();
+        }
+    }
+    
+    /**
+     * Takes the write capacity of a call, or throttles it. A write takes a unit per 1KB of the
+     * larger of the old and new item.
+     * 
+     * @param table
+     * @param bytes
+     */
+    private void consumeWrite(LocalTable table, long bytes) {
+        double units = Math.max(1, (bytes + WRITE_UNIT_BYTES - 1) / WRITE_UNIT_BYTES);
+        if (!table.writes.tryConsume(units)) {
+            throw throttled();
+        }
+    }
+    
+    /**
+     * 
+     * @return an exception like the one DynamoDB throws for a throttled call
+     */
+    private ProvisionedThroughputExceededException throttled() {
+        this.throttledRequests.incrementAndGet();
+        return serviceException(new ProvisionedThroughputExceededException(
+                "The level of configured provisioned throughput for the table was exceeded."),
+                "ProvisionedThroughputExceededException");
+    }
+    
+    /**
+     * Adds a table, unless one of the same name exists.
+     * 
+     * @param table
+     */
+    private void addTable(LocalTable table) {
+        if (this.tables.putIfAbsent(table.name, table) != null) {
+            throw serviceException(new ResourceInUseException("Table already exists: "
+                    + table.name), "ResourceInUseException");
+        }
+    }
+    
+    /**
+     * 
+     * @param tableName
+     * @return the table
+     * @throws ResourceNotFoundException if the table does not exist
+     */
+    private LocalTable getTable(String tableName) {
+        LocalTable table = tableName == null ? null : this.tables.get(tableName);
+        if (table == null) {
+            throw tableNotFound(tableName);
+        }
+        return table;
+    }
+    
+    private static ResourceNotFoundException tableNotFound(String tableName) {
+        return serviceException(new ResourceNotFoundException(
+                "Requested resource not found: Table: " + tableName + " not found"),
+                "ResourceNotFoundException");
+    }
+    
+    /**
+     * Describes a table as an active table with a string hash key.
+     * 
+     * @param table
+     * @return table description
+     */
+    private static TableDescription describe(LocalTable table) {
+        long bytes = 0;
+        long count = 0;
+        for (Map<String, AttributeValue> item : table.items.values()) {
+            bytes += sizeOf(item);
+            count++;
+        }
+        return new TableDescription()
+                .withTableName(table.name)
+                .withTableStatus(TableStatus.ACTIVE)
+                .withCreationDateTime(table.creationDateTime)
+                .withKeySchema(new KeySchemaElement(table.hashKey, KeyType.HASH))
+                .withAttributeDefinitions(
+                        new AttributeDefinition(table.hashKey, ScalarAttributeType.S))
+                .withProvisionedThroughput(
+                        new ProvisionedThroughputDescription().withReadCapacityUnits(
+                                table.reads.getUnitsPerSecond()).withWriteCapacityUnits(
+                                table.writes.getUnitsPerSecond())).withItemCount(count)
+                .withTableSizeBytes(bytes);
+    }
+    
+    /**
+     * Gets the key of an item, which must have a string value for the hash key.
+     * 
+     * @param table
+     * @param item A key or a whole item
+     * @return key
+     */
+    private static String keyOf(LocalTable table, Map<String, AttributeValue> item) {
+        AttributeValue key = item == null ? null : item.get(table.hashKey);
+        if (key == null || key.getS() == null) {
+            throw validationException("The provided key element does not match the schema");
+        }
+        return key.getS();
+    }
+    
+    private static void rejectExpression(String expression) {
+        if (expression != null) {
+            throw new UnsupportedOperationException("Expressions are not supported!");
+        }
+    }
+    
+    private static void checkItemSize(long bytes) {
+        if (bytes > MAX_ITEM_BYTES) {
+            throw validationException("Item size has exceeded the maximum allowed size");
+        }
+    }
+    
+    private static AmazonServiceException validationException(String message) {
+        return serviceException(new AmazonServiceException(message), "ValidationException");
+    }
+    
+    private static <E extends AmazonServiceException> E serviceException(E exception,
+            String errorCode) {
+        exception.setServiceName(SERVICE_NAME);
+        exception.setErrorCode(errorCode);
+        exception.setErrorType(ErrorType.Client);
+        exception.setStatusCode(400);
+        return exception;
+    }
+    
+    /**
+     * Applies one attribute update to an item.
+     * 
+     * @param table
+     * @param item
+     * @param name
+     * @param update
+     */
+    private static void applyUpdate(LocalTable table, Map<String, AttributeValue> item,
+            String name, AttributeValueUpdate update) {
+        if (name.equals(table.hashKey)) {
+            throw validationException("Cannot update attribute " + name
+                    + ". This attribute is part of the key");
+        }
+        AttributeAction action = update.getAction() == null ? AttributeAction.PUT
+                : AttributeAction.fromValue(update.getAction());
+        AttributeValue value = update.getValue();
+        AttributeValue current = item.get(name);
+        if (value == null && action != AttributeAction.DELETE) {
+            throw validationException(
+                    "Only DELETE action is allowed when no attribute value is specified");
+        }
+        
+        switch (action) {
+        case PUT:
+            item.put(name, copy(value));
+            break;
+        case DELETE:
+            if (value == null) {
+                item.remove(name);
+            } else if (current != null) {
+                AttributeValue remaining = mergeSets(current, value, false);
+                if (remaining == null) {
+                    item.remove(name);
+                } else {
+                    item.put(name, remaining);
+                }
+            }
+            break;
+        case ADD:
+            if (current == null) {
+                if (value.getN() == null && !isSet(value)) {
+                    throw validationException("ADD action is only supported for numbers and sets");
+                }
+                item.put(name, copy(value));
+            } else if (current.getN() != null && value.getN() != null) {
+                item.put(name, new AttributeValue().withN(new BigDecimal(current.getN()).add(
+                        new BigDecimal(value.getN())).toPlainString()));
+            } else {
+                item.put(name, mergeSets(current, value, true));
+            }
+            break;
+        default:
+            throw new UnsupportedOperationException("Unknown action " + action + "!");
+        }
+    }
+    
+    private static boolean isSet(AttributeValue value) {
+        return value.getSS() != null || value.getNS() != null || value.getBS() != null;
+    }
+    
+    /**
+     * Adds the elements of one set to another, or removes them.
+     * 
+     * @param current
+     * @param delta
+     * @param add
+     * @return the new set, or null if it is empty
+     */
+    private static AttributeValue mergeSets(AttributeValue current, AttributeValue delta,
+            boolean add) {
+        if (current.getSS() != null && delta.getSS() != null) {
+            Set<String> merged = merge(current.getSS(), delta.getSS(), add);
+            return merged.isEmpty() ? null : new AttributeValue().withSS(merged);
+        } else if (current.getNS() != null && delta.getNS() != null) {
+            Set<String> merged = merge(current.getNS(), delta.getNS(), add);
+            return merged.isEmpty() ? null : new AttributeValue().withNS(merged);
+        } else if (current.getBS() != null && delta.getBS() != null) {
+            Set<ByteBuffer> merged = merge(current.getBS(), delta.getBS(), add);
+            return merged.isEmpty() ? null : new AttributeValue().withBS(merged);
+        }
+        throw validationException("Type mismatch for attribute to update");
+    }
+    
+    private static <T> Set<T> merge(Collection<T> current, Collection<T> delta, boolean add) {
+        Set<T> merged = new LinkedHashSet<T>(current);
+        if (add) {
+            merged.addAll(delta);
+        } else {
+            merged.removeAll(delta);
+        }
+        return merged;
+    }
+    
+    /**
+     * Checks the Expected conditions of a write against the current item.
+     * 
+     * @param item The current item, or null if there is none
+     * @param expected
+     * @param conditionalOperator
+     * @throws ConditionalCheckFailedException if the conditions do not hold
+     */
+    private static void checkExpected(Map<String, AttributeValue> item,
+            Map<String, ExpectedAttributeValue> expected, String conditionalOperator) {
+        if (expected == null || expected.isEmpty()) {
+            return;
+        }
+        boolean any = ConditionalOperator.OR.toString().equals(conditionalOperator);
+        boolean matched = !any;
+        for (Entry<String, ExpectedAttributeValue> condition : expected.entrySet()) {
+            AttributeValue actual = item == null ? null : item.get(condition.getKey());
+            if (evaluate(actual, condition.getValue()) == any) {
+                matched = any;
+                break;
+            }
+        }
+        if (!matched) {
+            throw serviceException(new ConditionalCheckFailedException(
+                    "The conditional request failed"), "ConditionalCheckFailedException");
+        }
+    }
+    
+    /**
+     * Evaluates an Expected condition, in either its comparison or its legacy Value and Exists
+     * form.
+     * 
+     * @param actual
+     * @param expected
+     * @return true if the condition holds
+     */
+    private static boolean evaluate(AttributeValue actual, ExpectedAttributeValue expected) {
+        if (expected.getComparisonOperator() != null) {
+            return evaluate(actual, ComparisonOperator.fromValue(expected.getComparisonOperator()),
+                    expected.getAttributeValueList());
+        }
+        if (Boolean.FALSE.equals(expected.getExists())) {
+            return actual == null;
+        }
+        if (expected.getValue() == null) {
+            throw validationException("Exists is true but no Value was supplied");
+        }
+        return actual != null && valuesEqual(actual, expected.getValue());
+    }
+    
+    /**
+     * Checks an item against a scan filter.
+     * 
+     * @param item
+     * @param filter
+     * @param conditionalOperator
+     * @return true if the item passes the filter
+     */
+    private static boolean matches(Map<String, AttributeValue> item,
+            Map<String, Condition> filter, String conditionalOperator) {
+        if (filter == null || filter.isEmpty()) {
+            return true;
+        }
+        boolean any = ConditionalOperator.OR.toString().equals(conditionalOperator);
+        for (Entry<String, Condition> condition : filter.entrySet()) {
+            Condition value = condition.getValue();
+            if (evaluate(item.get(condition.getKey()), ComparisonOperator.fromValue(value
+                    .getComparisonOperator()), value.getAttributeValueList()) == any) {
+                return any;
+            }
+        }
+        return !any;
+    }
+    
+    /**
+     * Evaluates a comparison the way DynamoDB does, where only NE and NULL hold for a missing
+     * attribute and comparisons of different types do not hold.
+     * 
+     * @param actual The value of the attribute, or null if it is missing
+     * @param operator
+     * @param arguments
+     * @return true if the comparison holds
+     */
+    private static boolean evaluate(AttributeValue actual, ComparisonOperator operator,
+            List<AttributeValue> arguments) {
+        int numArguments = arguments == null ? 0 : arguments.size();
+        switch (operator) {
+        case NULL:
+            return actual == null;
+        case NOT_NULL:
+            return actual != null;
+        case IN:
+            if (numArguments == 0) {
+                throw validationException("IN requires at least one value");
+            }
+            for (AttributeValue argument : arguments) {
+                if (actual != null && valuesEqual(actual, argument)) {
+                    return true;
+                }
+            }
+            return false;
+        case BETWEEN:
+            if (numArguments != 2) {
+                throw validationException("BETWEEN requires two values");
+            }
+            Integer low = compare(actual, arguments.get(0));
+            Integer high = compare(actual, arguments.get(1));
+            return low != null && high != null && low >= 0 && high <= 0;
+        default:
+            break;
+        }
+        
+        if (numArguments != 1) {
+            throw validationException(operator + " requires one value");
+        }
+        AttributeValue argument = arguments.get(0);
+        Integer comparison = compare(actual, argument);
+        switch (operator) {
+        case EQ:
+            return actual != null && valuesEqual(actual, argument);
+        case NE:
+            return actual == null || !valuesEqual(actual, argument);
+        case LT:
+            return comparison != null && comparison < 0;
+        case LE:
+            return comparison != null && comparison <= 0;
+        case GT:
+            return comparison != null && comparison > 0;
+        case GE:
+            return comparison != null && comparison >= 0;
+        case BEGINS_WITH:
+            if (actual == null) {
+                return false;
+            } else if (actual.getS() != null && argument.getS() != null) {
+                return actual.getS().startsWith(argument.getS());
+            } else if (actual.getB() != null && argument.getB() != null) {
+                ByteBuffer prefix = argument.getB();
+                ByteBuffer value = actual.getB();
+                return value.remaining() >= prefix.remaining()
+                        && value.duplicate().limit(value.position() + prefix.remaining())
+                                .equals(prefix);
+            }
+            return false;
+        default:
+            throw new UnsupportedOperationException("Comparison " + operator
+                    + " is not supported!");
+        }
+    }
+    
+    /**
+     * Compares two scalars of the same type: strings, numbers or binaries.
+     * 
+     * @param a
+     * @param b
+     * @return the comparison, or null if they are missing or cannot be compared
+     */
+    private static Integer compare(AttributeValue a, AttributeValue b) {
+        if (a == null || b == null) {
+            return null;
+        } else if (a.getS() != null && b.getS() != null) {
+            return a.getS().compareTo(b.getS());
+        } else if (a.getN() != null && b.getN() != null) {
+            return new BigDecimal(a.getN()).compareTo(new BigDecimal(b.getN()));
+        } else if (a.getB() != null && b.getB() != null) {
+            ByteBuffer x = a.getB();
+            ByteBuffer y = b.getB();
+            int length = Math.min(x.remaining(), y.remaining());
+            for (int i = 0; i < length; i++) {
+                int difference = (x.get(x.position() + i) & 0xFF)
+                        - (y.get(y.position() + i) & 0xFF);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return x.remaining() - y.remaining();
+        }
+        return null;
+    }
+    
+    /**
+     * Checks whether two values are equal, where numbers are equal by value and sets are equal
+     * regardless of order.
+     * 
+     * @param a
+     * @param b
+     * @return true if the values are equal
+     */
+    private static boolean valuesEqual(AttributeValue a, AttributeValue b) {
+        if (a.getN() != null && b.getN() != null) {
+            return new BigDecimal(a.getN()).compareTo(new BigDecimal(b.getN())) == 0;
+        } else if (a.getSS() != null && b.getSS() != null) {
+            return new LinkedHashSet<String>(a.getSS()).equals(new LinkedHashSet<String>(b
+                    .getSS()));
+        } else if (a.getNS() != null && b.getNS() != null) {
+            return new LinkedHashSet<String>(a.getNS()).equals(new LinkedHashSet<String>(b
+                    .getNS()));
+        } else if (a.getBS() != null && b.getBS() != null) {
+            return new LinkedHashSet<ByteBuffer>(a.getBS()).equals(new LinkedHashSet<ByteBuffer>(b
+                    .getBS()));
+        }
+        return a.equals(b);
+    }
+    
+    /**
+     * Copies the named attributes of an item.
+     * 
+     * @param item
+     * @param names The attributes to copy, or null for all of them
+     * @return copy
+     */
+    private static Map<String, AttributeValue> project(Map<String, AttributeValue> item,
+            Collection<String> names) {
+        if (names == null || names.isEmpty()) {
+            return copy(item);
+        }
+        Map<String, AttributeValue> projection = new HashMap<String, AttributeValue>();
+        for (String name : names) {
+            AttributeValue value = item.get(name);
+            if (value != null) {
+                projection.put(name, copy(value));
+            }
+        }
+        return projection;
+    }
+    
+    /**
+     * Copies an item, so that neither the caller nor the table can change the other's copy.
+     * 
+     * @param item
+     * @return copy
+     */
+    private static Map<String, AttributeValue> copy(Map<String, AttributeValue> item) {
+        Map<String, AttributeValue> copy = new HashMap<String, AttributeValue>(item.size() * 2);
+        for (Entry<String, AttributeValue> attribute : item.entrySet()) {
+            copy.put(attribute.getKey(), copy(attribute.getValue()));
+        }
+        return copy;
+    }
+    
+    private static AttributeValue copy(AttributeValue value) {
+        AttributeValue copy = new AttributeValue();
+        copy.setS(value.getS());
+        copy.setN(value.getN());
+        copy.setBOOL(value.getBOOL());
+        copy.setNULL(value.getNULL());
+        if (value.getB() != null) {
+            copy.setB(copy(value.getB()));
+        }
+        if (value.getSS() != null) {
+            copy.setSS(new ArrayList<String>(value.getSS()));
+        }
+        if (value.getNS() != null) {
+            copy.setNS(new ArrayList<String>(value.getNS()));
+        }
+        if (value.getBS() != null) {
+            List<ByteBuffer> bs = new ArrayList<ByteBuffer>(value.getBS().size());
+            for (ByteBuffer b : value.getBS()) {
+                bs.add(copy(b));
+            }
+            copy.setBS(bs);
+        }
+        if (value.getM() != null) {
+            copy.setM(copy(value.getM()));
+        }
+        if (value.getL() != null) {
+            List<AttributeValue> l = new ArrayList<AttributeValue>(value.getL().size());
+            for (AttributeValue element : value.getL()) {
+                l.add(copy(element));
+            }
+            copy.setL(l);
+        }
+        return copy;
+    }
+    
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+    
+    /**
+     * Computes the size of an item the way DynamoDB does, from the UTF-8 length of each attribute
+     * name and the size of its value.
+     * 
+     * @param item
+     * @return size in bytes
+     */
+    private static long sizeOf(Map<String, AttributeValue> item) {
+        long size = 0;
+        for (Entry<String, AttributeValue> attribute : item.entrySet()) {
+            size += utf8Length(attribute.getKey()) + sizeOf(attribute.getValue());
+        }
+        return size;
+    }
+    
+    /**
+     * A number takes 1 byte per 2 significant digits plus 1, and a map or list takes 3 bytes plus
+     * 1 byte per element.
+     * 
+     * @param value
+     * @return size in bytes
+     */
+    private static long sizeOf(AttributeValue value) {
+        if (value.getS() != null) {
+            return utf8Length(value.getS());
+        } else if (value.getN() != null) {
+            return numberSize(value.getN());
+        } else if (value.getB() != null) {
+            return value.getB().remaining();
+        } else if (value.getSS() != null) {
+            long size = 0;
+            for (String s : value.getSS()) {
+                size += utf8Length(s);
+            }
+            return size;
+        } else if (value.getNS() != null) {
+            long size = 0;
+            for (String n : value.getNS()) {
+                size += numberSize(n);
+            }
+            return size;
+        } else if (value.getBS() != null) {
+            long size = 0;
+            for (ByteBuffer b : value.getBS()) {
+                size += b.remaining();
+            }
+            return size;
+        } else if (value.getM() != null) {
+            long size = 3;
+            for (Entry<String, AttributeValue> element : value.getM().entrySet()) {
+                size += 1 + utf8Length(element.getKey()) + sizeOf(element.getValue());
+            }
+            return size;
+        } else if (value.getL() != null) {
+            long size = 3;
+            for (AttributeValue element : value.getL()) {
+                size += 1 + sizeOf(element);
+            }
+            return size;
+        }
+        // BOOL or NULL
+        return 1;
+    }
+    
+    private static long numberSize(String number) {
+        int digits = new BigDecimal(number).stripTrailingZeros().precision();
+        return (digits + 1) / 2 + 1;
+    }
+    
+    private static long utf8Length(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
@@ -1,11 +1,14 @@
 package data.proxy;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.stream.StreamSupport;
+import java.util.Set;
 
 import com.google.common.collect.Iterators;
 
@@ -14,21 +17,29 @@ import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
 import data.structure.Preference;
 import data.structure.PreferenceCategory;
 import data.structure.PreferenceCorrelation;
+import data.structure.PreferenceDictionary;
 import data.structure.UserProfile;
 
 /**
  * LocalTransientPreferenceCorrelationGraph manages access to the stored preferences and preference
- * correlations locally in memory.
+ * correlations locally in memory. The stored preferences are the entries of a PreferenceDictionary,
+ * which gives each one an int handle, and a bitset per category marks the handles that are stored.
+ * A lookup hashes the ID and category once, without creating a Preference, and scanning a category
+ * walks a bitset rather than a hash map. The handle of a deleted preference is kept, holding a bare
+ * copy of the preference, and reused if the preference is stored again.
  */
 public class LocalTransientPreferenceCorrelationGraph implements PreferenceCorrelationGraph {
     
-    private Map<PreferenceCategory, Map<String, Preference>> preferences;
+    private final PreferenceDictionary dictionary;
+    // Handles of the stored preferences of each category
+    private final Map<PreferenceCategory, BitSet> handlesByCategory;
     
     /**
      * Basic default constructor for LocalTransientPreferenceCorrelationGraph.
      */
     public LocalTransientPreferenceCorrelationGraph() {
-        preferences = new HashMap<PreferenceCategory, Map<String, Preference>>();
+        this.dictionary = new PreferenceDictionary();
+        this.handlesByCategory = new EnumMap<PreferenceCategory, BitSet>(PreferenceCategory.class);
     }
     
     /**
@@ -36,11 +47,20 @@ public class LocalTransientPreferenceCorrelationGraph implements PreferenceCorre
      */
     @Override
     public Preference getPreference(String id, PreferenceCategory category) {
-        if (this.preferences.containsKey(category)) {
-            return this.preferences.get(category).get(id);
-        } else {
-            return null;
-        }
+        return find(id, category);
+    }
+    
+    /**
+     * Looks up a stored preference by its handle.
+     * 
+     * @param id
+     * @param category
+     * @return preference, or null if it is not stored
+     */
+    private Preference find(String id, PreferenceCategory category) {
+        int handle = this.dictionary.getId(id, category);
+        return handle >= 0 && this.handlesByCategory.get(category).get(handle) ? this.dictionary
+                .getPreference(handle) : null;
     }
     
     /**
@@ -48,8 +68,11 @@ public class LocalTransientPreferenceCorrelationGraph implements PreferenceCorre
      */
     @Override
     public void delete(String id, PreferenceCategory category) {
-        if (this.preferences.containsKey(category)) {
-            this.preferences.get(category).remove(id);
+        Preference preference = find(id, category);
+        if (preference != null) {
+            // Keep the handle, but not the correlations of the deleted preference
+            int handle = this.dictionary.replace(new Preference(preference.getID(), category));
+            this.handlesByCategory.get(category).clear(handle);
         }
     }
     
@@ -57,48 +80,54 @@ public class LocalTransientPreferenceCorrelationGraph implements PreferenceCorre
      * {@inheritDoc}
      */
     @Override
-    public void updatePreference(UpdatePreferenceRequest request, UserProfile user,
+    public boolean updatePreference(UpdatePreferenceRequest request, UserProfile user,
             UpdateAction action) {
+        applyUpdate(request);
+        return true;
+    }
+    
+    /**
+     * {@inheritDoc} The whole batch is applied in one pass over the requests.
+     */
+    @Override
+    public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests,
+            UserProfile user, UpdateAction action) {
+        List<Boolean> applied = new ArrayList<Boolean>(requests.size());
+        for (UpdatePreferenceRequest request : requests) {
+            applyUpdate(request);
+            applied.add(true);
+        }
+        return applied;
+    }
+    
+    /**
+     * Applies the popularity and correlation weight updates of a request to the stored preference,
+     * creating it if necessary.
+     * 
+     * @param request
+     */
+    private void applyUpdate(UpdatePreferenceRequest request) {
         // Get preference from request.
         Preference preferenceFromRequest = request.getPreferenceToUpdate();
         PreferenceCategory category = preferenceFromRequest.getCategory();
         
-        Preference preferenceToUpdate;
         // Get corresponding preference from preference graph, if it exists.
-        if (this.preferences.containsKey(category)
-                && this.preferences.get(category).containsKey(preferenceFromRequest.getID())) {
-            preferenceToUpdate = this.preferences.get(category).get(preferenceFromRequest.getID());
-        } else {
+        Preference preferenceToUpdate = find(preferenceFromRequest.getID(), category);
+        if (preferenceToUpdate == null) {
             // Create new Preference for graph.
             preferenceToUpdate = new Preference(preferenceFromRequest.getID(), category, 0);
         }
         
         // Update popularity.
-        if (request.getPopularityUpdate() != null) {
-            preferenceToUpdate.adjustPopularity(request.getPopularityUpdate().getDelta());
-        }
+        preferenceToUpdate.adjustPopularity(request.getPopularityDelta());
         
-        // Build initial Map of correlations for hash-based merge.
-        Map<PreferenceCorrelation, PreferenceCorrelation> correlationsToMerge = new HashMap<PreferenceCorrelation, PreferenceCorrelation>();
-        for (Entry<PreferenceCorrelation, UpdateAction> update : request.getCorrelationUpdates()
+        // Adjust correlation weights in place.
+        for (Entry<PreferenceCorrelation, Integer> update : request.getCorrelationDeltas()
                 .entrySet()) {
-            PreferenceCorrelation correlationToUpdate = update.getKey();
-            correlationToUpdate.setWeight(update.getValue().getDelta());
-            correlationsToMerge.put(correlationToUpdate, correlationToUpdate);
+            preferenceToUpdate.adjustCorrelationWeight(update.getKey().getToPreference(),
+                    update.getValue());
         }
         
-        // Merge all correlations.
-        for (PreferenceCorrelation existingCorrelation : preferenceToUpdate.getCorrelations()) {
-            if (correlationsToMerge.containsKey(existingCorrelation)) {
-                correlationsToMerge.get(existingCorrelation).merge(existingCorrelation);
-            } else {
-                correlationsToMerge.put(existingCorrelation, existingCorrelation);
-            }
-        }
-        
-        // Overwrite preference's correlations
-        preferenceToUpdate.addAllCorrelations(correlationsToMerge.values());
-        
         // Write preference back to Map.
         putPreference(preferenceToUpdate);
     }
@@ -108,11 +137,12 @@ public class LocalTransientPreferenceCorrelationGraph implements PreferenceCorre
      */
     @Override
     public void putPreference(Preference preference) {
-        // Check for pre-existing category.
-        if (!this.preferences.containsKey(preference.getCategory())) {
-            this.preferences.put(preference.getCategory(), new HashMap<String, Preference>());
+        int handle = this.dictionary.replace(preference);
+        if (handle < 0) {
+            handle = this.dictionary.encode(preference);
         }
-        this.preferences.get(preference.getCategory()).put(preference.getID(), preference);
+        this.handlesByCategory.computeIfAbsent(preference.getCategory(), category -> new BitSet())
+                .set(handle);
     }
     
     /**
@@ -122,23 +152,40 @@ public class LocalTransientPreferenceCorrelationGraph implements PreferenceCorre
     public String toString() {
         StringBuilder out = new StringBuilder();
         
-        for (Entry<PreferenceCategory, Map<String, Preference>> catEntry : this.preferences
-                .entrySet()) {
-            for (Entry<String, Preference> prefEntry : catEntry.getValue().entrySet()) {
-                Preference preference = prefEntry.getValue();
-                out.append(String.format("%s\r\n", preference.toString()));
+        for (BitSet handles : this.handlesByCategory.values()) {
+            for (int handle = handles.nextSetBit(0); handle >= 0; handle = handles
+                    .nextSetBit(handle + 1)) {
+                out.append(String.format("%s\r\n", this.dictionary.getPreference(handle)
+                        .toString()));
             }
         }
         
         return out.toString();
     }
     
+    /**
+     * {@inheritDoc}
+     */
     @Override
     public Iterator<List<Preference>> batchGetPreferences(PreferenceCategory category, int batchSize) {
-        Iterator<List<Preference>> preferenceBatches = Iterators.partition(preferences
-                .get(category).values().iterator(), batchSize);
-        Iterable<List<Preference>> iterable = () -> preferenceBatches;
-        return StreamSupport.stream(iterable.spliterator(), false).iterator();
+        return batchGetPreferences(EnumSet.of(category), batchSize);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(Set<PreferenceCategory> categories,
+            int batchSize) {
+        List<Iterator<Preference>> categoryPreferences = new ArrayList<Iterator<Preference>>();
+        for (PreferenceCategory category : categories) {
+            BitSet handles = this.handlesByCategory.get(category);
+            if (handles != null) {
+                categoryPreferences.add(handles.stream().mapToObj(this.dictionary::getPreference)
+                        .iterator());
+            }
+        }
+        return Iterators.partition(Iterators.concat(categoryPreferences.iterator()), batchSize);
     }
     
 }
@@ -1,8 +1,12 @@
 package data.proxy;
 
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
+import com.google.common.collect.Iterators;
+
 import data.structure.UserProfile;
 
 /**
@@ -42,4 +46,11 @@ public class LocalTransientUserProfileStore implements UserProfileStore {
             return userProfiles.get(id);
         }
     }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public Iterator<List<UserProfile>> batchGetProfiles(int batchSize) {
+        return Iterators.partition(userProfiles.values().iterator(), batchSize);
+    }
 }
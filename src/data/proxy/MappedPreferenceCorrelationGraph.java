@@ -0,0 +1,481 @@
+package data.proxy;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Range;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.PreferenceDictionary;
+import data.structure.UserProfile;
+
+/**
+ * MappedPreferenceCorrelationGraph serves a read-only copy of the preference correlation graph
+ * from a file in compressed sparse row (CSR) form, memory-mapped with FileChannel.map(). No Java
+ * objects are kept per preference or correlation: getPreference() and batchGetPreferences() decode
+ * the preferences they return from the mapped buffers. Opening a file only maps it, and the
+ * operating system pages it in as it is read, so the graph is served from the page cache rather
+ * than the heap.
+ * 
+ * A file is written from another graph with write(). Every preference gets a dense ordinal, with
+ * the preferences of each category in one contiguous range of ordinals. The file holds the
+ * popularity, the start and length of the row of correlations and the ID of each ordinal, an
+ * open-addressing hash table from (category, ID) to ordinal, and the rows, as pairs of destination
+ * ordinal and weight.
+ * 
+ * The graph cannot be updated. Instead, a rebuilt file is swapped in with swap(), and each read
+ * sees either the old file or the new one. The old mapping is released when it is garbage
+ * collected.
+ */
+public class MappedPreferenceCorrelationGraph implements PreferenceCorrelationGraph {
+    
+    private static final int MAGIC = 0x43535247;
+    private static final int VERSION = 1;
+    private static final int NUM_CATEGORIES = PreferenceCategory.values().length;
+    // Magic, version, number of preferences, hash table size, length of the IDs, number of
+    // correlations, and the first ordinal of each category followed by the number of preferences
+    private static final int HEADER_SIZE = 5 * 4 + 8 + (NUM_CATEGORIES + 1) * 4;
+    private static final int ENTRY_SIZE = 8;
+    // Rows are mapped in chunks, since a single mapping cannot exceed 2GB
+    private static final int ENTRIES_PER_CHUNK = 1 << 26;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    
+    private volatile Mapping mapping;
+    
+    /**
+     * A mapped file. Only absolute reads are made from the buffers, so they can be shared by any
+     * number of threads.
+     */
+    private static class Mapping {
+        private final int numPreferences;
+        private final int[] categoryStarts;
+        private final int tableSize;
+        private final ByteBuffer index;
+        private final ByteBuffer[] rows;
+        private final int popularitiesAt;
+        private final int rowStartsAt;
+        private final int rowLengthsAt;
+        private final int idOffsetsAt;
+        private final int slotsAt;
+        private final int idsAt;
+        
+        /**
+         * Maps a file.
+         * 
+         * @param file
+         * @throws IllegalArgumentException if the file is not a graph file
+         * @throws UncheckedIOException if the file cannot be mapped
+         */
+        private Mapping(File file) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() < HEADER_SIZE) {
+                    throw new IllegalArgumentException(String.format(
+                            "The file '%s' is not a graph file!", file));
+                }
+                ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                    throw new IllegalArgumentException(String.format(
+                            "The file '%s' is not a graph file!", file));
+                }
+                this.numPreferences = header.getInt();
+                this.tableSize = header.getInt();
+                int idsLength = header.getInt();
+                long numCorrelations = header.getLong();
+                this.categoryStarts = new int[NUM_CATEGORIES + 1];
+                for (int i = 0; i <= NUM_CATEGORIES; i++) {
+                    this.categoryStarts[i] = header.getInt();
+                }
+                
+                this.popularitiesAt = HEADER_SIZE;
+                this.rowStartsAt = this.popularitiesAt + 4 * this.numPreferences;
+                this.rowLengthsAt = this.rowStartsAt + 8 * this.numPreferences;
+                this.idOffsetsAt = this.rowLengthsAt + 4 * this.numPreferences;
+                this.slotsAt = this.idOffsetsAt + 4 * (this.numPreferences + 1);
+                this.idsAt = this.slotsAt + 4 * this.tableSize;
+                int indexSize = this.idsAt + idsLength;
+                this.index = channel.map(MapMode.READ_ONLY, 0, indexSize);
+                
+                int numChunks = (int) ((numCorrelations + ENTRIES_PER_CHUNK - 1) / ENTRIES_PER_CHUNK);
+                this.rows = new ByteBuffer[numChunks];
+                for (int chunk = 0; chunk < numChunks; chunk++) {
+                    long first = (long) chunk * ENTRIES_PER_CHUNK;
+                    long length = Math.min(ENTRIES_PER_CHUNK, numCorrelations - first);
+                    this.rows[chunk] = channel.map(MapMode.READ_ONLY, indexSize + first
+                            * ENTRY_SIZE, length * ENTRY_SIZE);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to map " + file + "!", e);
+            }
+        }
+        
+        /**
+         * Finds the ordinal of a preference in the hash table.
+         * 
+         * @param id
+         * @param category
+         * @return ordinal, or -1 if the preference is not in the graph
+         */
+        private int ordinalOf(String id, PreferenceCategory category) {
+            byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+            int mask = this.tableSize - 1;
+            int first = this.categoryStarts[category.ordinal()];
+            int end = this.categoryStarts[category.ordinal() + 1];
+            for (int slot = hash(category, idBytes) & mask;; slot = (slot + 1) & mask) {
+                int ordinal = this.index.getInt(this.slotsAt + 4 * slot) - 1;
+                if (ordinal < 0) {
+                    return -1;
+                }
+                if (ordinal >= first && ordinal < end && idEquals(ordinal, idBytes)) {
+                    return ordinal;
+                }
+            }
+        }
+        
+        /**
+         * 
+         * @param ordinal
+         * @param idBytes
+         * @return true if the ID of the ordinal is the given UTF-8 bytes
+         */
+        private boolean idEquals(int ordinal, byte[] idBytes) {
+            int start = this.index.getInt(this.idOffsetsAt + 4 * ordinal);
+            int end = this.index.getInt(this.idOffsetsAt + 4 * (ordinal + 1));
+            if (end - start != idBytes.length) {
+                return false;
+            }
+            for (int i = 0; i < idBytes.length; i++) {
+                if (this.index.get(this.idsAt + start + i) != idBytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * 
+         * @param ordinal
+         * @return ID of the ordinal
+         */
+        private String idOf(int ordinal) {
+            int start = this.index.getInt(this.idOffsetsAt + 4 * ordinal);
+            int end = this.index.getInt(this.idOffsetsAt + 4 * (ordinal + 1));
+            byte[] idBytes = new byte[end - start];
+            // A duplicate has its own position, so the bytes can be copied in bulk
+            ByteBuffer ids = this.index.duplicate();
+            ids.position(this.idsAt + start);
+            ids.get(idBytes);
+            return new String(idBytes, StandardCharsets.UTF_8);
+        }
+        
+        /**
+         * 
+         * @param ordinal
+         * @return category of the ordinal
+         */
+        private PreferenceCategory categoryOf(int ordinal) {
+            PreferenceCategory[] categories = PreferenceCategory.values();
+            for (int i = 0; i < NUM_CATEGORIES; i++) {
+                if (ordinal < this.categoryStarts[i + 1]) {
+                    return categories[i];
+                }
+            }
+            throw new IndexOutOfBoundsException(String.format("No preference has the ordinal %d!",
+                    ordinal));
+        }
+        
+        /**
+         * Decodes a preference with its popularity and correlations.
+         * 
+         * @param ordinal
+         * @return preference
+         */
+        private Preference toPreference(int ordinal) {
+            Preference preference = new Preference(idOf(ordinal), categoryOf(ordinal),
+                    this.index.getInt(this.popularitiesAt + 4 * ordinal));
+            long start = this.index.getLong(this.rowStartsAt + 8 * ordinal);
+            int length = this.index.getInt(this.rowLengthsAt + 4 * ordinal);
+            for (long entry = start; entry < start + length; entry++) {
+                ByteBuffer chunk = this.rows[(int) (entry / ENTRIES_PER_CHUNK)];
+                int at = (int) (entry % ENTRIES_PER_CHUNK) * ENTRY_SIZE;
+                int column = chunk.getInt(at);
+                preference.addCorrelation(new PreferenceCorrelation(new Preference(idOf(column),
+                        categoryOf(column)), chunk.getInt(at + 4)));
+            }
+            return preference;
+        }
+    }
+    
+    /**
+     * Constructor maps a file written by write().
+     * 
+     * @param file
+     * @throws IllegalArgumentException if the file is not a graph file
+     * @throws UncheckedIOException if the file cannot be mapped
+     */
+    public MappedPreferenceCorrelationGraph(File file) {
+        this.mapping = new Mapping(file);
+    }
+    
+    /**
+     * Maps a rebuilt file in place of the current one. Reads that have already started finish
+     * against the current file.
+     * 
+     * @param file
+     * @throws IllegalArgumentException if the file is not a graph file
+     * @throws UncheckedIOException if the file cannot be mapped
+     */
+    public void swap(File file) {
+        this.mapping = new Mapping(file);
+    }
+    
+    /**
+     * Writes a graph to a file that can be mapped, by scanning it twice: once to give every
+     * preference an ordinal, then once to write the rows. Correlations to preferences that are
+     * not in the graph are left out, as are preferences added between the scans. The file is
+     * first written under a temporary name and then renamed, so it can safely replace a file that
+     * is being served.
+     * 
+     * @param source
+     * @param file
+     * @param batchSize The batch size used to scan the graph
+     * @throws UncheckedIOException if the file cannot be written
+     */
+    public static void write(PreferenceCorrelationGraph source, File file, int batchSize) {
+        // Ordinals must all be known before any row can be written
+        PreferenceDictionary dictionary = new PreferenceDictionary();
+        int[] categoryStarts = new int[NUM_CATEGORIES + 1];
+        for (PreferenceCategory category : PreferenceCategory.values()) {
+            categoryStarts[category.ordinal()] = dictionary.size();
+            Iterator<List<Preference>> batches = source.batchGetPreferences(category, batchSize);
+            while (batches.hasNext()) {
+                for (Preference preference : batches.next()) {
+                    dictionary.encode(new Preference(preference.getID(), category));
+                }
+            }
+        }
+        int numPreferences = dictionary.size();
+        categoryStarts[NUM_CATEGORIES] = numPreferences;
+        
+        int[] popularities = new int[numPreferences];
+        long[] rowStarts = new long[numPreferences];
+        int[] rowLengths = new int[numPreferences];
+        long numCorrelations = 0;
+        File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // The rows follow the index, whose size is known once the IDs are
+            byte[][] ids = new byte[numPreferences][];
+            int idsLength = 0;
+            for (int ordinal = 0; ordinal < numPreferences; ordinal++) {
+                ids[ordinal] = dictionary.getPreference(ordinal).getID()
+                        .getBytes(StandardCharsets.UTF_8);
+                idsLength += ids[ordinal].length;
+            }
+            int tableSize = 2;
+            while (tableSize < 2 * numPreferences) {
+                tableSize <<= 1;
+            }
+            long indexSize = HEADER_SIZE + 20L * numPreferences + 4 + 4L * tableSize + idsLength;
+            if (indexSize > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("The graph has too many preferences to map!");
+            }
+            
+            channel.position(indexSize);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels
+                    .newOutputStream(channel), BUFFER_SIZE));
+            for (PreferenceCategory category : PreferenceCategory.values()) {
+                Iterator<List<Preference>> batches = source.batchGetPreferences(category,
+                        batchSize);
+                while (batches.hasNext()) {
+                    for (Preference preference : batches.next()) {
+                        int ordinal = dictionary.getId(preference);
+                        if (ordinal < 0) {
+                            continue;
+                        }
+                        popularities[ordinal] = preference.getPopularity();
+                        rowStarts[ordinal] = numCorrelations;
+                        for (PreferenceCorrelation correlation : preference.getCorrelations()) {
+                            int column = dictionary.getId(correlation.getToPreference());
+                            if (column >= 0) {
+                                out.writeInt(column);
+                                out.writeInt(correlation.getWeight());
+                                rowLengths[ordinal]++;
+                            }
+                        }
+                        numCorrelations += rowLengths[ordinal];
+                    }
+                }
+            }
+            out.flush();
+            
+            ByteBuffer index = ByteBuffer.allocate((int) indexSize);
+            index.putInt(MAGIC).putInt(VERSION).putInt(numPreferences).putInt(tableSize)
+                    .putInt(idsLength).putLong(numCorrelations);
+            for (int start : categoryStarts) {
+                index.putInt(start);
+            }
+            for (int popularity : popularities) {
+                index.putInt(popularity);
+            }
+            for (long rowStart : rowStarts) {
+                index.putLong(rowStart);
+            }
+            for (int rowLength : rowLengths) {
+                index.putInt(rowLength);
+            }
+            int idOffset = 0;
+            for (byte[] id : ids) {
+                index.putInt(idOffset);
+                idOffset += id.length;
+            }
+            index.putInt(idOffset);
+            int[] slots = new int[tableSize];
+            for (int ordinal = 0; ordinal < numPreferences; ordinal++) {
+                int slot = hash(dictionary.getPreference(ordinal).getCategory(), ids[ordinal])
+                        & (tableSize - 1);
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & (tableSize - 1);
+                }
+                slots[slot] = ordinal + 1;
+            }
+            for (int slot : slots) {
+                index.putInt(slot);
+            }
+            for (byte[] id : ids) {
+                index.put(id);
+            }
+            index.flip();
+            for (long position = 0; index.hasRemaining();) {
+                position += channel.write(index, position);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write " + file + "!", e);
+        }
+        
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write " + file + "!", e);
+        }
+    }
+    
+    /**
+     * Hashes a preference for the hash table, with FNV-1a over the category and the UTF-8 bytes of
+     * the ID.
+     * 
+     * @param category
+     * @param idBytes
+     * @return hash
+     */
+    private static int hash(PreferenceCategory category, byte[] idBytes) {
+        int h = (0x811C9DC5 ^ category.ordinal()) * 0x01000193;
+        for (byte b : idBytes) {
+            h = (h ^ (b & 0xFF)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Preference getPreference(String id, PreferenceCategory category) {
+        Mapping current = this.mapping;
+        int ordinal = current.ordinalOf(id, category);
+        return ordinal < 0 ? null : current.toPreference(ordinal);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(PreferenceCategory category, int batchSize) {
+        return batchGetPreferences(EnumSet.of(category), batchSize);
+    }
+    
+    /**
+     * {@inheritDoc} The preferences are decoded a batch at a time, from the file that was mapped
+     * when this method was called.
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(Set<PreferenceCategory> categories,
+            int batchSize) {
+        Mapping current = this.mapping;
+        List<Iterator<Preference>> categoryPreferences = new ArrayList<Iterator<Preference>>();
+        for (PreferenceCategory category : categories) {
+            Range<Integer> ordinals = Range.closedOpen(current.categoryStarts[category.ordinal()],
+                    current.categoryStarts[category.ordinal() + 1]);
+            categoryPreferences.add(Iterators.transform(ContiguousSet.create(ordinals,
+                    DiscreteDomain.integers()).iterator(), current::toPreference));
+        }
+        return Iterators.partition(Iterators.concat(categoryPreferences.iterator()), batchSize);
+    }
+    
+    /**
+     * Not supported, since the graph is read-only.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void putPreference(Preference preference) {
+        throw new UnsupportedOperationException("The mapped graph is read-only!");
+    }
+    
+    /**
+     * Not supported, since the graph is read-only.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public boolean updatePreference(UpdatePreferenceRequest request, UserProfile user,
+            UpdateAction action) {
+        throw new UnsupportedOperationException("The mapped graph is read-only!");
+    }
+    
+    /**
+     * Not supported, since the graph is read-only.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests,
+            UserProfile user, UpdateAction action) {
+        throw new UnsupportedOperationException("The mapped graph is read-only!");
+    }
+    
+    /**
+     * Not supported, since the graph is read-only.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void delete(String id, PreferenceCategory category) {
+        throw new UnsupportedOperationException("The mapped graph is read-only!");
+    }
+}
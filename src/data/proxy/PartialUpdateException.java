@@ -0,0 +1,39 @@
+package data.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * PartialUpdateException is thrown by PreferenceCorrelationGraph.updatePreferences() when some of
+ * the requests of a batch failed. It reports the outcomes of the requests that did complete, so the
+ * caller knows which updates are in the graph.
+ */
+public class PartialUpdateException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    
+    private final List<Boolean> applied;
+    
+    /**
+     * Constructor requires the outcomes of the batch and the first failure.
+     * 
+     * @param applied For each request, in order, true if the update was applied, false if it was
+     *        skipped because it had already been applied, or null if it failed or did not run
+     * @param cause
+     */
+    public PartialUpdateException(List<Boolean> applied, Throwable cause) {
+        super("Some preference updates failed!", cause);
+        this.applied = Collections.unmodifiableList(new ArrayList<Boolean>(applied));
+    }
+    
+    /**
+     * Gets the outcome of each request of the batch, in order: true if the update was applied,
+     * false if it was skipped because it had already been applied, or null if it failed or did not
+     * run.
+     * 
+     * @return outcomes
+     */
+    public List<Boolean> getApplied() {
+        return this.applied;
+    }
+}
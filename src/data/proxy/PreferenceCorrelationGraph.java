@@ -2,6 +2,7 @@ package data.proxy;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import data.proxy.request.UpdatePreferenceRequest;
 import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
@@ -20,8 +21,26 @@ public interface PreferenceCorrelationGraph {
      */
     public Preference getPreference(String id, PreferenceCategory category);
     
+    /**
+     * Gets all preferences in a category from the graph, in batches.
+     * 
+     * @param category
+     * @param batchSize
+     * @return batches of preferences
+     */
     public Iterator<List<Preference>> batchGetPreferences(PreferenceCategory category, int batchSize);
     
+    /**
+     * Gets all preferences in several categories from the graph in a single pass, in batches. A
+     * batch may hold preferences from more than one of the categories.
+     * 
+     * @param categories
+     * @param batchSize
+     * @return batches of preferences
+     */
+    public Iterator<List<Preference>> batchGetPreferences(Set<PreferenceCategory> categories,
+            int batchSize);
+    
     /**
      * Writes a Preference to the graph.
      * 
@@ -35,10 +54,28 @@ public interface PreferenceCorrelationGraph {
      * @param request
      * @param user
      * @param action
+     * @return true if the update was applied, false if it was skipped because it had already been
+     *         applied
      */
-    public void updatePreference(UpdatePreferenceRequest request, UserProfile user,
+    public boolean updatePreference(UpdatePreferenceRequest request, UserProfile user,
             UpdateAction action);
     
+    /**
+     * Updates several preferences in the graph in an idempotent way, as if each request had been
+     * passed to updatePreference() on its own. Implementations may apply the requests in any order
+     * and concurrently, so no two requests should update the same preference.
+     * 
+     * @param requests
+     * @param user
+     * @param action
+     * @return for each request, in order, true if the update was applied, false if it was skipped
+     *         because it had already been applied
+     * @throws PartialUpdateException if some of the requests failed after others had completed,
+     *         reporting the outcomes of those that did
+     */
+    public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests,
+            UserProfile user, UpdateAction action);
+    
     /**
      * Deletes a Preference from the graph.
      * 
@@ -46,4 +83,15 @@ public interface PreferenceCorrelationGraph {
      * @param category
      */
     public void delete(String id, PreferenceCategory category);
+    
+    /**
+     * Tells whether the graph stores the two correlations between a pair of preferences as one
+     * weight, so that updating the correlation from one preference to another also updates the
+     * correlation back. Writers then only need to send one direction of each pair.
+     * 
+     * @return true if correlations are symmetric
+     */
+    public default boolean hasSymmetricCorrelations() {
+        return false;
+    }
 }
@@ -0,0 +1,335 @@
+package data.proxy;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import com.google.common.collect.Iterators;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * ShardedPreferenceCorrelationGraph hash-partitions the preferences of an in-memory graph across a
+ * number of shards. Each shard is owned by a single worker thread, which is the only thread that
+ * ever touches the shard's preferences, so the graph can be shared by any number of threads while
+ * the shards themselves need no locks at all. Callers hand operations to the owning shard through
+ * a lock-free queue and wait for the result.
+ * 
+ * Updates of different preferences run on different shards in parallel, and the requests of a
+ * batch update are handed to all of their shards at once. Updates of the same preference are
+ * applied one after another by its shard, in the order they were queued.
+ * 
+ * Reads also go through the owning shard, so a thread always sees its own updates. Preferences
+ * are returned as copies, because the shard keeps mutating the originals. A scan copies one shard
+ * at a time.
+ */
+public class ShardedPreferenceCorrelationGraph implements PreferenceCorrelationGraph,
+        AutoCloseable {
+    
+    private final Shard[] shards;
+    
+    /**
+     * A slice of the graph and the worker thread that owns it.
+     */
+    private static class Shard implements Runnable {
+        private final LocalTransientPreferenceCorrelationGraph graph;
+        private final ConcurrentLinkedQueue<Runnable> queue;
+        private final Thread worker;
+        private volatile boolean closed;
+        
+        /**
+         * 
+         * @param name Name of the worker thread
+         */
+        private Shard(String name) {
+            this.graph = new LocalTransientPreferenceCorrelationGraph();
+            this.queue = new ConcurrentLinkedQueue<Runnable>();
+            this.worker = new Thread(this, name);
+            this.worker.setDaemon(true);
+        }
+        
+        /**
+         * Runs queued operations until the shard is closed and the queue is empty, parking while
+         * there is nothing to do.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                Runnable operation = this.queue.poll();
+                if (operation != null) {
+                    operation.run();
+                } else if (this.closed) {
+                    return;
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        }
+        
+        /**
+         * Queues an operation on the shard's graph.
+         * 
+         * @param operation
+         * @return future result of the operation
+         * @throws IllegalStateException if the shard has been closed
+         */
+        private <T> CompletableFuture<T> submit(
+                Function<LocalTransientPreferenceCorrelationGraph, T> operation) {
+            if (this.closed) {
+                throw new IllegalStateException("Graph has been closed!");
+            }
+            CompletableFuture<T> result = new CompletableFuture<T>();
+            this.queue.offer(() -> {
+                try {
+                    result.complete(operation.apply(this.graph));
+                } catch (Throwable e) {
+                    // Anything that escaped would kill the worker and leave every later caller of
+                    // the shard waiting forever
+                    result.completeExceptionally(e);
+                }
+            });
+            LockSupport.unpark(this.worker);
+            
+            if (this.closed) {
+                // The worker may have seen an empty queue and stopped just before the operation
+                // was queued, in which case it is run here once the worker is gone
+                awaitWorker();
+                synchronized (this) {
+                    Runnable operationToRun;
+                    while ((operationToRun = this.queue.poll()) != null) {
+                        operationToRun.run();
+                    }
+                }
+            }
+            return result;
+        }
+        
+        /**
+         * Lets the worker finish the queued operations and stop.
+         */
+        private void close() {
+            this.closed = true;
+            LockSupport.unpark(this.worker);
+            awaitWorker();
+        }
+        
+        /**
+         * Waits for the worker to stop.
+         */
+        private void awaitWorker() {
+            try {
+                this.worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while stopping a graph shard!", e);
+            }
+        }
+    }
+    
+    /**
+     * Constructor requires the number of shards, each of which gets its own worker thread.
+     * 
+     * @param numShards
+     * @throws IllegalArgumentException if numShards is less than 1
+     */
+    public ShardedPreferenceCorrelationGraph(int numShards) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("There must be at least one shard!");
+        }
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            this.shards[i] = new Shard("PreferenceGraphShard-" + i);
+            this.shards[i].worker.start();
+        }
+    }
+    
+    /**
+     * Gets the shard that owns a preference.
+     * 
+     * @param preference
+     * @return shard
+     */
+    private Shard shardOf(Preference preference) {
+        int hash = preference.hashCode();
+        return this.shards[Math.floorMod(hash ^ (hash >>> 16), this.shards.length)];
+    }
+    
+    /**
+     * Waits for the result of an operation on a shard.
+     * 
+     * @param result
+     * @return result
+     */
+    private static <T> T await(Future<T> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a graph shard!", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new CompletionException(e.getCause());
+        }
+    }
+    
+    /**
+     * Copies a preference and its correlations, so the copy can leave the shard's thread.
+     * 
+     * @param preference
+     * @return copy, or null if preference is null
+     */
+    private static Preference copyOf(Preference preference) {
+        if (preference == null) {
+            return null;
+        }
+        Preference copy = new Preference(preference.getID(), preference.getCategory(),
+                preference.getPopularity());
+        for (PreferenceCorrelation correlation : preference.getCorrelations()) {
+            copy.addCorrelation(new PreferenceCorrelation(correlation.getToPreference(),
+                    correlation.getWeight()));
+        }
+        return copy;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Preference getPreference(String id, PreferenceCategory category) {
+        return await(shardOf(new Preference(id, category)).submit(
+                graph -> copyOf(graph.getPreference(id, category))));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(PreferenceCategory category, int batchSize) {
+        return batchGetPreferences(EnumSet.of(category), batchSize);
+    }
+    
+    /**
+     * {@inheritDoc} Each shard is copied when the scan reaches it.
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(Set<PreferenceCategory> categories,
+            int batchSize) {
+        Iterator<Iterator<Preference>> shardPreferences = Iterators.transform(
+                Iterators.forArray(this.shards), shard -> await(shard.submit(graph -> {
+                    List<Preference> copies = new ArrayList<Preference>();
+                    Iterator<List<Preference>> batches = graph.batchGetPreferences(categories,
+                            batchSize);
+                    while (batches.hasNext()) {
+                        for (Preference preference : batches.next()) {
+                            copies.add(copyOf(preference));
+                        }
+                    }
+                    return copies;
+                })).iterator());
+        return Iterators.partition(Iterators.concat(shardPreferences), batchSize);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putPreference(Preference preference) {
+        Preference copy = copyOf(preference);
+        await(shardOf(copy).submit(graph -> {
+            graph.putPreference(copy);
+            return null;
+        }));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean updatePreference(UpdatePreferenceRequest request, UserProfile user,
+            UpdateAction action) {
+        return await(shardOf(request.getPreferenceToUpdate()).submit(
+                graph -> graph.updatePreference(request, user, action)));
+    }
+    
+    /**
+     * {@inheritDoc} The requests are handed to all of their shards before waiting for any of them,
+     * and all of them are waited for even if one fails.
+     */
+    @Override
+    public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests,
+            UserProfile user, UpdateAction action) {
+        List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>(
+                requests.size());
+        for (UpdatePreferenceRequest request : requests) {
+            results.add(shardOf(request.getPreferenceToUpdate()).submit(
+                    graph -> graph.updatePreference(request, user, action)));
+        }
+        List<Boolean> applied = new ArrayList<Boolean>(requests.size());
+        RuntimeException failure = null;
+        for (CompletableFuture<Boolean> result : results) {
+            try {
+                applied.add(await(result));
+            } catch (RuntimeException e) {
+                applied.add(null);
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw new PartialUpdateException(applied, failure);
+        }
+        return applied;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete(String id, PreferenceCategory category) {
+        await(shardOf(new Preference(id, category)).submit(graph -> {
+            graph.delete(id, category);
+            return null;
+        }));
+    }
+    
+    /**
+     * Gets the number of shards.
+     * 
+     * @return shards
+     */
+    public int getNumShards() {
+        return this.shards.length;
+    }
+    
+    /**
+     * Finishes the queued operations and stops the shard workers. Later operations are rejected.
+     */
+    @Override
+    public void close() {
+        for (Shard shard : this.shards) {
+            shard.close();
+        }
+    }
+}
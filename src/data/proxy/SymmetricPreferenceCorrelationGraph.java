@@ -0,0 +1,293 @@
+package data.proxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.common.collect.Iterators;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.PreferenceDictionary;
+import data.structure.UserProfile;
+import util.PairCountTable;
+
+/**
+ * SymmetricPreferenceCorrelationGraph keeps the preference correlation graph in memory, storing the
+ * two correlations between a pair of preferences as a single weight. Co-occurrence is symmetric,
+ * so UpdatePreferenceDaemon always gives both directions the same delta; this graph lets it write
+ * one direction only, which halves the correlation writes and the memory spent on weights.
+ * 
+ * Every preference is interned once in a PreferenceDictionary, which gives it an int handle, and
+ * each pair is stored once, in a PairCountTable under the handles of its two preferences in
+ * increasing order. Each stored preference also lists the handles it is paired with, so that its
+ * correlations can be found. Reads return copies that carry the correlations in both directions,
+ * exactly as a directed graph that had received both updates would.
+ * 
+ * Because a pair is shared, updating, putting or deleting a preference also changes the
+ * correlations seen from the preferences it is correlated with. A preference that is correlated
+ * with before it has been updated itself is stored with a popularity of 0.
+ */
+public class SymmetricPreferenceCorrelationGraph implements PreferenceCorrelationGraph {
+    
+    // Interned keys of the preferences, which are never removed so that handles stay valid
+    private final PreferenceDictionary keys;
+    // Nodes of the stored preferences by handle, or null for deleted preferences
+    private final List<Node> nodes;
+    // Handles of the stored preferences of each category
+    private final Map<PreferenceCategory, BitSet> handlesByCategory;
+    // Weight of each pair, under its lower handle first
+    private final PairCountTable weights;
+    
+    /**
+     * The popularity of a stored preference and the handles of the preferences it is paired with.
+     */
+    private static class Node {
+        private int popularity;
+        private int[] pairedWith;
+        private int degree;
+        
+        /**
+         * 
+         * @param popularity
+         */
+        private Node(int popularity) {
+            this.popularity = popularity;
+            this.pairedWith = new int[4];
+        }
+        
+        private void addPair(int handle) {
+            if (this.degree == this.pairedWith.length) {
+                this.pairedWith = Arrays.copyOf(this.pairedWith, this.degree * 2);
+            }
+            this.pairedWith[this.degree++] = handle;
+        }
+        
+        private void removePair(int handle) {
+            for (int i = 0; i < this.degree; i++) {
+                if (this.pairedWith[i] == handle) {
+                    this.pairedWith[i] = this.pairedWith[--this.degree];
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Basic default constructor for SymmetricPreferenceCorrelationGraph.
+     */
+    public SymmetricPreferenceCorrelationGraph() {
+        this.keys = new PreferenceDictionary();
+        this.nodes = new ArrayList<Node>();
+        this.handlesByCategory = new EnumMap<PreferenceCategory, BitSet>(PreferenceCategory.class);
+        this.weights = new PairCountTable();
+    }
+    
+    /**
+     * Gets the handle of a preference, interning a bare copy of it if necessary.
+     * 
+     * @param preference
+     * @return handle
+     */
+    private int intern(Preference preference) {
+        int handle = this.keys.getId(preference);
+        if (handle < 0) {
+            handle = this.keys.encode(new Preference(preference.getID(), preference.getCategory()));
+            this.nodes.add(null);
+        }
+        return handle;
+    }
+    
+    /**
+     * Gets the node of a preference, storing the preference with a popularity of 0 if necessary.
+     * 
+     * @param handle
+     * @return node
+     */
+    private Node getOrCreateNode(int handle) {
+        Node node = this.nodes.get(handle);
+        if (node == null) {
+            node = new Node(0);
+            this.nodes.set(handle, node);
+            this.handlesByCategory.computeIfAbsent(this.keys.getPreference(handle).getCategory(),
+                    category -> new BitSet()).set(handle);
+        }
+        return node;
+    }
+    
+    /**
+     * Adds a delta to the weight of the pair of two preferences.
+     * 
+     * @param a
+     * @param b
+     * @param delta
+     */
+    private void adjustWeight(int a, int b, int delta) {
+        if (a == b) {
+            // There are no reflexive correlations
+            return;
+        }
+        Node nodeA = getOrCreateNode(a);
+        Node nodeB = getOrCreateNode(b);
+        int low = Math.min(a, b);
+        int high = Math.max(a, b);
+        if (!this.weights.contains(low, high)) {
+            nodeA.addPair(b);
+            nodeB.addPair(a);
+        }
+        this.weights.add(low, high, delta);
+    }
+    
+    /**
+     * Removes a node and all of its pairs.
+     * 
+     * @param handle
+     */
+    private void removeNode(int handle) {
+        Node node = handle < 0 ? null : this.nodes.get(handle);
+        if (node == null) {
+            return;
+        }
+        for (int i = 0; i < node.degree; i++) {
+            int other = node.pairedWith[i];
+            this.nodes.get(other).removePair(handle);
+            this.weights.remove(Math.min(handle, other), Math.max(handle, other));
+        }
+        this.nodes.set(handle, null);
+        this.handlesByCategory.get(this.keys.getPreference(handle).getCategory()).clear(handle);
+    }
+    
+    /**
+     * Copies a node into a Preference, with the correlations of all of its pairs.
+     * 
+     * @param handle
+     * @return preference, or null if the preference is not stored
+     */
+    private Preference toPreference(int handle) {
+        Node node = handle < 0 ? null : this.nodes.get(handle);
+        if (node == null) {
+            return null;
+        }
+        Preference key = this.keys.getPreference(handle);
+        Preference copy = new Preference(key.getID(), key.getCategory(), node.popularity);
+        for (int i = 0; i < node.degree; i++) {
+            int other = node.pairedWith[i];
+            copy.addCorrelation(new PreferenceCorrelation(this.keys.getPreference(other),
+                    this.weights.get(Math.min(handle, other), Math.max(handle, other))));
+        }
+        return copy;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Preference getPreference(String id, PreferenceCategory category) {
+        return toPreference(this.keys.getId(id, category));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(PreferenceCategory category, int batchSize) {
+        return batchGetPreferences(EnumSet.of(category), batchSize);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(Set<PreferenceCategory> categories,
+            int batchSize) {
+        List<Iterator<Preference>> categoryPreferences = new ArrayList<Iterator<Preference>>();
+        for (PreferenceCategory category : categories) {
+            BitSet handles = this.handlesByCategory.get(category);
+            if (handles != null) {
+                categoryPreferences.add(handles.stream().mapToObj(this::toPreference).iterator());
+            }
+        }
+        return Iterators.partition(Iterators.concat(categoryPreferences.iterator()), batchSize);
+    }
+    
+    /**
+     * {@inheritDoc} The weights of the preference's correlations replace those of the pairs, so
+     * they are also seen from the correlated preferences. Pairs with preferences it is no longer
+     * correlated with are removed.
+     */
+    @Override
+    public void putPreference(Preference preference) {
+        int handle = intern(preference);
+        removeNode(handle);
+        getOrCreateNode(handle).popularity = preference.getPopularity();
+        for (PreferenceCorrelation correlation : preference.getCorrelations()) {
+            adjustWeight(handle, intern(correlation.getToPreference()), correlation.getWeight());
+        }
+    }
+    
+    /**
+     * {@inheritDoc} Each correlation delta is applied to the pair, so it also updates the
+     * correlation back from the other preference.
+     */
+    @Override
+    public boolean updatePreference(UpdatePreferenceRequest request, UserProfile user,
+            UpdateAction action) {
+        applyUpdate(request);
+        return true;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests,
+            UserProfile user, UpdateAction action) {
+        List<Boolean> applied = new ArrayList<Boolean>(requests.size());
+        for (UpdatePreferenceRequest request : requests) {
+            applyUpdate(request);
+            applied.add(true);
+        }
+        return applied;
+    }
+    
+    /**
+     * Applies the popularity and correlation weight updates of a request, creating the preference
+     * if necessary.
+     * 
+     * @param request
+     */
+    private void applyUpdate(UpdatePreferenceRequest request) {
+        int handle = intern(request.getPreferenceToUpdate());
+        getOrCreateNode(handle).popularity += request.getPopularityDelta();
+        for (Entry<PreferenceCorrelation, Integer> update : request.getCorrelationDeltas()
+                .entrySet()) {
+            adjustWeight(handle, intern(update.getKey().getToPreference()), update.getValue());
+        }
+    }
+    
+    /**
+     * {@inheritDoc} The correlations back to the preference are deleted with it.
+     */
+    @Override
+    public void delete(String id, PreferenceCategory category) {
+        removeNode(this.keys.getId(id, category));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasSymmetricCorrelations() {
+        return true;
+    }
+}
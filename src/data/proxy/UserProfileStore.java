@@ -1,5 +1,8 @@
 package data.proxy;
 
+import java.util.Iterator;
+import java.util.List;
+
 import data.structure.UserProfile;
 
 /**
@@ -28,4 +31,12 @@ public abstract interface UserProfileStore {
      * @return the user's profile, or null if the user does not exist
      */
     public UserProfile getProfile(String id);
+    
+    /**
+     * Gets every stored user profile, in batches.
+     * 
+     * @param batchSize The maximum number of profiles in each batch
+     * @return iterator over batches of user profiles
+     */
+    public Iterator<List<UserProfile>> batchGetProfiles(int batchSize);
 }
@@ -0,0 +1,458 @@
+package data.proxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog makes an in-memory store durable. Every change is appended to a sequential log
+ * before it is applied, and the whole store is written to a snapshot from time to time, after
+ * which the log is started afresh. On startup the store is rebuilt from the latest snapshot and a
+ * replay of the log written since.
+ * 
+ * Appending only buffers a record. sync() makes it durable, and a single fsync covers every record
+ * appended before it, so concurrent writers that append and then sync share their fsyncs (group
+ * commit). Each record carries its length and a checksum, so a record torn by a crash is detected
+ * and cut off during recovery.
+ * 
+ * The directory holds the snapshot, name.snapshot, and the logs, name-generation.log. A snapshot
+ * records the generation of the last log it covers. It is first written to a temporary file and
+ * then renamed, so a crash while writing it leaves the previous snapshot and its logs intact.
+ */
+class WriteAheadLog implements AutoCloseable {
+    
+    private static final int SNAPSHOT_MAGIC = 0x43484154;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    private final File directory;
+    private final String name;
+    private final Object syncLock;
+    // Held while a snapshot is written, so concurrent snapshots are written one at a time
+    private final Object snapshotLock;
+    private final ByteArrayOutputStream recordBuffer;
+    private final DataOutputStream recordOut;
+    private final CRC32 checksum;
+    private long generation;
+    private FileChannel channel;
+    private DataOutputStream out;
+    private long appended;
+    private volatile long synced;
+    private long recordsSinceSnapshot;
+    private boolean closed;
+    // Generation of the last log covered by the newest snapshot, or 0 if there is none
+    private long snapshotGeneration;
+    
+    /**
+     * Writes a record or a snapshot.
+     */
+    interface RecordWriter {
+        /**
+         * 
+         * @param out
+         * @throws IOException
+         */
+        void write(DataOutput out) throws IOException;
+    }
+    
+    /**
+     * Reads a record or a snapshot.
+     */
+    interface RecordReader {
+        /**
+         * 
+         * @param in
+         * @throws IOException
+         */
+        void read(DataInput in) throws IOException;
+    }
+    
+    /**
+     * Constructor opens the log in a directory, recovering what it already holds. The snapshot is
+     * passed to snapshotReader, then each record logged since is passed to recordReader, in the
+     * order they were appended.
+     * 
+     * @param directory Directory holding the files of the log, which is created if necessary
+     * @param name Prefix of the file names
+     * @param snapshotReader
+     * @param recordReader
+     * @throws UncheckedIOException if the log cannot be read or opened
+     * @throws IllegalStateException if a log other than the last one is corrupt
+     */
+    WriteAheadLog(File directory, String name, RecordReader snapshotReader,
+            RecordReader recordReader) {
+        this.directory = directory;
+        this.name = name;
+        this.syncLock = new Object();
+        this.snapshotLock = new Object();
+        this.recordBuffer = new ByteArrayOutputStream();
+        this.recordOut = new DataOutputStream(this.recordBuffer);
+        this.checksum = new CRC32();
+        try {
+            recover(snapshotReader, recordReader);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to recover " + name + "!", e);
+        }
+    }
+    
+    /**
+     * Loads the snapshot, replays the logs written since and opens the last log for appending.
+     * 
+     * @param snapshotReader
+     * @param recordReader
+     * @throws IOException
+     */
+    private void recover(RecordReader snapshotReader, RecordReader recordReader)
+            throws IOException {
+        Files.createDirectories(this.directory.toPath());
+        Files.deleteIfExists(snapshotFile(TEMPORARY_SUFFIX).toPath());
+        
+        this.snapshotGeneration = 0;
+        File snapshot = snapshotFile("");
+        if (snapshot.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(snapshot), BUFFER_SIZE))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IllegalStateException("Not a snapshot: " + snapshot + "!");
+                }
+                this.snapshotGeneration = in.readLong();
+                snapshotReader.read(in);
+            }
+        }
+        
+        List<Long> generations = listLogGenerations();
+        long lastGeneration = this.snapshotGeneration + 1;
+        long validLength = 0;
+        for (long logGeneration : generations) {
+            if (logGeneration <= this.snapshotGeneration) {
+                // Left behind by a crash after the snapshot that covers it was written
+                Files.delete(logFile(logGeneration).toPath());
+                continue;
+            }
+            lastGeneration = logGeneration;
+            validLength = replay(logFile(logGeneration), recordReader);
+            if (validLength < logFile(logGeneration).length()
+                    && logGeneration != generations.get(generations.size() - 1)) {
+                throw new IllegalStateException("Corrupt log: " + logFile(logGeneration) + "!");
+            }
+        }
+        
+        this.generation = lastGeneration;
+        openLog(validLength);
+    }
+    
+    /**
+     * Passes every intact record of a log to a reader.
+     * 
+     * @param log
+     * @param recordReader
+     * @return length of the intact records, after which the log is torn
+     * @throws IOException
+     */
+    private long replay(File log, RecordReader recordReader) throws IOException {
+        long validLength = 0;
+        long fileLength = log.length();
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(log), BUFFER_SIZE)) {
+            DataInputStream in = new DataInputStream(stream);
+            byte[] record = new byte[0];
+            while (true) {
+                int length;
+                long expectedChecksum;
+                try {
+                    length = in.readInt();
+                    expectedChecksum = in.readInt() & 0xFFFFFFFFL;
+                    if (length < 0 || validLength + 8 + length > fileLength) {
+                        // A torn length, which must not be trusted to size the buffer
+                        break;
+                    }
+                    if (record.length < length) {
+                        record = new byte[Math.max(length, record.length * 2)];
+                    }
+                    in.readFully(record, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                this.checksum.reset();
+                this.checksum.update(record, 0, length);
+                if (this.checksum.getValue() != expectedChecksum) {
+                    break;
+                }
+                recordReader.read(new DataInputStream(new ByteArrayInputStream(record, 0, length)));
+                validLength += 8 + length;
+                this.recordsSinceSnapshot++;
+            }
+        }
+        return validLength;
+    }
+    
+    /**
+     * Opens the log of the current generation for appending, cutting off anything after its
+     * intact records.
+     * 
+     * @param validLength
+     * @throws IOException
+     */
+    private void openLog(long validLength) throws IOException {
+        this.channel = FileChannel.open(logFile(this.generation).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.channel.truncate(validLength);
+        this.channel.position(validLength);
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels
+                .newOutputStream(this.channel), BUFFER_SIZE));
+        syncDirectory();
+    }
+    
+    /**
+     * Appends a record to the log. The record is not durable until sync() has been called with
+     * the returned sequence number, or a later one.
+     * 
+     * @param writer
+     * @return sequence number of the record
+     * @throws UncheckedIOException if the record cannot be written
+     * @throws IllegalStateException if the log has been closed
+     */
+    synchronized long append(RecordWriter writer) {
+        if (this.closed) {
+            throw new IllegalStateException("Log has been closed!");
+        }
+        try {
+            this.recordBuffer.reset();
+            writer.write(this.recordOut);
+            this.recordOut.flush();
+            this.checksum.reset();
+            this.checksum.update(this.recordBuffer.toByteArray());
+            this.out.writeInt(this.recordBuffer.size());
+            this.out.writeInt((int) this.checksum.getValue());
+            this.recordBuffer.writeTo(this.out);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to append to " + this.name + "!", e);
+        }
+        this.recordsSinceSnapshot++;
+        return ++this.appended;
+    }
+    
+    /**
+     * Makes a record and every record appended before it durable. If another thread is already
+     * syncing, this waits for it and then syncs everything appended in the meantime at once.
+     * 
+     * @param sequence
+     * @throws UncheckedIOException if the log cannot be synced
+     */
+    void sync(long sequence) {
+        if (this.synced >= sequence) {
+            return;
+        }
+        synchronized (this.syncLock) {
+            if (this.synced >= sequence) {
+                return;
+            }
+            long target;
+            try {
+                synchronized (this) {
+                    this.out.flush();
+                    target = this.appended;
+                }
+                this.channel.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to sync " + this.name + "!", e);
+            }
+            this.synced = target;
+        }
+    }
+    
+    /**
+     * Gets the number of records appended since the last snapshot, including those replayed.
+     * 
+     * @return records
+     */
+    synchronized long getRecordsSinceSnapshot() {
+        return this.recordsSinceSnapshot;
+    }
+    
+    /**
+     * Writes a snapshot and discards the logs it covers. The caller must not append while the
+     * snapshot is being written, so that it covers exactly the records appended before it.
+     * 
+     * @param writer
+     * @throws UncheckedIOException if the snapshot cannot be written
+     * @throws IllegalStateException if the log has been closed
+     */
+    void snapshot(RecordWriter writer) {
+        writeSnapshot(rotate(), writer);
+    }
+    
+    /**
+     * Starts a new log, so that a snapshot of the store as it is now covers every log before it.
+     * The caller must not append between capturing the state the snapshot will hold and rotating.
+     * 
+     * @return The generation of the last log the snapshot covers, for writeSnapshot()
+     * @throws UncheckedIOException if the log cannot be synced
+     * @throws IllegalStateException if the log has been closed
+     */
+    long rotate() {
+        try {
+            synchronized (this.syncLock) {
+                synchronized (this) {
+                    if (this.closed) {
+                        throw new IllegalStateException("Log has been closed!");
+                    }
+                    this.out.flush();
+                    this.channel.force(false);
+                    this.synced = this.appended;
+                    this.out.close();
+                    long coveredGeneration = this.generation++;
+                    openLog(0);
+                    this.recordsSinceSnapshot = 0;
+                    return coveredGeneration;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to rotate " + this.name + "!", e);
+        }
+    }
+    
+    /**
+     * Writes a snapshot that covers the logs up to a generation returned by rotate(), and discards
+     * those logs. Records may be appended while it is written. A snapshot that is older than one
+     * already written is skipped.
+     * 
+     * @param coveredGeneration
+     * @param writer
+     * @throws UncheckedIOException if the snapshot cannot be written
+     */
+    void writeSnapshot(long coveredGeneration, RecordWriter writer) {
+        synchronized (this.snapshotLock) {
+            if (coveredGeneration <= this.snapshotGeneration) {
+                return;
+            }
+            try {
+                File temporary = snapshotFile(TEMPORARY_SUFFIX);
+                try (FileOutputStream file = new FileOutputStream(temporary)) {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file,
+                            BUFFER_SIZE));
+                    out.writeInt(SNAPSHOT_MAGIC);
+                    out.writeLong(coveredGeneration);
+                    writer.write(out);
+                    out.flush();
+                    file.getFD().sync();
+                }
+                Files.move(temporary.toPath(), snapshotFile("").toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                syncDirectory();
+                this.snapshotGeneration = coveredGeneration;
+                
+                for (long logGeneration : listLogGenerations()) {
+                    if (logGeneration <= coveredGeneration) {
+                        Files.delete(logFile(logGeneration).toPath());
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to snapshot " + this.name + "!", e);
+            }
+        }
+    }
+    
+    /**
+     * Syncs and closes the log.
+     * 
+     * @throws UncheckedIOException if the log cannot be synced
+     */
+    @Override
+    public void close() {
+        synchronized (this.syncLock) {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                try {
+                    this.out.flush();
+                    this.channel.force(false);
+                    this.synced = this.appended;
+                    this.out.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to close " + this.name + "!", e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Lists the generations of the logs in the directory, in ascending order.
+     * 
+     * @return generations
+     */
+    private List<Long> listLogGenerations() {
+        List<Long> generations = new ArrayList<Long>();
+        String prefix = this.name + "-";
+        String[] files = this.directory.list();
+        if (files != null) {
+            for (String file : files) {
+                if (file.startsWith(prefix) && file.endsWith(LOG_SUFFIX)) {
+                    try {
+                        generations.add(Long.parseLong(file.substring(prefix.length(), file
+                                .length() - LOG_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+    
+    /**
+     * Makes the creation, renaming and deletion of files in the directory durable. Not every
+     * platform can sync a directory, in which case this does nothing.
+     */
+    private void syncDirectory() {
+        try (FileChannel directoryChannel = FileChannel.open(this.directory.toPath(),
+                StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened for syncing on every platform
+        }
+    }
+    
+    /**
+     * 
+     * @param generation
+     * @return log file of a generation
+     */
+    private File logFile(long generation) {
+        return new File(this.directory, this.name + "-" + generation + LOG_SUFFIX);
+    }
+    
+    /**
+     * 
+     * @param suffix Appended to the name of the snapshot
+     * @return snapshot file
+     */
+    private File snapshotFile(String suffix) {
+        return new File(this.directory, this.name + SNAPSHOT_SUFFIX + suffix);
+    }
+}
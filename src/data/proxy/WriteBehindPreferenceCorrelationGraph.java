@@ -0,0 +1,417 @@
+package data.proxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * WriteBehindPreferenceCorrelationGraph buffers the updates made to another graph and writes them
+ * later, summing all updates to the same counter into one net delta. Popular preferences receive
+ * the same +1/-1 correlation updates from many users, so a thousand increments of a hot
+ * correlation become a single write.
+ * 
+ * The buffer is flushed once it holds maxBufferedPreferences preferences, whenever flush() or
+ * close() is called, and at a fixed interval if a scheduler is supplied. Reads go straight to the
+ * underlying graph, so buffered updates are not visible until they have been flushed. While the
+ * underlying graph keeps failing, the buffer goes on taking updates until it holds
+ * BUFFER_LIMIT_FACTOR times maxBufferedPreferences preferences; then updates of preferences that
+ * are not yet buffered are rejected until a flush gets through.
+ * 
+ * A flush that fails is retried before anything else is written, with the same request objects
+ * and so the same request tokens. The idempotency guard of the underlying graph is keyed on those
+ * tokens, so requests that were applied before the failure are skipped rather than applied twice.
+ */
+public class WriteBehindPreferenceCorrelationGraph implements PreferenceCorrelationGraph,
+        AutoCloseable {
+    
+    // Flushed updates sum those of many users, so they are written on behalf of none of them
+    private static final UserProfile FLUSH_USER = new UserProfile("WriteBehindFlush");
+    private static final int BUFFER_LIMIT_FACTOR = 4;
+    
+    private final PreferenceCorrelationGraph graph;
+    private final int maxBufferedPreferences;
+    private final int bufferLimit;
+    private final Object flushLock;
+    private final ScheduledFuture<?> scheduledFlush;
+    private Map<Preference, UpdatePreferenceRequest> buffer;
+    private Flush failedFlush;
+    private boolean closed;
+    private long receivedUpdates;
+    private long drainedUpdates;
+    private long writtenUpdates;
+    private long writes;
+    private long failedFlushes;
+    
+    /**
+     * A drained buffer and the number of updates it sums.
+     */
+    private static class Flush {
+        private final List<UpdatePreferenceRequest> requests;
+        private final long receivedUpdates;
+        
+        private Flush(List<UpdatePreferenceRequest> requests, long receivedUpdates) {
+            this.requests = requests;
+            this.receivedUpdates = receivedUpdates;
+        }
+    }
+    
+    /**
+     * Constructor for a buffer that is only flushed when it is full, or on demand.
+     * 
+     * @param graph The graph that updates are written to
+     * @param maxBufferedPreferences The maximum number of preferences with buffered updates
+     * @throws IllegalArgumentException if graph is null or maxBufferedPreferences is less than 1
+     */
+    public WriteBehindPreferenceCorrelationGraph(PreferenceCorrelationGraph graph,
+            int maxBufferedPreferences) {
+        this(graph, maxBufferedPreferences, null, 0, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Constructor for a buffer that is also flushed on the supplied scheduler at a fixed interval.
+     * 
+     * @param graph The graph that updates are written to
+     * @param maxBufferedPreferences The maximum number of preferences with buffered updates
+     * @param scheduler Scheduler that runs the periodic flushes. It is owned by the caller, who is
+     *        responsible for shutting it down after closing this graph. If null, the buffer is not
+     *        flushed periodically.
+     * @param flushInterval The time between the end of one periodic flush and the start of the next
+     * @param unit
+     * @throws IllegalArgumentException if graph is null, maxBufferedPreferences is less than 1 or
+     *         there is a scheduler and flushInterval is less than 1
+     */
+    public WriteBehindPreferenceCorrelationGraph(PreferenceCorrelationGraph graph,
+            int maxBufferedPreferences, ScheduledExecutorService scheduler, long flushInterval,
+            TimeUnit unit) {
+        if (graph == null) {
+            throw new IllegalArgumentException("Graph cannot be null!");
+        }
+        if (maxBufferedPreferences < 1) {
+            throw new IllegalArgumentException("Max buffered preferences must be at least 1!");
+        }
+        if (scheduler != null && flushInterval < 1) {
+            throw new IllegalArgumentException("Flush interval must be at least 1!");
+        }
+        this.graph = graph;
+        this.maxBufferedPreferences = maxBufferedPreferences;
+        this.bufferLimit = (int) Math.min(Integer.MAX_VALUE, (long) maxBufferedPreferences
+                * BUFFER_LIMIT_FACTOR);
+        this.flushLock = new Object();
+        this.buffer = new HashMap<Preference, UpdatePreferenceRequest>();
+        this.scheduledFlush = scheduler == null ? null : scheduler.scheduleWithFixedDelay(
+                this::scheduledFlush, flushInterval, flushInterval, unit);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Preference getPreference(String id, PreferenceCategory category) {
+        return this.graph.getPreference(id, category);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(PreferenceCategory category, int batchSize) {
+        return this.graph.batchGetPreferences(category, batchSize);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<List<Preference>> batchGetPreferences(Set<PreferenceCategory> categories,
+            int batchSize) {
+        return this.graph.batchGetPreferences(categories, batchSize);
+    }
+    
+    /**
+     * {@inheritDoc} Buffered updates of the preference are discarded, since the preference is
+     * overwritten.
+     */
+    @Override
+    public void putPreference(Preference preference) {
+        synchronized (this) {
+            this.buffer.remove(preference);
+        }
+        this.graph.putPreference(preference);
+    }
+    
+    /**
+     * {@inheritDoc} The update is only buffered, so it is always reported as applied. Duplicates
+     * are never detected: the deltas of the update are merged into the buffer without its token,
+     * and the flush is written with tokens of its own, so an update that is submitted twice is
+     * counted twice. Once the update is buffered it is not failed by a flush that fails, which is
+     * left for the next flush to retry.
+     * 
+     * @throws IllegalStateException if the graph has been closed, or if the buffer is at its limit
+     *         because flushes keep failing; the update was not buffered and can be retried
+     */
+    @Override
+    public boolean updatePreference(UpdatePreferenceRequest request, UserProfile user,
+            UpdateAction action) {
+        if (!buffer(request)) {
+            // Make room by retrying the failed flush once before turning the update away
+            tryFlush();
+            if (!buffer(request)) {
+                throw new IllegalStateException("Write-behind buffer is full!");
+            }
+        }
+        if (isFull()) {
+            tryFlush();
+        }
+        return true;
+    }
+    
+    /**
+     * {@inheritDoc} The updates are only buffered, so they are always reported as applied.
+     * 
+     * @throws PartialUpdateException if the graph has been closed or the buffer is at its limit,
+     *         reporting which of the updates were buffered before that
+     */
+    @Override
+    public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests,
+            UserProfile user, UpdateAction action) {
+        List<Boolean> applied = new ArrayList<Boolean>(requests.size());
+        for (UpdatePreferenceRequest request : requests) {
+            try {
+                applied.add(updatePreference(request, user, action));
+            } catch (IllegalStateException e) {
+                while (applied.size() < requests.size()) {
+                    applied.add(null);
+                }
+                throw new PartialUpdateException(applied, e);
+            }
+        }
+        return applied;
+    }
+    
+    /**
+     * {@inheritDoc} Buffered updates of the preference are discarded, so they do not recreate it.
+     */
+    @Override
+    public void delete(String id, PreferenceCategory category) {
+        synchronized (this) {
+            this.buffer.remove(new Preference(id, category));
+        }
+        this.graph.delete(id, category);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasSymmetricCorrelations() {
+        return this.graph.hasSymmetricCorrelations();
+    }
+    
+    /**
+     * Adds the deltas of a request to the buffer, unless it would take the buffer past its limit.
+     * 
+     * @param request
+     * @return true if the request was buffered
+     */
+    private synchronized boolean buffer(UpdatePreferenceRequest request) {
+        if (this.closed) {
+            throw new IllegalStateException("Graph has been closed!");
+        }
+        Preference preference = request.getPreferenceToUpdate();
+        UpdatePreferenceRequest buffered = this.buffer.get(preference);
+        if (buffered == null) {
+            if (this.buffer.size() >= this.bufferLimit) {
+                return false;
+            }
+            buffered = new UpdatePreferenceRequest(new Preference(preference.getID(),
+                    preference.getCategory()));
+            this.buffer.put(buffered.getPreferenceToUpdate(), buffered);
+        }
+        buffered.addPopularityDelta(request.getPopularityDelta());
+        for (Entry<PreferenceCorrelation, Integer> update : request.getCorrelationDeltas()
+                .entrySet()) {
+            buffered.addCorrelationDelta(update.getKey(), update.getValue());
+        }
+        this.receivedUpdates++;
+        return true;
+    }
+    
+    /**
+     * Tells whether the buffer is full and should be flushed.
+     * 
+     * @return true if full
+     */
+    private synchronized boolean isFull() {
+        return this.buffer.size() >= this.maxBufferedPreferences;
+    }
+    
+    /**
+     * Writes the net deltas of all buffered updates to the underlying graph. A previous flush that
+     * failed is retried first. Updates keep being buffered while a flush is written.
+     * 
+     * @throws RuntimeException if the underlying graph fails, in which case the flush is retried
+     *         by the next one
+     */
+    public void flush() {
+        synchronized (this.flushLock) {
+            if (this.failedFlush != null) {
+                write(this.failedFlush);
+            }
+            Flush flush = drain();
+            if (flush != null) {
+                write(flush);
+            }
+        }
+    }
+    
+    /**
+     * Flushes on the scheduler. A failure must not escape, because it would cancel every later
+     * periodic flush, and the failed flush is retried by the next one anyway.
+     */
+    private void scheduledFlush() {
+        tryFlush();
+    }
+    
+    /**
+     * Flushes, leaving a failure for the next flush to retry.
+     */
+    private void tryFlush() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // Counted in write(), retried by the next flush
+        }
+    }
+    
+    /**
+     * Swaps out the buffer and turns it into the requests of a flush. Preferences whose deltas
+     * cancel out are not written at all.
+     * 
+     * @return flush, or null if nothing needs to be written
+     */
+    private Flush drain() {
+        Map<Preference, UpdatePreferenceRequest> drained;
+        long drainedUpdates;
+        synchronized (this) {
+            if (this.buffer.isEmpty()) {
+                return null;
+            }
+            drained = this.buffer;
+            this.buffer = new HashMap<Preference, UpdatePreferenceRequest>();
+            drainedUpdates = this.receivedUpdates - this.drainedUpdates;
+            this.drainedUpdates = this.receivedUpdates;
+        }
+        
+        List<UpdatePreferenceRequest> requests = new ArrayList<UpdatePreferenceRequest>(
+                drained.size());
+        for (UpdatePreferenceRequest buffered : drained.values()) {
+            UpdatePreferenceRequest request = new UpdatePreferenceRequest(
+                    buffered.getPreferenceToUpdate());
+            request.addPopularityDelta(buffered.getPopularityDelta());
+            for (Entry<PreferenceCorrelation, Integer> update : buffered.getCorrelationDeltas()
+                    .entrySet()) {
+                if (update.getValue() != 0) {
+                    request.addCorrelationDelta(update.getKey(), update.getValue());
+                }
+            }
+            if (request.getPopularityDelta() != 0 || !request.getCorrelationDeltas().isEmpty()) {
+                requests.add(request);
+            }
+        }
+        return new Flush(requests, drainedUpdates);
+    }
+    
+    /**
+     * Writes a flush to the underlying graph, keeping it for a retry if that fails.
+     * 
+     * @param flush
+     */
+    private void write(Flush flush) {
+        this.failedFlush = flush;
+        try {
+            if (!flush.requests.isEmpty()) {
+                // The action is not used by the idempotency guard, which is keyed on the tokens of
+                // the requests
+                this.graph.updatePreferences(flush.requests, FLUSH_USER,
+                        UpdateAction.INC_CORRELATION);
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                this.failedFlushes++;
+            }
+            throw e;
+        }
+        this.failedFlush = null;
+        synchronized (this) {
+            this.writtenUpdates += flush.receivedUpdates;
+            this.writes += flush.requests.size();
+        }
+    }
+    
+    /**
+     * Stops the periodic flushes and flushes the buffer. Later updates are rejected.
+     * 
+     * @throws RuntimeException if the final flush fails
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            this.closed = true;
+        }
+        if (this.scheduledFlush != null) {
+            this.scheduledFlush.cancel(false);
+        }
+        flush();
+    }
+    
+    /**
+     * Gets the number of updates received, whether or not they have been flushed yet.
+     * 
+     * @return received updates
+     */
+    public synchronized long getReceivedUpdateCount() {
+        return this.receivedUpdates;
+    }
+    
+    /**
+     * Gets the number of update requests written to the underlying graph.
+     * 
+     * @return writes
+     */
+    public synchronized long getWriteCount() {
+        return this.writes;
+    }
+    
+    /**
+     * Gets the number of flushes that failed and had to be retried.
+     * 
+     * @return failed flushes
+     */
+    public synchronized long getFailedFlushCount() {
+        return this.failedFlushes;
+    }
+    
+    /**
+     * Gets the number of updates that were coalesced into each write, over all flushes so far.
+     * Updates that are still buffered, or whose flush failed, are not counted.
+     * 
+     * @return coalescing ratio, or 0 if nothing has been written
+     */
+    public synchronized double getCoalescingRatio() {
+        return this.writes == 0 ? 0.0 : (double) this.writtenUpdates / this.writes;
+    }
+}
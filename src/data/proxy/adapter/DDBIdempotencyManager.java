@@ -1,71 +1,69 @@
 package data.proxy.adapter;
 
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.UUID;
 
 import com.amazonaws.services.dynamodbv2.document.AttributeUpdate;
 import com.amazonaws.services.dynamodbv2.document.Expected;
 import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
 
-import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
-import data.structure.UserProfile;
-
 /**
  * DDBIdempotencyManager encapsulates the functionality required to guarantee idempotency in a
  * DynamoDB transaction.
+ * 
+ * Each update carries the 128-bit token of its request. An Item remembers the tokens of its recent
+ * updates in NUM_TOKEN_SLOTS slot attributes, and the slot of a token is picked by its low bits.
+ * An update is only applied if its slot does not already hold its token, and then stores its token
+ * there. A retry is therefore caught unless another update has taken the same slot in between,
+ * while a new request that repeats an earlier change has a new token and is always applied. The
+ * guard adds the same few bytes to every update and Item, however many attributes it updates.
  */
 public class DDBIdempotencyManager {
     
-    private static final String LAST_MODIFIED_BY_ATTRIBUTE = "LastModifiedBy";
-    private static final String SEPARATOR = "~~";
+    static final String TOKEN_SLOT_ATTRIBUTE_PREFIX = "Token";
+    static final int NUM_TOKEN_SLOTS = 8;
+    // Flag of the previous scheme, which named every updated attribute. It is removed on update.
+    static final String LAST_MODIFIED_BY_ATTRIBUTE = "LastModifiedBy";
     
     /**
-     * Builds a unique String that will be used to identify the last transaction that modified a
-     * DynamoDB Item. This will be tested as the condition for idempotency (ie. this flag must not
-     * be the same as the value of the LAST_MODIFIED_BY attribute of the Item).
+     * Gets the name of the slot attribute that a token is stored in.
      * 
-     * @param user
-     * @param updates
-     * @param action
-     * @return idempotency flag value
+     * @param token
+     * @return slot attribute name
      */
-    private static String buildIdempotencyFlag(UserProfile user, List<AttributeUpdate> updates,
-            UpdateAction action) {
-        StringBuilder builder = new StringBuilder();
-        for (AttributeUpdate update : updates) {
-            builder.append(update.getAttributeName());
-        }
-        return String.format("%s%s%s%s%s", user.getId(), SEPARATOR, builder.toString(), SEPARATOR,
-                action.getDelta());
+    static String getTokenSlotAttribute(UUID token) {
+        return TOKEN_SLOT_ATTRIBUTE_PREFIX
+                + (int) (token.getLeastSignificantBits() & (NUM_TOKEN_SLOTS - 1));
     }
     
     /**
-     * Builds the Expectation that will be used to guarantee idempotency.
+     * Encodes a token as a 16-byte binary value.
      * 
-     * @param flagVal
-     * @return expectation
+     * @param token
+     * @return token bytes
      */
-    private static Expected buildIdempotencyExpectation(String flagVal) {
-        return new Expected(LAST_MODIFIED_BY_ATTRIBUTE).ne(flagVal);
+    static byte[] toBytes(UUID token) {
+        return ByteBuffer.allocate(16).putLong(token.getMostSignificantBits())
+                .putLong(token.getLeastSignificantBits()).array();
     }
     
     /**
      * Adds the condition to guarantee idempotency to an UpdateItemSpec.
      * 
      * @param spec
-     * @param user
-     * @param action
+     * @param token The token of the request that the update was built from
      * @return spec
      */
-    public static UpdateItemSpec makeUpdateIdempotent(UpdateItemSpec spec, UserProfile user,
-            UpdateAction action) {
-        // Build flag String
-        String flagVal = buildIdempotencyFlag(user, spec.getAttributeUpdate(), action);
+    public static UpdateItemSpec makeUpdateIdempotent(UpdateItemSpec spec, UUID token) {
+        String slot = getTokenSlotAttribute(token);
+        byte[] tokenBytes = toBytes(token);
         
-        // Add condition that the existing flag must not equal flagVal
-        spec.withExpected(buildIdempotencyExpectation(flagVal));
+        // Add condition that the slot must not already hold the token
+        spec.withExpected(new Expected(slot).ne(tokenBytes));
         
-        // Add update entry to set flag
-        spec.addAttributeUpdate(new AttributeUpdate(LAST_MODIFIED_BY_ATTRIBUTE).put(flagVal));
+        // Add update entries to store the token and drop the flag of the previous scheme
+        spec.addAttributeUpdate(new AttributeUpdate(slot).put(tokenBytes));
+        spec.addAttributeUpdate(new AttributeUpdate(LAST_MODIFIED_BY_ATTRIBUTE).delete());
         
         return spec;
     }
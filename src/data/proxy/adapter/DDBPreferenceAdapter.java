@@ -1,11 +1,17 @@
 package data.proxy.adapter;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import com.amazonaws.services.dynamodbv2.document.AttributeUpdate;
+import com.amazonaws.services.dynamodbv2.document.Expected;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
 
+import data.structure.CorrelationCodec;
 import data.structure.Preference;
 import data.structure.PreferenceCategory;
 import data.structure.PreferenceCorrelation;
@@ -18,10 +24,29 @@ public class DDBPreferenceAdapter {
     public static final String PREFERENCE_ID_ATTRIBUTE = "PreferenceID";
     public static final String POPULARITY_ATTRIBUTE = "Popularity";
     public static final String CORRELATIONS_ATTRIBUTE = "Correlations";
+    public static final String PACKED_CORRELATIONS_ATTRIBUTE = "PackedCorrelations";
     private static final String DB_CATEGORY_ID_SEPARATOR = "~~";
     
+    /**
+     * How the correlations of a preference are stored in its Item.
+     */
+    public enum CorrelationFormat {
+        /**
+         * A map from the DB ID of each correlated preference to its weight.
+         */
+        MAP,
+        /**
+         * A single binary attribute, packed by CorrelationCodec. Updates still add to separate
+         * attributes, so an Item may hold both, and the weights are summed when it is read. They
+         * are folded back into the binary attribute by an update built by buildCompaction(), or by
+         * the next put.
+         */
+        PACKED
+    }
+    
     private Preference preference;
     private Item dbModel;
+    private final CorrelationFormat format;
     
     /**
      * Constructor that sets the Preference object.
@@ -30,15 +55,30 @@ public class DDBPreferenceAdapter {
      * @throws IllegalArgumentException if preference is null
      */
     public DDBPreferenceAdapter(Preference preference) {
+        this(preference, CorrelationFormat.MAP);
+    }
+    
+    /**
+     * Constructor that sets the Preference object and the format its correlations are stored in.
+     * 
+     * @param preference
+     * @param format
+     * @throws IllegalArgumentException if preference or format is null
+     */
+    public DDBPreferenceAdapter(Preference preference, CorrelationFormat format) {
         if (preference == null) {
             throw new IllegalArgumentException("Preference cannot be null!");
         }
+        if (format == null) {
+            throw new IllegalArgumentException("Format cannot be null!");
+        }
         this.preference = preference;
         this.dbModel = null;
+        this.format = format;
     }
     
     /**
-     * Constructor that sets the DynamoDB Item.
+     * Constructor that sets the DynamoDB Item, whose correlations may be stored in either format.
      * 
      * @param preference
      * @throws IllegalArgumentException if dbModel is null
@@ -49,11 +89,17 @@ public class DDBPreferenceAdapter {
         }
         this.preference = null;
         this.dbModel = dbModel;
+        this.format = null;
     }
     
     /**
      * Generates the Preference object, if the DynamoDB Item has already been provided.
      * 
+     * Updates add to the weight of a correlation through an attribute named by
+     * buildDbAttributePath(CORRELATIONS_ATTRIBUTE, id). UpdateItem takes such a name literally
+     * rather than as a path into the map, so the weights of these attributes are added to those of
+     * the map.
+     * 
      * @return preference
      */
     public Preference toObject() {
@@ -65,27 +111,101 @@ public class DDBPreferenceAdapter {
         String preferenceID = parsePreferenceIdFromDbString(dbPreferenceID);
         PreferenceCategory category = parseCategoryFromDbString(dbPreferenceID);
         
-        int popularity = this.dbModel.getInt(POPULARITY_ATTRIBUTE);
+        // An Item created by an update of correlations alone has no popularity
+        int popularity = this.dbModel.isPresent(POPULARITY_ATTRIBUTE) ? this.dbModel
+                .getInt(POPULARITY_ATTRIBUTE) : 0;
         
         this.preference = new Preference(preferenceID, category, popularity);
         
-        Map<String, Integer> dbCorrelations = this.dbModel.getMap(CORRELATIONS_ATTRIBUTE);
+        byte[] packedCorrelations = this.dbModel.getBinary(PACKED_CORRELATIONS_ATTRIBUTE);
+        if (packedCorrelations != null) {
+            CorrelationCodec.decode(packedCorrelations, (id, toCategory, weight) -> this.preference
+                    .addCorrelation(new PreferenceCorrelation(new Preference(id, toCategory),
+                            weight)));
+        }
+        
+        // Weights read from DynamoDB are BigDecimals, and those of a new Item are Integers
+        Map<String, Number> dbCorrelations = this.dbModel.getMap(CORRELATIONS_ATTRIBUTE);
         
         if (dbCorrelations != null) {
-            for (Entry<String, Integer> correlation : dbCorrelations.entrySet()) {
+            for (Entry<String, Number> correlation : dbCorrelations.entrySet()) {
                 String toPreferenceDbID = correlation.getKey();
                 Preference toPreference = new Preference(
                         parsePreferenceIdFromDbString(toPreferenceDbID),
                         parseCategoryFromDbString(toPreferenceDbID));
-                int weight = correlation.getValue();
-                this.preference.addCorrelation(new PreferenceCorrelation(toPreference, weight));
+                int weight = correlation.getValue().intValue();
+                this.preference.adjustCorrelationWeight(toPreference, weight);
             }
         }
         
+        String updatedCorrelationPrefix = buildDbAttributePath(CORRELATIONS_ATTRIBUTE, "");
+        for (String name : getUpdatedCorrelationAttributes(this.dbModel)) {
+            String toPreferenceDbID = name.substring(updatedCorrelationPrefix.length());
+            Preference toPreference = new Preference(
+                    parsePreferenceIdFromDbString(toPreferenceDbID),
+                    parseCategoryFromDbString(toPreferenceDbID));
+            this.preference.adjustCorrelationWeight(toPreference, this.dbModel.getInt(name));
+        }
+        
         return this.preference;
         
     }
     
+    /**
+     * Gets the names of the attributes that updates added correlation weights to, i.e. those named
+     * by buildDbAttributePath(CORRELATIONS_ATTRIBUTE, id).
+     * 
+     * @param item
+     * @return attribute names
+     */
+    public static List<String> getUpdatedCorrelationAttributes(Item item) {
+        String updatedCorrelationPrefix = buildDbAttributePath(CORRELATIONS_ATTRIBUTE, "");
+        List<String> names = new ArrayList<String>();
+        for (Entry<String, Object> attribute : item.attributes()) {
+            if (attribute.getKey().startsWith(updatedCorrelationPrefix)) {
+                names.add(attribute.getKey());
+            }
+        }
+        return names;
+    }
+    
+    /**
+     * Builds the update that folds the correlation weights added by updates into the packed
+     * attribute of an Item, and removes their attributes. The update is conditional on the packed
+     * attribute and each folded attribute still holding the value read, so a weight added in
+     * between fails the update rather than being lost.
+     * 
+     * @param item
+     * @return update, or null if the Item has no weights added by updates, or still holds a map of
+     *         correlations, which the next put converts instead
+     */
+    public static UpdateItemSpec buildCompaction(Item item) {
+        List<String> updatedAttributes = getUpdatedCorrelationAttributes(item);
+        if (updatedAttributes.isEmpty() || item.isPresent(CORRELATIONS_ATTRIBUTE)) {
+            return null;
+        }
+        
+        Preference folded = new DDBPreferenceAdapter(item).toObject();
+        List<Expected> expected = new ArrayList<Expected>(updatedAttributes.size() + 1);
+        UpdateItemSpec spec = new UpdateItemSpec().withPrimaryKey(PREFERENCE_ID_ATTRIBUTE,
+                item.getString(PREFERENCE_ID_ATTRIBUTE));
+        
+        byte[] packedCorrelations = item.getBinary(PACKED_CORRELATIONS_ATTRIBUTE);
+        if (packedCorrelations == null) {
+            expected.add(new Expected(PACKED_CORRELATIONS_ATTRIBUTE).notExist());
+        } else {
+            expected.add(new Expected(PACKED_CORRELATIONS_ATTRIBUTE).eq(packedCorrelations));
+        }
+        spec.addAttributeUpdate(new AttributeUpdate(PACKED_CORRELATIONS_ATTRIBUTE)
+                .put(CorrelationCodec.encode(folded.getCorrelations())));
+        
+        for (String name : updatedAttributes) {
+            expected.add(new Expected(name).eq(item.getNumber(name)));
+            spec.addAttributeUpdate(new AttributeUpdate(name).delete());
+        }
+        return spec.withExpected(expected);
+    }
+    
     /**
      * Parses the preference ID from the DynamoDB ID string
      * 
@@ -118,6 +238,18 @@ public class DDBPreferenceAdapter {
             return this.dbModel;
         }
         
+        if (this.format == CorrelationFormat.PACKED) {
+            this.dbModel = new Item()
+                    .withPrimaryKey(
+                            PREFERENCE_ID_ATTRIBUTE,
+                            buildDbIdFromComponents(this.preference.getID(),
+                                    this.preference.getCategory()))
+                    .withInt(POPULARITY_ATTRIBUTE, this.preference.getPopularity())
+                    .withBinary(PACKED_CORRELATIONS_ATTRIBUTE,
+                            CorrelationCodec.encode(this.preference.getCorrelations()));
+            return this.dbModel;
+        }
+        
         Map<String, Integer> dbCorrelations = new HashMap<String, Integer>();
         for (PreferenceCorrelation correlation : this.preference.getCorrelations()) {
             Preference correlatedPreference = correlation.getToPreference();
@@ -145,7 +277,8 @@ public class DDBPreferenceAdapter {
      * @return DB ID String
      */
     public static String buildDbIdFromComponents(String id, PreferenceCategory category) {
-        return String.format("%s%s%s", category, DB_CATEGORY_ID_SEPARATOR, id);
+        // Plain concatenation, String.format parses its pattern on every call
+        return category.name() + DB_CATEGORY_ID_SEPARATOR + id;
     }
     
     /**
@@ -6,7 +6,6 @@ import com.amazonaws.services.dynamodbv2.document.AttributeUpdate;
 import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
 
 import data.proxy.request.UpdatePreferenceRequest;
-import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
 import data.structure.Preference;
 import data.structure.PreferenceCategory;
 import data.structure.PreferenceCorrelation;
@@ -46,17 +45,16 @@ public class DDBUpdatePreferenceRequestAdapter {
         UpdateItemSpec spec = createNewUpdateForPreference(preferenceToUpdate.getCategory(),
                 preferenceToUpdate.getID());
         
-        UpdateAction popularityUpdate = request.getPopularityUpdate();
+        int popularityDelta = request.getPopularityDelta();
         
-        if (popularityUpdate != null) {
+        if (popularityDelta != 0) {
             // Update popularity.
-            addAttributeUpdate(spec, DDBPreferenceAdapter.POPULARITY_ATTRIBUTE,
-                    popularityUpdate.getDelta());
+            addAttributeUpdate(spec, DDBPreferenceAdapter.POPULARITY_ATTRIBUTE, popularityDelta);
         }
         
         // Update correlation weights.
-        for (Entry<PreferenceCorrelation, UpdateAction> update : this.request
-                .getCorrelationUpdates().entrySet()) {
+        for (Entry<PreferenceCorrelation, Integer> update : this.request.getCorrelationDeltas()
+                .entrySet()) {
             PreferenceCorrelation correlationToUpdate = update.getKey();
             Preference toPreference = correlationToUpdate.getToPreference();
             String toPreferenceId = toPreference.getID();
@@ -65,7 +63,7 @@ public class DDBUpdatePreferenceRequestAdapter {
                     category);
             String dbAttributePath = DDBPreferenceAdapter.buildDbAttributePath(
                     DDBPreferenceAdapter.CORRELATIONS_ATTRIBUTE, dbPreferenceId);
-            addAttributeUpdate(spec, dbAttributePath, update.getValue().getDelta());
+            addAttributeUpdate(spec, dbAttributePath, update.getValue());
         }
         
         this.dbModel = spec;
@@ -3,6 +3,8 @@ package data.proxy.request;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
 import data.structure.Preference;
 import data.structure.PreferenceCorrelation;
@@ -14,8 +16,10 @@ import data.structure.PreferenceCorrelation;
 public class UpdatePreferenceRequest {
     
     private final Preference preferenceToUpdate;
-    private UpdateAction popularityUpdate;
-    private final Map<PreferenceCorrelation, UpdateAction> correlationUpdates;
+    private int popularityDelta;
+    private final Map<PreferenceCorrelation, Integer> correlationDeltas;
+    private long version;
+    private final UUID token;
     
     /**
      * UpdateAction represents an action that can be performed on an attribute in an update.
@@ -45,17 +49,45 @@ public class UpdatePreferenceRequest {
     }
     
     /**
-     * Constructor requires preferenceToUpdate.
+     * Constructor requires preferenceToUpdate. The request gets a random token, so it is only
+     * recognized as a retry if the same request is submitted again.
      * 
      * @param preferenceToUpdate
      * @throws IllegalArgumentException if preferenceToUpdate is null
      */
     public UpdatePreferenceRequest(Preference preferenceToUpdate) {
+        this(preferenceToUpdate, randomToken());
+    }
+    
+    /**
+     * Constructor for a request with a token chosen by the caller, typically derived from the
+     * event that caused the update, so that a request built again for the same event has the same
+     * token.
+     * 
+     * @param preferenceToUpdate
+     * @param token
+     * @throws IllegalArgumentException if preferenceToUpdate or token is null
+     */
+    public UpdatePreferenceRequest(Preference preferenceToUpdate, UUID token) {
         if (preferenceToUpdate == null) {
             throw new IllegalArgumentException("Preference cannot be null");
         }
+        if (token == null) {
+            throw new IllegalArgumentException("Token cannot be null");
+        }
         this.preferenceToUpdate = preferenceToUpdate;
-        this.correlationUpdates = new HashMap<PreferenceCorrelation, UpdateAction>();
+        this.correlationDeltas = new HashMap<PreferenceCorrelation, Integer>();
+        this.token = token;
+    }
+    
+    /**
+     * Generates a random 128-bit token.
+     * 
+     * @return token
+     */
+    private static UUID randomToken() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new UUID(random.nextLong(), random.nextLong());
     }
     
     /**
@@ -73,16 +105,26 @@ public class UpdatePreferenceRequest {
      * @param action
      */
     public void updatePopularity(UpdateAction action) {
-        this.popularityUpdate = action;
+        this.popularityDelta = action == null ? 0 : action.getDelta();
     }
     
     /**
-     * Getter for popularity update action.
+     * Adds a delta to the popularity update of the preference, so several updates can be combined
+     * into one.
      * 
-     * @return popularity update action
+     * @param delta
      */
-    public UpdateAction getPopularityUpdate() {
-        return this.popularityUpdate;
+    public void addPopularityDelta(int delta) {
+        this.popularityDelta += delta;
+    }
+    
+    /**
+     * Gets the net change in popularity, or 0 if the popularity is not updated.
+     * 
+     * @return popularity delta
+     */
+    public int getPopularityDelta() {
+        return this.popularityDelta;
     }
     
     /**
@@ -92,15 +134,57 @@ public class UpdatePreferenceRequest {
      * @param action
      */
     public void addCorrelationUpdate(PreferenceCorrelation correlation, UpdateAction action) {
-        this.correlationUpdates.put(correlation, action);
+        this.correlationDeltas.put(correlation, action.getDelta());
+    }
+    
+    /**
+     * Adds a delta to the update of a correlation weight, so several updates can be combined into
+     * one.
+     * 
+     * @param correlation
+     * @param delta
+     */
+    public void addCorrelationDelta(PreferenceCorrelation correlation, int delta) {
+        this.correlationDeltas.merge(correlation, delta, Integer::sum);
+    }
+    
+    /**
+     * Sets the version of this request. Versions are assigned by the component that emits the
+     * request, so that consumers can detect requests they have already seen.
+     * 
+     * @param version
+     */
+    public void setVersion(long version) {
+        this.version = version;
+    }
+    
+    /**
+     * Gets the version of this request, or 0 if none was assigned.
+     * 
+     * @return version
+     */
+    public long getVersion() {
+        return this.version;
+    }
+    
+    /**
+     * Gets the 128-bit token that identifies this request. Graphs use it to recognize a request
+     * they have already applied: either the same request submitted again after a failure, or a
+     * request built again with the token of the same event. A request for a new event gets a new
+     * token, even if it makes the same change.
+     * 
+     * @return token
+     */
+    public UUID getToken() {
+        return this.token;
     }
     
     /**
-     * Gets the updates.
+     * Gets the net change in weight of each updated correlation.
      * 
-     * @return updates
+     * @return correlation deltas
      */
-    public Map<PreferenceCorrelation, UpdateAction> getCorrelationUpdates() {
-        return Collections.unmodifiableMap(this.correlationUpdates);
+    public Map<PreferenceCorrelation, Integer> getCorrelationDeltas() {
+        return Collections.unmodifiableMap(this.correlationDeltas);
     }
 }
@@ -0,0 +1,201 @@
+package data.structure;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * CorrelationCodec packs the correlations of a preference into a compact byte array, for stores
+ * where spelling out the category and ID of every correlated preference dominates the size of a
+ * record. The correlations are sorted by category and then by ID, so that neighboring IDs share
+ * long prefixes, and each one is written as:
+ * 
+ * - the difference from the previous category ordinal,
+ * - the number of leading ID bytes shared with the previous ID of the same category,
+ * - the number of remaining ID bytes, followed by the bytes themselves,
+ * - the weight,
+ * 
+ * each number as a variable-length integer of 7 bits per byte. Weights are zig-zag encoded, so
+ * small negative weights stay small. The array starts with a format version and the number of
+ * correlations.
+ */
+public class CorrelationCodec {
+    private static final int VERSION = 1;
+    private static final PreferenceCategory[] CATEGORIES = PreferenceCategory.values();
+    
+    /**
+     * Receives the correlations of a packed array as they are decoded.
+     */
+    @FunctionalInterface
+    public interface CorrelationConsumer {
+        void accept(String id, PreferenceCategory category, int weight);
+    }
+    
+    /**
+     * A correlation to encode, with the UTF-8 bytes of its ID.
+     */
+    private static class Entry implements Comparable<Entry> {
+        private final int category;
+        private final String idString;
+        private final byte[] id;
+        private final int weight;
+        
+        private Entry(PreferenceCorrelation correlation) {
+            this.category = correlation.getToPreference().getCategory().ordinal();
+            this.idString = correlation.getToPreference().getID();
+            this.id = this.idString.getBytes(StandardCharsets.UTF_8);
+            this.weight = correlation.getWeight();
+        }
+        
+        @Override
+        public int compareTo(Entry other) {
+            if (this.category != other.category) {
+                return Integer.compare(this.category, other.category);
+            }
+            return this.idString.compareTo(other.idString);
+        }
+    }
+    
+    /**
+     * Packs correlations into a byte array.
+     * 
+     * @param correlations
+     * @return packed correlations
+     * @throws IllegalArgumentException if correlations is null
+     */
+    public static byte[] encode(Collection<PreferenceCorrelation> correlations) {
+        if (correlations == null) {
+            throw new IllegalArgumentException("Correlations cannot be null!");
+        }
+        Entry[] entries = new Entry[correlations.size()];
+        int size = 0;
+        // Each number takes at most 5 bytes, so this bounds the packed length
+        int maxLength = 10;
+        for (PreferenceCorrelation correlation : correlations) {
+            entries[size] = new Entry(correlation);
+            maxLength += 20 + entries[size].id.length;
+            size++;
+        }
+        Arrays.sort(entries);
+        
+        byte[] out = new byte[maxLength];
+        int[] position = new int[1];
+        writeVarint(out, position, VERSION);
+        writeVarint(out, position, entries.length);
+        int previousCategory = 0;
+        byte[] previousId = new byte[0];
+        for (Entry entry : entries) {
+            writeVarint(out, position, entry.category - previousCategory);
+            if (entry.category != previousCategory) {
+                previousId = new byte[0];
+            }
+            int shared = 0;
+            int maxShared = Math.min(previousId.length, entry.id.length);
+            while (shared < maxShared && previousId[shared] == entry.id[shared]) {
+                shared++;
+            }
+            writeVarint(out, position, shared);
+            writeVarint(out, position, entry.id.length - shared);
+            System.arraycopy(entry.id, shared, out, position[0], entry.id.length - shared);
+            position[0] += entry.id.length - shared;
+            writeVarint(out, position, (entry.weight << 1) ^ (entry.weight >> 31));
+            previousCategory = entry.category;
+            previousId = entry.id;
+        }
+        return Arrays.copyOf(out, position[0]);
+    }
+    
+    /**
+     * Unpacks correlations, passing each one to the consumer in the order they were packed.
+     * 
+     * @param packed
+     * @param consumer
+     * @throws IllegalArgumentException if packed was not produced by encode()
+     */
+    public static void decode(byte[] packed, CorrelationConsumer consumer) {
+        int[] position = new int[1];
+        try {
+            if (readVarint(packed, position) != VERSION) {
+                throw new IllegalArgumentException("Unknown packed correlations version!");
+            }
+            int count = readVarint(packed, position);
+            int category = 0;
+            byte[] id = new byte[16];
+            int idLength = 0;
+            for (int i = 0; i < count; i++) {
+                int categoryDelta = readVarint(packed, position);
+                if (categoryDelta != 0) {
+                    category += categoryDelta;
+                    idLength = 0;
+                }
+                int shared = readVarint(packed, position);
+                int suffixLength = readVarint(packed, position);
+                if (shared > idLength || suffixLength < 0
+                        || suffixLength > packed.length - position[0]) {
+                    throw new IllegalArgumentException("Malformed packed correlations!");
+                }
+                if (shared + suffixLength > id.length) {
+                    id = Arrays.copyOf(id, Math.max(2 * id.length, shared + suffixLength));
+                }
+                System.arraycopy(packed, position[0], id, shared, suffixLength);
+                position[0] += suffixLength;
+                idLength = shared + suffixLength;
+                int zigzag = readVarint(packed, position);
+                consumer.accept(new String(id, 0, idLength, StandardCharsets.UTF_8),
+                        CATEGORIES[category], (zigzag >>> 1) ^ -(zigzag & 1));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed packed correlations!", e);
+        }
+    }
+    
+    /**
+     * Unpacks correlations.
+     * 
+     * @param packed
+     * @return correlations, in the order they were packed
+     * @throws IllegalArgumentException if packed was not produced by encode()
+     */
+    public static List<PreferenceCorrelation> decode(byte[] packed) {
+        List<PreferenceCorrelation> correlations = new ArrayList<PreferenceCorrelation>();
+        decode(packed, (id, category, weight) -> correlations.add(new PreferenceCorrelation(
+                new Preference(id, category), weight)));
+        return correlations;
+    }
+    
+    /**
+     * Writes an unsigned variable-length integer, 7 bits per byte with the lowest bits first.
+     * 
+     * @param out
+     * @param position Position to write at, which is advanced past the integer
+     * @param value
+     */
+    private static void writeVarint(byte[] out, int[] position, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[position[0]++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position[0]++] = (byte) value;
+    }
+    
+    /**
+     * Reads an unsigned variable-length integer.
+     * 
+     * @param in
+     * @param position Position to read from, which is advanced past the integer
+     * @return value
+     */
+    private static int readVarint(byte[] in, int[] position) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed packed correlations!");
+    }
+}
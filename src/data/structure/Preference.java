@@ -1,18 +1,26 @@
 package data.structure;
 
+import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * Preference represents a preference which has an id, a category, and correlations with other
- * preferences.
+ * preferences. Correlations are indexed by their destination preference, so a correlation can be
+ * found or updated without scanning all of them.
  */
 public class Preference {
     private final String id;
     private final PreferenceCategory category;
-    private final Set<PreferenceCorrelation> correlations;
+    // Preferences are hashed constantly as map keys, so the hash of the immutable identity is
+    // computed once
+    private final int hashCode;
+    private final Map<Preference, PreferenceCorrelation> correlations;
+    private final Set<PreferenceCorrelation> correlationView;
     private int popularity;
     
     /**
@@ -53,15 +61,64 @@ public class Preference {
         if (category == null) {
             throw new IllegalArgumentException("Preference Category cannot be null!");
         }
-        this.id = id.trim().replaceAll("\\s", "");
+        this.id = removeWhitespace(id.trim());
         this.category = category;
+        this.hashCode = hashOf(this.id, category);
         this.popularity = popularity;
-        this.correlations = new HashSet<PreferenceCorrelation>();
+        this.correlations = new HashMap<Preference, PreferenceCorrelation>();
+        this.correlationView = Collections.unmodifiableSet(new CorrelationSet());
         if (correlations != null) {
             addAllCorrelations(correlations);
         }
     }
     
+    /**
+     * Computes the hash code of the preference with an ID and category, so a preference can be
+     * looked up by its identity without creating one.
+     * 
+     * @param id
+     * @param category
+     * @return hashCode for the preference
+     */
+    static int hashOf(String id, PreferenceCategory category) {
+        return 31 * id.hashCode() + category.name().hashCode();
+    }
+    
+    /**
+     * Removes all whitespace, as the regular expression \s would, without compiling a pattern for
+     * every preference. IDs without whitespace are returned as is.
+     * 
+     * @param id
+     * @return id without whitespace
+     */
+    private static String removeWhitespace(String id) {
+        int length = id.length();
+        int i = 0;
+        while (i < length && !isWhitespace(id.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return id;
+        }
+        StringBuilder stripped = new StringBuilder(length).append(id, 0, i);
+        for (; i < length; i++) {
+            char c = id.charAt(i);
+            if (!isWhitespace(c)) {
+                stripped.append(c);
+            }
+        }
+        return stripped.toString();
+    }
+    
+    /**
+     * 
+     * @param c
+     * @return true if c is matched by the regular expression \s
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+    
     /**
      * Getter for ID.
      * 
@@ -107,11 +164,26 @@ public class Preference {
         validateCorrelation(correlation);
         
         // If we get a correlation update, we want to overwrite.
-        if (this.correlations.contains(correlation)) {
-            this.correlations.remove(correlation);
+        this.correlations.put(correlation.getToPreference(), correlation);
+    }
+    
+    /**
+     * Adjusts the weight of the correlation to the specified preference in place, adding the
+     * correlation if it does not exist yet.
+     * 
+     * @param toPreference
+     * @param delta
+     * @return adjusted correlation
+     */
+    public PreferenceCorrelation adjustCorrelationWeight(Preference toPreference, int delta) {
+        PreferenceCorrelation correlation = this.correlations.get(toPreference);
+        if (correlation == null) {
+            correlation = new PreferenceCorrelation(toPreference, delta);
+            this.correlations.put(toPreference, correlation);
+        } else {
+            correlation.setWeight(correlation.getWeight() + delta);
         }
-        
-        this.correlations.add(correlation);
+        return correlation;
     }
     
     /**
@@ -131,7 +203,9 @@ public class Preference {
      * @param correlation
      */
     public void removeCorrelation(PreferenceCorrelation correlation) {
-        this.correlations.remove(correlation);
+        if (correlation != null) {
+            this.correlations.remove(correlation.getToPreference());
+        }
     }
     
     /**
@@ -140,17 +214,17 @@ public class Preference {
      * @return all correlated preferences
      */
     public Set<PreferenceCorrelation> getCorrelations() {
-        return Collections.unmodifiableSet(this.correlations);
+        return this.correlationView;
     }
     
+    /**
+     * Finds the correlation to the specified preference.
+     * 
+     * @param toPreference
+     * @return correlation, or null if there is no correlation to the preference
+     */
     public PreferenceCorrelation findCorrelation(Preference toPreference) {
-    	for (PreferenceCorrelation correlation : this.correlations) {
-    		if (correlation.getToPreference().equals(toPreference)) {
-    			return correlation;
-    		}
-    	}
-    	
-    	return null;
+        return this.correlations.get(toPreference);
     }
     
     /**
@@ -175,18 +249,23 @@ public class Preference {
         if (obj == null || !(obj instanceof Preference)) {
             return false;
         }
+        if (this == obj) {
+            return true;
+        }
         Preference preference = (Preference) obj;
-        return getID().equals(preference.getID()) && getCategory() == preference.getCategory();
+        return this.hashCode == preference.hashCode && this.category == preference.category
+                && this.id.equals(preference.id);
     }
     
     /**
-     * Override of Object.hashCode(), based on preference ID and category.
+     * Override of Object.hashCode(), based on preference ID and category. Computed once, at
+     * construction.
      * 
      * @return hashCode for preference
      */
     @Override
     public int hashCode() {
-        return (getID() + getCategory().name()).hashCode();
+        return this.hashCode;
     }
     
     /**
@@ -201,10 +280,32 @@ public class Preference {
                 this.id, this.popularity));
         
         // Print correlations.
-        for (PreferenceCorrelation correlation : this.correlations) {
+        for (PreferenceCorrelation correlation : this.correlations.values()) {
             out.append(String.format("\t%s\r\n", correlation.toString()));
         }
         
         return out.toString();
     }
+    
+    /**
+     * Set view of the correlations, which are unique by destination preference.
+     */
+    private class CorrelationSet extends AbstractSet<PreferenceCorrelation> {
+        
+        @Override
+        public Iterator<PreferenceCorrelation> iterator() {
+            return correlations.values().iterator();
+        }
+        
+        @Override
+        public int size() {
+            return correlations.size();
+        }
+        
+        @Override
+        public boolean contains(Object obj) {
+            return obj instanceof PreferenceCorrelation
+                    && correlations.containsKey(((PreferenceCorrelation) obj).getToPreference());
+        }
+    }
 }
@@ -0,0 +1,196 @@
+package data.structure;
+
+import java.util.Arrays;
+
+/**
+ * PreferenceDictionary assigns a dense int ID, starting from 0, to each preference identity, i.e.
+ * each (category, id) pair. Code that handles many preferences at once can then work on the int IDs
+ * internally, e.g. index arrays by them instead of hashing Preferences, and only translate back to
+ * Preferences at its API boundary. Lookups use open addressing over parallel arrays, so neither
+ * encoding nor lookup allocates. Not thread safe; build the dictionary before sharing it.
+ */
+public class PreferenceDictionary {
+    private static final int NOT_FOUND = -1;
+    // Largest power of two array length
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+    // The table is kept at most half full
+    public static final int MAXIMUM_SIZE = MAXIMUM_CAPACITY / 2;
+    
+    // Hash table from preference to int ID, with linear probing
+    private Preference[] slotKeys;
+    private int[] slotIds;
+    // Preference of each int ID
+    private Preference[] preferences;
+    private int size;
+    
+    /**
+     * Basic default constructor for PreferenceDictionary.
+     */
+    public PreferenceDictionary() {
+        this(16);
+    }
+    
+    /**
+     * Constructor that sizes the dictionary for an expected number of preferences.
+     *
+     * @param expectedSize
+     * @throws IllegalArgumentException if expectedSize is negative or greater than MAXIMUM_SIZE
+     */
+    public PreferenceDictionary(int expectedSize) {
+        if (expectedSize < 0 || expectedSize > MAXIMUM_SIZE) {
+            throw new IllegalArgumentException("Expected size must be between 0 and "
+                    + MAXIMUM_SIZE + "!");
+        }
+        int capacity = 4;
+        while (capacity / 2 < expectedSize) {
+            capacity <<= 1;
+        }
+        this.slotKeys = new Preference[capacity];
+        this.slotIds = new int[capacity];
+        this.preferences = new Preference[Math.max(expectedSize, 1)];
+    }
+    
+    /**
+     * Gets the int ID of a preference, assigning the next ID if the preference is new. The first
+     * Preference object encoded for an identity is the one returned by {@link #getPreference(int)}.
+     *
+     * @param preference
+     * @return int ID
+     * @throws IllegalArgumentException if preference is null
+     * @throws IllegalStateException if the dictionary already holds MAXIMUM_SIZE preferences
+     */
+    public int encode(Preference preference) {
+        if (preference == null) {
+            throw new IllegalArgumentException("Preference cannot be null!");
+        }
+        int slot = findSlot(preference);
+        if (this.slotKeys[slot] != null) {
+            return this.slotIds[slot];
+        }
+        
+        if (this.size >= this.slotKeys.length / 2) {
+            if (this.slotKeys.length == MAXIMUM_CAPACITY) {
+                throw new IllegalStateException("Dictionary is full!");
+            }
+            resize();
+            slot = findSlot(preference);
+        }
+        if (this.size == this.preferences.length) {
+            this.preferences = Arrays.copyOf(this.preferences, this.size * 2);
+        }
+        int id = this.size++;
+        this.slotKeys[slot] = preference;
+        this.slotIds[slot] = id;
+        this.preferences[id] = preference;
+        return id;
+    }
+    
+    /**
+     * Makes a preference the one that its int ID translates back to, in place of the equal
+     * preference encoded before, e.g. when a stored preference is replaced by a newer copy.
+     *
+     * @param preference
+     * @return int ID, or -1 if the preference has no ID, in which case nothing is replaced
+     */
+    public int replace(Preference preference) {
+        int slot = findSlot(preference);
+        if (this.slotKeys[slot] == null) {
+            return NOT_FOUND;
+        }
+        this.slotKeys[slot] = preference;
+        this.preferences[this.slotIds[slot]] = preference;
+        return this.slotIds[slot];
+    }
+    
+    /**
+     * Gets the int ID of a preference without assigning one.
+     *
+     * @param preference
+     * @return int ID, or -1 if the preference has no ID
+     */
+    public int getId(Preference preference) {
+        int slot = findSlot(preference);
+        return this.slotKeys[slot] == null ? NOT_FOUND : this.slotIds[slot];
+    }
+    
+    /**
+     * Gets the int ID of the preference with an ID and category, without creating a Preference to
+     * look it up by.
+     *
+     * @param id
+     * @param category
+     * @return int ID, or -1 if the preference has no ID
+     */
+    public int getId(String id, PreferenceCategory category) {
+        int mask = this.slotKeys.length - 1;
+        int slot = firstSlot(Preference.hashOf(id, category));
+        while (this.slotKeys[slot] != null) {
+            Preference key = this.slotKeys[slot];
+            if (key.getCategory() == category && key.getID().equals(id)) {
+                return this.slotIds[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+    
+    /**
+     * Translates an int ID back to its preference.
+     *
+     * @param id
+     * @return preference
+     * @throws IndexOutOfBoundsException if no preference has the ID
+     */
+    public Preference getPreference(int id) {
+        if (id < 0 || id >= this.size) {
+            throw new IndexOutOfBoundsException(String.format("No preference has the ID %d!", id));
+        }
+        return this.preferences[id];
+    }
+    
+    /**
+     *
+     * @return The number of preferences, so IDs range from 0 to size() - 1
+     */
+    public int size() {
+        return this.size;
+    }
+    
+    /**
+     *
+     * @param preference
+     * @return the slot holding the preference, or the empty slot where it would be inserted
+     */
+    private int findSlot(Preference preference) {
+        int mask = this.slotKeys.length - 1;
+        int slot = firstSlot(preference.hashCode());
+        while (this.slotKeys[slot] != null && !this.slotKeys[slot].equals(preference)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+    
+    /**
+     *
+     * @param hash
+     * @return the slot where probing for a preference with the hash code starts
+     */
+    private int firstSlot(int hash) {
+        int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (this.slotKeys.length - 1);
+    }
+    
+    private void resize() {
+        Preference[] oldKeys = this.slotKeys;
+        int[] oldIds = this.slotIds;
+        this.slotKeys = new Preference[oldKeys.length * 2];
+        this.slotIds = new int[oldKeys.length * 2];
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (oldKeys[oldSlot] != null) {
+                int slot = findSlot(oldKeys[oldSlot]);
+                this.slotKeys[slot] = oldKeys[oldSlot];
+                this.slotIds[slot] = oldIds[oldSlot];
+            }
+        }
+    }
+}
@@ -98,7 +98,7 @@ public class UserProfile {
         if (this.preferences.containsKey(category)) {
             Set<Preference> preferences = this.preferences.get(category);
             if (preferences != null) {
-                preferences.remove(preferenceId);
+                preferences.remove(new Preference(preferenceId, category));
             }
         }
         return new Preference(preferenceId, category);
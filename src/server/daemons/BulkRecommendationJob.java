@@ -0,0 +1,280 @@
+package server.daemons;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import util.BoundedPriorityQueue;
+import util.Tuple2;
+import data.proxy.PreferenceCorrelationGraph;
+import data.proxy.UserProfileStore;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.Recommendation;
+import data.structure.UserProfile;
+
+/**
+ * Regenerates the top k recommendations of every user in a category. Calling
+ * GenerateRecommendationDaemon once per user scans the category once per user. Instead, this job
+ * scans the category once into a {@link PreferenceCorrelationMatrix}, and scores every user as a
+ * sparse matrix multiplication of the user x preference matrix by the correlation matrix. Users
+ * are scored in batches, optionally in parallel, and the top k of each user are kept with a
+ * bounded heap.
+ *
+ * Scores match {@link GenerateRecommendationDaemon.ScoringMode#NEIGHBORHOOD} scoring for users
+ * whose preferences are all in the graph. User preferences that are missing from the graph
+ * contribute nothing.
+ */
+public class BulkRecommendationJob {
+    
+    /**
+     * What a run of the job did and how long it took.
+     */
+    public static class JobStats {
+        private final long users;
+        private final long recommendations;
+        private final long elapsedNanos;
+        
+        /**
+         *
+         * @param users The number of users scored
+         * @param recommendations The number of recommendations produced
+         * @param elapsedNanos Wall clock time of the run
+         */
+        public JobStats(long users, long recommendations, long elapsedNanos) {
+            this.users = users;
+            this.recommendations = recommendations;
+            this.elapsedNanos = elapsedNanos;
+        }
+        
+        public long getUsers() {
+            return users;
+        }
+        
+        public long getRecommendations() {
+            return recommendations;
+        }
+        
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+        
+        /**
+         *
+         * @return Users scored per second of wall clock time
+         */
+        public double getUsersPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : users * (double) TimeUnit.SECONDS.toNanos(1)
+                    / elapsedNanos;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d users, %d recommendations in %.3f s (%.1f users/s)", users,
+                    recommendations, elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1),
+                    getUsersPerSecond());
+        }
+    }
+    
+    private final int batchSize;
+    private final int k;
+    private final ExecutorService executor;
+    private final int maxInFlightBatches;
+    
+    /**
+     * Constructor for a job that scores every batch on the calling thread.
+     *
+     * @param batchSize The number of preferences or users that are read from storage at once
+     * @param k The maximum number of recommendations per user
+     * @throws IllegalArgumentException if batchSize or k is less than 1
+     */
+    public BulkRecommendationJob(int batchSize, int k) {
+        this(batchSize, k, null, 0);
+    }
+    
+    /**
+     * Constructor for a job that scores batches of users in parallel.
+     *
+     * @param batchSize The number of preferences or users that are read from storage at once
+     * @param k The maximum number of recommendations per user
+     * @param executor Executor that scores the batches of users, or null to score them on the
+     *        calling thread
+     * @param maxInFlightBatches The maximum number of batches that are submitted to the executor
+     *        but not yet consumed, which bounds the memory held by pending results
+     * @throws IllegalArgumentException if batchSize or k is less than 1, or if an executor is
+     *         supplied and maxInFlightBatches is less than 1
+     */
+    public BulkRecommendationJob(int batchSize, int k, ExecutorService executor,
+            int maxInFlightBatches) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1!");
+        }
+        if (k < 1) {
+            throw new IllegalArgumentException("At least one recommendation must be requested!");
+        }
+        if (executor != null && maxInFlightBatches < 1) {
+            throw new IllegalArgumentException("At least one batch must be allowed in flight!");
+        }
+        this.batchSize = batchSize;
+        this.k = k;
+        this.executor = executor;
+        this.maxInFlightBatches = maxInFlightBatches;
+    }
+    
+    /**
+     * Recommends preferences in a category to every user in the store.
+     *
+     * @param preferenceCategory
+     * @param userStore Store of all users to recommend to
+     * @param correlationGraph
+     * @param sink Receives each user and their recommendations, ordered from highest to lowest
+     *        score. Always called on the calling thread, one batch of users at a time.
+     * @return stats of the run, including the time taken to build the correlation matrix
+     */
+    public JobStats run(PreferenceCategory preferenceCategory, UserProfileStore userStore,
+            PreferenceCorrelationGraph correlationGraph,
+            BiConsumer<UserProfile, List<Recommendation>> sink) {
+        long start = System.nanoTime();
+        PreferenceCorrelationMatrix matrix = PreferenceCorrelationMatrix.build(correlationGraph,
+                preferenceCategory, batchSize);
+        JobStats stats = run(matrix, userStore.batchGetProfiles(batchSize), sink);
+        return new JobStats(stats.getUsers(), stats.getRecommendations(), System.nanoTime()
+                - start);
+    }
+    
+    /**
+     * Recommends preferences to every user in the given batches, using a prebuilt correlation
+     * matrix.
+     *
+     * @param matrix
+     * @param userBatches
+     * @param sink See {@link #run(PreferenceCategory, UserProfileStore, PreferenceCorrelationGraph,
+     *        BiConsumer)}
+     * @return stats of the run
+     */
+    public JobStats run(PreferenceCorrelationMatrix matrix, Iterator<List<UserProfile>> userBatches,
+            BiConsumer<UserProfile, List<Recommendation>> sink) {
+        long start = System.nanoTime();
+        long[] counts = new long[2];
+        BiConsumer<List<UserProfile>, List<List<Recommendation>>> batchSink = (users,
+                recommendations) -> {
+            for (int i = 0; i < users.size(); i++) {
+                sink.accept(users.get(i), recommendations.get(i));
+                counts[1] += recommendations.get(i).size();
+            }
+            counts[0] += users.size();
+        };
+        
+        if (this.executor == null) {
+            while (userBatches.hasNext()) {
+                List<UserProfile> users = userBatches.next();
+                batchSink.accept(users, recommendBatch(matrix, users));
+            }
+        } else {
+            Deque<Tuple2<List<UserProfile>, Future<List<List<Recommendation>>>>> inFlight = new ArrayDeque<Tuple2<List<UserProfile>, Future<List<List<Recommendation>>>>>();
+            try {
+                while (userBatches.hasNext()) {
+                    List<UserProfile> users = userBatches.next();
+                    // Wait for the oldest batch before submitting another one
+                    if (inFlight.size() >= this.maxInFlightBatches) {
+                        Tuple2<List<UserProfile>, Future<List<List<Recommendation>>>> oldest = inFlight
+                                .poll();
+                        batchSink.accept(oldest._1(), awaitBatch(oldest._2()));
+                    }
+                    inFlight.add(new Tuple2<List<UserProfile>, Future<List<List<Recommendation>>>>(
+                            users, this.executor.submit(() -> recommendBatch(matrix, users))));
+                }
+                while (!inFlight.isEmpty()) {
+                    Tuple2<List<UserProfile>, Future<List<List<Recommendation>>>> oldest = inFlight
+                            .poll();
+                    batchSink.accept(oldest._1(), awaitBatch(oldest._2()));
+                }
+            } finally {
+                // Only non-empty if a batch failed, in which case the rest of the work is pointless
+                for (Tuple2<List<UserProfile>, Future<List<List<Recommendation>>>> batch : inFlight) {
+                    batch._2().cancel(true);
+                }
+            }
+        }
+        
+        return new JobStats(counts[0], counts[1], System.nanoTime() - start);
+    }
+    
+    /**
+     * Computes the top k recommendations of each user in a batch. The score accumulator is
+     * allocated once per batch and cleared after each user.
+     *
+     * @param matrix
+     * @param users
+     * @return recommendations of each user, in the same order as users
+     */
+    List<List<Recommendation>> recommendBatch(PreferenceCorrelationMatrix matrix,
+            List<UserProfile> users) {
+        double[] scores = new double[matrix.size()];
+        int[] touched = new int[matrix.size()];
+        List<List<Recommendation>> recommendations = new ArrayList<List<Recommendation>>(
+                users.size());
+        
+        for (UserProfile user : users) {
+            int[] userOrdinals = matrix.toOrdinals(user.getPreferencesForCategory(matrix
+                    .getCategory()));
+            int numTouched = matrix.multiplyRows(userOrdinals, scores, touched);
+            
+            // The user's own preferences are never recommended
+            for (int ordinal : userOrdinals) {
+                scores[ordinal] = 0.0;
+            }
+            
+            BoundedPriorityQueue<Tuple2<Preference, Double>> topScoredEntries = new BoundedPriorityQueue<Tuple2<Preference, Double>>(
+                    k, UserRecommendationCorrelationScores.SCORE_ORDER);
+            for (int i = 0; i < numTouched; i++) {
+                int column = touched[i];
+                double score = scores[column];
+                scores[column] = 0.0;
+                // Only build an entry if it could displace the current least entry
+                if (score > 0
+                        && (!topScoredEntries.isFull() || score >= topScoredEntries.peek()._2())) {
+                    topScoredEntries.offer(new Tuple2<Preference, Double>(matrix
+                            .getPreference(column), score));
+                }
+            }
+            
+            List<Recommendation> userRecommendations = new ArrayList<Recommendation>(
+                    topScoredEntries.size());
+            for (Tuple2<Preference, Double> entry : topScoredEntries.toSortedList()) {
+                userRecommendations.add(new Recommendation(entry._1(), user, entry._2()));
+            }
+            recommendations.add(userRecommendations);
+        }
+        return recommendations;
+    }
+    
+    /**
+     * Waits for a batch of users scored on the executor to finish.
+     *
+     * @param future
+     * @return batch result
+     * @throws IllegalStateException if the thread is interrupted or the batch fails with a checked
+     *         exception
+     */
+    private static <T> T awaitBatch(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scoring user batches!", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to score user batch!", e.getCause());
+        }
+    }
+}
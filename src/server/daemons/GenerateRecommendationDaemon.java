@@ -1,20 +1,32 @@
 package server.daemons;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+import util.BoundedPriorityQueue;
+import util.DoubleScoreTable;
 import util.StreamUtils;
 import util.Tuple2;
 import data.proxy.PreferenceCorrelationGraph;
 import data.structure.Preference;
 import data.structure.PreferenceCategory;
 import data.structure.PreferenceCorrelation;
+import data.structure.PreferenceDictionary;
 import data.structure.Recommendation;
 import data.structure.UserProfile;
 
@@ -23,15 +35,43 @@ import data.structure.UserProfile;
  * one of the user's existing preferences. It uses correlation scores to determine which preference
  * has the highest total sum of correlations with the user's existing preferences. It is attempting
  * to be scalable by handling preferences in batches, given that there could be a very large number
- * of preferences in total, even within a given category. Currently recalculates all preference
- * scores from scratch every time it is called, but will soon implement logic to allow for simply
- * updating correlation scores based on update events.
+ * of preferences in total, even within a given category. Alternatively, in
+ * {@link ScoringMode#NEIGHBORHOOD} mode, it only visits the correlations of the user's own
+ * preferences, so the cost depends on the user's neighborhood rather than the size of the category.
+ * Recalculates all preference scores from scratch every time it is called.
+ * RecommendationScoreCache keeps scores for active users up to date from update events instead.
  * 
  * @author benjaminposerow
  *
  */
 public class GenerateRecommendationDaemon {
-    private int batchSize;
+    
+    /**
+     * The ways in which correlation scores can be calculated. Both produce the same scores for
+     * preferences that are in the graph.
+     */
+    public enum ScoringMode {
+        /**
+         * Scans every preference in the category in batches, and sums the correlation ratios from
+         * each user preference to each candidate preference.
+         */
+        CATALOG_SCAN,
+        /**
+         * Starts from the user's preferences in the graph and accumulates the correlation ratios of
+         * their outgoing correlations, so preferences without a correlation to the user are never
+         * visited.
+         */
+        NEIGHBORHOOD
+    }
+    
+    // This comparator simply orders tuples by correlation score
+    private static final Comparator<Tuple2<Preference, Double>> ENTRY_COMPARATOR = (e1, e2) -> (e1
+            ._2() - e2._2()) > 0.0 ? 1 : -1;
+    
+    private final int batchSize;
+    private final ScoringMode scoringMode;
+    private final ExecutorService executor;
+    private final int maxInFlightBatches;
     
     /**
      * 
@@ -45,7 +85,53 @@ public class GenerateRecommendationDaemon {
      *        batch before processing the next batch.
      */
     public GenerateRecommendationDaemon(int batchSize) {
+        this(batchSize, ScoringMode.CATALOG_SCAN);
+    }
+    
+    /**
+     * Constructor that selects how correlation scores are calculated.
+     * 
+     * @param batchSize See {@link #GenerateRecommendationDaemon(int)}. Not used in
+     *        {@link ScoringMode#NEIGHBORHOOD} mode.
+     * @param scoringMode
+     * @throws IllegalArgumentException if scoringMode is null
+     */
+    public GenerateRecommendationDaemon(int batchSize, ScoringMode scoringMode) {
+        if (scoringMode == null) {
+            throw new IllegalArgumentException("Scoring mode cannot be null!");
+        }
         this.batchSize = batchSize;
+        this.scoringMode = scoringMode;
+        this.executor = null;
+        this.maxInFlightBatches = 0;
+    }
+    
+    /**
+     * Constructor for parallel batch scoring. Each batch returned by the correlation graph is
+     * scored as a separate task on the supplied executor (e.g. a ForkJoinPool), while the calling
+     * thread keeps reading batches from the graph. Results are combined in batch order, so the
+     * recommendation is the same as the one produced by the sequential constructor.
+     * 
+     * @param batchSize See {@link #GenerateRecommendationDaemon(int)}
+     * @param executor Executor that scores the batches. It is owned by the caller, who is
+     *        responsible for shutting it down.
+     * @param maxInFlightBatches The maximum number of batches that may be submitted to the
+     *        executor but not yet combined. This bounds the number of batches held in memory at
+     *        once.
+     * @throws IllegalArgumentException if executor is null or maxInFlightBatches is less than 1
+     */
+    public GenerateRecommendationDaemon(int batchSize, ExecutorService executor,
+            int maxInFlightBatches) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null!");
+        }
+        if (maxInFlightBatches < 1) {
+            throw new IllegalArgumentException("There must be at least one batch in flight!");
+        }
+        this.batchSize = batchSize;
+        this.scoringMode = ScoringMode.CATALOG_SCAN;
+        this.executor = executor;
+        this.maxInFlightBatches = maxInFlightBatches;
     }
     
     UserRecommendationCorrelationScores calculateCorrelationScores(UserProfile user,
@@ -61,18 +147,79 @@ public class GenerateRecommendationDaemon {
         // correlation scores across all user preferences. Return a map of candidate preference to
         // the sum of the correlation scores for
         // that preference.
-        return new UserRecommendationCorrelationScores(calculateCorrelationScores(userPreferences,
-                candidatePreferences), user);
+        return calculateCorrelationScores(user, userPreferences, candidatePreferences);
     }
     
-    private Map<Preference, Double> calculateCorrelationScores(Set<Preference> userPreferences,
-            Set<Preference> candidatePreferences) {
-        return candidatePreferences
-                .stream()
-                .map(pref -> new Tuple2<Preference, Double>(pref, userPreferences.stream()
-                        .map(userPref -> getCorrelationRatio(pref, userPref))
-                        .reduce(0.0, (a, b) -> a + b))).filter(tuple -> tuple._2() > 0)
-                .collect(Collectors.toMap(pair -> pair._1(), pair -> pair._2()));
+    private UserRecommendationCorrelationScores calculateCorrelationScores(UserProfile user,
+            Set<Preference> userPreferences, Set<Preference> candidatePreferences) {
+        PreferenceDictionary dictionary = new PreferenceDictionary();
+        DoubleScoreTable correlationScores = new DoubleScoreTable();
+        if (userPreferences != null) {
+            // Plain loops with a primitive sum, so nothing is allocated for candidates without a
+            // positive score
+            for (Preference pref : candidatePreferences) {
+                double score = 0.0;
+                for (Preference userPref : userPreferences) {
+                    score += getCorrelationRatio(pref, userPref);
+                }
+                if (score > 0) {
+                    correlationScores.put(dictionary.encode(pref), score);
+                }
+            }
+        }
+        return new UserRecommendationCorrelationScores(correlationScores, dictionary, user);
+    }
+    
+    /**
+     * Calculates the correlation scores of every preference correlated with the user's preferences
+     * in a category, starting from the user's preferences in the graph. The user's preferences are
+     * read from the graph, so the graph's correlations and popularities are used. If a user
+     * preference is missing from the graph, the copy in the user profile is used instead.
+     * 
+     * @param user
+     * @param preferenceCategory
+     * @param correlationGraph
+     * @return correlation scores, keyed by the destination preferences of the correlations
+     */
+    UserRecommendationCorrelationScores calculateNeighborhoodCorrelationScores(UserProfile user,
+            PreferenceCategory preferenceCategory, PreferenceCorrelationGraph correlationGraph) {
+        Set<Preference> userPreferences = user.getPreferencesForCategory(preferenceCategory);
+        if (userPreferences == null) {
+            return new UserRecommendationCorrelationScores(new DoubleScoreTable(),
+                    new PreferenceDictionary(), user);
+        }
+        
+        // Look up the user's preferences first, so the score table can be sized for every
+        // correlation up front and never has to grow
+        Preference[] sourcePrefs = new Preference[userPreferences.size()];
+        int numCorrelations = 0;
+        int numSources = 0;
+        for (Preference userPref : userPreferences) {
+            Preference sourcePref = correlationGraph.getPreference(userPref.getID(),
+                    preferenceCategory);
+            sourcePrefs[numSources] = sourcePref == null ? userPref : sourcePref;
+            numCorrelations += sourcePrefs[numSources++].getCorrelations().size();
+        }
+        PreferenceDictionary dictionary = new PreferenceDictionary(numCorrelations);
+        DoubleScoreTable correlationScores = new DoubleScoreTable(numCorrelations);
+        
+        for (Preference sourcePref : sourcePrefs) {
+            // Accumulate the correlation ratio of each correlated preference that doesn't
+            // already belong to the user, under its handle in the dictionary
+            for (PreferenceCorrelation correlation : sourcePref.getCorrelations()) {
+                Preference candidatePref = correlation.getToPreference();
+                if (candidatePref.getCategory() == preferenceCategory
+                        && !userPreferences.contains(candidatePref)) {
+                    correlationScores.add(dictionary.encode(candidatePref),
+                            correlation.getCorrelationRatio(sourcePref.getPopularity()));
+                }
+            }
+        }
+        
+        // Match the catalog scan, which drops candidates without a positive score
+        correlationScores.removeIf(score -> score <= 0);
+        
+        return new UserRecommendationCorrelationScores(correlationScores, dictionary, user);
     }
     
     /**
@@ -120,35 +267,264 @@ public class GenerateRecommendationDaemon {
      */
     public Optional<Recommendation> getRecommendation(PreferenceCategory preferenceCategory,
             UserProfile user, PreferenceCorrelationGraph correlationGraph) {
+        if (this.scoringMode == ScoringMode.NEIGHBORHOOD) {
+            return getNeighborhoodRecommendations(preferenceCategory, user, correlationGraph, 1)
+                    .stream().findFirst();
+        }
+        
+        // Batches of preferences from the correlation graph, with each batch matching the batch
+        // size
+        Iterator<List<Preference>> preferences = correlationGraph.batchGetPreferences(
+                preferenceCategory, batchSize);
         
-        // Returns batches of preferences from the correlation graph, with each batch matching the
-        // batch size
-        Stream<List<Preference>> preferences = StreamUtils.asStream(correlationGraph
-                .batchGetPreferences(preferenceCategory, batchSize));
-        
-        // For each batch, calculate a map of preference to total correlation score
-        Stream<UserRecommendationCorrelationScores> prefsToScores = preferences
-                .map(preferenceBatch -> calculateCorrelationScores(user, preferenceBatch,
-                        preferenceCategory));
-        
-        // This comparator simply orders tuples by correlation score
-        Comparator<Tuple2<Preference, Double>> entryComparator = (e1, e2) -> (e1._2() - e2._2()) > 0.0 ? 1
-                : -1;
-        
-        Optional<Tuple2<Preference, Double>> topScoredEntry = prefsToScores
-                // For each batch find the map entry with highest correlation score
-                .map(correlationScores -> correlationScores
-                        .getMaxRecommendedPreferenceAndCorrelation())
-                // Filter out empty batches
-                .filter(optionalEntry -> optionalEntry.isPresent())
-                // Just get the actual map entries from the Optional object
-                .map(optionalEntry -> optionalEntry.get())
-                // You now have the max entries of each batch, next get the max entry amongst all of
-                // the batches
-                .max(entryComparator);
+        // For each batch, calculate a map of preference to total correlation score and find the
+        // entry with the highest correlation score. Then get the max entry amongst all of the
+        // batches.
+        Optional<Tuple2<Preference, Double>> topScoredEntry = scoreBatches(preferences,
+                preferenceBatch -> calculateCorrelationScores(user, preferenceBatch,
+                        preferenceCategory).getMaxRecommendedPreferenceAndCorrelation(),
+                Optional.empty(), GenerateRecommendationDaemon::maxEntry);
         
         // Finally create a recommendation object out of the map entry with the greatest correlation
         // score
         return topScoredEntry.map(tuple -> new Recommendation(tuple._1(), user, tuple._2()));
     }
-}
\ No newline at end of file
+    
+    /**
+     * Find the best preference recommendation in each of several categories with a single scan of
+     * the graph, rather than one scan per category.
+     * 
+     * @param preferenceCategories The categories to recommend preferences in, e.g. books and movies
+     * @param user User profile, which includes the preferences that belong to the user
+     * @param correlationGraph Graph that allows one to access all preferences and their correlated
+     *        preferences
+     * @return The recommendation for each requested category, which is empty if no preference in
+     *         that category is correlated with the user's preferences
+     */
+    public Map<PreferenceCategory, Optional<Recommendation>> getRecommendationsByCategory(
+            Set<PreferenceCategory> preferenceCategories, UserProfile user,
+            PreferenceCorrelationGraph correlationGraph) {
+        Map<PreferenceCategory, Optional<Recommendation>> recommendations = new EnumMap<PreferenceCategory, Optional<Recommendation>>(
+                PreferenceCategory.class);
+        
+        // Neighborhood scoring never scans, so there is nothing to share between categories
+        if (this.scoringMode == ScoringMode.NEIGHBORHOOD) {
+            for (PreferenceCategory preferenceCategory : preferenceCategories) {
+                recommendations.put(preferenceCategory,
+                        getRecommendation(preferenceCategory, user, correlationGraph));
+            }
+            return recommendations;
+        }
+        
+        Iterator<List<Preference>> preferences = correlationGraph.batchGetPreferences(
+                preferenceCategories, batchSize);
+        
+        // For each batch, find the entry with the highest correlation score in every category of
+        // the batch, then get the max entry of each category amongst all of the batches
+        Map<PreferenceCategory, Optional<Tuple2<Preference, Double>>> topScoredEntries = scoreBatches(
+                preferences, preferenceBatch -> getMaxEntriesByCategory(user, preferenceBatch),
+                new EnumMap<PreferenceCategory, Optional<Tuple2<Preference, Double>>>(
+                        PreferenceCategory.class), (entries, batchEntries) -> {
+                    batchEntries.forEach((preferenceCategory, entry) -> entries.merge(
+                            preferenceCategory, entry, GenerateRecommendationDaemon::maxEntry));
+                    return entries;
+                });
+        
+        for (PreferenceCategory preferenceCategory : preferenceCategories) {
+            recommendations.put(preferenceCategory,
+                    topScoredEntries.getOrDefault(preferenceCategory, Optional.empty()).map(
+                            tuple -> new Recommendation(tuple._1(), user, tuple._2())));
+        }
+        return recommendations;
+    }
+    
+    /**
+     * Splits a batch that may hold several categories by category, and finds the entry with the
+     * highest correlation score in each.
+     * 
+     * @param user
+     * @param preferenceBatch
+     * @return max entry of each category in the batch
+     */
+    private Map<PreferenceCategory, Optional<Tuple2<Preference, Double>>> getMaxEntriesByCategory(
+            UserProfile user, List<Preference> preferenceBatch) {
+        Map<PreferenceCategory, List<Preference>> batchesByCategory = preferenceBatch.stream()
+                .collect(Collectors.groupingBy(Preference::getCategory));
+        
+        Map<PreferenceCategory, Optional<Tuple2<Preference, Double>>> maxEntries = new EnumMap<PreferenceCategory, Optional<Tuple2<Preference, Double>>>(
+                PreferenceCategory.class);
+        batchesByCategory.forEach((preferenceCategory, categoryBatch) -> maxEntries.put(
+                preferenceCategory, calculateCorrelationScores(user, categoryBatch,
+                        preferenceCategory).getMaxRecommendedPreferenceAndCorrelation()));
+        return maxEntries;
+    }
+    
+    /**
+     * Find the k best preference recommendations, based on correlation score, relative to user
+     * preferences. All k are found in a single scan of the category: each batch keeps a bounded
+     * min-heap of its top k entries, and the batch heaps are merged into one.
+     * 
+     * @param preferenceCategory Constrains preference recommendations to the category of
+     *        preferences specified, e.g. books
+     * @param user User profile, which includes the preferences that belong to the user
+     * @param correlationGraph Graph that allows one to access all preferences and their correlated
+     *        preferences
+     * @param k The maximum number of recommendations to return
+     * @return Up to k recommendations, ordered from highest to lowest correlation score
+     * @throws IllegalArgumentException if k is less than 1
+     */
+    public List<Recommendation> getRecommendations(PreferenceCategory preferenceCategory,
+            UserProfile user, PreferenceCorrelationGraph correlationGraph, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("At least one recommendation must be requested!");
+        }
+        if (this.scoringMode == ScoringMode.NEIGHBORHOOD) {
+            return getNeighborhoodRecommendations(preferenceCategory, user, correlationGraph, k);
+        }
+        
+        Iterator<List<Preference>> preferences = correlationGraph.batchGetPreferences(
+                preferenceCategory, batchSize);
+        
+        BoundedPriorityQueue<Tuple2<Preference, Double>> topScoredEntries = scoreBatches(
+                preferences,
+                preferenceBatch -> calculateCorrelationScores(user, preferenceBatch,
+                        preferenceCategory).getTopRecommendedPreferencesAndCorrelations(k),
+                new BoundedPriorityQueue<Tuple2<Preference, Double>>(k,
+                        UserRecommendationCorrelationScores.SCORE_ORDER),
+                BoundedPriorityQueue::merge);
+        
+        return toRecommendations(topScoredEntries.toSortedList(), user);
+    }
+    
+    /**
+     * Finds the k best recommendations in {@link ScoringMode#NEIGHBORHOOD} mode. Candidates are the
+     * destinations of correlations, so they are looked up in the graph to make sure they still
+     * exist and to return the full preference, as the catalog scan does.
+     * 
+     * @param preferenceCategory
+     * @param user
+     * @param correlationGraph
+     * @param k
+     * @return Up to k recommendations, ordered from highest to lowest correlation score
+     */
+    private List<Recommendation> getNeighborhoodRecommendations(
+            PreferenceCategory preferenceCategory, UserProfile user,
+            PreferenceCorrelationGraph correlationGraph, int k) {
+        UserRecommendationCorrelationScores correlationScores = calculateNeighborhoodCorrelationScores(
+                user, preferenceCategory, correlationGraph);
+        
+        // Widen the search whenever some of the top candidates have been deleted from the graph
+        int limit = k;
+        while (true) {
+            List<Tuple2<Preference, Double>> topScoredEntries = correlationScores
+                    .getTopRecommendedPreferencesAndCorrelations(limit).toSortedList();
+            List<Recommendation> recommendations = new ArrayList<Recommendation>();
+            for (Tuple2<Preference, Double> entry : topScoredEntries) {
+                Preference preference = correlationGraph.getPreference(entry._1().getID(),
+                        preferenceCategory);
+                if (preference != null && recommendations.size() < k) {
+                    recommendations.add(new Recommendation(preference, user, entry._2()));
+                }
+            }
+            if (recommendations.size() == k || topScoredEntries.size() < limit) {
+                return recommendations;
+            }
+            limit += k;
+        }
+    }
+    
+    /**
+     * Creates recommendation objects out of scored entries, preserving their order.
+     * 
+     * @param scoredEntries
+     * @param user
+     * @return recommendations
+     */
+    private static List<Recommendation> toRecommendations(
+            List<Tuple2<Preference, Double>> scoredEntries, UserProfile user) {
+        return scoredEntries.stream()
+                .map(tuple -> new Recommendation(tuple._1(), user, tuple._2()))
+                .collect(Collectors.toList());
+    }
+    
+    /**
+     * Picks the entry with the higher correlation score, ignoring empty batches. Ties go to the
+     * later entry, which matches Stream.max.
+     * 
+     * @param e1
+     * @param e2
+     * @return entry with the higher correlation score
+     */
+    private static Optional<Tuple2<Preference, Double>> maxEntry(
+            Optional<Tuple2<Preference, Double>> e1, Optional<Tuple2<Preference, Double>> e2) {
+        if (!e1.isPresent()) {
+            return e2;
+        }
+        if (!e2.isPresent()) {
+            return e1;
+        }
+        return ENTRY_COMPARATOR.compare(e1.get(), e2.get()) >= 0 ? e1 : e2;
+    }
+    
+    /**
+     * Scores every batch and folds the per-batch results together in batch order. Batches are
+     * scored on the calling thread, unless an executor was supplied, in which case at most
+     * maxInFlightBatches batches are scored concurrently.
+     * 
+     * @param batches Batches of preferences from the correlation graph
+     * @param scorer Computes the result for a single batch
+     * @param identity Result when there are no batches
+     * @param combiner Folds a batch result into the running result
+     * @return combined result of all batches
+     */
+    private <T> T scoreBatches(Iterator<List<Preference>> batches,
+            Function<List<Preference>, T> scorer, T identity, BinaryOperator<T> combiner) {
+        if (this.executor == null) {
+            return StreamUtils.asStream(batches).map(scorer).reduce(identity, combiner);
+        }
+        
+        Deque<Future<T>> inFlight = new ArrayDeque<Future<T>>();
+        T result = identity;
+        try {
+            while (batches.hasNext()) {
+                List<Preference> batch = batches.next();
+                // Wait for the oldest batch before submitting another one
+                if (inFlight.size() >= this.maxInFlightBatches) {
+                    result = combiner.apply(result, awaitBatch(inFlight.poll()));
+                }
+                inFlight.add(this.executor.submit(() -> scorer.apply(batch)));
+            }
+            while (!inFlight.isEmpty()) {
+                result = combiner.apply(result, awaitBatch(inFlight.poll()));
+            }
+        } finally {
+            // Only non-empty if a batch failed, in which case the rest of the work is pointless
+            for (Future<T> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Waits for a batch scored on the executor to finish.
+     * 
+     * @param future
+     * @return batch result
+     * @throws IllegalStateException if the thread is interrupted or the batch fails with a checked
+     *         exception
+     */
+    private static <T> T awaitBatch(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scoring preference batches!", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to score preference batch!", e.getCause());
+        }
+    }
+}
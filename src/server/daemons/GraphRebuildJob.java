@@ -0,0 +1,448 @@
+package server.daemons;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import util.PairCountTable;
+import data.proxy.PreferenceCorrelationGraph;
+import data.proxy.UserProfileStore;
+import data.structure.Preference;
+import data.structure.PreferenceCorrelation;
+import data.structure.PreferenceDictionary;
+import data.structure.UserProfile;
+
+/**
+ * Rebuilds the preference correlation graph from the user profiles, which repairs popularities and
+ * correlation weights that have drifted, e.g. after a propagation failed or was applied twice. The
+ * popularity of a preference is the number of users who have it, and the weight of the correlation
+ * between two preferences of the same category is the number of users who have both, exactly as
+ * UpdatePreferenceDaemon would have built them one change at a time.
+ *
+ * The counts are a map-reduce. The profiles are streamed from the store in batches and their
+ * preferences are translated to int IDs in a {@link PreferenceDictionary} on the calling thread.
+ * The batches are then counted, optionally in parallel, into one of several sets of primitive
+ * counts, each of which is only used by one batch at a time. Each set splits its pair counts into
+ * partitions by the lower ID of the pair, and the sets are merged one partition at a time. Every
+ * pair is counted once, and written in both directions.
+ *
+ * The preferences are written with putPreference() on the calling thread, so the graph need not be
+ * thread-safe. The graph should be empty, since preferences that no user has are not deleted.
+ */
+public class GraphRebuildJob {
+    
+    /**
+     * What a run of the job did and how long it took.
+     */
+    public static class RebuildStats {
+        private final long users;
+        private final long preferences;
+        private final long correlations;
+        private final long elapsedNanos;
+        
+        /**
+         *
+         * @param users The number of users read
+         * @param preferences The number of preferences written
+         * @param correlations The number of correlations written, counting each direction
+         * @param elapsedNanos Wall clock time of the run
+         */
+        public RebuildStats(long users, long preferences, long correlations, long elapsedNanos) {
+            this.users = users;
+            this.preferences = preferences;
+            this.correlations = correlations;
+            this.elapsedNanos = elapsedNanos;
+        }
+        
+        public long getUsers() {
+            return users;
+        }
+        
+        public long getPreferences() {
+            return preferences;
+        }
+        
+        public long getCorrelations() {
+            return correlations;
+        }
+        
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+        
+        /**
+         *
+         * @return Users read per second of wall clock time
+         */
+        public double getUsersPerSecond() {
+            return perSecond(users);
+        }
+        
+        /**
+         *
+         * @return Correlations written per second of wall clock time
+         */
+        public double getCorrelationsPerSecond() {
+            return perSecond(correlations);
+        }
+        
+        private double perSecond(long count) {
+            return elapsedNanos == 0 ? 0.0 : count * (double) TimeUnit.SECONDS.toNanos(1)
+                    / elapsedNanos;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d users, %d preferences, %d correlations in %.3f s (%.1f users/s, %.1f correlations/s)",
+                    users, preferences, correlations, elapsedNanos
+                            / (double) TimeUnit.SECONDS.toNanos(1), getUsersPerSecond(),
+                    getCorrelationsPerSecond());
+        }
+    }
+    
+    /**
+     * The preferences of a batch of users as int IDs, grouped by user and category. Group i
+     * occupies [groupEnds[i - 1], groupEnds[i]) of ids.
+     */
+    private static class EncodedBatch {
+        private final int[] ids;
+        private final int[] groupEnds;
+        private final int numGroups;
+        // Every ID in the batch is lower than this
+        private final int idLimit;
+        
+        /**
+         *
+         * @param ids
+         * @param groupEnds
+         * @param numGroups
+         * @param idLimit
+         */
+        private EncodedBatch(int[] ids, int[] groupEnds, int numGroups, int idLimit) {
+            this.ids = ids;
+            this.groupEnds = groupEnds;
+            this.numGroups = numGroups;
+            this.idLimit = idLimit;
+        }
+    }
+    
+    /**
+     * Popularities and pair counts of some of the users. Pair (a, b), where a < b, is counted in
+     * partition a % number of partitions.
+     */
+    private static class Counts {
+        private int[] popularities;
+        private final PairCountTable[] pairs;
+        
+        /**
+         *
+         * @param numPartitions
+         */
+        private Counts(int numPartitions) {
+            this.popularities = new int[0];
+            this.pairs = new PairCountTable[numPartitions];
+            for (int i = 0; i < numPartitions; i++) {
+                this.pairs[i] = new PairCountTable();
+            }
+        }
+        
+        /**
+         * Counts the preferences of a batch of users, and every pair of preferences within each
+         * of their categories.
+         *
+         * @param batch
+         */
+        private void count(EncodedBatch batch) {
+            if (this.popularities.length < batch.idLimit) {
+                this.popularities = Arrays.copyOf(this.popularities, Math.max(batch.idLimit,
+                        this.popularities.length * 2));
+            }
+            int start = 0;
+            for (int group = 0; group < batch.numGroups; group++) {
+                int end = batch.groupEnds[group];
+                for (int i = start; i < end; i++) {
+                    int id = batch.ids[i];
+                    this.popularities[id]++;
+                    for (int j = i + 1; j < end; j++) {
+                        int other = batch.ids[j];
+                        int lower = Math.min(id, other);
+                        this.pairs[lower % this.pairs.length].add(lower, Math.max(id, other), 1);
+                    }
+                }
+                start = end;
+            }
+        }
+    }
+    
+    private final int batchSize;
+    private final ExecutorService executor;
+    private final int parallelism;
+    
+    /**
+     * Constructor for a job that counts every batch on the calling thread.
+     *
+     * @param batchSize The number of users that are read from storage at once
+     * @throws IllegalArgumentException if batchSize is less than 1
+     */
+    public GraphRebuildJob(int batchSize) {
+        this(batchSize, null, 1);
+    }
+    
+    /**
+     * Constructor for a job that counts batches of users in parallel.
+     *
+     * @param batchSize The number of users that are read from storage at once
+     * @param executor Executor that counts the batches and merges the partitions, or null to do
+     *        both on the calling thread
+     * @param parallelism The number of sets of counts, and so the number of batches counted at
+     *        once, as well as the number of partitions merged separately. At most twice as many
+     *        batches are submitted to the executor but not yet counted.
+     * @throws IllegalArgumentException if batchSize or parallelism is less than 1
+     */
+    public GraphRebuildJob(int batchSize, ExecutorService executor, int parallelism) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1!");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1!");
+        }
+        this.batchSize = batchSize;
+        this.executor = executor;
+        this.parallelism = executor == null ? 1 : parallelism;
+    }
+    
+    /**
+     * Rebuilds the graph from every user in the store.
+     *
+     * @param userStore Store of all users
+     * @param graph Graph to write the preferences to, which should be empty
+     * @return stats of the run
+     */
+    public RebuildStats run(UserProfileStore userStore, PreferenceCorrelationGraph graph) {
+        long start = System.nanoTime();
+        PreferenceDictionary dictionary = new PreferenceDictionary();
+        List<Counts> allCounts = new ArrayList<Counts>(this.parallelism);
+        for (int i = 0; i < this.parallelism; i++) {
+            allCounts.add(new Counts(this.parallelism));
+        }
+        
+        // Map
+        long users = 0;
+        Iterator<List<UserProfile>> userBatches = userStore.batchGetProfiles(this.batchSize);
+        if (this.executor == null) {
+            while (userBatches.hasNext()) {
+                List<UserProfile> batch = userBatches.next();
+                allCounts.get(0).count(encode(dictionary, batch));
+                users += batch.size();
+            }
+        } else {
+            BlockingQueue<Counts> idleCounts = new ArrayBlockingQueue<Counts>(this.parallelism,
+                    false, allCounts);
+            Deque<Future<?>> inFlight = new ArrayDeque<Future<?>>();
+            try {
+                while (userBatches.hasNext()) {
+                    List<UserProfile> batch = userBatches.next();
+                    EncodedBatch encoded = encode(dictionary, batch);
+                    users += batch.size();
+                    // Wait for the oldest batch before submitting another one
+                    if (inFlight.size() >= 2 * this.parallelism) {
+                        await(inFlight.poll());
+                    }
+                    inFlight.add(this.executor.submit(() -> {
+                        Counts counts = idleCounts.take();
+                        try {
+                            counts.count(encoded);
+                        } finally {
+                            idleCounts.add(counts);
+                        }
+                        return null;
+                    }));
+                }
+                while (!inFlight.isEmpty()) {
+                    await(inFlight.poll());
+                }
+            } finally {
+                // Only non-empty if a batch failed, in which case the rest of the work is pointless
+                for (Future<?> batch : inFlight) {
+                    batch.cancel(true);
+                }
+            }
+        }
+        
+        // Reduce
+        int numPreferences = dictionary.size();
+        int[] popularities = new int[numPreferences];
+        for (Counts counts : allCounts) {
+            for (int id = 0; id < Math.min(counts.popularities.length, numPreferences); id++) {
+                popularities[id] += counts.popularities[id];
+            }
+        }
+        PairCountTable[] pairs = mergePartitions(allCounts);
+        
+        long correlations = write(graph, dictionary, popularities, pairs);
+        return new RebuildStats(users, numPreferences, correlations, System.nanoTime() - start);
+    }
+    
+    /**
+     * Translates the preferences of a batch of users to int IDs, assigning IDs to new preferences.
+     *
+     * @param dictionary
+     * @param users
+     * @return encoded batch
+     */
+    private static EncodedBatch encode(PreferenceDictionary dictionary, List<UserProfile> users) {
+        int numIds = 0;
+        int numGroups = 0;
+        for (UserProfile user : users) {
+            for (Set<Preference> preferences : user.getPreferences().values()) {
+                numIds += preferences.size();
+                numGroups++;
+            }
+        }
+        int[] ids = new int[numIds];
+        int[] groupEnds = new int[numGroups];
+        int next = 0;
+        int group = 0;
+        for (UserProfile user : users) {
+            for (Set<Preference> preferences : user.getPreferences().values()) {
+                for (Preference preference : preferences) {
+                    ids[next++] = dictionary.encode(preference);
+                }
+                groupEnds[group++] = next;
+            }
+        }
+        return new EncodedBatch(ids, groupEnds, numGroups, dictionary.size());
+    }
+    
+    /**
+     * Merges the pair counts of every set of counts, one partition at a time.
+     *
+     * @param allCounts
+     * @return merged pair counts of each partition
+     */
+    private PairCountTable[] mergePartitions(List<Counts> allCounts) {
+        PairCountTable[] merged = new PairCountTable[this.parallelism];
+        List<Callable<PairCountTable>> merges = new ArrayList<Callable<PairCountTable>>();
+        for (int i = 0; i < this.parallelism; i++) {
+            int partition = i;
+            merges.add(() -> {
+                // Merge into the largest table, so the fewest pairs are rehashed
+                PairCountTable largest = allCounts.get(0).pairs[partition];
+                for (Counts counts : allCounts) {
+                    if (counts.pairs[partition].size() > largest.size()) {
+                        largest = counts.pairs[partition];
+                    }
+                }
+                for (Counts counts : allCounts) {
+                    if (counts.pairs[partition] != largest) {
+                        largest.addAll(counts.pairs[partition]);
+                    }
+                }
+                return largest;
+            });
+        }
+        
+        if (this.executor == null) {
+            for (int i = 0; i < merges.size(); i++) {
+                try {
+                    merged[i] = merges.get(i).call();
+                } catch (Exception e) {
+                    throw new IllegalStateException("Failed to merge pair counts!", e);
+                }
+            }
+            return merged;
+        }
+        try {
+            List<Future<PairCountTable>> futures = this.executor.invokeAll(merges);
+            for (int i = 0; i < futures.size(); i++) {
+                merged[i] = await(futures.get(i));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while merging pair counts!", e);
+        }
+        return merged;
+    }
+    
+    /**
+     * Writes every preference with its popularity and its correlations in both directions.
+     *
+     * @param graph
+     * @param dictionary
+     * @param popularities
+     * @param pairs
+     * @return number of correlations written
+     */
+    private static long write(PreferenceCorrelationGraph graph, PreferenceDictionary dictionary,
+            int[] popularities, PairCountTable[] pairs) {
+        // Lay the correlations of each preference out contiguously, as in a CSR matrix
+        int numPreferences = dictionary.size();
+        int[] offsets = new int[numPreferences + 1];
+        for (PairCountTable partition : pairs) {
+            partition.forEach((first, second, count) -> {
+                offsets[first + 1]++;
+                offsets[second + 1]++;
+            });
+        }
+        for (int id = 0; id < numPreferences; id++) {
+            offsets[id + 1] += offsets[id];
+        }
+        int[] cursors = Arrays.copyOf(offsets, numPreferences);
+        int[] columns = new int[offsets[numPreferences]];
+        int[] weights = new int[offsets[numPreferences]];
+        for (PairCountTable partition : pairs) {
+            partition.forEach((first, second, count) -> {
+                columns[cursors[first]] = second;
+                weights[cursors[first]++] = count;
+                columns[cursors[second]] = first;
+                weights[cursors[second]++] = count;
+            });
+        }
+        
+        for (int id = 0; id < numPreferences; id++) {
+            Preference key = dictionary.getPreference(id);
+            Preference preference = new Preference(key.getID(), key.getCategory(),
+                    popularities[id]);
+            for (int i = offsets[id]; i < offsets[id + 1]; i++) {
+                preference.addCorrelation(new PreferenceCorrelation(dictionary
+                        .getPreference(columns[i]), weights[i]));
+            }
+            graph.putPreference(preference);
+        }
+        return columns.length;
+    }
+    
+    /**
+     * Waits for a task submitted to the executor to finish.
+     *
+     * @param future
+     * @return task result
+     * @throws IllegalStateException if the thread is interrupted or the task fails with a checked
+     *         exception
+     */
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while rebuilding the graph!", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to rebuild the graph!", e.getCause());
+        }
+    }
+}
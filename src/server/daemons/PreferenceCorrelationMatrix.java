@@ -0,0 +1,182 @@
+package server.daemons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import data.proxy.PreferenceCorrelationGraph;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.PreferenceDictionary;
+
+/**
+ * The correlations of one category of the preference correlation graph, as a sparse matrix in
+ * compressed sparse row (CSR) form. Every preference in the category is given an ordinal, i.e. its
+ * int ID in a {@link PreferenceDictionary}. Row i
+ * holds the correlation ratios, i.e. weight/popularity, from preference i to each preference it is
+ * correlated with. A user's correlation scores are then the sum of the rows of the user's
+ * preferences, so scoring every user is a sparse matrix multiplication of the user x preference
+ * matrix by this one.
+ */
+public class PreferenceCorrelationMatrix {
+    private final PreferenceCategory category;
+    private final PreferenceDictionary dictionary;
+    private final int[] rowOffsets;
+    private final int[] columns;
+    private final double[] ratios;
+    
+    /**
+     *
+     * @param category
+     * @param dictionary Ordinal of each preference
+     * @param rowOffsets Row i occupies [rowOffsets[i], rowOffsets[i + 1]) of columns and ratios
+     * @param columns Ordinal of the destination preference of each correlation
+     * @param ratios Correlation ratio of each correlation
+     */
+    private PreferenceCorrelationMatrix(PreferenceCategory category,
+            PreferenceDictionary dictionary, int[] rowOffsets, int[] columns, double[] ratios) {
+        this.category = category;
+        this.dictionary = dictionary;
+        this.rowOffsets = rowOffsets;
+        this.columns = columns;
+        this.ratios = ratios;
+    }
+    
+    /**
+     * Builds the matrix for a category from a single scan of the graph. Correlations to
+     * preferences in other categories, or to preferences that are no longer in the graph, are
+     * left out, as are correlations whose ratio is not positive.
+     *
+     * @param correlationGraph
+     * @param category
+     * @param batchSize The batch size used to scan the graph
+     * @return matrix of the category's correlation ratios
+     */
+    public static PreferenceCorrelationMatrix build(PreferenceCorrelationGraph correlationGraph,
+            PreferenceCategory category, int batchSize) {
+        List<Preference> scanned = new ArrayList<Preference>();
+        Iterator<List<Preference>> batches = correlationGraph.batchGetPreferences(category,
+                batchSize);
+        while (batches.hasNext()) {
+            scanned.addAll(batches.next());
+        }
+        
+        // Ordinals must all be known before any row can be written
+        PreferenceDictionary dictionary = new PreferenceDictionary(scanned.size());
+        int numCorrelations = 0;
+        for (Preference preference : scanned) {
+            dictionary.encode(preference);
+            numCorrelations += preference.getCorrelations().size();
+        }
+        
+        int numPreferences = dictionary.size();
+        int[] rowOffsets = new int[numPreferences + 1];
+        int[] columns = new int[numCorrelations];
+        double[] ratios = new double[numCorrelations];
+        int entry = 0;
+        for (int i = 0; i < numPreferences; i++) {
+            rowOffsets[i] = entry;
+            Preference preference = dictionary.getPreference(i);
+            int popularity = preference.getPopularity();
+            for (PreferenceCorrelation correlation : preference.getCorrelations()) {
+                int column = dictionary.getId(correlation.getToPreference());
+                double ratio = correlation.getCorrelationRatio(popularity);
+                if (column >= 0 && ratio > 0) {
+                    columns[entry] = column;
+                    ratios[entry] = ratio;
+                    entry++;
+                }
+            }
+        }
+        rowOffsets[numPreferences] = entry;
+        
+        return new PreferenceCorrelationMatrix(category, dictionary, rowOffsets, columns, ratios);
+    }
+    
+    public PreferenceCategory getCategory() {
+        return category;
+    }
+    
+    /**
+     *
+     * @return The number of preferences, i.e. both the number of rows and of columns
+     */
+    public int size() {
+        return dictionary.size();
+    }
+    
+    /**
+     *
+     * @return The number of stored correlations
+     */
+    public int getNumCorrelations() {
+        return rowOffsets[dictionary.size()];
+    }
+    
+    /**
+     *
+     * @param ordinal
+     * @return The preference with the given ordinal
+     */
+    public Preference getPreference(int ordinal) {
+        return dictionary.getPreference(ordinal);
+    }
+    
+    /**
+     * 
+     * @return The dictionary that maps each preference to its ordinal
+     */
+    public PreferenceDictionary getDictionary() {
+        return dictionary;
+    }
+    
+    /**
+     * Converts a set of preferences to their ordinals. Preferences that are not in the matrix are
+     * skipped.
+     *
+     * @param preferences
+     * @return ordinals, without duplicates
+     */
+    public int[] toOrdinals(Set<Preference> preferences) {
+        if (preferences == null) {
+            return new int[0];
+        }
+        int[] result = new int[preferences.size()];
+        int count = 0;
+        for (Preference preference : preferences) {
+            int ordinal = dictionary.getId(preference);
+            if (ordinal >= 0) {
+                result[count++] = ordinal;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+    
+    /**
+     * Adds the rows of the given preferences to a dense accumulator. This is one row of the sparse
+     * matrix product, computed with a dense accumulator and a list of the columns it touched, so
+     * the accumulator can be cleared in time proportional to the number of touched columns.
+     *
+     * @param rows Ordinals of the preferences whose rows are summed
+     * @param scores Dense accumulator of size {@link #size()}, all zero on entry
+     * @param touched Receives each column that became non-zero, must hold at least
+     *        {@link #size()} entries
+     * @return The number of columns written to touched
+     */
+    public int multiplyRows(int[] rows, double[] scores, int[] touched) {
+        int numTouched = 0;
+        for (int row : rows) {
+            for (int entry = rowOffsets[row]; entry < rowOffsets[row + 1]; entry++) {
+                int column = columns[entry];
+                if (scores[column] == 0.0) {
+                    touched[numTouched++] = column;
+                }
+                scores[column] += ratios[entry];
+            }
+        }
+        return numTouched;
+    }
+}
@@ -0,0 +1,33 @@
+package server.daemons;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.UserProfile;
+
+/**
+ * PreferenceUpdateListener is notified of every UpdatePreferenceRequest that UpdatePreferenceDaemon
+ * submits to the preference correlation graph. Each request is announced before it is submitted
+ * and reported again once the graph has finished with it, so listeners know which updates may be
+ * partially visible in the graph at any time.
+ */
+public interface PreferenceUpdateListener {
+
+    /**
+     * Called before a request is submitted to the graph. The request already carries its version.
+     *
+     * @param request
+     */
+    public void onUpdateSubmitted(UpdatePreferenceRequest request);
+
+    /**
+     * Called after the graph has finished with a request, whether or not it was applied.
+     *
+     * @param request
+     * @param user The user whose preference addition or removal caused the request
+     * @param action
+     * @param applied true if the graph applied the update, false if it was skipped as a duplicate
+     *        or failed
+     */
+    public void onUpdateCompleted(UpdatePreferenceRequest request, UserProfile user,
+            UpdateAction action, boolean applied);
+}
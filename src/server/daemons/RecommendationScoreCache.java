@@ -0,0 +1,377 @@
+package server.daemons;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+import util.Tuple2;
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.proxy.PreferenceCorrelationGraph;
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.Recommendation;
+import data.structure.UserProfile;
+import server.daemons.GenerateRecommendationDaemon.ScoringMode;
+
+/**
+ * RecommendationScoreCache keeps the correlation scores of active users materialized, so that a
+ * recommendation can be read without recalculating every score. Register it with
+ * UpdatePreferenceDaemon.addUpdateListener() and it applies every update the daemon submits to the
+ * cached scores through UserRecommendationCorrelationScores.applyPreferenceUpdate().
+ *
+ * Each cached entry holds a private copy of the user's preferences as they were in the graph when
+ * the entry was materialized. Updates are applied to that copy first, which gives
+ * applyPreferenceUpdate() the new weights and popularities it expects regardless of what else has
+ * happened to the graph since. Only updates to the user's own preferences are applied, because
+ * UpdatePreferenceDaemon always announces the mirrored update for the other direction of each
+ * correlation, even when the graph has symmetric correlations and is only written one of them,
+ * and the score of a candidate only depends on correlations from user preferences.
+ *
+ * The version of each update is used to detect duplicates: an update is applied only if it was
+ * announced through onUpdateSubmitted() and has not been completed yet. An entry is only cached if
+ * no update was in flight while it was being materialized, so no update is ever applied to scores
+ * that already include it. Changes to a user's own preferences invalidate that user's entries.
+ */
+public class RecommendationScoreCache implements PreferenceUpdateListener {
+
+    private final PreferenceCorrelationGraph graph;
+    private final GenerateRecommendationDaemon scorer;
+    private final Map<Tuple2<String, PreferenceCategory>, CachedScores> entries;
+    private final Map<Preference, Set<Tuple2<String, PreferenceCategory>>> entriesByUserPreference;
+    private final Set<Long> pendingVersions;
+    private long submittedUpdates;
+    private long duplicateUpdates;
+
+    /**
+     * Constructor requires the graph that the daemon updates and a limit on the number of cached
+     * entries.
+     *
+     * @param graph
+     * @param maxEntries The maximum number of (user, category) score maps to keep. The least
+     *        recently used entry is evicted beyond this.
+     * @throws IllegalArgumentException if graph is null or maxEntries is less than 1
+     */
+    public RecommendationScoreCache(PreferenceCorrelationGraph graph, int maxEntries) {
+        if (graph == null) {
+            throw new IllegalArgumentException("Graph cannot be null!");
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The cache must hold at least one entry!");
+        }
+        this.graph = graph;
+        this.scorer = new GenerateRecommendationDaemon(1, ScoringMode.NEIGHBORHOOD);
+        this.entriesByUserPreference = new HashMap<Preference, Set<Tuple2<String, PreferenceCategory>>>();
+        this.pendingVersions = new HashSet<Long>();
+        this.entries = new LinkedHashMap<Tuple2<String, PreferenceCategory>, CachedScores>(16,
+                0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Entry<Tuple2<String, PreferenceCategory>, CachedScores> eldest) {
+                if (size() > maxEntries) {
+                    unindex(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Finds the best recommendation for a user from the cached scores, materializing them first if
+     * necessary.
+     *
+     * @param preferenceCategory
+     * @param user
+     * @return recommendation, if any preference is correlated with the user's preferences
+     */
+    public Optional<Recommendation> getRecommendation(PreferenceCategory preferenceCategory,
+            UserProfile user) {
+        return getRecommendations(preferenceCategory, user, 1).stream().findFirst();
+    }
+
+    /**
+     * Finds the k best recommendations for a user from the cached scores, materializing them first
+     * if necessary. Cached scores are kept in score order, so this costs O(k) once materialized.
+     *
+     * @param preferenceCategory
+     * @param user
+     * @param k
+     * @return Up to k recommendations, ordered from highest to lowest correlation score
+     * @throws IllegalArgumentException if k is less than 1
+     */
+    public List<Recommendation> getRecommendations(PreferenceCategory preferenceCategory,
+            UserProfile user, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("At least one recommendation must be requested!");
+        }
+        CachedScores cachedScores = getScores(preferenceCategory, user);
+
+        List<Recommendation> recommendations = new ArrayList<Recommendation>();
+        synchronized (this) {
+            Iterator<Tuple2<Preference, Double>> ranked = cachedScores.ranking.iterator();
+            while (ranked.hasNext() && recommendations.size() < k) {
+                Tuple2<Preference, Double> entry = ranked.next();
+                recommendations.add(new Recommendation(entry._1(), user, entry._2()));
+            }
+        }
+        return recommendations;
+    }
+
+    /**
+     * Drops all cached entries of a user.
+     *
+     * @param userId
+     */
+    public synchronized void invalidate(String userId) {
+        for (PreferenceCategory category : PreferenceCategory.values()) {
+            Tuple2<String, PreferenceCategory> key = new Tuple2<String, PreferenceCategory>(userId,
+                    category);
+            CachedScores cachedScores = this.entries.remove(key);
+            if (cachedScores != null) {
+                unindex(key, cachedScores);
+            }
+        }
+    }
+
+    /**
+     *
+     * @return The number of cached (user, category) entries
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     *
+     * @return The number of completed updates that were ignored because they were never announced
+     *         or had already been completed
+     */
+    public synchronized long getDuplicateUpdateCount() {
+        return this.duplicateUpdates;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void onUpdateSubmitted(UpdatePreferenceRequest request) {
+        this.pendingVersions.add(request.getVersion());
+        this.submittedUpdates++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void onUpdateCompleted(UpdatePreferenceRequest request, UserProfile user,
+            UpdateAction action, boolean applied) {
+        if (!this.pendingVersions.remove(request.getVersion())) {
+            this.duplicateUpdates++;
+            return;
+        }
+        if (!applied) {
+            return;
+        }
+
+        // The instigating user's own preferences have changed, so their scores must be rebuilt
+        invalidate(user.getId());
+
+        Set<Tuple2<String, PreferenceCategory>> affectedEntries = this.entriesByUserPreference
+                .get(request.getPreferenceToUpdate());
+        if (affectedEntries != null) {
+            for (Tuple2<String, PreferenceCategory> key : affectedEntries) {
+                applyUpdate(this.entries.get(key), request, user, action);
+            }
+        }
+    }
+
+    /**
+     * Gets the cached scores of a user, or materializes them from the graph. Materialized scores
+     * are only cached if no update was in flight or submitted while they were being read.
+     *
+     * @param preferenceCategory
+     * @param user
+     * @return scores
+     */
+    private CachedScores getScores(PreferenceCategory preferenceCategory, UserProfile user) {
+        Tuple2<String, PreferenceCategory> key = new Tuple2<String, PreferenceCategory>(
+                user.getId(), preferenceCategory);
+        long submittedBefore;
+        synchronized (this) {
+            CachedScores cachedScores = this.entries.get(key);
+            if (cachedScores != null) {
+                return cachedScores;
+            }
+            submittedBefore = this.pendingVersions.isEmpty() ? this.submittedUpdates : -1;
+        }
+
+        // Read the graph without holding the lock, so that updates are not blocked
+        CachedScores cachedScores = materialize(preferenceCategory, user);
+
+        synchronized (this) {
+            if (submittedBefore == this.submittedUpdates && !this.entries.containsKey(key)) {
+                this.entries.put(key, cachedScores);
+                index(key, cachedScores);
+            }
+        }
+        return cachedScores;
+    }
+
+    /**
+     * Copies the user's preferences from the graph and calculates their scores.
+     *
+     * @param preferenceCategory
+     * @param user
+     * @return scores
+     */
+    private CachedScores materialize(PreferenceCategory preferenceCategory, UserProfile user) {
+        UserProfile userSnapshot = new UserProfile(user.getId(), user.getPreferences());
+        LocalTransientPreferenceCorrelationGraph sources = new LocalTransientPreferenceCorrelationGraph();
+        Set<Preference> userPreferences = userSnapshot.getPreferencesForCategory(preferenceCategory);
+        if (userPreferences != null) {
+            for (Preference userPref : userPreferences) {
+                Preference source = this.graph.getPreference(userPref.getID(), preferenceCategory);
+                sources.putPreference(copyOf(source == null ? userPref : source));
+            }
+        }
+
+        UserRecommendationCorrelationScores scores = this.scorer
+                .calculateNeighborhoodCorrelationScores(userSnapshot, preferenceCategory, sources);
+        CachedScores cachedScores = new CachedScores(userSnapshot, sources, scores);
+        scores.forEachCorrelationScore((preference, score) -> cachedScores.ranking
+                .add(new Tuple2<Preference, Double>(preference, score)));
+        return cachedScores;
+    }
+
+    /**
+     * Applies an update of one of the user's preferences to the cached scores, keeping the ranking
+     * in sync for every candidate whose score may change.
+     *
+     * @param cachedScores
+     * @param request
+     * @param user
+     * @param action
+     */
+    private void applyUpdate(CachedScores cachedScores, UpdatePreferenceRequest request,
+            UserProfile user, UpdateAction action) {
+        Preference target = request.getPreferenceToUpdate();
+
+        // Bring the private copy of the user preference up to date first, which is what
+        // applyPreferenceUpdate() expects
+        cachedScores.sources.updatePreference(request, user, action);
+        Preference updatedTarget = cachedScores.sources.getPreference(target.getID(),
+                target.getCategory());
+        UpdatePreferenceRequest sourceUpdate = new UpdatePreferenceRequest(updatedTarget);
+        sourceUpdate.addPopularityDelta(request.getPopularityDelta());
+        for (Entry<PreferenceCorrelation, Integer> update : request.getCorrelationDeltas()
+                .entrySet()) {
+            sourceUpdate.addCorrelationDelta(update.getKey(), update.getValue());
+        }
+
+        for (PreferenceCorrelation correlation : updatedTarget.getCorrelations()) {
+            Double score = cachedScores.scores.getCorrelationScore(correlation.getToPreference());
+            if (score != null) {
+                cachedScores.ranking.remove(new Tuple2<Preference, Double>(correlation
+                        .getToPreference(), score));
+            }
+        }
+
+        cachedScores.scores.applyPreferenceUpdate(sourceUpdate);
+
+        Set<Preference> userPreferences = cachedScores.user.getPreferencesForCategory(target
+                .getCategory());
+        for (PreferenceCorrelation correlation : updatedTarget.getCorrelations()) {
+            Preference candidate = correlation.getToPreference();
+            Double score = cachedScores.scores.getCorrelationScore(candidate);
+            if (score != null && score > 0 && !userPreferences.contains(candidate)) {
+                cachedScores.ranking.add(new Tuple2<Preference, Double>(candidate, score));
+            }
+        }
+    }
+
+    /**
+     * Copies a preference and its correlations, so updates to the copy do not touch the graph.
+     *
+     * @param preference
+     * @return copy
+     */
+    private static Preference copyOf(Preference preference) {
+        Preference copy = new Preference(preference.getID(), preference.getCategory(),
+                preference.getPopularity());
+        for (PreferenceCorrelation correlation : preference.getCorrelations()) {
+            copy.addCorrelation(new PreferenceCorrelation(correlation.getToPreference(),
+                    correlation.getWeight()));
+        }
+        return copy;
+    }
+
+    /**
+     * Records which user preferences an entry depends on.
+     *
+     * @param key
+     * @param cachedScores
+     */
+    private void index(Tuple2<String, PreferenceCategory> key, CachedScores cachedScores) {
+        Set<Preference> userPreferences = cachedScores.user.getPreferencesForCategory(key._2());
+        if (userPreferences != null) {
+            for (Preference userPref : userPreferences) {
+                this.entriesByUserPreference.computeIfAbsent(userPref,
+                        pref -> new HashSet<Tuple2<String, PreferenceCategory>>()).add(key);
+            }
+        }
+    }
+
+    /**
+     * Forgets which user preferences an entry depends on.
+     *
+     * @param key
+     * @param cachedScores
+     */
+    private void unindex(Tuple2<String, PreferenceCategory> key, CachedScores cachedScores) {
+        Set<Preference> userPreferences = cachedScores.user.getPreferencesForCategory(key._2());
+        if (userPreferences != null) {
+            for (Preference userPref : userPreferences) {
+                Set<Tuple2<String, PreferenceCategory>> keys = this.entriesByUserPreference
+                        .get(userPref);
+                if (keys != null) {
+                    keys.remove(key);
+                    if (keys.isEmpty()) {
+                        this.entriesByUserPreference.remove(userPref);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The materialized scores of one user in one category.
+     */
+    private static class CachedScores {
+        private final UserProfile user;
+        private final LocalTransientPreferenceCorrelationGraph sources;
+        private final UserRecommendationCorrelationScores scores;
+        private final TreeSet<Tuple2<Preference, Double>> ranking;
+
+        private CachedScores(UserProfile user, LocalTransientPreferenceCorrelationGraph sources,
+                UserRecommendationCorrelationScores scores) {
+            this.user = user;
+            this.sources = sources;
+            this.scores = scores;
+            this.ranking = new TreeSet<Tuple2<Preference, Double>>(
+                    UserRecommendationCorrelationScores.SCORE_ORDER.reversed());
+        }
+    }
+}
@@ -1,8 +1,30 @@
 package server.daemons;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import data.proxy.PartialUpdateException;
 import data.proxy.PreferenceCorrelationGraph;
 import data.proxy.request.UpdatePreferenceRequest;
 import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
@@ -13,14 +35,23 @@ import data.structure.UserProfile;
 
 /**
  * UpdatePreferenceDaemon propagates preference additions and removals for a given user through the
- * preference correlation graph.
+ * preference correlation graph. Propagation can either run on the calling thread, or be submitted
+ * to a worker pool so that the caller does not wait for the graph writes.
  */
 public class UpdatePreferenceDaemon {
     
     private final PreferenceCorrelationGraph graph;
+    private final AtomicLong lastVersion;
+    private final List<PreferenceUpdateListener> listeners;
+    private final ExecutorService executor;
+    private final int maxPendingUpdates;
+    private final Semaphore pendingUpdates;
+    private final long submitTimeoutNanos;
+    private final Map<String, CompletableFuture<Void>> lastUpdateByUser;
     
     /**
-     * Constructor requires a PreferenceCorrelationGraph.
+     * Constructor requires a PreferenceCorrelationGraph. Submitted propagations run on the calling
+     * thread.
      * 
      * @param graph
      * @throws IllegalArgumentException if graph is null
@@ -30,26 +61,350 @@ public class UpdatePreferenceDaemon {
             throw new IllegalArgumentException("Graph cannot be null!");
         }
         this.graph = graph;
+        this.lastVersion = new AtomicLong();
+        this.listeners = new CopyOnWriteArrayList<PreferenceUpdateListener>();
+        this.executor = null;
+        this.maxPendingUpdates = 0;
+        this.pendingUpdates = null;
+        this.submitTimeoutNanos = 0;
+        this.lastUpdateByUser = null;
+    }
+    
+    /**
+     * Constructor for a daemon whose submitted propagations run on the supplied executor. At most
+     * maxPendingUpdates propagations may be queued or running at once. Beyond that, submitting
+     * blocks until one finishes, and gives up after submitTimeout. The propagations of a single
+     * user run one after another, in the order they were submitted, while those of different
+     * users run concurrently, so the graph must be thread-safe if the executor has more than one
+     * thread.
+     * 
+     * @param graph
+     * @param executor Executor that runs the propagations. Its number of threads is the number of
+     *        propagations in flight at once. It is owned by the caller, who is responsible for
+     *        shutting it down.
+     * @param maxPendingUpdates The maximum number of propagations queued or running at once
+     * @param submitTimeout How long to wait for room in the queue when it is full
+     * @param unit
+     * @throws IllegalArgumentException if graph or executor is null, maxPendingUpdates is less
+     *         than 1 or submitTimeout is negative
+     */
+    public UpdatePreferenceDaemon(PreferenceCorrelationGraph graph, ExecutorService executor,
+            int maxPendingUpdates, long submitTimeout, TimeUnit unit) {
+        if (graph == null) {
+            throw new IllegalArgumentException("Graph cannot be null!");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null!");
+        }
+        if (maxPendingUpdates < 1) {
+            throw new IllegalArgumentException("Max pending updates must be at least 1!");
+        }
+        if (submitTimeout < 0) {
+            throw new IllegalArgumentException("Submit timeout cannot be negative!");
+        }
+        this.graph = graph;
+        this.lastVersion = new AtomicLong();
+        this.listeners = new CopyOnWriteArrayList<PreferenceUpdateListener>();
+        this.executor = executor;
+        this.maxPendingUpdates = maxPendingUpdates;
+        this.pendingUpdates = new Semaphore(maxPendingUpdates);
+        this.submitTimeoutNanos = unit.toNanos(submitTimeout);
+        this.lastUpdateByUser = new ConcurrentHashMap<String, CompletableFuture<Void>>();
     }
     
     /**
-     * Propagates a preference addition by a user through the preference correlation graph.
+     * Registers a listener that is notified of every update submitted to the graph.
+     * 
+     * @param listener
+     * @throws IllegalArgumentException if listener is null
+     */
+    public void addUpdateListener(PreferenceUpdateListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null!");
+        }
+        this.listeners.add(listener);
+    }
+    
+    /**
+     * Propagates a preference addition by a user through the preference correlation graph. Each
+     * call is a new event, so propagating the same addition twice applies it twice.
      * 
      * @param user
      * @param addedPreference
      */
     public void propagateAddedPreference(UserProfile user, Preference addedPreference) {
-        adjustUserPreference(user, addedPreference, UpdateAction.INC_CORRELATION);
+        propagateAddedPreference(user, addedPreference, null);
+    }
+    
+    /**
+     * Propagates a preference addition by a user through the preference correlation graph, as
+     * the event eventId. The tokens of the requests are derived from the event, so if the same
+     * event is propagated again, e.g. because it was delivered twice, a graph that checks tokens
+     * recognizes the requests it has already applied.
+     * 
+     * @param user
+     * @param addedPreference
+     * @param eventId Identifies the addition, e.g. the ID of the message that delivered it, or
+     *        null to make this propagation a new event
+     */
+    public void propagateAddedPreference(UserProfile user, Preference addedPreference,
+            String eventId) {
+        adjustUserPreference(user, addedPreference, UpdateAction.INC_CORRELATION, eventId);
     }
     
     /**
-     * Propagates a preference removal by a user through the preference correlation graph.
+     * Propagates a preference removal by a user through the preference correlation graph. Each
+     * call is a new event.
      * 
      * @param user
      * @param removedPreference
      */
     public void propagateRemovedPreference(UserProfile user, Preference removedPreference) {
-        adjustUserPreference(user, removedPreference, UpdateAction.DEC_CORRELATION);
+        propagateRemovedPreference(user, removedPreference, null);
+    }
+    
+    /**
+     * Propagates a preference removal by a user through the preference correlation graph, as the
+     * event eventId. See propagateAddedPreference(UserProfile, Preference, String).
+     * 
+     * @param user
+     * @param removedPreference
+     * @param eventId
+     */
+    public void propagateRemovedPreference(UserProfile user, Preference removedPreference,
+            String eventId) {
+        adjustUserPreference(user, removedPreference, UpdateAction.DEC_CORRELATION, eventId);
+    }
+    
+    /**
+     * Propagates the addition of several preferences by a user at once, as when a user imports a
+     * profile. The user must already possess the added preferences. The graph ends up as if each
+     * addition had been propagated in turn, but every preference is updated by one merged
+     * request, rather than once for each addition that correlates with it.
+     * 
+     * @param user
+     * @param addedPreferences
+     */
+    public void propagateAddedPreferences(UserProfile user,
+            Collection<Preference> addedPreferences) {
+        propagateAddedPreferences(user, addedPreferences, null);
+    }
+    
+    /**
+     * Propagates the addition of several preferences by a user at once, as the event eventId.
+     * See propagateAddedPreference(UserProfile, Preference, String).
+     * 
+     * @param user
+     * @param addedPreferences
+     * @param eventId
+     */
+    public void propagateAddedPreferences(UserProfile user,
+            Collection<Preference> addedPreferences, String eventId) {
+        adjustUserPreferences(user, addedPreferences, UpdateAction.INC_CORRELATION, eventId);
+    }
+    
+    /**
+     * Propagates the removal of several preferences by a user at once. The user must no longer
+     * possess the removed preferences. See propagateAddedPreferences(UserProfile, Collection).
+     * 
+     * @param user
+     * @param removedPreferences
+     */
+    public void propagateRemovedPreferences(UserProfile user,
+            Collection<Preference> removedPreferences) {
+        propagateRemovedPreferences(user, removedPreferences, null);
+    }
+    
+    /**
+     * Propagates the removal of several preferences by a user at once, as the event eventId. See
+     * propagateAddedPreference(UserProfile, Preference, String).
+     * 
+     * @param user
+     * @param removedPreferences
+     * @param eventId
+     */
+    public void propagateRemovedPreferences(UserProfile user,
+            Collection<Preference> removedPreferences, String eventId) {
+        adjustUserPreferences(user, removedPreferences, UpdateAction.DEC_CORRELATION, eventId);
+    }
+    
+    /**
+     * Propagates every preference of a user as if each had just been added, for example to
+     * backfill the graph from stored profiles.
+     * 
+     * @param user
+     */
+    public void propagateUserProfile(UserProfile user) {
+        List<Preference> preferences = new ArrayList<Preference>();
+        for (Set<Preference> categoryPreferences : user.getPreferences().values()) {
+            preferences.addAll(categoryPreferences);
+        }
+        propagateAddedPreferences(user, preferences);
+    }
+    
+    /**
+     * Submits the propagation of a preference addition by a user, without waiting for it. See
+     * submitUpdate(UserProfile, Preference, UpdateAction, String).
+     * 
+     * @param user
+     * @param addedPreference
+     * @return future that completes once the addition has been propagated
+     */
+    public CompletableFuture<Void> submitAddedPreference(UserProfile user,
+            Preference addedPreference) {
+        return submitAddedPreference(user, addedPreference, null);
+    }
+    
+    /**
+     * Submits the propagation of a preference addition by a user as the event eventId, without
+     * waiting for it. See propagateAddedPreference(UserProfile, Preference, String).
+     * 
+     * @param user
+     * @param addedPreference
+     * @param eventId
+     * @return future that completes once the addition has been propagated
+     */
+    public CompletableFuture<Void> submitAddedPreference(UserProfile user,
+            Preference addedPreference, String eventId) {
+        return submitUpdate(user, addedPreference, UpdateAction.INC_CORRELATION, eventId);
+    }
+    
+    /**
+     * Submits the propagation of a preference removal by a user, without waiting for it. See
+     * submitUpdate(UserProfile, Preference, UpdateAction, String).
+     * 
+     * @param user
+     * @param removedPreference
+     * @return future that completes once the removal has been propagated
+     */
+    public CompletableFuture<Void> submitRemovedPreference(UserProfile user,
+            Preference removedPreference) {
+        return submitRemovedPreference(user, removedPreference, null);
+    }
+    
+    /**
+     * Submits the propagation of a preference removal by a user as the event eventId, without
+     * waiting for it. See propagateAddedPreference(UserProfile, Preference, String).
+     * 
+     * @param user
+     * @param removedPreference
+     * @param eventId
+     * @return future that completes once the removal has been propagated
+     */
+    public CompletableFuture<Void> submitRemovedPreference(UserProfile user,
+            Preference removedPreference, String eventId) {
+        return submitUpdate(user, removedPreference, UpdateAction.DEC_CORRELATION, eventId);
+    }
+    
+    /**
+     * Waits until every submitted propagation has finished.
+     * 
+     * @param timeout
+     * @param unit
+     * @return true if every propagation finished, false if the timeout elapsed first
+     * @throws InterruptedException
+     */
+    public boolean awaitPendingUpdates(long timeout, TimeUnit unit) throws InterruptedException {
+        if (this.executor == null) {
+            return true;
+        }
+        if (!this.pendingUpdates.tryAcquire(this.maxPendingUpdates, timeout, unit)) {
+            return false;
+        }
+        this.pendingUpdates.release(this.maxPendingUpdates);
+        return true;
+    }
+    
+    /**
+     * Gets the number of submitted propagations that are queued or running.
+     * 
+     * @return pending propagations
+     */
+    public int getPendingUpdateCount() {
+        if (this.executor == null) {
+            return 0;
+        }
+        return this.maxPendingUpdates - this.pendingUpdates.availablePermits();
+    }
+    
+    /**
+     * Submits the propagation of a preference change. The user's preferences are copied first, so
+     * the caller may keep changing the profile. If the daemon has no executor, the propagation runs
+     * on the calling thread. Otherwise the propagation is queued behind any earlier ones of the
+     * same user, blocking for up to submitTimeout while the queue is full.
+     * 
+     * @param user
+     * @param changedPreference
+     * @param action
+     * @param eventId
+     * @return future that completes once the change has been propagated, or completes
+     *         exceptionally with a RejectedExecutionException if the queue stayed full
+     */
+    private CompletableFuture<Void> submitUpdate(UserProfile user, Preference changedPreference,
+            UpdateAction action, String eventId) {
+        UserProfile snapshot = new UserProfile(user.getId(), user.getPreferences());
+        Runnable propagation = () -> adjustUserPreference(snapshot, changedPreference, action,
+                eventId);
+        
+        if (this.executor == null) {
+            CompletableFuture<Void> result = new CompletableFuture<Void>();
+            try {
+                propagation.run();
+                result.complete(null);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+        
+        if (!acquirePendingUpdate()) {
+            return rejected(new RejectedExecutionException("Too many pending preference updates!"));
+        }
+        
+        CompletableFuture<Void> queued;
+        try {
+            queued = this.lastUpdateByUser.compute(user.getId(), (id, previous) -> previous == null
+                    ? CompletableFuture.runAsync(propagation, this.executor)
+                    // Run after the previous propagation of the user, even if it failed
+                    : previous.handle((result, e) -> result).thenRunAsync(propagation,
+                            this.executor));
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down
+            this.pendingUpdates.release();
+            return rejected(e);
+        }
+        // The caller gets a dependent future, so cancelling it cannot release the permit of a
+        // propagation that is still queued
+        return queued.whenComplete((result, e) -> {
+            this.lastUpdateByUser.remove(user.getId(), queued);
+            this.pendingUpdates.release();
+        });
+    }
+    
+    /**
+     * Creates a future that has already failed.
+     * 
+     * @param e
+     * @return failed future
+     */
+    private static CompletableFuture<Void> rejected(RejectedExecutionException e) {
+        CompletableFuture<Void> rejected = new CompletableFuture<Void>();
+        rejected.completeExceptionally(e);
+        return rejected;
+    }
+    
+    /**
+     * Waits for room in the queue of pending propagations.
+     * 
+     * @return true if a place in the queue was acquired
+     */
+    private boolean acquirePendingUpdate() {
+        try {
+            return this.pendingUpdates.tryAcquire(this.submitTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
     
     /**
@@ -59,31 +414,119 @@ public class UpdatePreferenceDaemon {
      * @param changedPreference
      * @param user
      * @param action
+     * @param eventId The event to derive the tokens of the requests from, or null for random
+     *        tokens
      */
     private void adjustUserPreference(UserProfile user, Preference changedPreference,
-            UpdateAction action) {
+            UpdateAction action, String eventId) {
+        String eventKey = eventId == null ? null : buildEventKey(user, Collections
+                .singleton(changedPreference), action, eventId);
+        
         // First, adjust all correlations from the changed preference to all other preferences
         // possessed by the instigating user.
-        adjustPreferencePopularity(changedPreference, user, action);
+        UpdatePreferenceRequest request = buildPopularityUpdate(changedPreference, user, action,
+                eventKey);
         
         // Then, adjust all correlations from all other preferences possessed by the instigating
         // user to the changed preference.
-        adjustReverseCorrelations(user, changedPreference, action);
+        List<UpdatePreferenceRequest> reverseRequests = buildReverseCorrelationUpdates(user,
+                changedPreference, action, eventKey);
+        
+        if (this.graph.hasSymmetricCorrelations()) {
+            // The graph updates the correlations back to the changed preference along with those
+            // from it, so the reverse updates are only announced to the listeners
+            List<UpdatePreferenceRequest> requests = new ArrayList<UpdatePreferenceRequest>(
+                    reverseRequests.size() + 1);
+            requests.add(request);
+            requests.addAll(reverseRequests);
+            submitUpdates(requests, Collections.singletonList(request), user, action);
+        } else {
+            submitUpdate(request, user, action);
+            submitUpdates(reverseRequests, user, action);
+        }
     }
     
     /**
-     * Updates a changed preference's popularity and the weights of all correlations from the
-     * changed preference to the other preferences of the user which added or removed it. This
-     * action is idempotent.
+     * Adjusts popularities and correlation weights in accordance with the addition or removal of
+     * several preferences. Each changed preference correlates with every other preference of the
+     * user in its category, changed or not, and each unchanged preference correlates with the
+     * changed preferences in its category. The deltas of each preference are merged into one
+     * request, and all of the requests are submitted as one batch. If the graph has symmetric
+     * correlations, only one direction of each pair is written.
+     * 
+     * @param user
+     * @param changedPreferences
+     * @param action
+     * @param eventId The event to derive the tokens of the requests from, or null for random
+     *        tokens
+     */
+    private void adjustUserPreferences(UserProfile user,
+            Collection<Preference> changedPreferences, UpdateAction action, String eventId) {
+        // A removed preference is no longer in the profile, but still correlated with the others
+        Map<PreferenceCategory, Set<Preference>> peers = new LinkedHashMap<PreferenceCategory, Set<Preference>>();
+        for (Entry<PreferenceCategory, Set<Preference>> entry : user.getPreferences().entrySet()) {
+            peers.put(entry.getKey(), new HashSet<Preference>(entry.getValue()));
+        }
+        Set<Preference> changed = new HashSet<Preference>();
+        for (Preference preference : changedPreferences) {
+            changed.add(new Preference(preference.getID(), preference.getCategory()));
+        }
+        for (Preference preference : changed) {
+            peers.computeIfAbsent(preference.getCategory(), category -> new HashSet<Preference>())
+                    .add(preference);
+        }
+        
+        String eventKey = eventId == null ? null : buildEventKey(user, changed, action, eventId);
+        boolean symmetric = this.graph.hasSymmetricCorrelations();
+        Map<Preference, UpdatePreferenceRequest> requests = new LinkedHashMap<Preference, UpdatePreferenceRequest>();
+        List<UpdatePreferenceRequest> writes = new ArrayList<UpdatePreferenceRequest>();
+        for (Preference changedPreference : changed) {
+            UpdatePreferenceRequest request = requests.computeIfAbsent(changedPreference,
+                    key -> newRequest(key, eventKey));
+            request.updatePopularity(action);
+            // A symmetric graph gets the pairs of each changed preference with its unchanged
+            // peers, and with the changed peers that come after it, written from its side only
+            UpdatePreferenceRequest write = newRequest(changedPreference, eventKey);
+            write.updatePopularity(action);
+            writes.add(write);
+            for (Preference peer : peers.get(changedPreference.getCategory())) {
+                if (peer.equals(changedPreference)) {
+                    continue;
+                }
+                // Correlation from the changed preference to its peer
+                request.addCorrelationUpdate(new PreferenceCorrelation(peer), action);
+                if (!changed.contains(peer)
+                        || changedPreference.getID().compareTo(peer.getID()) < 0) {
+                    write.addCorrelationUpdate(new PreferenceCorrelation(peer), action);
+                }
+                if (!changed.contains(peer)) {
+                    // Reverse correlation; a changed peer adds it with its own request
+                    requests.computeIfAbsent(peer, key -> newRequest(new Preference(key.getID(),
+                            key.getCategory()), eventKey)).addCorrelationUpdate(
+                            new PreferenceCorrelation(changedPreference), action);
+                }
+            }
+        }
+        
+        List<UpdatePreferenceRequest> batch = new ArrayList<UpdatePreferenceRequest>(requests
+                .values());
+        submitUpdates(batch, symmetric ? writes : batch, user, action);
+    }
+    
+    /**
+     * Builds the update of a changed preference's popularity and the weights of all correlations
+     * from the changed preference to the other preferences of the user which added or removed it.
      * 
      * @param changedPreference
      * @param user
      * @param action
+     * @param eventKey
+     * @return request
      */
-    private void adjustPreferencePopularity(Preference changedPreference, UserProfile user,
-            UpdateAction action) {
+    private UpdatePreferenceRequest buildPopularityUpdate(Preference changedPreference,
+            UserProfile user, UpdateAction action, String eventKey) {
         // Create new UpdatePreferenceRequest
-        UpdatePreferenceRequest request = new UpdatePreferenceRequest(changedPreference);
+        UpdatePreferenceRequest request = newRequest(changedPreference, eventKey);
         
         // Adjust popularity
         request.updatePopularity(action);
@@ -104,20 +547,24 @@ public class UpdatePreferenceDaemon {
             }
         }
         
-        // Submit update
-        this.graph.updatePreference(request, user, action);
+        return request;
     }
     
     /**
-     * Adjusts the weights of all correlations from each preference of the instigating user to the
-     * newly added or removed preference. This action is idempotent.
+     * Builds the updates of the weights of all correlations from each preference of the
+     * instigating user to the newly added or removed preference. The updates can be submitted to
+     * the graph as one batch, since each of them updates a different preference.
      * 
      * @param user
      * @param changedPreference
      * @param action
+     * @param eventKey
+     * @return requests
      */
-    private void adjustReverseCorrelations(UserProfile user, Preference changedPreference,
-            UpdateAction action) {
+    private List<UpdatePreferenceRequest> buildReverseCorrelationUpdates(UserProfile user,
+            Preference changedPreference, UpdateAction action, String eventKey) {
+        List<UpdatePreferenceRequest> requests = new ArrayList<UpdatePreferenceRequest>();
+        
         // Iterate over user preferences.
         for (Entry<PreferenceCategory, Set<Preference>> entry : user.getPreferences().entrySet()) {
             PreferenceCategory category = entry.getKey();
@@ -131,18 +578,172 @@ public class UpdatePreferenceDaemon {
                 if (category == changedPreference.getCategory()
                         && !preferenceToUpdateId.equals(changedPreference.getID())) {
                     // Create new UpdatePreferenceRequest.
-                    UpdatePreferenceRequest request = new UpdatePreferenceRequest(new Preference(
-                            preferenceToUpdateId, category));
+                    UpdatePreferenceRequest request = newRequest(new Preference(
+                            preferenceToUpdateId, category), eventKey);
                     
                     // Create PreferenceCorrelation for update.
                     PreferenceCorrelation correlationToUpdate = new PreferenceCorrelation(
                             changedPreference);
                     request.addCorrelationUpdate(correlationToUpdate, action);
-                    
-                    // Perform update.
-                    this.graph.updatePreference(request, user, action);
+                    requests.add(request);
                 }
             }
         }
+        
+        return requests;
+    }
+    
+    /**
+     * Builds a key that identifies a propagation event: the user, the action, the event ID and the
+     * changed preferences. Each part is prefixed with its length, so different events cannot run
+     * together into the same key.
+     * 
+     * @param user
+     * @param changedPreferences
+     * @param action
+     * @param eventId
+     * @return event key
+     */
+    private static String buildEventKey(UserProfile user,
+            Collection<Preference> changedPreferences, UpdateAction action, String eventId) {
+        StringBuilder key = new StringBuilder();
+        appendKeyPart(key, user.getId());
+        appendKeyPart(key, action.name());
+        appendKeyPart(key, eventId);
+        // Sorted, so the key does not depend on the order the preferences were given in
+        List<String> changedIds = new ArrayList<String>(changedPreferences.size());
+        for (Preference preference : changedPreferences) {
+            changedIds.add(preference.getCategory().name() + ":" + preference.getID());
+        }
+        Collections.sort(changedIds);
+        for (String changedId : changedIds) {
+            appendKeyPart(key, changedId);
+        }
+        return key.toString();
+    }
+    
+    private static void appendKeyPart(StringBuilder key, String part) {
+        key.append(part.length()).append(':').append(part);
+    }
+    
+    /**
+     * Creates a request for a preference. Within an event every request updates a different
+     * preference, so the token derived from the event key and the updated preference is the same
+     * each time the event is propagated, and differs between the requests of the event.
+     * 
+     * @param preferenceToUpdate
+     * @param eventKey The key of the event, or null for a random token
+     * @return request
+     */
+    private static UpdatePreferenceRequest newRequest(Preference preferenceToUpdate,
+            String eventKey) {
+        if (eventKey == null) {
+            return new UpdatePreferenceRequest(preferenceToUpdate);
+        }
+        HashCode hash = Hashing.murmur3_128().newHasher()
+                .putString(eventKey, StandardCharsets.UTF_8)
+                .putString(preferenceToUpdate.getCategory().name(), StandardCharsets.UTF_8)
+                .putChar(':').putString(preferenceToUpdate.getID(), StandardCharsets.UTF_8)
+                .hash();
+        ByteBuffer bytes = ByteBuffer.wrap(hash.asBytes());
+        return new UpdatePreferenceRequest(preferenceToUpdate, new UUID(bytes.getLong(), bytes
+                .getLong()));
+    }
+    
+    /**
+     * Assigns the next version to a request, submits it to the graph and notifies the listeners.
+     * 
+     * @param request
+     * @param user
+     * @param action
+     */
+    private void submitUpdate(UpdatePreferenceRequest request, UserProfile user,
+            UpdateAction action) {
+        submitUpdates(Collections.singletonList(request), user, action);
+    }
+    
+    /**
+     * Assigns the next versions to a batch of requests, submits them to the graph together and
+     * notifies the listeners of each request.
+     * 
+     * @param requests
+     * @param user
+     * @param action
+     */
+    private void submitUpdates(List<UpdatePreferenceRequest> requests, UserProfile user,
+            UpdateAction action) {
+        submitUpdates(requests, requests, user, action);
+    }
+    
+    /**
+     * Assigns the next versions to a batch of requests and notifies the listeners of each request,
+     * but writes a different batch to the graph. This lets a graph with symmetric correlations be
+     * sent one direction of each pair, while the listeners still see the updates of both. Unless
+     * the batches are the same, a request counts as applied only if every write that makes part of
+     * its changes was applied. If some writes fail, the requests whose writes completed are still
+     * reported as applied before the failure is rethrown.
+     * 
+     * @param requests Requests announced to the listeners
+     * @param writes Requests written to the graph, which together make the same changes
+     * @param user
+     * @param action
+     */
+    private void submitUpdates(List<UpdatePreferenceRequest> requests,
+            List<UpdatePreferenceRequest> writes, UserProfile user, UpdateAction action) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        for (UpdatePreferenceRequest request : requests) {
+            request.setVersion(this.lastVersion.incrementAndGet());
+            for (PreferenceUpdateListener listener : this.listeners) {
+                listener.onUpdateSubmitted(request);
+            }
+        }
+        
+        List<Boolean> applied = null;
+        try {
+            if (writes.size() == 1) {
+                applied = Collections.singletonList(this.graph.updatePreference(writes.get(0),
+                        user, action));
+            } else {
+                applied = this.graph.updatePreferences(writes, user, action);
+            }
+        } catch (PartialUpdateException e) {
+            applied = e.getApplied();
+            throw e;
+        } finally {
+            for (int i = 0; i < requests.size(); i++) {
+                boolean requestApplied = applied != null && (writes == requests ? Boolean.TRUE
+                        .equals(applied.get(i)) : isApplied(requests.get(i), writes, applied));
+                for (PreferenceUpdateListener listener : this.listeners) {
+                    listener.onUpdateCompleted(requests.get(i), user, action, requestApplied);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Tells whether every write that makes part of the changes of an announced request was
+     * applied. Those are the writes of the request's preference, and the writes of the other side
+     * of its correlations, which a symmetric graph stores once for both sides.
+     * 
+     * @param request
+     * @param writes
+     * @param applied The outcome of each write, or null for a write that failed
+     * @return true if the request was applied
+     */
+    private static boolean isApplied(UpdatePreferenceRequest request,
+            List<UpdatePreferenceRequest> writes, List<Boolean> applied) {
+        Preference target = request.getPreferenceToUpdate();
+        PreferenceCorrelation correlation = new PreferenceCorrelation(target);
+        for (int i = 0; i < writes.size(); i++) {
+            UpdatePreferenceRequest write = writes.get(i);
+            if ((write.getPreferenceToUpdate().equals(target)
+                    || write.getCorrelationDeltas().containsKey(correlation))
+                    && !Boolean.TRUE.equals(applied.get(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 }
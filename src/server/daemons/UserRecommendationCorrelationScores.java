@@ -1,20 +1,21 @@
 package server.daemons;
 
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.ObjDoubleConsumer;
 import java.util.stream.Collectors;
 
+import util.BoundedPriorityQueue;
+import util.DoubleScoreTable;
 import util.Tuple2;
 import data.proxy.request.UpdatePreferenceRequest;
-import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
 import data.structure.Preference;
 import data.structure.PreferenceCategory;
 import data.structure.PreferenceCorrelation;
+import data.structure.PreferenceDictionary;
 import data.structure.UserProfile;
 
 /**
@@ -22,10 +23,21 @@ import data.structure.UserProfile;
  *    preferences for a given user.  Used to generate recommendations for that user.
  *    Allows updates to these correlation scores based on UpdatePreferenceRequest(s).  
  *    Provides operations to aggregate these correlation scores to aid in determining
- *    which Preference should be recommended to a given user.
+ *    which Preference should be recommended to a given user.  Scores are kept by the int handle that a
+ *    PreferenceDictionary assigns to each preference, and only translated back to Preferences by the methods that
+ *    return them.
  */
 public class UserRecommendationCorrelationScores {
-	private final Map<Preference, Double> correlationScores;
+	/**
+	 * Orders preference/score pairs by correlation score.  Ties are broken by preference ID so that
+	 *    top-K results do not depend on hash iteration order.
+	 */
+	public static final Comparator<Tuple2<Preference, Double>> SCORE_ORDER = 
+			Comparator.comparing((Tuple2<Preference, Double> tuple) -> tuple._2())
+			.thenComparing(tuple -> tuple._1().getID());
+	
+	private final DoubleScoreTable correlationScores;
+	private final PreferenceDictionary dictionary;
 	private final UserProfile user;
 	
 	/**
@@ -37,7 +49,25 @@ public class UserRecommendationCorrelationScores {
 	 */
 	public UserRecommendationCorrelationScores(Map<Preference, Double> correlationScores,
 			UserProfile user) {
+		this(new DoubleScoreTable(correlationScores.size()),
+				new PreferenceDictionary(correlationScores.size()), user);
+		for (Map.Entry<Preference, Double> entry : correlationScores.entrySet()) {
+			this.correlationScores.put(dictionary.encode(entry.getKey()), entry.getValue());
+		}
+	}
+	
+	/**
+	 * 
+	 * @param correlationScores Total correlation score of each non-user preference, keyed by the
+	 *      preference's handle in the dictionary, which is used and updated in place rather than copied
+	 * @param dictionary Assigns the handles of the preferences, and is extended by updates that score
+	 *      new preferences
+	 * @param user Contains all user preferences and basic user information
+	 */
+	public UserRecommendationCorrelationScores(DoubleScoreTable correlationScores,
+			PreferenceDictionary dictionary, UserProfile user) {
 		this.correlationScores = correlationScores;
+		this.dictionary = dictionary;
 		this.user = user;
 	}
 	
@@ -53,11 +83,13 @@ public class UserRecommendationCorrelationScores {
 	 *    the previous values of the popularities and weights. 
 	 *  b) I am also assuming that the correlation scores are being updated synchronously directly after
 	 *    the weights and popularities are updated. 
-	 *  c) There is no support here for reentrancy so I assume these events will only be applied once.
+	 *  c) There is no support here for reentrancy so each event must only be applied once.  This
+	 *    method does not check for that itself; RecommendationScoreCache uses the version of each
+	 *    UpdatePreferenceRequest to reject duplicate events before they get here.
 	 *  These assumptions were made for simplicity for now.  If any of these assumptions are wrong, 
 	 *   this logic will break, but in that case, we will need to start to attach previous popularities
-	 *    and weights to UpdatePreferenceRequest(s) and/or we will need to keep track of which events
-	 *    we have already applied, perhaps through versioning or logging.
+	 *    and weights to UpdatePreferenceRequest(s).
+	 *  A request without a popularity update is treated as a popularity delta of 0.
 	 *    
 	 * 
 	 * @param update  UpdatePreferenceRequest which represents a popularity change
@@ -73,8 +105,8 @@ public class UserRecommendationCorrelationScores {
 			throw new RuntimeException("Dude, your request is invalid");
 		}
 		
-		// For each correlation update, match up preference to UpdateAction
-		Map<Preference, UpdateAction> correlationUpdates = update.getCorrelationUpdates().entrySet().stream()
+		// For each correlation update, match up preference to weight delta
+		Map<Preference, Integer> correlationUpdates = update.getCorrelationDeltas().entrySet().stream()
 			       .collect(Collectors.toMap(entry -> entry.getKey().getToPreference(), 
 			    		   entry -> entry.getValue()));
 			
@@ -93,7 +125,7 @@ public class UserRecommendationCorrelationScores {
 			//   current value as the new value
 			double newWeight = prefCorrelation.getWeight();
 			
-			// Back into the original weight by effectively undoing the UpdateAction
+			// Back into the original weight by effectively undoing the weight delta
 			double originalWeight = getOriginalCorrelationWeight(correlationUpdates,
 					correlatedPreference, newWeight);
 			
@@ -111,7 +143,7 @@ public class UserRecommendationCorrelationScores {
 			//   numerator (weight) of the correlation score
 			if (isUserPreference(targetPref, preferenceCategory)) {
 				updateCorrelationScoresBasedOnUserPreferenceUpdate(
-						(double) update.getPopularityUpdate().getDelta(), weightChange);
+						(double) update.getPopularityDelta(), weightChange);
 
 			} else if (isUserPreference(correlatedPreference, preferenceCategory) &&
 					correlationUpdates.containsKey(correlatedPreference)) {
@@ -149,9 +181,7 @@ public class UserRecommendationCorrelationScores {
 			// Adjust current correlation score of this correlated preference by taking into
 			//   account both the weight change of this correlated preference as well as the 
 			//   popularity change of the associated user preference
-			correlationScores.compute(correlatedPref, 
-				(key, value) ->
-		             getNewCorrelationScore(value, originalWeight, newWeight, originalPopularity, newPopularity));
+			updateCorrelationScore(correlatedPref, originalWeight, newWeight, originalPopularity, newPopularity);
 		}
 	}
 	
@@ -163,24 +193,25 @@ public class UserRecommendationCorrelationScores {
 	 * @return
 	 */
 	private boolean isUserPreference(Preference targetPref, PreferenceCategory preferenceCategory) {
-		return user.getPreferencesForCategory(preferenceCategory).contains(targetPref);
+		Set<Preference> userPreferences = user.getPreferencesForCategory(preferenceCategory);
+		return userPreferences != null && userPreferences.contains(targetPref);
 	}
 	
 	/**
 	 * Backs into original correlation score by undoing effect of correlation update
 	 *    contained within a UpdatePreferenceRequest.
 	 * 
-	 * @param correlationUpdates Matches a correlated Preference to the associated UpdateAction,
+	 * @param correlationUpdates Matches a correlated Preference to the associated weight delta,
 	 *     basically a flattening of the UpdatePreferenceRequest
 	 * @param correlatedPreference 
 	 * @param newWeight
 	 * @return
 	 */
 	private double getOriginalCorrelationWeight(
-			Map<Preference, UpdateAction> correlationUpdates,
+			Map<Preference, Integer> correlationUpdates,
 			Preference correlatedPreference, double newWeight) {
 		return correlationUpdates.containsKey(correlatedPreference) ?
-				newWeight - correlationUpdates.get(correlatedPreference).getDelta() :
+				newWeight - correlationUpdates.get(correlatedPreference) :
 					newWeight;
 	}
 	
@@ -195,28 +226,34 @@ public class UserRecommendationCorrelationScores {
 		Preference correlatedPreference = weightChange.getDestinationPreference();
 		double originalPopularity = correlatedPreference.getPopularity();
 		
-		correlationScores.compute(weightChange.getSourcePreference(), 
-				(key, value) -> getNewCorrelationScore(value, weightChange.getOriginalWeight(), 
-						weightChange.getNewWeight(), originalPopularity, originalPopularity));
+		updateCorrelationScore(weightChange.getSourcePreference(), weightChange.getOriginalWeight(), 
+				weightChange.getNewWeight(), originalPopularity, originalPopularity);
 	}
 	
 	/**
 	 * Adjusts current correlation score of a given preference by taking one weight
 	 * change and one associated optional popularity change and adjust the total correlation 
-	 *  score accordingly.  
+	 *  score accordingly.  A preference without a score yet simply gets the new correlation ratio.
 	 * 
-	 * @param originalScore  Correlation score before this update was applied
+	 * @param preference  Preference whose correlation score changes
 	 * @param originalWeight  Original weight of non-user correlated preference
 	 * @param newWeight  New weight of non-user correlated preference
 	 * @param originalPopularity  Original popularity of user preference
 	 * @param newPopularity  New popularity of user preference, might be the same as original
 	 *              popularity if the user preference popularity did not change
-	 * @return
 	 */
-	private double getNewCorrelationScore(Double originalScore, double originalWeight, 
+	private void updateCorrelationScore(Preference preference, double originalWeight, 
 			double newWeight, double originalPopularity, double newPopularity) {
-		return (originalScore == null) ? newWeight / newPopularity :
-			(newWeight/newPopularity - originalWeight/originalPopularity) + originalScore;
+		int handle = dictionary.getId(preference);
+		if (handle >= 0 && correlationScores.containsKey(handle)) {
+			correlationScores.add(handle, newWeight/newPopularity - originalWeight/originalPopularity);
+		} else {
+			// Encode a copy, so the dictionary does not hold on to the correlations of the graph's preference
+			if (handle < 0) {
+				handle = dictionary.encode(new Preference(preference.getID(), preference.getCategory()));
+			}
+			correlationScores.put(handle, newWeight / newPopularity);
+		}
 	}
 	
 	/**
@@ -232,11 +269,54 @@ public class UserRecommendationCorrelationScores {
 			 return Optional.empty();
 		}
 		
-		// This comparator simply orders map entries by correlation score
-		Comparator<Map.Entry<Preference, Double>> entryComparator = (e1, e2) -> (e1.getValue() - e2.getValue()) > 0.0 ? 1 : -1;		
-		
-		Entry<Preference, Double> maxEntry = Collections.max(correlationScores.entrySet(), entryComparator);
-		return Optional.of(new Tuple2<>(maxEntry.getKey(), maxEntry.getValue()));
+		// Track the max without boxing, the first of equal scores wins
+		int[] maxHandle = { -1 };
+		double[] maxScore = new double[1];
+		correlationScores.forEach((handle, score) -> {
+			if (maxHandle[0] < 0 || score > maxScore[0]) {
+				maxHandle[0] = handle;
+				maxScore[0] = score;
+			}
+		});
+		return Optional.of(new Tuple2<>(dictionary.getPreference(maxHandle[0]), maxScore[0]));
+	}
+
+	/**
+	 * Finds the k preferences with the highest correlation scores using a min-heap of size k, so 
+	 *   this costs O(n log k) for n scored preferences.
+	 * 
+	 * @param k  Maximum number of preferences to return
+	 * @return  Bounded heap of the top scored entries, which can be merged with the heaps of other batches
+	 */
+	public BoundedPriorityQueue<Tuple2<Preference, Double>> getTopRecommendedPreferencesAndCorrelations(int k) {
+		BoundedPriorityQueue<Tuple2<Preference, Double>> topEntries = 
+				new BoundedPriorityQueue<Tuple2<Preference, Double>>(k, SCORE_ORDER);
+		correlationScores.forEach((handle, score) -> {
+			// Only build an entry if it could displace the current least entry
+			if (!topEntries.isFull() || score >= topEntries.peek()._2()) {
+				topEntries.offer(new Tuple2<>(dictionary.getPreference(handle), score));
+			}
+		});
+		return topEntries;
+	}
+
+	/**
+	 * 
+	 * @param preference
+	 * @return  Correlation score of the preference, or null if it has no score
+	 */
+	public Double getCorrelationScore(Preference preference) {
+		int handle = dictionary.getId(preference);
+		return correlationScores.containsKey(handle) ? correlationScores.get(handle, 0.0) : null;
+	}
+	
+	/**
+	 * Calls the consumer with every scored preference and its score, without copying the scores.
+	 * 
+	 * @param consumer
+	 */
+	public void forEachCorrelationScore(ObjDoubleConsumer<Preference> consumer) {
+		correlationScores.forEach((handle, score) -> consumer.accept(dictionary.getPreference(handle), score));
 	}
 
 	/**
@@ -244,7 +324,9 @@ public class UserRecommendationCorrelationScores {
 	 * @return  Underlying scores by Preference
 	 */
 	public final Map<Preference, Double> getCorrelationScores() {
-		return new HashMap<Preference, Double>(correlationScores);
+		Map<Preference, Double> scores = new HashMap<Preference, Double>(correlationScores.size() * 2);
+		forEachCorrelationScore((preference, score) -> scores.put(preference, score));
+		return scores;
 	}
 }
 
@@ -1,12 +1,17 @@
 package server.standalone;
 
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import server.daemons.UpdatePreferenceDaemon;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 
+import data.proxy.CachingUserProfileStore;
 import data.proxy.DDBPreferenceCorrelationGraph;
 import data.proxy.DDBUserProfileStore;
 import data.proxy.PreferenceCorrelationGraph;
@@ -27,6 +32,13 @@ public class SimpleServerCLI {
         LOGIN, ADD, REMOVE
     };
     
+    private static final int PROPAGATION_THREADS = 4;
+    private static final int MAX_PENDING_PROPAGATIONS = 1000;
+    private static final long SUBMIT_TIMEOUT_SECONDS = 5;
+    private static final int PROFILE_CACHE_SIZE = 10000;
+    private static final long PROFILE_CACHE_SECONDS = 300;
+    private static final long MISSING_PROFILE_CACHE_SECONDS = 30;
+    
     private static final Scanner in = new Scanner(System.in);
     private static UserProfile currentUser;
     
@@ -36,14 +48,25 @@ public class SimpleServerCLI {
      * @param args
      */
     public static void main(String[] args) {
-        final UserProfileStore userStore = new DDBUserProfileStore(new DynamoDB(
-                new AmazonDynamoDBClient()), "UserProfiles");
+        // Login reads the profile it has just written for a new user, so cache profiles and IDs
+        // that have none
+        final UserProfileStore userStore = new CachingUserProfileStore(new DDBUserProfileStore(
+                new DynamoDB(new AmazonDynamoDBClient()), "UserProfiles"), PROFILE_CACHE_SIZE,
+                PROFILE_CACHE_SECONDS, MISSING_PROFILE_CACHE_SECONDS, TimeUnit.SECONDS);
         // final UserProfileStore userStore = new LocalTransientUserProfileStore();
+        // final UserProfileStore userStore = new DurableUserProfileStore(new File("data"), 10000);
         final PreferenceCorrelationGraph preferenceGraph = new DDBPreferenceCorrelationGraph(
                 new DynamoDB(new AmazonDynamoDBClient()), "PreferenceCorrelations");
         // final PreferenceCorrelationGraph preferenceGraph = new
         // LocalTransientPreferenceCorrelationGraph();
-        final UpdatePreferenceDaemon updater = new UpdatePreferenceDaemon(preferenceGraph);
+        // final PreferenceCorrelationGraph preferenceGraph = new
+        // DurablePreferenceCorrelationGraph(new File("data"), 100000);
+        // Propagate preference changes in the background, so the user does not wait for them
+        final ExecutorService propagationExecutor = Executors
+                .newFixedThreadPool(PROPAGATION_THREADS);
+        final UpdatePreferenceDaemon updater = new UpdatePreferenceDaemon(preferenceGraph,
+                propagationExecutor, MAX_PENDING_PROPAGATIONS, SUBMIT_TIMEOUT_SECONDS,
+                TimeUnit.SECONDS);
         
         printGreeting();
         
@@ -134,7 +157,8 @@ public class SimpleServerCLI {
             Preference addedPreference = currentUser.addPreference(category, preferenceId);
             if (addedPreference != null) {
                 userStore.write(currentUser);
-                updater.propagateAddedPreference(currentUser, addedPreference);
+                reportFailure(updater.submitAddedPreference(currentUser, addedPreference),
+                        preferenceId);
                 
                 System.out.println(String.format("Added preference %s: %s.", categoryString,
                         preferenceId));
@@ -159,7 +183,8 @@ public class SimpleServerCLI {
             Preference removedPreference = currentUser.removePreference(category, preferenceId);
             if (removedPreference != null) {
                 userStore.write(currentUser);
-                updater.propagateRemovedPreference(currentUser, removedPreference);
+                reportFailure(updater.submitRemovedPreference(currentUser, removedPreference),
+                        preferenceId);
                 
                 System.out.println(String.format("Removed preference %s: %s.", categoryString,
                         preferenceId));
@@ -167,6 +192,21 @@ public class SimpleServerCLI {
         }
     }
     
+    /**
+     * Prints an error if the propagation of a preference change fails.
+     * 
+     * @param propagation
+     * @param preferenceId
+     */
+    private static void reportFailure(CompletableFuture<Void> propagation, String preferenceId) {
+        propagation.whenComplete((result, e) -> {
+            if (e != null) {
+                System.out.println(String.format("Failed to propagate preference %s: %s",
+                        preferenceId, e.getMessage()));
+            }
+        });
+    }
+    
     /**
      * Checks to see if the user is currently logged in.
      * 
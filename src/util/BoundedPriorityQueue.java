@@ -0,0 +1,98 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the k greatest items offered to it, according to a comparator. Backed by a min-heap of at
+ * most k items, so offering n items costs O(n log k).
+ *
+ * @param <T>
+ */
+public class BoundedPriorityQueue<T> {
+	private final int capacity;
+	private final Comparator<? super T> comparator;
+	private final PriorityQueue<T> heap;
+
+	/**
+	 *
+	 * @param capacity The maximum number of items to keep
+	 * @param comparator Orders items, greatest items are kept
+	 * @throws IllegalArgumentException if capacity is less than 1
+	 */
+	public BoundedPriorityQueue(int capacity, Comparator<? super T> comparator) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1!");
+		}
+		this.capacity = capacity;
+		this.comparator = comparator;
+		this.heap = new PriorityQueue<T>(capacity, comparator);
+	}
+
+	/**
+	 * Offers an item, which is kept only if it is among the k greatest items seen so far.
+	 *
+	 * @param item
+	 * @return true if the item was kept
+	 */
+	public boolean offer(T item) {
+		if (heap.size() < capacity) {
+			return heap.offer(item);
+		}
+		if (comparator.compare(item, heap.peek()) > 0) {
+			heap.poll();
+			return heap.offer(item);
+		}
+		return false;
+	}
+
+	/**
+	 * Merges the items of another queue into this one.
+	 *
+	 * @param other
+	 * @return This queue, holding the k greatest items of both queues
+	 */
+	public BoundedPriorityQueue<T> merge(BoundedPriorityQueue<T> other) {
+		for (T item : other.heap) {
+			offer(item);
+		}
+		return this;
+	}
+
+	/**
+	 *
+	 * @return The least of the kept items, which is the next to be evicted, or null if empty
+	 */
+	public T peek() {
+		return heap.peek();
+	}
+
+	/**
+	 *
+	 * @return true if the queue holds k items, so an item is only kept if it beats {@link #peek()}
+	 */
+	public boolean isFull() {
+		return heap.size() >= capacity;
+	}
+
+	public int size() {
+		return heap.size();
+	}
+
+	public boolean isEmpty() {
+		return heap.isEmpty();
+	}
+
+	/**
+	 *
+	 * @return The kept items, greatest first
+	 */
+	public List<T> toSortedList() {
+		List<T> items = new ArrayList<T>(heap);
+		Collections.sort(items, Collections.reverseOrder(comparator));
+		return items;
+	}
+}
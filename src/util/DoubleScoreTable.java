@@ -0,0 +1,187 @@
+package util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.DoublePredicate;
+
+/**
+ * A table from int keys to primitive double scores.  Keys are compact handles, such as the dense IDs that a
+ *    PreferenceDictionary assigns to preferences, so the scores are kept in an array indexed by key, with a bit per key
+ *    telling which keys have a score.  Neither adding to a score nor looking one up hashes, allocates or calls equals(),
+ *    unlike a HashMap<Preference, Double> which boxes every value and allocates a node per key.  Memory grows with the
+ *    largest key rather than the number of keys, so keys should be dense and may not be negative.
+ */
+public class DoubleScoreTable {
+	private static final int DEFAULT_EXPECTED_SIZE = 16;
+	// Largest array that every JVM can allocate
+	private static final int MAXIMUM_CAPACITY = Integer.MAX_VALUE - 8;
+
+	private double[] scores;
+	// Bit k of word k / 64 is set if key k has a score
+	private long[] present;
+	private int size;
+
+	/**
+	 * Receives a key and its score, without boxing either.
+	 */
+	public interface ScoreConsumer {
+		public void accept(int key, double score);
+	}
+
+	public DoubleScoreTable() {
+		this(DEFAULT_EXPECTED_SIZE);
+	}
+
+	/**
+	 *
+	 * @param expectedSize Keys from 0 to expectedSize - 1 can be held without resizing
+	 * @throws IllegalArgumentException if expectedSize is negative or greater than MAXIMUM_CAPACITY
+	 */
+	public DoubleScoreTable(int expectedSize) {
+		if (expectedSize < 0 || expectedSize > MAXIMUM_CAPACITY) {
+			throw new IllegalArgumentException("Expected size must be between 0 and " + MAXIMUM_CAPACITY + "!");
+		}
+		int capacity = Math.max(expectedSize, 1);
+		scores = new double[capacity];
+		present = new long[wordsFor(capacity)];
+	}
+
+	/**
+	 * Adds to the score of a key, which starts from 0 if the key is not yet in the table.
+	 *
+	 * @param key
+	 * @param delta
+	 * @return the new score
+	 */
+	public double add(int key, double delta) {
+		insert(key);
+		scores[key] += delta;
+		return scores[key];
+	}
+
+	/**
+	 * Sets the score of a key.
+	 *
+	 * @param key
+	 * @param score
+	 */
+	public void put(int key, double score) {
+		insert(key);
+		scores[key] = score;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return true if the key has a score, even if that score is 0
+	 */
+	public boolean containsKey(int key) {
+		return key >= 0 && key < scores.length && (present[key >>> 6] & (1L << key)) != 0;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @param defaultScore
+	 * @return the score of the key, or defaultScore if it has none
+	 */
+	public double get(int key, double defaultScore) {
+		return containsKey(key) ? scores[key] : defaultScore;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Calls the consumer with every key and its score, in increasing order of key.
+	 *
+	 * @param consumer
+	 */
+	public void forEach(ScoreConsumer consumer) {
+		for (int word = 0; word < present.length; word++) {
+			long bits = present[word];
+			while (bits != 0) {
+				int key = (word << 6) + Long.numberOfTrailingZeros(bits);
+				consumer.accept(key, scores[key]);
+				bits &= bits - 1;
+			}
+		}
+	}
+
+	/**
+	 * Removes every key whose score matches the predicate.
+	 *
+	 * @param predicate
+	 * @return true if any key was removed
+	 */
+	public boolean removeIf(DoublePredicate predicate) {
+		int oldSize = size;
+		for (int word = 0; word < present.length; word++) {
+			long bits = present[word];
+			while (bits != 0) {
+				long bit = bits & -bits;
+				int key = (word << 6) + Long.numberOfTrailingZeros(bits);
+				if (predicate.test(scores[key])) {
+					present[word] &= ~bit;
+					scores[key] = 0.0;
+					size--;
+				}
+				bits &= bits - 1;
+			}
+		}
+		return size != oldSize;
+	}
+
+	/**
+	 *
+	 * @return a HashMap holding the same scores
+	 */
+	public Map<Integer, Double> toMap() {
+		Map<Integer, Double> map = new HashMap<Integer, Double>(size * 2);
+		forEach((key, score) -> map.put(key, score));
+		return map;
+	}
+
+	private void insert(int key) {
+		if (key < 0) {
+			throw new IllegalArgumentException("Key cannot be negative!");
+		}
+		if (key >= scores.length) {
+			grow(key);
+		}
+		long bit = 1L << key;
+		if ((present[key >>> 6] & bit) == 0) {
+			present[key >>> 6] |= bit;
+			size++;
+		}
+	}
+
+	/**
+	 * Grows the arrays to hold a key, at least doubling them so that adding keys in order costs amortized constant time.
+	 *
+	 * @param key
+	 */
+	private void grow(int key) {
+		if (key >= MAXIMUM_CAPACITY) {
+			throw new IllegalArgumentException("Key is too large!");
+		}
+		int capacity = (int) Math.min(MAXIMUM_CAPACITY, Math.max((long) key + 1, 2L * scores.length));
+		scores = Arrays.copyOf(scores, capacity);
+		present = Arrays.copyOf(present, wordsFor(capacity));
+	}
+
+	private static int wordsFor(int capacity) {
+		return (int) (((long) capacity + 63) >>> 6);
+	}
+
+	@Override
+	public String toString() {
+		return toMap().toString();
+	}
+}
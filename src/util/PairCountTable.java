@@ -0,0 +1,229 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * A hash table from pairs of non-negative int IDs to primitive int counts.  Each pair is packed into a long key, and
+ *    keys and counts are kept in parallel arrays with open addressing and linear probing, so counting a pair never
+ *    allocates, unlike a HashMap<Tuple2<Integer, Integer>, Integer> which allocates a key, a boxed count and a node per
+ *    pair.  The pair (a, b) is distinct from (b, a).
+ */
+public class PairCountTable {
+	private static final int DEFAULT_EXPECTED_SIZE = 16;
+	// Never a packed key, since IDs are non-negative
+	private static final long EMPTY = -1L;
+	// Largest power of two array length
+	private static final int MAXIMUM_CAPACITY = 1 << 30;
+	// The table is kept at most half full
+	public static final int MAXIMUM_SIZE = MAXIMUM_CAPACITY / 2;
+
+	/**
+	 * Receives the pairs of a table and their counts.
+	 */
+	@FunctionalInterface
+	public interface PairCountConsumer {
+		void accept(int first, int second, int count);
+	}
+
+	private long[] keys;
+	private int[] counts;
+	private int size;
+	// Resize once size reaches this, i.e. a load factor of 1/2
+	private int threshold;
+
+	public PairCountTable() {
+		this(DEFAULT_EXPECTED_SIZE);
+	}
+
+	/**
+	 *
+	 * @param expectedSize The number of pairs that can be held without resizing
+	 * @throws IllegalArgumentException if expectedSize is negative or greater than MAXIMUM_SIZE
+	 */
+	public PairCountTable(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+	}
+
+	/**
+	 * Adds to the count of a pair, which starts from 0 if the pair is not yet in the table.
+	 *
+	 * @param first
+	 * @param second
+	 * @param delta
+	 * @return the new count
+	 * @throws IllegalArgumentException if either ID is negative
+	 * @throws IllegalStateException if the pair is new and the table already holds MAXIMUM_SIZE pairs
+	 */
+	public int add(int first, int second, int delta) {
+		if (first < 0 || second < 0) {
+			throw new IllegalArgumentException("Pair IDs cannot be negative!");
+		}
+		long key = pack(first, second);
+		int slot = find(key);
+		if (keys[slot] == EMPTY) {
+			if (size >= threshold) {
+				resize();
+				slot = find(key);
+			}
+			keys[slot] = key;
+			size++;
+		}
+		counts[slot] += delta;
+		return counts[slot];
+	}
+
+	/**
+	 *
+	 * @param first
+	 * @param second
+	 * @return the count of the pair, or 0 if it has none
+	 */
+	public int get(int first, int second) {
+		if (first < 0 || second < 0) {
+			return 0;
+		}
+		int slot = find(pack(first, second));
+		return keys[slot] == EMPTY ? 0 : counts[slot];
+	}
+
+	/**
+	 *
+	 * @param first
+	 * @param second
+	 * @return true if the pair has a count, even if that count is 0
+	 */
+	public boolean contains(int first, int second) {
+		return first >= 0 && second >= 0 && keys[find(pack(first, second))] != EMPTY;
+	}
+
+	/**
+	 * Removes a pair and its count.
+	 *
+	 * @param first
+	 * @param second
+	 * @return true if the pair was in the table
+	 */
+	public boolean remove(int first, int second) {
+		if (first < 0 || second < 0) {
+			return false;
+		}
+		int hole = find(pack(first, second));
+		if (keys[hole] == EMPTY) {
+			return false;
+		}
+		// Shift back the later pairs of the probe run that could not be found past the hole
+		int mask = keys.length - 1;
+		for (int slot = (hole + 1) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+			int home = mix(keys[slot]) & mask;
+			if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+				keys[hole] = keys[slot];
+				counts[hole] = counts[slot];
+				hole = slot;
+			}
+		}
+		keys[hole] = EMPTY;
+		counts[hole] = 0;
+		size--;
+		return true;
+	}
+
+	/**
+	 * Adds every count of another table to this one.
+	 *
+	 * @param other
+	 */
+	public void addAll(PairCountTable other) {
+		other.forEach(this::add);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Calls the consumer with every pair and its count, in no particular order.
+	 *
+	 * @param consumer
+	 */
+	public void forEach(PairCountConsumer consumer) {
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (keys[slot] != EMPTY) {
+				consumer.accept((int) (keys[slot] >>> 32), (int) keys[slot], counts[slot]);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return the slot holding the key, or the empty slot where it would be inserted
+	 */
+	private int find(long key) {
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void resize() {
+		if (keys.length == MAXIMUM_CAPACITY) {
+			throw new IllegalStateException("Pair table is full!");
+		}
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		allocate(oldKeys.length * 2);
+		for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+			if (oldKeys[oldSlot] != EMPTY) {
+				int slot = find(oldKeys[oldSlot]);
+				keys[slot] = oldKeys[oldSlot];
+				counts[slot] = oldCounts[oldSlot];
+				size++;
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		counts = new int[capacity];
+		size = 0;
+		threshold = capacity / 2;
+	}
+
+	/**
+	 *
+	 * @param expectedSize
+	 * @return the smallest power of two capacity that holds expectedSize pairs below the load factor
+	 */
+	private static int capacityFor(int expectedSize) {
+		if (expectedSize < 0 || expectedSize > MAXIMUM_SIZE) {
+			throw new IllegalArgumentException("Expected size must be between 0 and " + MAXIMUM_SIZE + "!");
+		}
+		int capacity = 4;
+		while (capacity / 2 < expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private static long pack(int first, int second) {
+		return ((long) first << 32) | (second & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Spreads the bits of a packed pair, so pairs that only differ in their first ID do not all probe the same slots.
+	 *
+	 * @param key
+	 * @return mixed hash
+	 */
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,235 @@
+package data.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * Tests the functionality of the CachingPreferenceCorrelationGraph class.
+ */
+public class CachingPreferenceCorrelationGraphTest {
+    
+    private static final UserProfile USER = new UserProfile("user");
+    
+    private CountingGraph source;
+    
+    /**
+     * A graph that counts the preferences read from it, and can run a task in the middle of a
+     * read.
+     */
+    private static class CountingGraph extends LocalTransientPreferenceCorrelationGraph {
+        private int reads;
+        private Runnable duringRead;
+        
+        @Override
+        public Preference getPreference(String id, PreferenceCategory category) {
+            this.reads++;
+            if (this.duringRead != null) {
+                Runnable task = this.duringRead;
+                this.duringRead = null;
+                task.run();
+            }
+            return super.getPreference(id, category);
+        }
+    }
+    
+    /**
+     * A ticker that only moves when told to.
+     */
+    private static class FakeTicker extends Ticker {
+        private long nanos;
+        
+        @Override
+        public long read() {
+            return this.nanos;
+        }
+    }
+    
+    /**
+     * Fills the source graph with books that have no correlations, and so a weight of 1 each.
+     */
+    @Before
+    public void before() {
+        source = new CountingGraph();
+        for (int i = 0; i < 100; i++) {
+            source.putPreference(new Preference("book" + i, PreferenceCategory.BOOKS, i));
+        }
+    }
+    
+    /**
+     * Tests that repeated reads are served from the cache and counted.
+     */
+    @Test
+    public void testRepeatedReadsAreCached() {
+        CachingPreferenceCorrelationGraph cache = new CachingPreferenceCorrelationGraph(source, 10);
+        
+        Preference first = cache.getPreference("book1", PreferenceCategory.BOOKS);
+        for (int i = 0; i < 9; i++) {
+            assertSame(first, cache.getPreference("book1", PreferenceCategory.BOOKS));
+        }
+        assertNull(cache.getPreference("missing", PreferenceCategory.BOOKS));
+        
+        assertEquals("The cache did not spare the reads!", 2, source.reads);
+        assertEquals(9, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(9.0 / 11, cache.getHitRate(), 1e-9);
+        assertEquals(1, cache.size());
+    }
+    
+    /**
+     * Tests that puts, updates and deletes drop what they change.
+     */
+    @Test
+    public void testWritesInvalidate() {
+        CachingPreferenceCorrelationGraph cache = new CachingPreferenceCorrelationGraph(source, 10);
+        cache.getPreference("book1", PreferenceCategory.BOOKS);
+        
+        cache.putPreference(new Preference("book1", PreferenceCategory.BOOKS, 50));
+        assertEquals(50, cache.getPreference("book1", PreferenceCategory.BOOKS).getPopularity());
+        
+        UpdatePreferenceRequest request = new UpdatePreferenceRequest(new Preference("book1",
+                PreferenceCategory.BOOKS));
+        request.addPopularityDelta(1);
+        cache.updatePreference(request, USER, UpdateAction.INC_CORRELATION);
+        assertEquals(51, cache.getPreference("book1", PreferenceCategory.BOOKS).getPopularity());
+        
+        cache.delete("book1", PreferenceCategory.BOOKS);
+        assertNull(cache.getPreference("book1", PreferenceCategory.BOOKS));
+        assertEquals("Every read after a write should have missed!", 4, source.reads);
+    }
+    
+    /**
+     * Tests that a read that overlaps a write of the same preference is not cached.
+     */
+    @Test
+    public void testOverlappingWriteIsNotCached() {
+        CachingPreferenceCorrelationGraph cache = new CachingPreferenceCorrelationGraph(source, 10);
+        source.duringRead = () -> cache.putPreference(new Preference("book1",
+                PreferenceCategory.BOOKS, 50));
+        
+        cache.getPreference("book1", PreferenceCategory.BOOKS);
+        assertEquals(50, cache.getPreference("book1", PreferenceCategory.BOOKS).getPopularity());
+        assertEquals("A read that overlapped a write was cached!", 2, source.reads);
+    }
+    
+    /**
+     * Tests that a read that overlaps a write of another preference is still cached.
+     */
+    @Test
+    public void testOverlappingWriteOfOtherPreferenceIsCached() {
+        CachingPreferenceCorrelationGraph cache = new CachingPreferenceCorrelationGraph(source, 10);
+        source.duringRead = () -> cache.putPreference(new Preference("book2",
+                PreferenceCategory.BOOKS, 50));
+        
+        cache.getPreference("book1", PreferenceCategory.BOOKS);
+        cache.getPreference("book1", PreferenceCategory.BOOKS);
+        assertEquals("The read was not cached!", 1, source.reads);
+        assertEquals(1, cache.getHitCount());
+    }
+    
+    /**
+     * Tests that an update of a pair in a symmetric graph drops the other preference of the pair.
+     */
+    @Test
+    public void testSymmetricUpdateInvalidatesBothPreferences() {
+        SymmetricPreferenceCorrelationGraph symmetric = new SymmetricPreferenceCorrelationGraph();
+        Preference a = new Preference("a", PreferenceCategory.BOOKS, 1);
+        Preference b = new Preference("b", PreferenceCategory.BOOKS, 1);
+        symmetric.putPreference(a);
+        symmetric.putPreference(b);
+        CachingPreferenceCorrelationGraph cache = new CachingPreferenceCorrelationGraph(symmetric,
+                10);
+        assertEquals(0, cache.getPreference("b", PreferenceCategory.BOOKS).getCorrelations()
+                .size());
+        
+        UpdatePreferenceRequest request = new UpdatePreferenceRequest(a);
+        request.addCorrelationDelta(new PreferenceCorrelation(b), 3);
+        cache.updatePreference(request, USER, UpdateAction.INC_CORRELATION);
+        
+        assertEquals("A stale copy of the other preference was served!", 3, cache.getPreference(
+                "b", PreferenceCategory.BOOKS).findCorrelation(a).getWeight());
+    }
+    
+    /**
+     * Tests that preferences read twice survive a scan of preferences that are each read once.
+     */
+    @Test
+    public void testScanResistance() {
+        CachingPreferenceCorrelationGraph cache = new CachingPreferenceCorrelationGraph(source, 10);
+        for (int i = 0; i < 5; i++) {
+            cache.getPreference("book" + i, PreferenceCategory.BOOKS);
+            cache.getPreference("book" + i, PreferenceCategory.BOOKS);
+        }
+        for (int i = 5; i < 100; i++) {
+            cache.getPreference("book" + i, PreferenceCategory.BOOKS);
+        }
+        
+        int readsBefore = source.reads;
+        for (int i = 0; i < 5; i++) {
+            cache.getPreference("book" + i, PreferenceCategory.BOOKS);
+        }
+        assertEquals("The scan flushed the hot preferences!", readsBefore, source.reads);
+        assertEquals(10, cache.getWeight());
+        assertEquals(90, cache.getEvictionCount());
+    }
+    
+    /**
+     * Tests that entries are weighed by their correlations, and one heavier than the whole cache is
+     * not kept.
+     */
+    @Test
+    public void testWeights() {
+        Preference heavy = new Preference("heavy", PreferenceCategory.BOOKS, 1);
+        for (int i = 0; i < 10; i++) {
+            heavy.addCorrelation(new PreferenceCorrelation(new Preference("book" + i,
+                    PreferenceCategory.BOOKS), 1));
+        }
+        source.putPreference(heavy);
+        CachingPreferenceCorrelationGraph cache = new CachingPreferenceCorrelationGraph(source, 10);
+        
+        cache.getPreference("heavy", PreferenceCategory.BOOKS);
+        assertEquals(0, cache.size());
+        
+        heavy.removeCorrelation(heavy.findCorrelation(new Preference("book0",
+                PreferenceCategory.BOOKS)));
+        cache.getPreference("heavy", PreferenceCategory.BOOKS);
+        assertEquals(10, cache.getWeight());
+        cache.getPreference("book1", PreferenceCategory.BOOKS);
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+    }
+    
+    /**
+     * Tests that entries expire once they are older than the expiry time.
+     */
+    @Test
+    public void testExpiry() {
+        FakeTicker ticker = new FakeTicker();
+        CachingPreferenceCorrelationGraph cache = new CachingPreferenceCorrelationGraph(source, 10,
+                1, TimeUnit.MINUTES, ticker);
+        
+        cache.getPreference("book1", PreferenceCategory.BOOKS);
+        ticker.nanos = TimeUnit.SECONDS.toNanos(59);
+        cache.getPreference("book1", PreferenceCategory.BOOKS);
+        assertEquals(1, source.reads);
+        
+        ticker.nanos = TimeUnit.SECONDS.toNanos(60);
+        cache.getPreference("book1", PreferenceCategory.BOOKS);
+        assertEquals("The entry did not expire!", 2, source.reads);
+        assertEquals(1, cache.getExpirationCount());
+    }
+}
@@ -0,0 +1,160 @@
+package data.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+import data.structure.UserProfile;
+
+/**
+ * Tests the functionality of the CachingUserProfileStore class.
+ */
+public class CachingUserProfileStoreTest {
+    
+    private CountingStore source;
+    private FakeTicker ticker;
+    private CachingUserProfileStore store;
+    
+    /**
+     * A store that counts the profiles read from it and can be made to fail writes.
+     */
+    private static class CountingStore extends LocalTransientUserProfileStore {
+        private int reads;
+        private boolean failWrites;
+        
+        @Override
+        public UserProfile getProfile(String id) {
+            this.reads++;
+            return super.getProfile(id);
+        }
+        
+        @Override
+        public void write(UserProfile profile) {
+            if (this.failWrites) {
+                throw new IllegalStateException("Write failed!");
+            }
+            super.write(profile);
+        }
+    }
+    
+    /**
+     * A ticker that only moves when told to.
+     */
+    private static class FakeTicker extends Ticker {
+        private long nanos;
+        
+        @Override
+        public long read() {
+            return this.nanos;
+        }
+    }
+    
+    /**
+     * Caches profiles for 5 minutes and missing IDs for 30 seconds.
+     */
+    @Before
+    public void before() {
+        source = new CountingStore();
+        ticker = new FakeTicker();
+        store = new CachingUserProfileStore(source, 10, 300, 30, TimeUnit.SECONDS, ticker);
+    }
+    
+    /**
+     * Tests that logging in a new user, i.e. a read, a write and a read again, reads the
+     * underlying store once, and that later reads are cached.
+     */
+    @Test
+    public void testLoginOfNewUser() {
+        assertNull(store.getProfile("alice"));
+        UserProfile alice = new UserProfile("alice");
+        store.write(alice);
+        assertSame(alice, store.getProfile("alice"));
+        assertSame(alice, store.getProfile("alice"));
+        
+        assertEquals("The written profile was read back from the store!", 1, source.reads);
+        assertEquals(2, store.getHitCount());
+        assertEquals(1, store.getMissCount());
+    }
+    
+    /**
+     * Tests that a missing ID is remembered until its window ends.
+     */
+    @Test
+    public void testMissingIdsAreRemembered() {
+        for (int i = 0; i < 5; i++) {
+            assertNull(store.getProfile("nobody"));
+        }
+        assertEquals(1, source.reads);
+        assertEquals(4, store.getMissingHitCount());
+        
+        ticker.nanos = TimeUnit.SECONDS.toNanos(30);
+        assertNull(store.getProfile("nobody"));
+        assertEquals("The missing ID did not expire!", 2, source.reads);
+    }
+    
+    /**
+     * Tests that a user created by another process is seen once it is invalidated.
+     */
+    @Test
+    public void testInvalidate() {
+        assertNull(store.getProfile("bob"));
+        source.write(new UserProfile("bob"));
+        assertNull(store.getProfile("bob"));
+        
+        store.invalidate("bob");
+        assertEquals("bob", store.getProfile("bob").getId());
+    }
+    
+    /**
+     * Tests that a deleted profile is not served from the cache, and is remembered as missing.
+     */
+    @Test
+    public void testDelete() {
+        store.write(new UserProfile("carol"));
+        store.delete("carol");
+        
+        assertNull(store.getProfile("carol"));
+        assertNull(source.getProfile("carol"));
+        assertEquals(1, store.getMissingHitCount());
+        assertEquals(0, store.getMissCount());
+    }
+    
+    /**
+     * Tests that a profile whose write failed is not cached.
+     */
+    @Test
+    public void testFailedWriteIsNotCached() {
+        source.failWrites = true;
+        try {
+            store.write(new UserProfile("dave"));
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        
+        assertNull(store.getProfile("dave"));
+        assertEquals(1, store.getMissCount());
+    }
+    
+    /**
+     * Tests that profiles expire, and that the cache holds a bounded number of them.
+     */
+    @Test
+    public void testExpiryAndBound() {
+        for (int i = 0; i < 20; i++) {
+            store.write(new UserProfile("user" + i));
+        }
+        assertEquals(10, store.size());
+        
+        store.getProfile("user19");
+        ticker.nanos = TimeUnit.SECONDS.toNanos(300);
+        store.getProfile("user19");
+        assertEquals("The profile did not expire!", 1, source.reads);
+    }
+}
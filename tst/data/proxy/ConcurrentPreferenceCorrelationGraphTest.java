@@ -0,0 +1,146 @@
+package data.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterators;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * Tests the functionality of the ConcurrentPreferenceCorrelationGraph class.
+ */
+public class ConcurrentPreferenceCorrelationGraphTest {
+    
+    private static final int NUM_THREADS = 8;
+    private static final int UPDATES_PER_THREAD = 2000;
+    
+    private ConcurrentPreferenceCorrelationGraph graph;
+    
+    /**
+     * Initializes the graph.
+     */
+    @Before
+    public void before() {
+        graph = new ConcurrentPreferenceCorrelationGraph();
+    }
+    
+    /**
+     * Tests the basic write/retrieve/delete functionality of the graph.
+     */
+    @Test
+    public void testStandardPreferenceStorageCycle() {
+        final Preference p1 = new Preference("1", PreferenceCategory.MOVIES, 3);
+        final Preference p2 = new Preference("2", PreferenceCategory.MOVIES);
+        p1.addCorrelation(new PreferenceCorrelation(p2, 2));
+        
+        graph.putPreference(p1);
+        graph.putPreference(p2);
+        
+        Preference stored = graph.getPreference(p1.getID(), p1.getCategory());
+        assertEquals("Preferences do not match!", p1, stored);
+        assertEquals("The popularity was not preserved!", 3, stored.getPopularity());
+        assertEquals("The correlation was not preserved!", 2, stored.findCorrelation(p2)
+                .getWeight());
+        assertEquals("Not every preference was returned in batches!", 2, Iterators.size(graph
+                .batchGetPreferences(PreferenceCategory.MOVIES, 1)));
+        
+        graph.delete(p1.getID(), p1.getCategory());
+        assertNull("Preference was not deleted!", graph.getPreference(p1.getID(), p1.getCategory()));
+        assertNull("Preference in another category was returned!", graph.getPreference(p2.getID(),
+                PreferenceCategory.BOOKS));
+    }
+    
+    /**
+     * Tests that a preference read from the graph is a copy, which later updates do not change.
+     */
+    @Test
+    public void testReadsAreCopies() {
+        final Preference p1 = new Preference("1", PreferenceCategory.MOVIES);
+        final Preference p2 = new Preference("2", PreferenceCategory.MOVIES);
+        graph.updatePreference(buildRequest(p1, p2), new UserProfile("user"),
+                UpdateAction.INC_CORRELATION);
+        Preference before = graph.getPreference(p1.getID(), p1.getCategory());
+        
+        graph.updatePreference(buildRequest(p1, p2), new UserProfile("other"),
+                UpdateAction.INC_CORRELATION);
+        
+        assertEquals("A copy was changed by a later update!", 1, before.getPopularity());
+        assertEquals("The update was not applied!", 2, graph.getPreference(p1.getID(),
+                p1.getCategory()).getPopularity());
+    }
+    
+    /**
+     * Tests that concurrent updates of the same preferences lose no increments.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentUpdatesAreAtomic() throws Exception {
+        final Preference hot = new Preference("hot", PreferenceCategory.BOOKS);
+        final Preference[] others = new Preference[4];
+        for (int i = 0; i < others.length; i++) {
+            others[i] = new Preference("other" + i, PreferenceCategory.BOOKS);
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int thread = 0; thread < NUM_THREADS; thread++) {
+                final UserProfile user = new UserProfile("user" + thread);
+                tasks.add(() -> {
+                    for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+                        graph.updatePreference(buildRequest(hot, others[i % others.length]),
+                                user, UpdateAction.INC_CORRELATION);
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> task : executor.invokeAll(tasks)) {
+                task.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        Preference stored = graph.getPreference(hot.getID(), hot.getCategory());
+        assertEquals("A popularity increment was lost!", NUM_THREADS * UPDATES_PER_THREAD, stored
+                .getPopularity());
+        for (Preference other : others) {
+            assertEquals("A correlation increment was lost!", NUM_THREADS * UPDATES_PER_THREAD
+                    / others.length, stored.findCorrelation(other).getWeight());
+        }
+    }
+    
+    /**
+     * Builds a request that increments the popularity of a preference and its correlation to
+     * another.
+     * 
+     * @param preference
+     * @param correlated
+     * @return request
+     */
+    private static UpdatePreferenceRequest buildRequest(Preference preference,
+            Preference correlated) {
+        UpdatePreferenceRequest request = new UpdatePreferenceRequest(preference);
+        request.updatePopularity(UpdateAction.INC_CORRELATION);
+        request.addCorrelationUpdate(new PreferenceCorrelation(correlated),
+                UpdateAction.INC_CORRELATION);
+        return request;
+    }
+}
@@ -8,25 +8,51 @@ import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.document.DeleteItemOutcome;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.PutItemOutcome;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.UpdateItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
 import com.amazonaws.services.dynamodbv2.model.PutItemResult;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
 
 import data.proxy.adapter.DDBPreferenceAdapter;
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
 import data.structure.Preference;
 import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
 
 /**
  * Tests the functionality of the DDBPreferenceCorrelationGraph class.
@@ -41,6 +67,8 @@ public class DDBPreferenceCorrelationGraphTest {
     private static final PreferenceCategory TEST_PREFERENCE_CATEGORY = PreferenceCategory.TELEVISION;
     private static final String TEST_HASH_KEY = DDBPreferenceAdapter.buildDbIdFromComponents(
             TEST_PREFERENCE_ID, TEST_PREFERENCE_CATEGORY);
+    private static final int NUM_UPDATES = 12;
+    private static final int WRITE_BATCH_SIZE = 4;
     private DynamoDB ddbClient;
     
     /**
@@ -178,6 +206,174 @@ public class DDBPreferenceCorrelationGraphTest {
         verify(ddbClient);
     }
     
+    /**
+     * Tests that batchGetPreferences() of two categories returns the preferences of both, and
+     * only those, in batches no larger than the batch size.
+     */
+    @Test
+    public void testBatchGetTwoCategories() {
+        LocalTransientDynamoDBClient client = new LocalTransientDynamoDBClient(436);
+        client.createTable(PREFERENCE_TABLE_NAME, DDBPreferenceAdapter.PREFERENCE_ID_ATTRIBUTE);
+        DDBPreferenceCorrelationGraph graph = new DDBPreferenceCorrelationGraph(
+                new DynamoDB(client), PREFERENCE_TABLE_NAME);
+        for (int i = 0; i < 7; i++) {
+            graph.putPreference(new Preference("book" + i, PreferenceCategory.BOOKS));
+            graph.putPreference(new Preference("movie" + i, PreferenceCategory.MOVIES));
+            graph.putPreference(new Preference("show" + i, PreferenceCategory.TELEVISION));
+        }
+        
+        Set<Preference> preferences = new HashSet<Preference>();
+        Iterator<List<Preference>> batches = graph.batchGetPreferences(
+                EnumSet.of(PreferenceCategory.BOOKS, PreferenceCategory.MOVIES), 4);
+        while (batches.hasNext()) {
+            List<Preference> batch = batches.next();
+            assertTrue("The batch was too large!", batch.size() <= 4);
+            for (Preference preference : batch) {
+                assertTrue("A preference of another category was returned!", preference
+                        .getCategory() != PreferenceCategory.TELEVISION);
+                assertTrue("A preference was returned twice!", preferences.add(preference));
+            }
+        }
+        assertEquals("Not every preference of the categories was returned!", 14,
+                preferences.size());
+    }
+    
+    /**
+     * Tests that updatePreferences() without an executor makes one UpdateItem round trip after
+     * another.
+     */
+    @Test
+    public void testBatchUpdateSequential() {
+        RoundTripTable tableToTest = new RoundTripTable(null);
+        expect(ddbClient.getTable(PREFERENCE_TABLE_NAME)).andReturn(tableToTest).atLeastOnce();
+        replay(ddbClient);
+        
+        DDBPreferenceCorrelationGraph graph = new DDBPreferenceCorrelationGraph(ddbClient,
+                PREFERENCE_TABLE_NAME);
+        List<Boolean> applied = graph.updatePreferences(buildUpdateRequests(), new UserProfile(
+                "user"), UpdateAction.INC_CORRELATION);
+        
+        assertEquals("Not every update was applied!", NUM_UPDATES, applied.stream()
+                .filter(Boolean::booleanValue).count());
+        assertEquals("Not every update was submitted!", NUM_UPDATES, tableToTest.roundTrips.get());
+        assertEquals("Sequential updates overlapped!", 1, tableToTest.maxInFlight.get());
+        
+        verify(ddbClient);
+    }
+    
+    /**
+     * Tests that updatePreferences() with an executor submits the k requests of a batch in k /
+     * batch size waves of concurrent UpdateItem round trips, rather than k sequential ones. Every
+     * request of a wave waits at a barrier, so the test only passes if a whole wave is in flight
+     * at once, and the barrier counts the waves.
+     */
+    @Test
+    public void testBatchUpdateConcurrentWaves() {
+        AtomicInteger waves = new AtomicInteger();
+        RoundTripTable tableToTest = new RoundTripTable(new CyclicBarrier(WRITE_BATCH_SIZE,
+                waves::incrementAndGet));
+        expect(ddbClient.getTable(PREFERENCE_TABLE_NAME)).andReturn(tableToTest).atLeastOnce();
+        replay(ddbClient);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(WRITE_BATCH_SIZE);
+        try {
+            DDBPreferenceCorrelationGraph graph = new DDBPreferenceCorrelationGraph(ddbClient,
+                    PREFERENCE_TABLE_NAME, executor, WRITE_BATCH_SIZE);
+            List<Boolean> applied = graph.updatePreferences(buildUpdateRequests(),
+                    new UserProfile("user"), UpdateAction.INC_CORRELATION);
+            
+            assertEquals("Not every update was applied!", NUM_UPDATES, applied.stream()
+                    .filter(Boolean::booleanValue).count());
+            assertEquals("Not every update was submitted!", NUM_UPDATES,
+                    tableToTest.roundTrips.get());
+            assertEquals("The updates were not submitted in concurrent waves!", NUM_UPDATES
+                    / WRITE_BATCH_SIZE, waves.get());
+            assertEquals("More updates were in flight than the write batch size!",
+                    WRITE_BATCH_SIZE, tableToTest.maxInFlight.get());
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        verify(ddbClient);
+    }
+    
+    /**
+     * Tests that updatePreferences() reports updates that fail the idempotency check as skipped,
+     * in the order of the requests.
+     */
+    @Test
+    public void testBatchUpdateReportsDuplicates() {
+        Table tableToTest = expectValidTable();
+        expect(tableToTest.updateItem(isA(UpdateItemSpec.class))).andReturn(
+                new UpdateItemOutcome(new UpdateItemResult()));
+        expect(tableToTest.updateItem(isA(UpdateItemSpec.class))).andThrow(
+                new ConditionalCheckFailedException("Already applied!"));
+        replay(tableToTest);
+        replay(ddbClient);
+        
+        DDBPreferenceCorrelationGraph graph = new DDBPreferenceCorrelationGraph(ddbClient,
+                PREFERENCE_TABLE_NAME);
+        List<Boolean> applied = graph.updatePreferences(buildUpdateRequests().subList(0, 2),
+                new UserProfile("user"), UpdateAction.INC_CORRELATION);
+        
+        assertEquals("The outcomes of the updates were not reported!", Arrays.asList(true, false),
+                applied);
+        
+        verify(tableToTest);
+        verify(ddbClient);
+    }
+    
+    /**
+     * Tests that a failed update does not stop the rest of the batch, and that the failure reports
+     * the outcomes of the updates that completed.
+     */
+    @Test
+    public void testBatchUpdateContinuesPastFailure() {
+        Table tableToTest = expectValidTable();
+        expect(tableToTest.updateItem(isA(UpdateItemSpec.class))).andReturn(
+                new UpdateItemOutcome(new UpdateItemResult()));
+        expect(tableToTest.updateItem(isA(UpdateItemSpec.class))).andThrow(
+                new ProvisionedThroughputExceededException("Throttled!"));
+        expect(tableToTest.updateItem(isA(UpdateItemSpec.class))).andThrow(
+                new ConditionalCheckFailedException("Already applied!"));
+        replay(tableToTest);
+        replay(ddbClient);
+        
+        DDBPreferenceCorrelationGraph graph = new DDBPreferenceCorrelationGraph(ddbClient,
+                PREFERENCE_TABLE_NAME);
+        try {
+            graph.updatePreferences(buildUpdateRequests().subList(0, 3), new UserProfile("user"),
+                    UpdateAction.INC_CORRELATION);
+            fail("The failure was not thrown!");
+        } catch (PartialUpdateException e) {
+            assertTrue(e.getCause() instanceof ProvisionedThroughputExceededException);
+            assertEquals("The outcomes of the completed updates were not reported!", Arrays
+                    .asList(true, null, false), e.getApplied());
+        }
+        
+        verify(tableToTest);
+        verify(ddbClient);
+    }
+    
+    /**
+     * Builds requests that each add a correlation from a different preference to the test
+     * preference, as UpdatePreferenceDaemon does when the test preference is added.
+     * 
+     * @return requests
+     */
+    private List<UpdatePreferenceRequest> buildUpdateRequests() {
+        Preference changedPreference = new Preference(TEST_PREFERENCE_ID, TEST_PREFERENCE_CATEGORY);
+        List<UpdatePreferenceRequest> requests = new ArrayList<UpdatePreferenceRequest>();
+        for (int i = 0; i < NUM_UPDATES; i++) {
+            UpdatePreferenceRequest request = new UpdatePreferenceRequest(new Preference(
+                    "Other" + i, TEST_PREFERENCE_CATEGORY));
+            request.addCorrelationUpdate(new PreferenceCorrelation(changedPreference),
+                    UpdateAction.INC_CORRELATION);
+            requests.add(request);
+        }
+        return requests;
+    }
+    
     /**
      * Performs setup to expect a valid table.
      * 
@@ -223,4 +419,49 @@ public class DDBPreferenceCorrelationGraphTest {
         
         return invalidTable;
     }
+    
+    /**
+     * Table that answers every UpdateItem request and records how many were made and how many
+     * were in flight at once. EasyMock serializes calls to a mock, so a mock Table cannot show
+     * concurrent requests. If a barrier is given, each request waits at it before returning.
+     */
+    private static class RoundTripTable extends Table {
+        
+        private final CyclicBarrier barrier;
+        private final AtomicInteger roundTrips = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+        
+        /**
+         * 
+         * @param barrier Barrier that requests wait at, or null
+         */
+        RoundTripTable(CyclicBarrier barrier) {
+            super(createMock(AmazonDynamoDB.class), PREFERENCE_TABLE_NAME);
+            this.barrier = barrier;
+        }
+        
+        @Override
+        public TableDescription describe() {
+            return new TableDescription().withTableName(PREFERENCE_TABLE_NAME).withKeySchema(
+                    new KeySchemaElement(DDBPreferenceAdapter.PREFERENCE_ID_ATTRIBUTE,
+                            KeyType.HASH));
+        }
+        
+        @Override
+        public UpdateItemOutcome updateItem(UpdateItemSpec spec) {
+            this.roundTrips.incrementAndGet();
+            this.maxInFlight.accumulateAndGet(this.inFlight.incrementAndGet(), Math::max);
+            try {
+                if (this.barrier != null) {
+                    this.barrier.await(5, TimeUnit.SECONDS);
+                }
+                return new UpdateItemOutcome(new UpdateItemResult());
+            } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+                throw new IllegalStateException("The requests of a wave were not concurrent!", e);
+            } finally {
+                this.inFlight.decrementAndGet();
+            }
+        }
+    }
 }
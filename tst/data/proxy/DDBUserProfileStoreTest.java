@@ -9,6 +9,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -25,6 +31,8 @@ import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
 
 import data.proxy.adapter.DDBUserProfileAdapter;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
 import data.structure.UserProfile;
 
 /**
@@ -168,6 +176,39 @@ public class DDBUserProfileStoreTest {
         verify(ddbClient);
     }
     
+    /**
+     * Tests that batchGetProfiles() scans the table in pages of at most the batch size, returning
+     * every stored profile, with its preferences, exactly once.
+     */
+    @Test
+    public void testBatchGetProfiles() {
+        LocalTransientDynamoDBClient client = new LocalTransientDynamoDBClient(436);
+        client.createTable(USER_TABLE_NAME, DDBUserProfileAdapter.USER_ID_ATTRIBUTE);
+        DDBUserProfileStore store = new DDBUserProfileStore(new DynamoDB(client), USER_TABLE_NAME);
+        for (int i = 0; i < 5; i++) {
+            UserProfile profile = new UserProfile(TEST_USER_NAME + i);
+            profile.addPreference(PreferenceCategory.BOOKS, "book" + i);
+            store.write(profile);
+        }
+        
+        Set<String> ids = new HashSet<String>();
+        Iterator<List<UserProfile>> batches = store.batchGetProfiles(2);
+        while (batches.hasNext()) {
+            List<UserProfile> batch = batches.next();
+            assertTrue("The batch was too large!", batch.size() <= 2);
+            for (UserProfile profile : batch) {
+                assertTrue("A profile was returned twice!", ids.add(profile.getId()));
+                String index = profile.getId().substring(TEST_USER_NAME.length());
+                assertEquals("The preferences were not read back!", Collections.singleton(
+                        new Preference("book" + index, PreferenceCategory.BOOKS)), profile
+                        .getPreferences().get(PreferenceCategory.BOOKS));
+            }
+        }
+        assertEquals("Not every profile was returned!", 5, ids.size());
+        assertTrue("The scan was not paged!", client
+                .getRequestCount(LocalTransientDynamoDBClient.Operation.SCAN) >= 3);
+    }
+    
     /**
      * Performs setup to expect a valid table.
      * 
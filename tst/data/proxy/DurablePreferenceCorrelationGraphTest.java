@@ -0,0 +1,198 @@
+package data.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * Tests the functionality of the DurablePreferenceCorrelationGraph class.
+ */
+public class DurablePreferenceCorrelationGraphTest {
+    
+    private static final UserProfile USER = new UserProfile("user");
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private File directory;
+    private DurablePreferenceCorrelationGraph graph;
+    
+    /**
+     * Opens an empty graph.
+     */
+    @Before
+    public void before() {
+        directory = folder.getRoot();
+        graph = new DurablePreferenceCorrelationGraph(directory, 1000);
+    }
+    
+    /**
+     * Closes the graph.
+     */
+    @After
+    public void after() {
+        graph.close();
+    }
+    
+    /**
+     * Tests that puts, updates and deletes are recovered from the log alone.
+     */
+    @Test
+    public void testRecoversFromLog() {
+        Preference dune = new Preference("Dune", PreferenceCategory.BOOKS, 3);
+        dune.addCorrelation(new PreferenceCorrelation(new Preference("Hyperion",
+                PreferenceCategory.BOOKS), 2));
+        graph.putPreference(dune);
+        graph.updatePreference(buildRequest("Dune", "Hyperion"), USER,
+                UpdateAction.INC_CORRELATION);
+        graph.updatePreferences(Arrays.asList(buildRequest("Hyperion", "Dune"), buildRequest(
+                "Neuromancer", "Dune")), USER, UpdateAction.INC_CORRELATION);
+        graph.delete("Neuromancer", PreferenceCategory.BOOKS);
+        
+        reopen(1000);
+        
+        Preference recovered = graph.getPreference("Dune", PreferenceCategory.BOOKS);
+        assertEquals("The popularity was not recovered!", 4, recovered.getPopularity());
+        assertEquals("The correlation was not recovered!", 3, recovered.findCorrelation(
+                new Preference("Hyperion", PreferenceCategory.BOOKS)).getWeight());
+        assertEquals(1, graph.getPreference("Hyperion", PreferenceCategory.BOOKS).findCorrelation(
+                dune).getWeight());
+        assertNull("The delete was not recovered!", graph.getPreference("Neuromancer",
+                PreferenceCategory.BOOKS));
+    }
+    
+    /**
+     * Tests that a snapshot is written once enough changes have been logged, and that the graph is
+     * recovered from it together with the changes logged since.
+     */
+    @Test
+    public void testRecoversFromSnapshotAndLog() {
+        reopen(10);
+        for (int i = 0; i < 25; i++) {
+            graph.updatePreference(buildRequest("Dune", "book" + (i % 4)), USER,
+                    UpdateAction.INC_CORRELATION);
+        }
+        assertTrue("No snapshot was written!", new File(directory, "graph.snapshot").exists());
+        assertEquals("The logs covered by the snapshot were not discarded!", 1, directory.list(
+                (dir, name) -> name.endsWith(".log")).length);
+        
+        reopen(10);
+        
+        Preference recovered = graph.getPreference("Dune", PreferenceCategory.BOOKS);
+        assertEquals(25, recovered.getPopularity());
+        assertEquals(7, recovered.findCorrelation(new Preference("book0",
+                PreferenceCategory.BOOKS)).getWeight());
+        assertEquals(6, recovered.findCorrelation(new Preference("book3",
+                PreferenceCategory.BOOKS)).getWeight());
+    }
+    
+    /**
+     * Tests that a record torn by a crash is cut off, and that the log can be appended to and
+     * recovered again afterwards.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testTornRecordIsDiscarded() throws Exception {
+        graph.updatePreference(buildRequest("Dune", "Hyperion"), USER,
+                UpdateAction.INC_CORRELATION);
+        graph.close();
+        File[] logs = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        try (FileOutputStream out = new FileOutputStream(logs[0], true)) {
+            // The start of a record whose body never made it to disk
+            out.write(new byte[] { 0, 0, 0, 40, 1, 2 });
+        }
+        
+        reopen(1000);
+        assertEquals(1, graph.getPreference("Dune", PreferenceCategory.BOOKS).getPopularity());
+        graph.updatePreference(buildRequest("Dune", "Hyperion"), USER,
+                UpdateAction.INC_CORRELATION);
+        
+        reopen(1000);
+        assertEquals("A change after the torn record was lost!", 2, graph.getPreference("Dune",
+                PreferenceCategory.BOOKS).getPopularity());
+    }
+    
+    /**
+     * Tests that no change is lost when many threads write at once and their syncs are shared.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentWritersAreDurable() throws Exception {
+        reopen(150);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int thread = 0; thread < 8; thread++) {
+                tasks.add(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        graph.updatePreference(buildRequest("Dune", "Hyperion"), USER,
+                                UpdateAction.INC_CORRELATION);
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> task : executor.invokeAll(tasks)) {
+                task.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        reopen(150);
+        Preference recovered = graph.getPreference("Dune", PreferenceCategory.BOOKS);
+        assertEquals("A change was lost!", 800, recovered.getPopularity());
+        assertEquals(800, recovered.findCorrelation(new Preference("Hyperion",
+                PreferenceCategory.BOOKS)).getWeight());
+    }
+    
+    /**
+     * Closes the graph and opens it again from the same directory.
+     * 
+     * @param snapshotInterval
+     */
+    private void reopen(long snapshotInterval) {
+        graph.close();
+        graph = new DurablePreferenceCorrelationGraph(directory, snapshotInterval);
+    }
+    
+    /**
+     * Builds a request that increments the popularity of a book and its correlation to another.
+     * 
+     * @param id
+     * @param correlatedId
+     * @return request
+     */
+    private static UpdatePreferenceRequest buildRequest(String id, String correlatedId) {
+        UpdatePreferenceRequest request = new UpdatePreferenceRequest(new Preference(id,
+                PreferenceCategory.BOOKS));
+        request.updatePopularity(UpdateAction.INC_CORRELATION);
+        request.addCorrelationUpdate(new PreferenceCorrelation(new Preference(correlatedId,
+                PreferenceCategory.BOOKS)), UpdateAction.INC_CORRELATION);
+        return request;
+    }
+}
@@ -0,0 +1,142 @@
+package data.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Iterators;
+
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.UserProfile;
+
+/**
+ * Tests the functionality of the DurableUserProfileStore class.
+ */
+public class DurableUserProfileStoreTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private File directory;
+    private DurableUserProfileStore store;
+    
+    /**
+     * Opens an empty store.
+     */
+    @Before
+    public void before() {
+        directory = folder.getRoot();
+        store = new DurableUserProfileStore(directory, 3);
+    }
+    
+    /**
+     * Closes the store.
+     */
+    @After
+    public void after() {
+        store.close();
+    }
+    
+    /**
+     * Tests that writes and deletes survive reopening the store, across a snapshot.
+     */
+    @Test
+    public void testProfilesSurviveRestart() {
+        UserProfile alice = new UserProfile("alice");
+        alice.addPreference(PreferenceCategory.BOOKS, "Dune");
+        alice.addPreference(PreferenceCategory.MOVIES, "Alien");
+        store.write(alice);
+        store.write(new UserProfile("bob"));
+        store.delete("bob");
+        alice.addPreference(PreferenceCategory.BOOKS, "Hyperion");
+        store.write(alice);
+        store.write(new UserProfile("carol"));
+        assertTrue("No snapshot was written!", new File(directory, "profiles.snapshot").exists());
+        
+        store.close();
+        store = new DurableUserProfileStore(directory, 3);
+        
+        UserProfile recovered = store.getProfile("alice");
+        assertEquals("The profile was not recovered!", alice, recovered);
+        assertEquals(2, recovered.getPreferencesForCategory(PreferenceCategory.BOOKS).size());
+        assertTrue(recovered.getPreferencesForCategory(PreferenceCategory.MOVIES).contains(
+                new Preference("Alien", PreferenceCategory.MOVIES)));
+        assertNull("The delete was not recovered!", store.getProfile("bob"));
+        assertEquals(2, Iterators.size(Iterators.concat(Iterators.transform(store
+                .batchGetProfiles(1), batch -> batch.iterator()))));
+    }
+    
+    /**
+     * Tests that a change to a profile is only stored when the profile is written.
+     */
+    @Test
+    public void testProfilesAreCopied() {
+        UserProfile alice = new UserProfile("alice");
+        store.write(alice);
+        alice.addPreference(PreferenceCategory.BOOKS, "Dune");
+        store.getProfile("alice").addPreference(PreferenceCategory.BOOKS, "Hyperion");
+        
+        assertNull(store.getProfile("alice").getPreferencesForCategory(PreferenceCategory.BOOKS));
+    }
+    
+    /**
+     * Tests that a write goes through while a snapshot is being written, and that both the
+     * snapshot and the write are recovered.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testWriteDuringSnapshot() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        store.close();
+        store = new DurableUserProfileStore(directory, 1000) {
+            @Override
+            void writeSnapshot(DataOutput out, List<UserProfile> profiles) throws IOException {
+                writing.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.writeSnapshot(out, profiles);
+            }
+        };
+        store.write(new UserProfile("alice"));
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> snapshot = executor.submit(() -> store.snapshot());
+            assertTrue("The snapshot was not written!", writing.await(5, TimeUnit.SECONDS));
+            executor.submit(() -> store.write(new UserProfile("bob"))).get(5, TimeUnit.SECONDS);
+            release.countDown();
+            snapshot.get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        
+        store.close();
+        store = new DurableUserProfileStore(directory, 3);
+        assertEquals(new UserProfile("alice"), store.getProfile("alice"));
+        assertEquals("The write during the snapshot was not recovered!", new UserProfile("bob"),
+                store.getProfile("bob"));
+    }
+}
@@ -0,0 +1,338 @@
+package data.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+
+import data.proxy.LocalTransientDynamoDBClient.LatencyModel;
+import data.proxy.LocalTransientDynamoDBClient.Operation;
+import data.proxy.adapter.DDBPreferenceAdapter;
+import data.proxy.adapter.DDBPreferenceAdapter.CorrelationFormat;
+import data.proxy.adapter.DDBUserProfileAdapter;
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * Tests the functionality of the LocalTransientDynamoDBClient class, through the DynamoDB graph
+ * and user store that it stands in for.
+ */
+public class LocalTransientDynamoDBClientTest {
+    
+    private static final String PREFERENCE_TABLE_NAME = "PreferenceCorrelations";
+    private static final String USER_TABLE_NAME = "UserProfiles";
+    private static final UserProfile USER = new UserProfile("user");
+    
+    private FakeTicker ticker;
+    private LocalTransientDynamoDBClient client;
+    private DynamoDB dynamoDB;
+    private DDBPreferenceCorrelationGraph graph;
+    
+    /**
+     * A ticker that only moves when told to.
+     */
+    private static class FakeTicker extends Ticker {
+        private long nanos;
+        
+        @Override
+        public long read() {
+            return this.nanos;
+        }
+    }
+    
+    /**
+     * Creates the preference and user tables.
+     */
+    @Before
+    public void before() {
+        ticker = new FakeTicker();
+        client = new LocalTransientDynamoDBClient(new Random(436), ticker);
+        client.createTable(PREFERENCE_TABLE_NAME, DDBPreferenceAdapter.PREFERENCE_ID_ATTRIBUTE);
+        client.createTable(USER_TABLE_NAME, DDBUserProfileAdapter.USER_ID_ATTRIBUTE);
+        dynamoDB = new DynamoDB(client);
+        graph = new DDBPreferenceCorrelationGraph(dynamoDB, PREFERENCE_TABLE_NAME);
+    }
+    
+    /**
+     * Tests that preferences in either format are read back as they were put, and can be deleted.
+     */
+    @Test
+    public void testPutGetDelete() {
+        DDBPreferenceCorrelationGraph packedGraph = new DDBPreferenceCorrelationGraph(dynamoDB,
+                PREFERENCE_TABLE_NAME, null, 1, CorrelationFormat.PACKED);
+        Preference book = new Preference("book", PreferenceCategory.BOOKS, 5);
+        book.addCorrelation(new PreferenceCorrelation(new Preference("show",
+                PreferenceCategory.TELEVISION), 3));
+        Preference show = new Preference("show", PreferenceCategory.TELEVISION, 2);
+        show.addCorrelation(new PreferenceCorrelation(new Preference("book",
+                PreferenceCategory.BOOKS), 3));
+        graph.putPreference(book);
+        packedGraph.putPreference(show);
+        
+        for (Preference expected : new Preference[] { book, show }) {
+            Preference actual = graph.getPreference(expected.getID(), expected.getCategory());
+            assertEquals(expected.getPopularity(), actual.getPopularity());
+            assertEquals(expected.getCorrelations(), actual.getCorrelations());
+            assertEquals(3, actual.getCorrelations().iterator().next().getWeight());
+        }
+        
+        graph.delete("book", PreferenceCategory.BOOKS);
+        assertNull(graph.getPreference("book", PreferenceCategory.BOOKS));
+        assertNull(graph.getPreference("missing", PreferenceCategory.BOOKS));
+    }
+    
+    /**
+     * Tests that updates add to what was put, that a retried update is not applied twice, and that
+     * an update of a preference that does not exist creates it.
+     */
+    @Test
+    public void testUpdatesAreAddedOnce() {
+        Preference book = new Preference("book", PreferenceCategory.BOOKS, 5);
+        Preference other = new Preference("other", PreferenceCategory.BOOKS);
+        book.addCorrelation(new PreferenceCorrelation(other, 1));
+        graph.putPreference(book);
+        
+        UpdatePreferenceRequest request = new UpdatePreferenceRequest(new Preference("book",
+                PreferenceCategory.BOOKS));
+        request.addPopularityDelta(1);
+        request.addCorrelationDelta(new PreferenceCorrelation(other), 2);
+        assertTrue(graph.updatePreference(request, USER, UpdateAction.INC_CORRELATION));
+        assertFalse("The retry was applied!", graph.updatePreference(request, USER,
+                UpdateAction.INC_CORRELATION));
+        
+        Preference updated = graph.getPreference("book", PreferenceCategory.BOOKS);
+        assertEquals(6, updated.getPopularity());
+        assertEquals(3, updated.findCorrelation(other).getWeight());
+        
+        UpdatePreferenceRequest create = new UpdatePreferenceRequest(other);
+        create.addCorrelationDelta(new PreferenceCorrelation(book), 4);
+        assertTrue(graph.updatePreference(create, USER, UpdateAction.INC_CORRELATION));
+        Preference created = graph.getPreference("other", PreferenceCategory.BOOKS);
+        assertEquals(0, created.getPopularity());
+        assertEquals(4, created.findCorrelation(book).getWeight());
+    }
+    
+    /**
+     * Tests that the correlation attributes that updates add to a packed Item are folded into its
+     * packed attribute once there are enough of them, without changing the weights read.
+     */
+    @Test
+    public void testPackedUpdatesAreCompacted() {
+        DDBPreferenceCorrelationGraph packedGraph = new DDBPreferenceCorrelationGraph(dynamoDB,
+                PREFERENCE_TABLE_NAME, null, 1, CorrelationFormat.PACKED);
+        Preference book = new Preference("book", PreferenceCategory.BOOKS, 1);
+        book.addCorrelation(new PreferenceCorrelation(new Preference("other0",
+                PreferenceCategory.BOOKS), 5));
+        packedGraph.putPreference(book);
+        
+        int updates = DDBPreferenceCorrelationGraph.COMPACTION_THRESHOLD + 4;
+        for (int i = 0; i < updates; i++) {
+            UpdatePreferenceRequest request = new UpdatePreferenceRequest(book);
+            request.addCorrelationDelta(new PreferenceCorrelation(new Preference("other" + i,
+                    PreferenceCategory.BOOKS)), 1);
+            assertTrue(packedGraph.updatePreference(request, USER, UpdateAction.INC_CORRELATION));
+        }
+        
+        Item item = dynamoDB.getTable(PREFERENCE_TABLE_NAME).getItem(
+                DDBPreferenceAdapter.PREFERENCE_ID_ATTRIBUTE, "BOOKS~~book");
+        assertEquals("The updates were not compacted!", updates
+                - DDBPreferenceCorrelationGraph.COMPACTION_THRESHOLD, DDBPreferenceAdapter
+                .getUpdatedCorrelationAttributes(item).size());
+        Preference stored = packedGraph.getPreference("book", PreferenceCategory.BOOKS);
+        assertEquals(updates, stored.getCorrelations().size());
+        assertEquals(6, stored.findCorrelation(new Preference("other0", PreferenceCategory.BOOKS))
+                .getWeight());
+        assertEquals(1, stored.findCorrelation(new Preference("other" + (updates - 1),
+                PreferenceCategory.BOOKS)).getWeight());
+    }
+    
+    /**
+     * Tests that a compaction is not applied if the Item changed since it was read.
+     */
+    @Test
+    public void testCompactionOfChangedItemFails() {
+        graph.putPreference(new Preference("book", PreferenceCategory.BOOKS, 1));
+        Preference other = new Preference("other", PreferenceCategory.BOOKS);
+        UpdatePreferenceRequest request = new UpdatePreferenceRequest(new Preference("book",
+                PreferenceCategory.BOOKS));
+        request.addCorrelationDelta(new PreferenceCorrelation(other), 1);
+        graph.updatePreference(request, USER, UpdateAction.INC_CORRELATION);
+        Table table = dynamoDB.getTable(PREFERENCE_TABLE_NAME);
+        Item item = table.getItem(DDBPreferenceAdapter.PREFERENCE_ID_ATTRIBUTE, "BOOKS~~book");
+        item.removeAttribute(DDBPreferenceAdapter.CORRELATIONS_ATTRIBUTE);
+        table.putItem(item);
+        
+        UpdatePreferenceRequest next = new UpdatePreferenceRequest(new Preference("book",
+                PreferenceCategory.BOOKS));
+        next.addCorrelationDelta(new PreferenceCorrelation(other), 2);
+        graph.updatePreference(next, USER, UpdateAction.INC_CORRELATION);
+        try {
+            table.updateItem(DDBPreferenceAdapter.buildCompaction(item));
+            fail("A compaction of a stale Item was applied!");
+        } catch (ConditionalCheckFailedException e) {
+            // Expected
+        }
+        assertEquals(3, graph.getPreference("book", PreferenceCategory.BOOKS).findCorrelation(
+                other).getWeight());
+    }
+    
+    /**
+     * Tests that a scan by category returns each preference of the category once, in pages no
+     * larger than the batch size.
+     */
+    @Test
+    public void testScanPages() {
+        for (int i = 0; i < 25; i++) {
+            graph.putPreference(new Preference("book" + i, PreferenceCategory.BOOKS, i));
+        }
+        for (int i = 0; i < 10; i++) {
+            graph.putPreference(new Preference("movie" + i, PreferenceCategory.MOVIES, i));
+        }
+        
+        Set<String> ids = new HashSet<String>();
+        Iterator<List<Preference>> batches = graph.batchGetPreferences(PreferenceCategory.BOOKS,
+                10);
+        while (batches.hasNext()) {
+            List<Preference> batch = batches.next();
+            assertTrue("The page was too large!", batch.size() <= 10);
+            for (Preference preference : batch) {
+                assertEquals(PreferenceCategory.BOOKS, preference.getCategory());
+                assertTrue("A preference was returned twice!", ids.add(preference.getID()));
+            }
+        }
+        assertEquals(25, ids.size());
+        assertTrue(client.getRequestCount(Operation.SCAN) >= 4);
+    }
+    
+    /**
+     * Tests the user profile store against the client.
+     */
+    @Test
+    public void testUserProfileStore() {
+        DDBUserProfileStore store = new DDBUserProfileStore(dynamoDB, USER_TABLE_NAME);
+        for (int i = 0; i < 5; i++) {
+            UserProfile profile = new UserProfile("user" + i);
+            profile.addPreference(PreferenceCategory.BOOKS, "book" + i);
+            store.write(profile);
+        }
+        
+        assertEquals(1, store.getProfile("user3").getPreferences().get(PreferenceCategory.BOOKS)
+                .size());
+        store.delete("user3");
+        assertNull(store.getProfile("user3"));
+        
+        List<UserProfile> profiles = new ArrayList<UserProfile>();
+        Iterator<List<UserProfile>> batches = store.batchGetProfiles(2);
+        while (batches.hasNext()) {
+            profiles.addAll(batches.next());
+        }
+        assertEquals(4, profiles.size());
+    }
+    
+    /**
+     * Tests that injected throttling fails calls with the exception DynamoDB throws.
+     */
+    @Test
+    public void testInjectedThrottling() {
+        client.setThrottleProbability(1);
+        try {
+            graph.getPreference("book", PreferenceCategory.BOOKS);
+            fail("The call was not throttled!");
+        } catch (ProvisionedThroughputExceededException e) {
+            assertEquals("ProvisionedThroughputExceededException", e.getErrorCode());
+        }
+        assertEquals(1, client.getThrottledRequestCount());
+        
+        client.setThrottleProbability(0);
+        assertNull(graph.getPreference("book", PreferenceCategory.BOOKS));
+    }
+    
+    /**
+     * Tests that calls are throttled once the capacity units of a second are used up, and let
+     * through again as they are refilled. An eventually consistent read of a small item takes half
+     * a unit, and a write takes one.
+     */
+    @Test
+    public void testProvisionedThroughput() {
+        client.setProvisionedThroughput(PREFERENCE_TABLE_NAME, 2, 1);
+        graph.putPreference(new Preference("book", PreferenceCategory.BOOKS, 1));
+        try {
+            graph.putPreference(new Preference("book", PreferenceCategory.BOOKS, 2));
+            fail("The write was not throttled!");
+        } catch (ProvisionedThroughputExceededException e) {
+            // Expected
+        }
+        
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1, graph.getPreference("book", PreferenceCategory.BOOKS).getPopularity());
+        }
+        try {
+            graph.getPreference("book", PreferenceCategory.BOOKS);
+            fail("The read was not throttled!");
+        } catch (ProvisionedThroughputExceededException e) {
+            // Expected
+        }
+        assertEquals(2.0, client.getConsumedReadCapacity(PREFERENCE_TABLE_NAME), 1e-9);
+        
+        ticker.nanos = TimeUnit.MILLISECONDS.toNanos(500);
+        graph.getPreference("book", PreferenceCategory.BOOKS);
+        graph.putPreference(new Preference("book", PreferenceCategory.BOOKS, 2));
+        assertEquals(2, client.getThrottledRequestCount());
+    }
+    
+    /**
+     * Tests that calls wait for their latency.
+     */
+    @Test
+    public void testLatency() {
+        client.setLatency(Operation.GET_ITEM, LatencyModel.fixed(20, TimeUnit.MILLISECONDS));
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            graph.getPreference("book", PreferenceCategory.BOOKS);
+        }
+        assertTrue("The calls did not wait!", System.nanoTime() - start >= TimeUnit.MILLISECONDS
+                .toNanos(100));
+        assertEquals(5, client.getRequestCount(Operation.GET_ITEM));
+    }
+    
+    /**
+     * Tests that items larger than DynamoDB allows are rejected.
+     */
+    @Test
+    public void testItemSizeLimit() {
+        Table table = dynamoDB.getTable(PREFERENCE_TABLE_NAME);
+        try {
+            table.putItem(new Item().withPrimaryKey(DDBPreferenceAdapter.PREFERENCE_ID_ATTRIBUTE,
+                    "BOOKS~~large").withString("Text", Strings.repeat("x", 400 * 1024)));
+            fail("The item was not rejected!");
+        } catch (AmazonServiceException e) {
+            assertEquals("ValidationException", e.getErrorCode());
+        }
+        assertNull(table.getItem(DDBPreferenceAdapter.PREFERENCE_ID_ATTRIBUTE, "BOOKS~~large"));
+    }
+}
@@ -3,12 +3,20 @@ package data.proxy;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
 import data.structure.Preference;
 import data.structure.PreferenceCategory;
 import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
 
 /**
  * Tests the functionality of the LocalTransientPreferenceCorrelationGraph class.
@@ -71,4 +79,87 @@ public class LocalTransientPreferenceCorrelationGraphTest {
         assertNull("Preference was not deleted!", graph.getPreference(p1.getID(), p1.getCategory()));
         assertNull("Preference was not deleted!", graph.getPreference(p2.getID(), p2.getCategory()));
     }
+    
+    /**
+     * Tests that updatePreference() adjusts popularity and correlation weights of stored
+     * preferences, creating them if necessary.
+     */
+    @Test
+    public void testUpdatePreference() {
+        final Preference p1 = new Preference("1", PreferenceCategory.MOVIES);
+        final Preference p2 = new Preference("2", PreferenceCategory.MOVIES);
+        final UserProfile user = new UserProfile("user");
+        
+        for (int i = 0; i < 2; i++) {
+            UpdatePreferenceRequest request = new UpdatePreferenceRequest(p1);
+            request.updatePopularity(UpdateAction.INC_CORRELATION);
+            request.addCorrelationUpdate(new PreferenceCorrelation(p2),
+                    UpdateAction.INC_CORRELATION);
+            graph.updatePreference(request, user, UpdateAction.INC_CORRELATION);
+        }
+        
+        Preference stored = graph.getPreference(p1.getID(), p1.getCategory());
+        assertEquals("The popularity was not adjusted!", 2, stored.getPopularity());
+        assertEquals("The correlation weight was not adjusted!", 2, stored.findCorrelation(p2)
+                .getWeight());
+        assertEquals("The correlation was duplicated!", 1, stored.getCorrelations().size());
+    }
+    
+    /**
+     * Tests that updatePreferences() applies every request of the batch, as updatePreference()
+     * would.
+     */
+    @Test
+    public void testUpdatePreferences() {
+        final Preference p1 = new Preference("1", PreferenceCategory.MOVIES);
+        final Preference p2 = new Preference("2", PreferenceCategory.MOVIES);
+        final Preference p3 = new Preference("3", PreferenceCategory.MOVIES);
+        
+        // Mirror the reverse correlation updates for p3 being added by a user who has p1 and p2
+        List<UpdatePreferenceRequest> requests = new ArrayList<UpdatePreferenceRequest>();
+        for (Preference preference : Arrays.asList(p1, p2)) {
+            UpdatePreferenceRequest request = new UpdatePreferenceRequest(preference);
+            request.addCorrelationUpdate(new PreferenceCorrelation(p3),
+                    UpdateAction.INC_CORRELATION);
+            requests.add(request);
+        }
+        List<Boolean> applied = graph.updatePreferences(requests, new UserProfile("user"),
+                UpdateAction.INC_CORRELATION);
+        
+        assertEquals("Not every update was applied!", Arrays.asList(true, true), applied);
+        for (Preference preference : Arrays.asList(p1, p2)) {
+            Preference stored = graph.getPreference(preference.getID(), preference.getCategory());
+            assertEquals("The correlation weight was not adjusted!", 1, stored.findCorrelation(p3)
+                    .getWeight());
+        }
+    }
+    
+    /**
+     * Tests that a deleted preference is not returned, even when batching its category, and that it
+     * can be put again.
+     */
+    @Test
+    public void testDeleteAndPutAgain() {
+        graph.putPreference(new Preference("1", PreferenceCategory.MOVIES, 1));
+        graph.putPreference(new Preference("2", PreferenceCategory.MOVIES, 2));
+        graph.putPreference(new Preference("1", PreferenceCategory.BOOKS, 3));
+        graph.delete("1", PreferenceCategory.MOVIES);
+        
+        assertNull("A deleted preference was returned!", graph.getPreference("1",
+                PreferenceCategory.MOVIES));
+        assertEquals("The same id in another category was deleted!", 3, graph.getPreference("1",
+                PreferenceCategory.BOOKS).getPopularity());
+        List<Preference> movies = new ArrayList<Preference>();
+        Iterator<List<Preference>> batches = graph.batchGetPreferences(PreferenceCategory.MOVIES,
+                10);
+        while (batches.hasNext()) {
+            movies.addAll(batches.next());
+        }
+        assertEquals("The batch did not skip the deleted preference!", Arrays.asList(new Preference(
+                "2", PreferenceCategory.MOVIES)), movies);
+        
+        graph.putPreference(new Preference("1", PreferenceCategory.MOVIES, 4));
+        assertEquals("The preference was not put again!", 4, graph.getPreference("1",
+                PreferenceCategory.MOVIES).getPopularity());
+    }
 }
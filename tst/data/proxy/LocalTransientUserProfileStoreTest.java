@@ -2,6 +2,12 @@ package data.proxy;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 import org.junit.After;
 import org.junit.Before;
@@ -58,4 +64,26 @@ public class LocalTransientUserProfileStoreTest {
         assertNull("User was not deleted!", ups.getProfile(u1.getId()));
         assertNull("User was not deleted!", ups.getProfile(u2.getId()));
     }
+    
+    /**
+     * Tests that batchGetProfiles returns every profile exactly once, in batches of at most the
+     * batch size.
+     */
+    @Test
+    public void testBatchGetProfiles() {
+        for (int i = 0; i < 10; i++) {
+            ups.write(new UserProfile("user" + i));
+        }
+        
+        Set<String> ids = new HashSet<String>();
+        Iterator<List<UserProfile>> batches = ups.batchGetProfiles(3);
+        while (batches.hasNext()) {
+            List<UserProfile> batch = batches.next();
+            assertTrue("Batch is too large!", batch.size() <= 3);
+            for (UserProfile profile : batch) {
+                assertTrue("Profile returned twice!", ids.add(profile.getId()));
+            }
+        }
+        assertEquals("Not all profiles were returned!", 10, ids.size());
+    }
 }
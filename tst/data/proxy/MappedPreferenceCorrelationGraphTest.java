@@ -0,0 +1,184 @@
+package data.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+
+/**
+ * Tests the functionality of the MappedPreferenceCorrelationGraph class.
+ */
+public class MappedPreferenceCorrelationGraphTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private LocalTransientPreferenceCorrelationGraph source;
+    private File file;
+    
+    /**
+     * Builds a source graph with correlations within and across categories.
+     */
+    @Before
+    public void before() {
+        source = new LocalTransientPreferenceCorrelationGraph();
+        for (int i = 0; i < 50; i++) {
+            Preference book = new Preference("book" + i, PreferenceCategory.BOOKS, i + 1);
+            book.addCorrelation(new PreferenceCorrelation(new Preference("book" + ((i + 1) % 50),
+                    PreferenceCategory.BOOKS), i + 2));
+            book.addCorrelation(new PreferenceCorrelation(new Preference("movie" + (i % 20),
+                    PreferenceCategory.MOVIES), 1));
+            source.putPreference(book);
+        }
+        for (int i = 0; i < 20; i++) {
+            Preference movie = new Preference("movie" + i, PreferenceCategory.MOVIES, 2 * i);
+            movie.addCorrelation(new PreferenceCorrelation(new Preference("book" + i,
+                    PreferenceCategory.BOOKS), 3));
+            source.putPreference(movie);
+        }
+        // An ID that is also a book must not be confused with it
+        source.putPreference(new Preference("book0", PreferenceCategory.TELEVISION, 7));
+        file = new File(folder.getRoot(), "graph");
+    }
+    
+    /**
+     * Tests that every preference is read back with its popularity and correlations.
+     */
+    @Test
+    public void testMatchesSource() {
+        MappedPreferenceCorrelationGraph.write(source, file, 7);
+        MappedPreferenceCorrelationGraph graph = new MappedPreferenceCorrelationGraph(file);
+        
+        Set<PreferenceCategory> categories = EnumSet.allOf(PreferenceCategory.class);
+        Iterator<List<Preference>> batches = source.batchGetPreferences(categories, 10);
+        int count = 0;
+        while (batches.hasNext()) {
+            for (Preference expected : batches.next()) {
+                assertSamePreference(expected, graph.getPreference(expected.getID(), expected
+                        .getCategory()));
+                count++;
+            }
+        }
+        assertEquals("Not every preference was written!", 71, count);
+        assertEquals("The categories were confused!", 7, graph.getPreference("book0",
+                PreferenceCategory.TELEVISION).getPopularity());
+    }
+    
+    /**
+     * Tests that a missing preference is not found.
+     */
+    @Test
+    public void testMissingPreference() {
+        MappedPreferenceCorrelationGraph.write(source, file, 7);
+        MappedPreferenceCorrelationGraph graph = new MappedPreferenceCorrelationGraph(file);
+        
+        assertNull(graph.getPreference("book50", PreferenceCategory.BOOKS));
+        assertNull(graph.getPreference("movie0", PreferenceCategory.BOOKS));
+    }
+    
+    /**
+     * Tests that batches hold every preference of the requested categories and no others.
+     */
+    @Test
+    public void testBatchGetPreferences() {
+        MappedPreferenceCorrelationGraph.write(source, file, 7);
+        MappedPreferenceCorrelationGraph graph = new MappedPreferenceCorrelationGraph(file);
+        
+        Iterator<List<Preference>> batches = graph.batchGetPreferences(EnumSet.of(
+                PreferenceCategory.MOVIES, PreferenceCategory.TELEVISION), 8);
+        Set<Preference> preferences = new HashSet<Preference>();
+        while (batches.hasNext()) {
+            List<Preference> batch = batches.next();
+            assertTrue("A batch was too large!", batch.size() <= 8);
+            for (Preference preference : batch) {
+                assertSamePreference(source.getPreference(preference.getID(), preference
+                        .getCategory()), preference);
+                preferences.add(preference);
+            }
+        }
+        assertEquals(21, preferences.size());
+        assertTrue(preferences.contains(new Preference("book0", PreferenceCategory.TELEVISION)));
+    }
+    
+    /**
+     * Tests that correlations to preferences that are not in the graph are left out.
+     */
+    @Test
+    public void testDropsDanglingCorrelations() {
+        Preference book = source.getPreference("book1", PreferenceCategory.BOOKS);
+        book.addCorrelation(new PreferenceCorrelation(new Preference("missing",
+                PreferenceCategory.BOOKS), 5));
+        source.putPreference(book);
+        MappedPreferenceCorrelationGraph.write(source, file, 7);
+        MappedPreferenceCorrelationGraph graph = new MappedPreferenceCorrelationGraph(file);
+        
+        Preference mapped = graph.getPreference("book1", PreferenceCategory.BOOKS);
+        assertEquals(2, mapped.getCorrelations().size());
+        assertNull(mapped.findCorrelation(new Preference("missing", PreferenceCategory.BOOKS)));
+    }
+    
+    /**
+     * Tests that a rebuilt file is served once it is swapped in.
+     */
+    @Test
+    public void testSwap() {
+        MappedPreferenceCorrelationGraph.write(source, file, 7);
+        MappedPreferenceCorrelationGraph graph = new MappedPreferenceCorrelationGraph(file);
+        
+        source.putPreference(new Preference("book50", PreferenceCategory.BOOKS, 9));
+        MappedPreferenceCorrelationGraph.write(source, file, 7);
+        assertNull(graph.getPreference("book50", PreferenceCategory.BOOKS));
+        
+        graph.swap(file);
+        assertEquals(9, graph.getPreference("book50", PreferenceCategory.BOOKS).getPopularity());
+    }
+    
+    /**
+     * Tests that a file that was not written as a graph is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsOtherFiles() throws Exception {
+        new MappedPreferenceCorrelationGraph(folder.newFile("other"));
+    }
+    
+    /**
+     * Tests that the graph cannot be updated.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRejectsWrites() {
+        MappedPreferenceCorrelationGraph.write(source, file, 7);
+        new MappedPreferenceCorrelationGraph(file).putPreference(new Preference("book50",
+                PreferenceCategory.BOOKS));
+    }
+    
+    /**
+     * Asserts that two preferences have the same popularity and correlation weights.
+     *
+     * @param expected
+     * @param actual
+     */
+    private static void assertSamePreference(Preference expected, Preference actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getPopularity(), actual.getPopularity());
+        assertEquals(expected.getCorrelations().size(), actual.getCorrelations().size());
+        for (PreferenceCorrelation correlation : expected.getCorrelations()) {
+            assertEquals(correlation.getWeight(), actual.findCorrelation(correlation
+                    .getToPreference()).getWeight());
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package data.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterators;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+import server.daemons.GenerateRecommendationDaemon;
+import server.daemons.UpdatePreferenceDaemon;
+
+/**
+ * Tests the functionality of the ShardedPreferenceCorrelationGraph class.
+ */
+public class ShardedPreferenceCorrelationGraphTest {
+    
+    private static final int NUM_SHARDS = 4;
+    private static final int NUM_THREADS = 8;
+    private static final int UPDATES_PER_THREAD = 2000;
+    
+    private ShardedPreferenceCorrelationGraph graph;
+    
+    /**
+     * Initializes the graph.
+     */
+    @Before
+    public void before() {
+        graph = new ShardedPreferenceCorrelationGraph(NUM_SHARDS);
+    }
+    
+    /**
+     * Stops the shard workers.
+     */
+    @After
+    public void after() {
+        graph.close();
+    }
+    
+    /**
+     * Tests the basic write/retrieve/delete functionality of the graph, with preferences spread
+     * over every shard.
+     */
+    @Test
+    public void testStandardPreferenceStorageCycle() {
+        List<Preference> preferences = new ArrayList<Preference>();
+        for (int i = 0; i < 100; i++) {
+            Preference preference = new Preference(Integer.toString(i), PreferenceCategory.MOVIES, i);
+            if (i > 0) {
+                preference.addCorrelation(new PreferenceCorrelation(preferences.get(i - 1), i));
+            }
+            preferences.add(preference);
+            graph.putPreference(preference);
+        }
+        
+        for (Preference preference : preferences) {
+            Preference stored = graph.getPreference(preference.getID(), preference.getCategory());
+            assertEquals("Preferences do not match!", preference, stored);
+            assertEquals("The popularity was not preserved!", preference.getPopularity(), stored
+                    .getPopularity());
+            assertEquals("The correlations were not preserved!", preference.getCorrelations(),
+                    stored.getCorrelations());
+        }
+        assertEquals("Not every preference was returned in batches!", 100, Iterators.size(Iterators
+                .concat(Iterators.transform(graph.batchGetPreferences(PreferenceCategory.MOVIES, 7),
+                        List::iterator))));
+        
+        graph.delete(preferences.get(0).getID(), PreferenceCategory.MOVIES);
+        assertNull("Preference was not deleted!", graph.getPreference(preferences.get(0).getID(),
+                PreferenceCategory.MOVIES));
+    }
+    
+    /**
+     * Tests that concurrent updates of the same preferences lose no increments.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentUpdatesAreAtomic() throws Exception {
+        final Preference hot = new Preference("hot", PreferenceCategory.BOOKS);
+        final Preference other = new Preference("other", PreferenceCategory.BOOKS);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int thread = 0; thread < NUM_THREADS; thread++) {
+                final UserProfile user = new UserProfile("user" + thread);
+                tasks.add(() -> {
+                    for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+                        UpdatePreferenceRequest request = new UpdatePreferenceRequest(hot);
+                        request.updatePopularity(UpdateAction.INC_CORRELATION);
+                        request.addCorrelationUpdate(new PreferenceCorrelation(other),
+                                UpdateAction.INC_CORRELATION);
+                        graph.updatePreference(request, user, UpdateAction.INC_CORRELATION);
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> task : executor.invokeAll(tasks)) {
+                task.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        Preference stored = graph.getPreference(hot.getID(), hot.getCategory());
+        assertEquals("A popularity increment was lost!", NUM_THREADS * UPDATES_PER_THREAD, stored
+                .getPopularity());
+        assertEquals("A correlation increment was lost!", NUM_THREADS * UPDATES_PER_THREAD, stored
+                .findCorrelation(other).getWeight());
+    }
+    
+    /**
+     * Tests that the daemons work unchanged on top of the sharded graph, producing the same graph
+     * and recommendations as with a single in-memory graph.
+     */
+    @Test
+    public void testDaemonsMatchLocalGraph() {
+        LocalTransientPreferenceCorrelationGraph local = new LocalTransientPreferenceCorrelationGraph();
+        UpdatePreferenceDaemon localUpdater = new UpdatePreferenceDaemon(local);
+        UpdatePreferenceDaemon shardedUpdater = new UpdatePreferenceDaemon(graph);
+        
+        Random random = new Random(436);
+        UserProfile[] users = new UserProfile[20];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = new UserProfile("user" + i);
+            for (int j = 0; j < 6; j++) {
+                Preference added = users[i].addPreference(PreferenceCategory.BOOKS, "book"
+                        + random.nextInt(30));
+                if (added != null) {
+                    localUpdater.propagateAddedPreference(users[i], added);
+                    shardedUpdater.propagateAddedPreference(users[i], added);
+                }
+            }
+        }
+        
+        for (int i = 0; i < 30; i++) {
+            Preference expected = local.getPreference("book" + i, PreferenceCategory.BOOKS);
+            Preference actual = graph.getPreference("book" + i, PreferenceCategory.BOOKS);
+            if (expected == null) {
+                assertNull(actual);
+                continue;
+            }
+            assertEquals("The popularities differ!", expected.getPopularity(), actual
+                    .getPopularity());
+            for (PreferenceCorrelation correlation : expected.getCorrelations()) {
+                assertEquals("The correlation weights differ!", correlation.getWeight(), actual
+                        .findCorrelation(correlation.getToPreference()).getWeight());
+            }
+        }
+        
+        GenerateRecommendationDaemon recommender = new GenerateRecommendationDaemon(5);
+        for (UserProfile user : users) {
+            assertEquals("The recommendations differ!", recommender.getRecommendations(
+                    PreferenceCategory.BOOKS, user, local, 3), recommender.getRecommendations(
+                    PreferenceCategory.BOOKS, user, graph, 3));
+        }
+    }
+    
+    /**
+     * Tests that operations are rejected once the graph has been closed.
+     */
+    @Test
+    public void testClosedGraphRejectsOperations() {
+        graph.close();
+        
+        boolean thrown = false;
+        try {
+            graph.putPreference(new Preference("1", PreferenceCategory.MOVIES));
+        } catch (IllegalStateException e) {
+            thrown = true;
+        }
+        assertTrue("An operation on a closed graph was accepted!", thrown);
+    }
+}
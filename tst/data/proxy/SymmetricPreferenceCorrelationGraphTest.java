@@ -0,0 +1,200 @@
+package data.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterators;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+import server.daemons.UpdatePreferenceDaemon;
+
+/**
+ * Tests the functionality of the SymmetricPreferenceCorrelationGraph class.
+ */
+public class SymmetricPreferenceCorrelationGraphTest {
+    
+    private SymmetricPreferenceCorrelationGraph graph;
+    
+    /**
+     * Initializes the graph.
+     */
+    @Before
+    public void before() {
+        graph = new SymmetricPreferenceCorrelationGraph();
+    }
+    
+    /**
+     * Tests the basic write/retrieve/delete functionality of the graph.
+     */
+    @Test
+    public void testStandardPreferenceStorageCycle() {
+        final Preference p1 = new Preference("1", PreferenceCategory.MOVIES, 3);
+        final Preference p2 = new Preference("2", PreferenceCategory.MOVIES, 4);
+        p2.addCorrelation(new PreferenceCorrelation(p1, 2));
+        
+        graph.putPreference(p1);
+        graph.putPreference(p2);
+        
+        Preference stored = graph.getPreference(p1.getID(), p1.getCategory());
+        assertEquals("Preferences do not match!", p1, stored);
+        assertEquals("The popularity was not preserved!", 3, stored.getPopularity());
+        assertEquals("The pair is not seen from both preferences!", 2, stored.findCorrelation(p2)
+                .getWeight());
+        assertEquals(2, graph.getPreference(p2.getID(), p2.getCategory()).findCorrelation(p1)
+                .getWeight());
+        assertEquals("Not every preference was returned in batches!", 2, Iterators.size(graph
+                .batchGetPreferences(PreferenceCategory.MOVIES, 1)));
+        
+        graph.delete(p2.getID(), p2.getCategory());
+        assertNull("Preference was not deleted!", graph.getPreference(p2.getID(), p2.getCategory()));
+        assertEquals("The pair was not deleted with the preference!", 0, graph.getPreference(
+                p1.getID(), p1.getCategory()).getCorrelations().size());
+    }
+    
+    /**
+     * Tests that an update of one direction of a pair is seen from both preferences, whichever of
+     * them owns the pair.
+     */
+    @Test
+    public void testUpdateIsSeenFromBothPreferences() {
+        final Preference a = new Preference("a", PreferenceCategory.BOOKS);
+        final Preference b = new Preference("b", PreferenceCategory.BOOKS);
+        UserProfile user = new UserProfile("user");
+        
+        UpdatePreferenceRequest fromA = new UpdatePreferenceRequest(a);
+        fromA.updatePopularity(UpdateAction.INC_CORRELATION);
+        fromA.addCorrelationUpdate(new PreferenceCorrelation(b), UpdateAction.INC_CORRELATION);
+        graph.updatePreference(fromA, user, UpdateAction.INC_CORRELATION);
+        
+        UpdatePreferenceRequest fromB = new UpdatePreferenceRequest(b);
+        fromB.addCorrelationDelta(new PreferenceCorrelation(a), 2);
+        graph.updatePreference(fromB, user, UpdateAction.INC_CORRELATION);
+        
+        assertEquals(1, graph.getPreference("a", PreferenceCategory.BOOKS).getPopularity());
+        assertEquals(3, graph.getPreference("a", PreferenceCategory.BOOKS).findCorrelation(b)
+                .getWeight());
+        assertEquals(3, graph.getPreference("b", PreferenceCategory.BOOKS).findCorrelation(a)
+                .getWeight());
+    }
+    
+    /**
+     * Tests that UpdatePreferenceDaemon produces the same graph as with directed storage, while
+     * writing about half as many correlation deltas.
+     */
+    @Test
+    public void testDaemonMatchesDirectedGraph() {
+        CountingGraph directed = new CountingGraph();
+        CountingSymmetricGraph symmetric = new CountingSymmetricGraph();
+        UpdatePreferenceDaemon directedUpdater = new UpdatePreferenceDaemon(directed);
+        UpdatePreferenceDaemon symmetricUpdater = new UpdatePreferenceDaemon(symmetric);
+        
+        Random random = new Random(436);
+        List<UserProfile> users = new ArrayList<UserProfile>();
+        for (int i = 0; i < 20; i++) {
+            UserProfile user = new UserProfile("user" + i);
+            users.add(user);
+            for (int j = 0; j < 8; j++) {
+                Preference added = user.addPreference(PreferenceCategory.BOOKS, "book"
+                        + random.nextInt(30));
+                if (added != null) {
+                    directedUpdater.propagateAddedPreference(user, added);
+                    symmetricUpdater.propagateAddedPreference(user, added);
+                }
+            }
+        }
+        for (UserProfile user : users.subList(0, 5)) {
+            Preference removed = user.removePreference(PreferenceCategory.BOOKS, user
+                    .getPreferencesForCategory(PreferenceCategory.BOOKS).iterator().next().getID());
+            directedUpdater.propagateRemovedPreference(user, removed);
+            symmetricUpdater.propagateRemovedPreference(user, removed);
+        }
+        UserProfile importer = new UserProfile("importer");
+        List<Preference> imported = new ArrayList<Preference>();
+        for (int i = 0; i < 10; i++) {
+            imported.add(importer.addPreference(PreferenceCategory.BOOKS, "book" + i));
+        }
+        directedUpdater.propagateAddedPreferences(importer, imported);
+        symmetricUpdater.propagateAddedPreferences(importer, imported);
+        
+        Iterator<List<Preference>> batches = directed.batchGetPreferences(EnumSet
+                .allOf(PreferenceCategory.class), 100);
+        while (batches.hasNext()) {
+            for (Preference expected : batches.next()) {
+                Preference actual = symmetric.getPreference(expected.getID(), expected
+                        .getCategory());
+                assertNotNull("A preference is missing!", actual);
+                assertEquals("The popularities differ!", expected.getPopularity(), actual
+                        .getPopularity());
+                assertEquals("The correlations differ!", expected.getCorrelations().size(), actual
+                        .getCorrelations().size());
+                for (PreferenceCorrelation correlation : expected.getCorrelations()) {
+                    assertEquals("The correlation weights differ!", correlation.getWeight(), actual
+                            .findCorrelation(correlation.getToPreference()).getWeight());
+                }
+            }
+        }
+        assertEquals("Each pair should be written once!", directed.correlationDeltas, 2
+                * symmetric.correlationDeltas);
+    }
+    
+    /**
+     * Directed in-memory graph that counts the correlation deltas written to it.
+     */
+    private static class CountingGraph extends LocalTransientPreferenceCorrelationGraph {
+        private int correlationDeltas;
+        
+        @Override
+        public boolean updatePreference(UpdatePreferenceRequest request, UserProfile user,
+                UpdateAction action) {
+            correlationDeltas += request.getCorrelationDeltas().size();
+            return super.updatePreference(request, user, action);
+        }
+        
+        @Override
+        public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests,
+                UserProfile user, UpdateAction action) {
+            for (UpdatePreferenceRequest request : requests) {
+                correlationDeltas += request.getCorrelationDeltas().size();
+            }
+            return super.updatePreferences(requests, user, action);
+        }
+    }
+    
+    /**
+     * Symmetric graph that counts the correlation deltas written to it.
+     */
+    private static class CountingSymmetricGraph extends SymmetricPreferenceCorrelationGraph {
+        private int correlationDeltas;
+        
+        @Override
+        public boolean updatePreference(UpdatePreferenceRequest request, UserProfile user,
+                UpdateAction action) {
+            correlationDeltas += request.getCorrelationDeltas().size();
+            return super.updatePreference(request, user, action);
+        }
+        
+        @Override
+        public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests,
+                UserProfile user, UpdateAction action) {
+            for (UpdatePreferenceRequest request : requests) {
+                correlationDeltas += request.getCorrelationDeltas().size();
+            }
+            return super.updatePreferences(requests, user, action);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package data.proxy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the functionality of the WriteAheadLog class, logging a list of ints.
+ */
+public class WriteAheadLogTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private final List<Integer> recovered = new ArrayList<Integer>();
+    
+    /**
+     * Opens the log in the temporary folder, recovering its ints.
+     * 
+     * @return log
+     */
+    private WriteAheadLog open() {
+        File directory = folder.getRoot();
+        recovered.clear();
+        return new WriteAheadLog(directory, "ints", in -> {
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                recovered.add(in.readInt());
+            }
+        }, in -> recovered.add(in.readInt()));
+    }
+    
+    /**
+     * Appends an int and makes it durable.
+     * 
+     * @param log
+     * @param value
+     */
+    private static void append(WriteAheadLog log, int value) {
+        log.sync(log.append(out -> out.writeInt(value)));
+    }
+    
+    /**
+     * Writes a snapshot holding a list of ints.
+     * 
+     * @param log
+     * @param coveredGeneration
+     * @param values
+     */
+    private static void writeSnapshot(WriteAheadLog log, long coveredGeneration,
+            List<Integer> values) {
+        log.writeSnapshot(coveredGeneration, out -> {
+            out.writeInt(values.size());
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        });
+    }
+    
+    /**
+     * Tests that records appended while a snapshot is being written are kept, and that a snapshot
+     * older than one already written is skipped.
+     */
+    @Test
+    public void testSnapshotsWrittenAfterRotating() {
+        WriteAheadLog log = open();
+        append(log, 1);
+        long first = log.rotate();
+        append(log, 2);
+        long second = log.rotate();
+        append(log, 3);
+        
+        writeSnapshot(log, second, Arrays.asList(1, 2));
+        writeSnapshot(log, first, Arrays.asList(1));
+        append(log, 4);
+        log.close();
+        
+        open().close();
+        assertEquals(Arrays.asList(1, 2, 3, 4), recovered);
+    }
+}
@@ -0,0 +1,319 @@
+package data.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+/**
+ * Tests the functionality of the WriteBehindPreferenceCorrelationGraph class.
+ */
+public class WriteBehindPreferenceCorrelationGraphTest {
+    
+    private static final Preference HOT = new Preference("hot", PreferenceCategory.BOOKS);
+    private static final Preference OTHER = new Preference("other", PreferenceCategory.BOOKS);
+    
+    private RecordingGraph graph;
+    
+    /**
+     * Creates the graph that buffered updates are written to.
+     */
+    @Before
+    public void setUp() {
+        graph = new RecordingGraph();
+    }
+    
+    /**
+     * Tests that many increments of the same correlation and popularity become a single write of
+     * their sum.
+     */
+    @Test
+    public void testCoalescesHotCorrelation() {
+        WriteBehindPreferenceCorrelationGraph writeBehind = new WriteBehindPreferenceCorrelationGraph(
+                graph, 100);
+        for (int i = 0; i < 1000; i++) {
+            writeBehind.updatePreference(buildRequest(HOT, OTHER, UpdateAction.INC_CORRELATION),
+                    new UserProfile("user" + i), UpdateAction.INC_CORRELATION);
+        }
+        assertNull("An update was written before the flush!", graph.getPreference(HOT.getID(),
+                HOT.getCategory()));
+        
+        writeBehind.flush();
+        
+        Preference stored = graph.getPreference(HOT.getID(), HOT.getCategory());
+        assertEquals("The popularity deltas were not summed!", 1000, stored.getPopularity());
+        assertEquals("The correlation deltas were not summed!", 1000, stored
+                .findCorrelation(OTHER).getWeight());
+        assertEquals("The updates were not coalesced into one write!", 1, graph.writes);
+        assertEquals("The coalescing ratio is wrong!", 1000.0, writeBehind.getCoalescingRatio(),
+                0.0);
+    }
+    
+    /**
+     * Tests that the buffer is flushed as soon as it holds the maximum number of preferences.
+     */
+    @Test
+    public void testFlushesWhenFull() {
+        WriteBehindPreferenceCorrelationGraph writeBehind = new WriteBehindPreferenceCorrelationGraph(
+                graph, 2);
+        UserProfile user = new UserProfile("user");
+        writeBehind.updatePreference(buildRequest(HOT, OTHER, UpdateAction.INC_CORRELATION), user,
+                UpdateAction.INC_CORRELATION);
+        assertEquals("The buffer was flushed before it was full!", 0, graph.writes);
+        
+        writeBehind.updatePreference(buildRequest(OTHER, HOT, UpdateAction.INC_CORRELATION), user,
+                UpdateAction.INC_CORRELATION);
+        assertEquals("The full buffer was not flushed!", 2, graph.writes);
+    }
+    
+    /**
+     * Tests that updates which cancel each other out are never written.
+     */
+    @Test
+    public void testCancelledUpdatesAreNotWritten() {
+        WriteBehindPreferenceCorrelationGraph writeBehind = new WriteBehindPreferenceCorrelationGraph(
+                graph, 100);
+        UserProfile user = new UserProfile("user");
+        writeBehind.updatePreference(buildRequest(HOT, OTHER, UpdateAction.INC_CORRELATION), user,
+                UpdateAction.INC_CORRELATION);
+        writeBehind.updatePreference(buildRequest(HOT, OTHER, UpdateAction.DEC_CORRELATION), user,
+                UpdateAction.DEC_CORRELATION);
+        writeBehind.flush();
+        
+        assertEquals("Updates that cancel out were written!", 0, graph.writes);
+    }
+    
+    /**
+     * Tests that close() flushes the buffer and rejects later updates.
+     */
+    @Test
+    public void testCloseFlushes() {
+        WriteBehindPreferenceCorrelationGraph writeBehind = new WriteBehindPreferenceCorrelationGraph(
+                graph, 100);
+        UserProfile user = new UserProfile("user");
+        writeBehind.updatePreference(buildRequest(HOT, OTHER, UpdateAction.INC_CORRELATION), user,
+                UpdateAction.INC_CORRELATION);
+        writeBehind.close();
+        assertEquals("The buffer was not flushed on close!", 1, graph.writes);
+        
+        boolean thrown = false;
+        try {
+            writeBehind.updatePreference(buildRequest(HOT, OTHER, UpdateAction.INC_CORRELATION),
+                    user, UpdateAction.INC_CORRELATION);
+        } catch (IllegalStateException e) {
+            thrown = true;
+        }
+        assertTrue("An update after close() was accepted!", thrown);
+    }
+    
+    /**
+     * Tests that a flush that fails is retried with the same request tokens, so the idempotency
+     * guard of the underlying graph recognizes the requests that were applied.
+     */
+    @Test
+    public void testFailedFlushIsRetriedWithSameTokens() {
+        WriteBehindPreferenceCorrelationGraph writeBehind = new WriteBehindPreferenceCorrelationGraph(
+                graph, 100);
+        UserProfile user = new UserProfile("user");
+        writeBehind.updatePreference(buildRequest(HOT, OTHER, UpdateAction.INC_CORRELATION), user,
+                UpdateAction.INC_CORRELATION);
+        
+        graph.failNextWrite = true;
+        boolean thrown = false;
+        try {
+            writeBehind.flush();
+        } catch (IllegalStateException e) {
+            thrown = true;
+        }
+        assertTrue("The failure of the underlying graph was swallowed!", thrown);
+        assertEquals("The failed flush was not counted!", 1, writeBehind.getFailedFlushCount());
+        
+        writeBehind.updatePreference(buildRequest(OTHER, HOT, UpdateAction.INC_CORRELATION), user,
+                UpdateAction.INC_CORRELATION);
+        writeBehind.flush();
+        
+        assertEquals("The failed flush and the new one were not both written!", 3,
+                graph.flushTokens.size());
+        assertEquals("The failed flush was not retried with the same tokens!", graph.flushTokens
+                .get(0), graph.flushTokens.get(1));
+        assertTrue("The new flush reused the tokens of the failed one!", Collections.disjoint(
+                graph.flushTokens.get(1), graph.flushTokens.get(2)));
+        assertEquals("The retried update was not applied!", 1, graph.getPreference(HOT.getID(),
+                HOT.getCategory()).getPopularity());
+    }
+    
+    /**
+     * Tests that a flush that fails when the buffer fills up does not fail the update that filled
+     * it, which is already buffered, and that the flush is retried by the next one.
+     */
+    @Test
+    public void testFailedInlineFlushIsLeftForLater() {
+        WriteBehindPreferenceCorrelationGraph writeBehind = new WriteBehindPreferenceCorrelationGraph(
+                graph, 2);
+        UserProfile user = new UserProfile("user");
+        writeBehind.updatePreference(buildRequest(HOT, OTHER, UpdateAction.INC_CORRELATION), user,
+                UpdateAction.INC_CORRELATION);
+        graph.unavailable = true;
+        assertTrue(writeBehind.updatePreference(buildRequest(OTHER, HOT,
+                UpdateAction.INC_CORRELATION), user, UpdateAction.INC_CORRELATION));
+        assertEquals("The failed flush was not counted!", 1, writeBehind.getFailedFlushCount());
+        
+        graph.unavailable = false;
+        writeBehind.flush();
+        assertEquals(1, graph.getPreference(HOT.getID(), HOT.getCategory()).getPopularity());
+        assertEquals(1, graph.getPreference(OTHER.getID(), OTHER.getCategory()).getPopularity());
+    }
+    
+    /**
+     * Tests that while flushes keep failing the buffer stops taking new preferences at its limit,
+     * still merges updates of the preferences it holds, and takes new ones again once a flush gets
+     * through.
+     */
+    @Test
+    public void testBufferIsBoundedWhileFlushesFail() {
+        WriteBehindPreferenceCorrelationGraph writeBehind = new WriteBehindPreferenceCorrelationGraph(
+                graph, 1);
+        UserProfile user = new UserProfile("user");
+        graph.unavailable = true;
+        // The first preference is drained into the failed flush, the next four fill the buffer
+        for (int i = 0; i < 5; i++) {
+            writeBehind.updatePreference(buildRequest(new Preference("book" + i,
+                    PreferenceCategory.BOOKS), OTHER, UpdateAction.INC_CORRELATION), user,
+                    UpdateAction.INC_CORRELATION);
+        }
+        
+        Preference rejected = new Preference("book5", PreferenceCategory.BOOKS);
+        try {
+            writeBehind.updatePreference(buildRequest(rejected, OTHER,
+                    UpdateAction.INC_CORRELATION), user, UpdateAction.INC_CORRELATION);
+            fail("An update past the limit of the buffer was accepted!");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        Preference buffered = new Preference("book1", PreferenceCategory.BOOKS);
+        try {
+            writeBehind.updatePreferences(Arrays.asList(buildRequest(buffered, OTHER,
+                    UpdateAction.INC_CORRELATION), buildRequest(rejected, OTHER,
+                    UpdateAction.INC_CORRELATION)), user, UpdateAction.INC_CORRELATION);
+            fail("An update past the limit of the buffer was accepted!");
+        } catch (PartialUpdateException e) {
+            assertEquals("The buffered update was not reported!", Arrays.asList(true, null), e
+                    .getApplied());
+        }
+        
+        graph.unavailable = false;
+        writeBehind.updatePreference(buildRequest(rejected, OTHER, UpdateAction.INC_CORRELATION),
+                user, UpdateAction.INC_CORRELATION);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i == 1 ? 2 : 1, graph.getPreference("book" + i, PreferenceCategory.BOOKS)
+                    .getPopularity());
+        }
+    }
+    
+    /**
+     * Tests that the buffer is flushed periodically when a scheduler is supplied.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testPeriodicFlush() throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            WriteBehindPreferenceCorrelationGraph writeBehind = new WriteBehindPreferenceCorrelationGraph(
+                    graph, 100, scheduler, 10, TimeUnit.MILLISECONDS);
+            writeBehind.updatePreference(buildRequest(HOT, OTHER, UpdateAction.INC_CORRELATION),
+                    new UserProfile("user"), UpdateAction.INC_CORRELATION);
+            
+            long deadline = System.currentTimeMillis() + 5000;
+            while (writeBehind.getWriteCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("The buffer was not flushed periodically!", 1, writeBehind
+                    .getWriteCount());
+            writeBehind.close();
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+    
+    /**
+     * Builds a request that updates the popularity of a preference and its correlation to
+     * another.
+     * 
+     * @param preference
+     * @param correlated
+     * @param action
+     * @return request
+     */
+    private static UpdatePreferenceRequest buildRequest(Preference preference,
+            Preference correlated, UpdateAction action) {
+        UpdatePreferenceRequest request = new UpdatePreferenceRequest(preference);
+        request.updatePopularity(action);
+        request.addCorrelationUpdate(new PreferenceCorrelation(correlated), action);
+        return request;
+    }
+    
+    /**
+     * In-memory graph that counts the requests written to it and records the tokens of each batch.
+     * It can be made to fail once, after applying the batch, as a write that times out would, or
+     * to fail every write without applying it, as an unavailable graph would.
+     */
+    private static class RecordingGraph extends LocalTransientPreferenceCorrelationGraph {
+        
+        private final List<List<UUID>> flushTokens = new ArrayList<List<UUID>>();
+        private final Set<UUID> appliedTokens = new HashSet<UUID>();
+        private int writes;
+        private boolean failNextWrite;
+        private boolean unavailable;
+        
+        @Override
+        public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests,
+                UserProfile user, UpdateAction action) {
+            if (this.unavailable) {
+                throw new IllegalStateException("Unavailable!");
+            }
+            List<UUID> tokens = new ArrayList<UUID>();
+            for (UpdatePreferenceRequest request : requests) {
+                tokens.add(request.getToken());
+            }
+            this.flushTokens.add(tokens);
+            
+            // Stands in for the idempotency guard, which skips requests already applied
+            List<Boolean> applied = new ArrayList<Boolean>();
+            for (UpdatePreferenceRequest request : requests) {
+                if (this.appliedTokens.add(request.getToken())) {
+                    applied.add(super.updatePreference(request, user, action));
+                    this.writes++;
+                } else {
+                    applied.add(false);
+                }
+            }
+            if (this.failNextWrite) {
+                this.failNextWrite = false;
+                throw new IllegalStateException("Timed out!");
+            }
+            return applied;
+        }
+    }
+}
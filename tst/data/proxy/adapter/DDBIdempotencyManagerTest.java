@@ -0,0 +1,164 @@
+package data.proxy.adapter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.document.AttributeUpdate;
+import com.amazonaws.services.dynamodbv2.document.Expected;
+import com.amazonaws.services.dynamodbv2.document.internal.InternalUtils;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.model.AttributeAction;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+
+/**
+ * Tests the functionality of the DDBIdempotencyManager class.
+ */
+public class DDBIdempotencyManagerTest {
+    
+    private static final PreferenceCategory CATEGORY = PreferenceCategory.BOOKS;
+    private static final int NUM_CORRELATIONS = 200;
+    private static final int NUM_TOKENS = 1000;
+    
+    /**
+     * Tests that the guard of an update is one condition on a 16-byte token, and the same size
+     * whether the update changes one attribute or hundreds.
+     */
+    @Test
+    public void testGuardSizeIsFixed() {
+        UpdateItemSpec small = buildIdempotentSpec(buildRequest(1));
+        UpdateItemSpec large = buildIdempotentSpec(buildRequest(NUM_CORRELATIONS));
+        
+        for (UpdateItemSpec spec : new UpdateItemSpec[] { small, large }) {
+            assertEquals("The update had the wrong number of conditions!", 1, spec.getExpected()
+                    .size());
+            Expected expected = spec.getExpected().iterator().next();
+            assertTrue("The condition was not on a token slot!", expected.getAttribute()
+                    .startsWith(DDBIdempotencyManager.TOKEN_SLOT_ATTRIBUTE_PREFIX));
+            Map<String, ExpectedAttributeValue> condition = InternalUtils
+                    .toExpectedAttributeValueMap(spec.getExpected());
+            ExpectedAttributeValue value = condition.get(expected.getAttribute());
+            assertEquals("The condition was not a not-equals check!",
+                    ComparisonOperator.NE.toString(), value.getComparisonOperator());
+            assertEquals("The token was not 16 bytes!", 16, value.getAttributeValueList().get(0)
+                    .getB().remaining());
+        }
+    }
+    
+    /**
+     * Tests that a retry of a request is checked against and written to the same slot with the
+     * same value, so the slot written by the first attempt rejects it.
+     */
+    @Test
+    public void testRetryUsesSameSlotAndToken() {
+        UpdatePreferenceRequest request = buildRequest(2);
+        UpdateItemSpec first = buildIdempotentSpec(request);
+        UpdateItemSpec retry = buildIdempotentSpec(request);
+        
+        AttributeUpdate firstPut = findUpdate(first, AttributeAction.PUT);
+        AttributeUpdate retryPut = findUpdate(retry, AttributeAction.PUT);
+        assertEquals("The retry used a different slot!", firstPut.getAttributeName(), retryPut
+                .getAttributeName());
+        assertArrayEquals("The retry used a different token!", (byte[]) firstPut.getValue(),
+                (byte[]) retryPut.getValue());
+        assertEquals("The retry was not checked against the slot it writes!", retryPut
+                .getAttributeName(), retry.getExpected().iterator().next().getAttribute());
+    }
+    
+    /**
+     * Tests that a new request making the same change as an earlier one gets a different token,
+     * so a legitimately repeated action is not rejected as a retry.
+     */
+    @Test
+    public void testRepeatedChangeGetsNewToken() {
+        byte[] first = (byte[]) findUpdate(buildIdempotentSpec(buildRequest(2)),
+                AttributeAction.PUT).getValue();
+        byte[] repeat = (byte[]) findUpdate(buildIdempotentSpec(buildRequest(2)),
+                AttributeAction.PUT).getValue();
+        
+        assertFalse("Two requests were given the same token!", Arrays.equals(first, repeat));
+    }
+    
+    /**
+     * Tests that tokens are spread over a bounded number of slots, and that the flag of the
+     * previous scheme is removed.
+     */
+    @Test
+    public void testSlotsAreBounded() {
+        Set<String> slots = new HashSet<String>();
+        for (int i = 0; i < NUM_TOKENS; i++) {
+            slots.add(DDBIdempotencyManager.getTokenSlotAttribute(buildRequest(1).getToken()));
+        }
+        assertEquals("The tokens were not spread over every slot!",
+                DDBIdempotencyManager.NUM_TOKEN_SLOTS, slots.size());
+        
+        AttributeUpdate delete = findUpdate(buildIdempotentSpec(buildRequest(1)),
+                AttributeAction.DELETE);
+        assertEquals("The previous flag was not removed!",
+                DDBIdempotencyManager.LAST_MODIFIED_BY_ATTRIBUTE, delete.getAttributeName());
+    }
+    
+    /**
+     * Builds a request that updates the popularity of a preference and its correlations to several
+     * others.
+     * 
+     * @param numCorrelations
+     * @return request
+     */
+    private static UpdatePreferenceRequest buildRequest(int numCorrelations) {
+        UpdatePreferenceRequest request = new UpdatePreferenceRequest(new Preference("Dune",
+                CATEGORY));
+        request.updatePopularity(UpdateAction.INC_CORRELATION);
+        for (int i = 0; i < numCorrelations; i++) {
+            request.addCorrelationUpdate(new PreferenceCorrelation(new Preference("Other" + i,
+                    CATEGORY)), UpdateAction.INC_CORRELATION);
+        }
+        return request;
+    }
+    
+    /**
+     * Converts a request to an UpdateItemSpec and adds the idempotency guard, as
+     * DDBPreferenceCorrelationGraph does.
+     * 
+     * @param request
+     * @return spec
+     */
+    private static UpdateItemSpec buildIdempotentSpec(UpdatePreferenceRequest request) {
+        UpdateItemSpec spec = new DDBUpdatePreferenceRequestAdapter(request).toDBModel();
+        return DDBIdempotencyManager.makeUpdateIdempotent(spec, request.getToken());
+    }
+    
+    /**
+     * Finds the only attribute update of a spec with an action.
+     * 
+     * @param spec
+     * @param action
+     * @return attribute update
+     */
+    private static AttributeUpdate findUpdate(UpdateItemSpec spec, AttributeAction action) {
+        AttributeUpdate found = null;
+        for (AttributeUpdate update : spec.getAttributeUpdate()) {
+            if (update.getAction() == action) {
+                assertTrue("The spec had several " + action + " updates!", found == null);
+                found = update;
+            }
+        }
+        assertTrue("The spec had no " + action + " update!", found != null);
+        return found;
+    }
+}
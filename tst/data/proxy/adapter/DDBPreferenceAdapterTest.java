@@ -1,6 +1,7 @@
 package data.proxy.adapter;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
@@ -18,6 +19,7 @@ import org.junit.Test;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
 
+import data.proxy.adapter.DDBPreferenceAdapter.CorrelationFormat;
 import data.structure.Preference;
 import data.structure.PreferenceCategory;
 import data.structure.PreferenceCorrelation;
@@ -147,4 +149,65 @@ public class DDBPreferenceAdapterTest {
                     expected.getWeight(), actual.getWeight());
         }
     }
+    
+    /**
+     * Tests that a Preference stored in the packed format reads back the same, and that weights
+     * added to the map by later updates are summed with the packed ones.
+     */
+    @Test
+    public void testPackedFormat() {
+        Item packed = new DDBPreferenceAdapter(testPreference, CorrelationFormat.PACKED)
+                .toDBModel();
+        assertNull("The packed Item had a correlation map!",
+                packed.getMap(DDBPreferenceAdapter.CORRELATIONS_ATTRIBUTE));
+        
+        Preference result = new DDBPreferenceAdapter(packed).toObject();
+        assertEquals(testPreference.getPopularity(), result.getPopularity());
+        assertEquals(CORRELATION_WEIGHT, result.findCorrelation(testCorrelation.getToPreference())
+                .getWeight());
+        
+        Map<String, Integer> updates = new HashMap<String, Integer>();
+        updates.put(DDBPreferenceAdapter.buildDbIdFromComponents(CORRELATION_PREFERENCE_ID,
+                PREFERENCE_CATEGORY_TO_USE), 2);
+        updates.put(DDBPreferenceAdapter.buildDbIdFromComponents("Dune",
+                PreferenceCategory.BOOKS), 1);
+        packed.withMap(DDBPreferenceAdapter.CORRELATIONS_ATTRIBUTE, updates);
+        
+        result = new DDBPreferenceAdapter(packed).toObject();
+        assertEquals("The weights were not summed!", CORRELATION_WEIGHT + 2, result
+                .findCorrelation(testCorrelation.getToPreference()).getWeight());
+        assertEquals(1, result.findCorrelation(new Preference("Dune", PreferenceCategory.BOOKS))
+                .getWeight());
+    }
+    
+    /**
+     * Tests that weights added by updates, which are stored under literal attribute names rather
+     * than in the map, are summed with those of the map, and that an Item created by an update
+     * has no popularity.
+     */
+    @Test
+    public void testUpdatedCorrelations() {
+        String correlationDbId = DDBPreferenceAdapter.buildDbIdFromComponents(
+                CORRELATION_PREFERENCE_ID, PREFERENCE_CATEGORY_TO_USE);
+        String dunePath = DDBPreferenceAdapter.buildDbAttributePath(
+                DDBPreferenceAdapter.CORRELATIONS_ATTRIBUTE,
+                DDBPreferenceAdapter.buildDbIdFromComponents("Dune", PreferenceCategory.BOOKS));
+        testModel.withInt(DDBPreferenceAdapter.buildDbAttributePath(
+                DDBPreferenceAdapter.CORRELATIONS_ATTRIBUTE, correlationDbId), 3).withInt(dunePath,
+                1);
+        
+        Preference result = new DDBPreferenceAdapter(testModel).toObject();
+        assertEquals("The weights were not summed!", CORRELATION_WEIGHT + 3, result
+                .findCorrelation(testCorrelation.getToPreference()).getWeight());
+        assertEquals(1, result.findCorrelation(new Preference("Dune", PreferenceCategory.BOOKS))
+                .getWeight());
+        
+        Item updated = new Item().withPrimaryKey(DDBPreferenceAdapter.PREFERENCE_ID_ATTRIBUTE,
+                DDBPreferenceAdapter.buildDbIdFromComponents(PREFERENCE_ID,
+                        PREFERENCE_CATEGORY_TO_USE)).withInt(dunePath, 2);
+        result = new DDBPreferenceAdapter(updated).toObject();
+        assertEquals(0, result.getPopularity());
+        assertEquals(2, result.findCorrelation(new Preference("Dune", PreferenceCategory.BOOKS))
+                .getWeight());
+    }
 }
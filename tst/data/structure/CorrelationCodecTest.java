@@ -0,0 +1,92 @@
+package data.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CorrelationCodecTest {
+    
+    /**
+     * Tests that correlations across categories, with shared prefixes, multi-byte characters and
+     * negative or large weights, are unpacked with their weights.
+     */
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(436);
+        List<PreferenceCorrelation> correlations = new ArrayList<PreferenceCorrelation>();
+        PreferenceCategory[] categories = PreferenceCategory.values();
+        for (int i = 0; i < 500; i++) {
+            String id = (i % 3 == 0 ? "Les Mis\u00e9rables " : "book") + random.nextInt(100000);
+            int weight = i % 7 == 0 ? -random.nextInt(10) : random.nextInt(Integer.MAX_VALUE);
+            correlations.add(new PreferenceCorrelation(new Preference(id, categories[i
+                    % categories.length]), weight));
+        }
+        correlations.add(new PreferenceCorrelation(new Preference("", PreferenceCategory.MOVIES),
+                Integer.MIN_VALUE));
+        Collections.shuffle(correlations, random);
+        
+        assertEquals("The correlations did not survive a round trip!", weightsOf(correlations),
+                weightsOf(CorrelationCodec.decode(CorrelationCodec.encode(correlations))));
+    }
+    
+    /**
+     * Tests that an empty list packs and unpacks.
+     */
+    @Test
+    public void testEmpty() {
+        assertTrue(CorrelationCodec.decode(CorrelationCodec.encode(
+                new ArrayList<PreferenceCorrelation>())).isEmpty());
+    }
+    
+    /**
+     * Tests that IDs with a common prefix pack to far fewer bytes than they spell out.
+     */
+    @Test
+    public void testSharedPrefixesAreCompact() {
+        List<PreferenceCorrelation> correlations = new ArrayList<PreferenceCorrelation>();
+        int idBytes = 0;
+        for (int i = 0; i < 1000; i++) {
+            String id = "TheLordOfTheRings" + i;
+            idBytes += id.length();
+            correlations.add(new PreferenceCorrelation(new Preference(id,
+                    PreferenceCategory.BOOKS), i));
+        }
+        assertTrue("Shared prefixes were not left out!",
+                CorrelationCodec.encode(correlations).length < idBytes / 2);
+    }
+    
+    /**
+     * Tests that a truncated array is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncated() {
+        List<PreferenceCorrelation> correlations = new ArrayList<PreferenceCorrelation>();
+        correlations.add(new PreferenceCorrelation(new Preference("Dune",
+                PreferenceCategory.BOOKS), 3));
+        byte[] packed = CorrelationCodec.encode(correlations);
+        byte[] truncated = new byte[packed.length - 2];
+        System.arraycopy(packed, 0, truncated, 0, truncated.length);
+        CorrelationCodec.decode(truncated);
+    }
+    
+    /**
+     * 
+     * @param correlations
+     * @return weight by correlated preference
+     */
+    private static Map<Preference, Integer> weightsOf(List<PreferenceCorrelation> correlations) {
+        Map<Preference, Integer> weights = new HashMap<Preference, Integer>();
+        for (PreferenceCorrelation correlation : correlations) {
+            weights.put(correlation.getToPreference(), correlation.getWeight());
+        }
+        return weights;
+    }
+}
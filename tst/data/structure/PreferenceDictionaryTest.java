@@ -0,0 +1,108 @@
+package data.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PreferenceDictionaryTest {
+    
+    /**
+     * Tests that IDs are dense, stable, and translate back to the first encoded preference.
+     */
+    @Test
+    public void testEncodeAndDecode() {
+        PreferenceDictionary dictionary = new PreferenceDictionary(1);
+        Preference[] preferences = new Preference[1000];
+        for (int i = 0; i < preferences.length; i++) {
+            preferences[i] = new Preference("pref" + (i / 2), i % 2 == 0 ? PreferenceCategory.BOOKS
+                    : PreferenceCategory.MOVIES);
+            assertEquals("IDs are not dense!", i, dictionary.encode(preferences[i]));
+        }
+        
+        assertEquals("Wrong number of preferences!", preferences.length, dictionary.size());
+        for (int i = 0; i < preferences.length; i++) {
+            Preference equalPreference = new Preference(preferences[i].getID(),
+                    preferences[i].getCategory());
+            assertEquals("ID changed on encoding again!", i, dictionary.encode(equalPreference));
+            assertEquals("Lookup returned the wrong ID!", i, dictionary.getId(equalPreference));
+            assertSame("Decoding did not return the first encoded preference!", preferences[i],
+                    dictionary.getPreference(i));
+        }
+        assertEquals("Encoding existing preferences added new IDs!", preferences.length,
+                dictionary.size());
+    }
+    
+    /**
+     * Tests that looking up a missing preference does not assign an ID.
+     */
+    @Test
+    public void testMissingPreference() {
+        PreferenceDictionary dictionary = new PreferenceDictionary();
+        dictionary.encode(new Preference("Dune", PreferenceCategory.BOOKS));
+        
+        assertEquals("Missing preference has an ID!", -1,
+                dictionary.getId(new Preference("Dune", PreferenceCategory.MOVIES)));
+        assertEquals("Lookup assigned an ID!", 1, dictionary.size());
+    }
+    
+    /**
+     * Tests that decoding an unassigned ID fails.
+     */
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testDecodeUnassignedID() {
+        new PreferenceDictionary().getPreference(0);
+    }
+    
+    /**
+     * Tests that an expected size beyond the largest table is rejected rather than overflowing.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testExpectedSizeTooLarge() {
+        new PreferenceDictionary(PreferenceDictionary.MAXIMUM_SIZE + 1);
+    }
+    
+    /**
+     * Tests that a negative expected size is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeExpectedSize() {
+        new PreferenceDictionary(-1);
+    }
+    
+    /**
+     * Tests that a preference can be looked up by id and category without building a Preference.
+     */
+    @Test
+    public void testGetIdByIdAndCategory() {
+        PreferenceDictionary dictionary = new PreferenceDictionary();
+        dictionary.encode(new Preference("Dune", PreferenceCategory.BOOKS));
+        int movie = dictionary.encode(new Preference("Dune", PreferenceCategory.MOVIES));
+        
+        assertEquals("Lookup returned the wrong ID!", movie,
+                dictionary.getId("Dune", PreferenceCategory.MOVIES));
+        assertEquals("Missing preference has an ID!", -1,
+                dictionary.getId("Dune", PreferenceCategory.TELEVISION));
+        assertEquals("Missing preference has an ID!", -1,
+                dictionary.getId("Emma", PreferenceCategory.BOOKS));
+    }
+    
+    /**
+     * Tests that replacing a preference keeps its ID and decodes to the replacement, and that a
+     * missing preference is not added.
+     */
+    @Test
+    public void testReplace() {
+        PreferenceDictionary dictionary = new PreferenceDictionary();
+        int id = dictionary.encode(new Preference("Dune", PreferenceCategory.BOOKS, 1));
+        Preference replacement = new Preference("Dune", PreferenceCategory.BOOKS, 2);
+        
+        assertEquals("Replacing changed the ID!", id, dictionary.replace(replacement));
+        assertSame("Decoding did not return the replacement!", replacement,
+                dictionary.getPreference(id));
+        assertTrue("Replacing a missing preference did not fail!",
+                dictionary.replace(new Preference("Emma", PreferenceCategory.BOOKS)) < 0);
+        assertEquals("Replacing added an ID!", 1, dictionary.size());
+    }
+}
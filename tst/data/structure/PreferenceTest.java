@@ -144,6 +144,65 @@ public class PreferenceTest {
         assertTrue("The second correlation was incorrectly removed!", result.contains(correlation2));
     }
     
+    /**
+     * Tests that addCorrelation() overwrites an existing correlation to the same preference.
+     */
+    @Test
+    public void testAddCorrelationOverwrites() {
+        Preference preference = new Preference("123", PreferenceCategory.BOOKS);
+        Preference correlatedPreference = new Preference("456", PreferenceCategory.BOOKS);
+        preference.addCorrelation(new PreferenceCorrelation(correlatedPreference, 3));
+        preference.addCorrelation(new PreferenceCorrelation(correlatedPreference, 7));
+        
+        assertEquals("The correlation was duplicated!", 1, preference.getCorrelations().size());
+        assertEquals("The correlation was not overwritten!", 7,
+                preference.findCorrelation(correlatedPreference).getWeight());
+    }
+    
+    /**
+     * Tests the findCorrelation() method for present and missing correlations.
+     */
+    @Test
+    public void testFindCorrelation() {
+        Preference preference = new Preference("123", PreferenceCategory.BOOKS);
+        Preference correlatedPreference = new Preference("456", PreferenceCategory.BOOKS);
+        PreferenceCorrelation correlation = new PreferenceCorrelation(correlatedPreference, 2);
+        preference.addCorrelation(correlation);
+        
+        assertEquals("The correlation was not found!", correlation,
+                preference.findCorrelation(new Preference("456", PreferenceCategory.BOOKS)));
+        assertEquals("A correlation was found in the wrong category!", null,
+                preference.findCorrelation(new Preference("456", PreferenceCategory.MOVIES)));
+    }
+    
+    /**
+     * Tests the adjustCorrelationWeight() method for new and existing correlations.
+     */
+    @Test
+    public void testAdjustCorrelationWeight() {
+        Preference preference = new Preference("123", PreferenceCategory.BOOKS);
+        Preference correlatedPreference = new Preference("456", PreferenceCategory.BOOKS);
+        
+        preference.adjustCorrelationWeight(correlatedPreference, 1);
+        assertEquals("The correlation was not added!", 1,
+                preference.findCorrelation(correlatedPreference).getWeight());
+        
+        PreferenceCorrelation correlation = preference.findCorrelation(correlatedPreference);
+        preference.adjustCorrelationWeight(correlatedPreference, 4);
+        assertEquals("The weight was not adjusted in place!", 5, correlation.getWeight());
+        assertEquals("The correlation was duplicated!", 1, preference.getCorrelations().size());
+    }
+    
+    /**
+     * Tests that the correlations returned by getCorrelations() cannot be modified.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testGetCorrelationsUnmodifiable() {
+        Preference preference = new Preference("123", PreferenceCategory.BOOKS);
+        preference.getCorrelations().add(
+                new PreferenceCorrelation(new Preference("456", PreferenceCategory.BOOKS)));
+    }
+    
     /**
      * Tests the overridden equals() method for the Preference class in the successful case.
      */
@@ -212,4 +271,26 @@ public class PreferenceTest {
             }
         }
     }
+    
+    /**
+     * Tests that whitespace is removed from IDs, so IDs that only differ in whitespace are equal.
+     */
+    @Test
+    public void testWhitespaceRemovedFromID() {
+        Preference p1 = new Preference(" Harry\tPotter and the\r\nGoblet ", PreferenceCategory.BOOKS);
+        Preference p2 = new Preference("HarryPotterandtheGoblet", PreferenceCategory.BOOKS);
+        
+        assertEquals("Whitespace was not removed from the ID!", "HarryPotterandtheGoblet", p1.getID());
+        assertEquals("IDs differing only in whitespace are not equal!", p1, p2);
+        assertEquals("Equal preferences have different hash codes!", p1.hashCode(), p2.hashCode());
+    }
+    
+    /**
+     * Tests that preferences with the same ID in different categories are not equal.
+     */
+    @Test
+    public void testSameIDDifferentCategory() {
+        assertFalse("Preferences in different categories are equal!", new Preference("Dune",
+                PreferenceCategory.BOOKS).equals(new Preference("Dune", PreferenceCategory.MOVIES)));
+    }
 }
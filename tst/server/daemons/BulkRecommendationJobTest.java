@@ -0,0 +1,143 @@
+package server.daemons;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.proxy.LocalTransientUserProfileStore;
+import data.proxy.UserProfileStore;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.Recommendation;
+import data.structure.UserProfile;
+import server.daemons.BulkRecommendationJob.JobStats;
+import server.daemons.GenerateRecommendationDaemon.ScoringMode;
+
+public class BulkRecommendationJobTest {
+	private final static double TOLERANCE = 0.0001;
+	private final static int NUM_BOOKS = 300;
+	private final static int NUM_USERS = 120;
+	private final static int K = 5;
+
+	private LocalTransientPreferenceCorrelationGraph graph;
+	private UserProfileStore userStore;
+
+	/**
+	 * Builds a graph of random books with random correlations, including some to other categories, and users with random 
+	 *    books.  A few users have no books at all.
+	 */
+	@Before
+	public void setUp() {
+		Random random = new Random(436);
+		graph = new LocalTransientPreferenceCorrelationGraph();
+		userStore = new LocalTransientUserProfileStore();
+
+		Preference[] books = new Preference[NUM_BOOKS];
+		for (int i = 0; i < books.length; i++) {
+			books[i] = new Preference("book" + i, PreferenceCategory.BOOKS, 1 + random.nextInt(1000));
+		}
+		for (Preference book : books) {
+			for (int j = 0; j < 8; j++) {
+				book.addCorrelation(new PreferenceCorrelation(books[random.nextInt(books.length)], 1 + random.nextInt(50)));
+			}
+			book.addCorrelation(new PreferenceCorrelation(new Preference("movie" + random.nextInt(10), PreferenceCategory.MOVIES), 5));
+			graph.putPreference(book);
+		}
+
+		for (int i = 0; i < NUM_USERS; i++) {
+			UserProfile user = new UserProfile("user" + i);
+			int numBooks = i % 10 == 0 ? 0 : 1 + random.nextInt(12);
+			for (int j = 0; j < numBooks; j++) {
+				user.addPreference(PreferenceCategory.BOOKS, "book" + random.nextInt(NUM_BOOKS));
+			}
+			userStore.write(user);
+		}
+	}
+
+	/**
+	 * Every user's recommendations must match neighborhood scoring of that user alone.
+	 */
+	@Test
+	public void testMatchesPerUserRecommendations() {
+		Map<String, List<Recommendation>> recommendations = new HashMap<String, List<Recommendation>>();
+		JobStats stats = new BulkRecommendationJob(16, K).run(PreferenceCategory.BOOKS, userStore, graph, 
+				(user, userRecommendations) -> recommendations.put(user.getId(), userRecommendations));
+
+		assertEquals(NUM_USERS, stats.getUsers());
+		assertEquals(NUM_USERS, recommendations.size());
+		assertRecommendationsMatch(recommendations, stats);
+	}
+
+	/**
+	 * Scoring batches of users in parallel must give the same results, and still hand them to the sink on the calling 
+	 *    thread.
+	 */
+	@Test
+	public void testParallelMatchesPerUserRecommendations() {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Thread caller = Thread.currentThread();
+			Map<String, List<Recommendation>> recommendations = new HashMap<String, List<Recommendation>>();
+			JobStats stats = new BulkRecommendationJob(7, K, executor, 3).run(PreferenceCategory.BOOKS, userStore, graph, 
+					(user, userRecommendations) -> {
+						assertTrue(Thread.currentThread() == caller);
+						recommendations.put(user.getId(), userRecommendations);
+					});
+
+			assertEquals(NUM_USERS, stats.getUsers());
+			assertEquals(NUM_USERS, recommendations.size());
+			assertRecommendationsMatch(recommendations, stats);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * A correlation to a preference that is no longer in the graph must not be recommended.
+	 */
+	@Test
+	public void testSkipsDeletedPreferences() {
+		graph.delete("book7", PreferenceCategory.BOOKS);
+		new BulkRecommendationJob(50, NUM_BOOKS).run(PreferenceCategory.BOOKS, userStore, graph, 
+				(user, userRecommendations) -> {
+					for (Recommendation recommendation : userRecommendations) {
+						assertTrue(!"book7".equals(recommendation.getCorrelatedPreference().getID()));
+					}
+				});
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidK() {
+		new BulkRecommendationJob(10, 0);
+	}
+
+	private void assertRecommendationsMatch(Map<String, List<Recommendation>> recommendations, JobStats stats) {
+		GenerateRecommendationDaemon daemon = new GenerateRecommendationDaemon(10, ScoringMode.NEIGHBORHOOD);
+		long numRecommendations = 0;
+		for (int i = 0; i < NUM_USERS; i++) {
+			UserProfile user = userStore.getProfile("user" + i);
+			List<Recommendation> expected = daemon.getRecommendations(PreferenceCategory.BOOKS, user, graph, K);
+			List<Recommendation> actual = recommendations.get(user.getId());
+
+			assertEquals(expected.size(), actual.size());
+			for (int j = 0; j < expected.size(); j++) {
+				assertEquals(expected.get(j).getCorrelatedPreference(), actual.get(j).getCorrelatedPreference());
+				assertTrue(Math.abs(expected.get(j).getScore() - actual.get(j).getScore()) < TOLERANCE);
+			}
+			numRecommendations += actual.size();
+		}
+		assertEquals(numRecommendations, stats.getRecommendations());
+		assertTrue(numRecommendations > 0);
+	}
+}
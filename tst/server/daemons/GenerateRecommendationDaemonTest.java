@@ -5,10 +5,18 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -25,6 +33,7 @@ import data.structure.PreferenceCategory;
 import data.structure.PreferenceCorrelation;
 import data.structure.Recommendation;
 import data.structure.UserProfile;
+import server.daemons.GenerateRecommendationDaemon.ScoringMode;
 
 public class GenerateRecommendationDaemonTest {
 	private final static double TOLERANCE = 0.0001;
@@ -223,6 +232,295 @@ public class GenerateRecommendationDaemonTest {
 		testSimpleRecommendationBatch();
 	}
 	
+	/**
+	 * Same as the happy day scenario, but scoring each single-preference batch on an executor.
+	 */
+	@Test
+	public void testParallelBatches() {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			daemon = new GenerateRecommendationDaemon(1, executor, 2);
+			testSimpleRecommendationBatch();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Build a larger random graph and make sure the parallel mode returns exactly the same recommendation as the sequential mode,
+	 *     including when fewer batches are allowed in flight than there are threads.
+	 */
+	@Test
+	public void testParallelMatchesSequential() {
+		LocalTransientPreferenceCorrelationGraph correlationGraph = buildRandomBookGraph(new Random(436), 500, 25);
+		UserProfile userProfile = buildRandomBookUser(new Random(436), correlationGraph, 500, 20);
+		
+		Recommendation expected = new GenerateRecommendationDaemon(7).getRecommendation(PreferenceCategory.BOOKS, 
+				userProfile, correlationGraph).get();
+		
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (int maxInFlight : new int[] {1, 3, 16}) {
+				Optional<Recommendation> recommendation = new GenerateRecommendationDaemon(7, pool, maxInFlight)
+						.getRecommendation(PreferenceCategory.BOOKS, userProfile, correlationGraph);
+				assertEquals(expected, recommendation.get());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Top-K on the happy day graph should return both non-user books in score order, and never more than are available.
+	 */
+	@Test
+	public void testTopKRecommendations() {
+		daemon = new GenerateRecommendationDaemon(1);
+		
+		Preference harryPotterPref = new Preference("Harry Potter", PreferenceCategory.BOOKS, 100);
+		Preference xenocidePref = new Preference("Xenocide", PreferenceCategory.BOOKS, 20);
+		Preference sevenSunsPref = new Preference("Saga of the Seven Suns", PreferenceCategory.BOOKS, 15);
+		harryPotterPref.addAllCorrelations(Arrays.asList(new PreferenceCorrelation(sevenSunsPref, 1), 
+				new PreferenceCorrelation(xenocidePref, 2)));
+		
+		LocalTransientPreferenceCorrelationGraph correlationGraph = new LocalTransientPreferenceCorrelationGraph();
+		correlationGraph.putPreference(harryPotterPref);
+		correlationGraph.putPreference(xenocidePref);
+		correlationGraph.putPreference(sevenSunsPref);
+		
+		UserProfile userProfile = new UserProfile("bposerow", ImmutableMap.of(PreferenceCategory.BOOKS, 
+				ImmutableSet.of(harryPotterPref)));
+		
+		List<Recommendation> recommendations = daemon.getRecommendations(PreferenceCategory.BOOKS, userProfile, correlationGraph, 5);
+		assertEquals(2, recommendations.size());
+		assertEquals(xenocidePref, recommendations.get(0).getCorrelatedPreference());
+		assertTrue(Math.abs(0.02 - recommendations.get(0).getScore()) < TOLERANCE);
+		assertEquals(sevenSunsPref, recommendations.get(1).getCorrelatedPreference());
+		assertTrue(Math.abs(0.01 - recommendations.get(1).getScore()) < TOLERANCE);
+		
+		recommendations = daemon.getRecommendations(PreferenceCategory.BOOKS, userProfile, correlationGraph, 1);
+		assertEquals(1, recommendations.size());
+		assertEquals(xenocidePref, recommendations.get(0).getCorrelatedPreference());
+	}
+	
+	/**
+	 * Top-K across many batches, sequential and parallel, must match sorting every score computed in a single batch.
+	 */
+	@Test
+	public void testTopKMatchesFullSort() {
+		LocalTransientPreferenceCorrelationGraph correlationGraph = buildRandomBookGraph(new Random(42), 400, 10);
+		UserProfile userProfile = buildRandomBookUser(new Random(42), correlationGraph, 400, 15);
+		
+		List<Preference> allBooks = new ArrayList<Preference>();
+		correlationGraph.batchGetPreferences(PreferenceCategory.BOOKS, 1000).forEachRemaining(allBooks::addAll);
+		List<Map.Entry<Preference, Double>> allScores = new ArrayList<Map.Entry<Preference, Double>>(daemon
+				.calculateCorrelationScores(userProfile, allBooks, PreferenceCategory.BOOKS).getCorrelationScores().entrySet());
+		allScores.sort((e1, e2) -> Double.compare(e2.getValue(), e1.getValue()));
+		
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			for (GenerateRecommendationDaemon topKDaemon : Arrays.asList(new GenerateRecommendationDaemon(9), 
+					new GenerateRecommendationDaemon(9, pool, 4))) {
+				List<Recommendation> recommendations = topKDaemon.getRecommendations(PreferenceCategory.BOOKS, 
+						userProfile, correlationGraph, 20);
+				assertEquals(20, recommendations.size());
+				for (int i = 0; i < recommendations.size(); i++) {
+					assertTrue(Math.abs(allScores.get(i).getValue() - recommendations.get(i).getScore()) < TOLERANCE);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Neighborhood scoring should produce the same recommendations as the catalog scan in the scenarios above.
+	 */
+	@Test
+	public void testNeighborhoodScoring() {
+		daemon = new GenerateRecommendationDaemon(3, ScoringMode.NEIGHBORHOOD);
+		testSimpleRecommendationBatch();
+		testPreferenceMissingCorrelation();
+	}
+	
+	/**
+	 * Neighborhood top-K on the happy day graph should match the catalog scan: both non-user books in score order, and never
+	 *    more than are available.
+	 */
+	@Test
+	public void testNeighborhoodTopKRecommendations() {
+		daemon = new GenerateRecommendationDaemon(1, ScoringMode.NEIGHBORHOOD);
+		
+		Preference harryPotterPref = new Preference("Harry Potter", PreferenceCategory.BOOKS, 100);
+		Preference xenocidePref = new Preference("Xenocide", PreferenceCategory.BOOKS, 20);
+		Preference sevenSunsPref = new Preference("Saga of the Seven Suns", PreferenceCategory.BOOKS, 15);
+		harryPotterPref.addAllCorrelations(Arrays.asList(new PreferenceCorrelation(sevenSunsPref, 1), 
+				new PreferenceCorrelation(xenocidePref, 2)));
+		
+		LocalTransientPreferenceCorrelationGraph correlationGraph = new LocalTransientPreferenceCorrelationGraph();
+		correlationGraph.putPreference(harryPotterPref);
+		correlationGraph.putPreference(xenocidePref);
+		correlationGraph.putPreference(sevenSunsPref);
+		
+		UserProfile userProfile = new UserProfile("bposerow", ImmutableMap.of(PreferenceCategory.BOOKS, 
+				ImmutableSet.of(harryPotterPref)));
+		
+		List<Recommendation> recommendations = daemon.getRecommendations(PreferenceCategory.BOOKS, userProfile, correlationGraph, 5);
+		assertEquals(2, recommendations.size());
+		assertEquals(xenocidePref, recommendations.get(0).getCorrelatedPreference());
+		assertTrue(Math.abs(0.02 - recommendations.get(0).getScore()) < TOLERANCE);
+		assertEquals(sevenSunsPref, recommendations.get(1).getCorrelatedPreference());
+		assertTrue(Math.abs(0.01 - recommendations.get(1).getScore()) < TOLERANCE);
+		
+		recommendations = daemon.getRecommendations(PreferenceCategory.BOOKS, userProfile, correlationGraph, 1);
+		assertEquals(1, recommendations.size());
+		assertEquals(xenocidePref, recommendations.get(0).getCorrelatedPreference());
+	}
+	
+	/**
+	 * On a larger random graph, neighborhood scoring must find the same top-K as the catalog scan.
+	 */
+	@Test
+	public void testNeighborhoodMatchesCatalogScan() {
+		LocalTransientPreferenceCorrelationGraph correlationGraph = buildRandomBookGraph(new Random(7), 400, 10);
+		UserProfile userProfile = buildRandomBookUser(new Random(7), correlationGraph, 400, 15);
+		
+		List<Recommendation> expected = new GenerateRecommendationDaemon(50).getRecommendations(PreferenceCategory.BOOKS, 
+				userProfile, correlationGraph, 20);
+		List<Recommendation> recommendations = new GenerateRecommendationDaemon(50, ScoringMode.NEIGHBORHOOD)
+				.getRecommendations(PreferenceCategory.BOOKS, userProfile, correlationGraph, 20);
+		
+		assertEquals(expected.size(), recommendations.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getCorrelatedPreference(), recommendations.get(i).getCorrelatedPreference());
+			assertTrue(Math.abs(expected.get(i).getScore() - recommendations.get(i).getScore()) < TOLERANCE);
+		}
+	}
+	
+	/**
+	 * A correlation to a preference that has been deleted from the graph must not be recommended.
+	 */
+	@Test
+	public void testNeighborhoodSkipsDeletedPreferences() {
+		Preference harryPotterPref = new Preference("Harry Potter", PreferenceCategory.BOOKS, 100);
+		Preference xenocidePref = new Preference("Xenocide", PreferenceCategory.BOOKS, 20);
+		Preference sevenSunsPref = new Preference("Saga of the Seven Suns", PreferenceCategory.BOOKS, 15);
+		harryPotterPref.addAllCorrelations(Arrays.asList(new PreferenceCorrelation(sevenSunsPref, 1), 
+				new PreferenceCorrelation(xenocidePref, 2)));
+		
+		LocalTransientPreferenceCorrelationGraph correlationGraph = new LocalTransientPreferenceCorrelationGraph();
+		correlationGraph.putPreference(harryPotterPref);
+		correlationGraph.putPreference(sevenSunsPref);
+		
+		UserProfile userProfile = new UserProfile("bposerow", ImmutableMap.of(PreferenceCategory.BOOKS, 
+				ImmutableSet.of(harryPotterPref)));
+		
+		Optional<Recommendation> recommendation = new GenerateRecommendationDaemon(3, ScoringMode.NEIGHBORHOOD)
+				.getRecommendation(PreferenceCategory.BOOKS, userProfile, correlationGraph);
+		
+		assertEquals(sevenSunsPref, recommendation.get().getCorrelatedPreference());
+		assertTrue(Math.abs(0.01 - recommendation.get().getScore()) < TOLERANCE);
+	}
+	
+	/**
+	 * Recommending in several categories at once must scan the graph once and agree with a separate recommendation per 
+	 *    category, including categories in which the user has no preferences.
+	 */
+	@Test
+	public void testRecommendationsByCategory() {
+		final int[] scans = new int[1];
+		LocalTransientPreferenceCorrelationGraph correlationGraph = new LocalTransientPreferenceCorrelationGraph() {
+			@Override
+			public Iterator<List<Preference>> batchGetPreferences(Set<PreferenceCategory> categories, int batchSize) {
+				scans[0]++;
+				return super.batchGetPreferences(categories, batchSize);
+			}
+		};
+		Random random = new Random(11);
+		Preference[] books = new Preference[100];
+		Preference[] movies = new Preference[100];
+		for (int i = 0; i < books.length; i++) {
+			books[i] = new Preference("book" + i, PreferenceCategory.BOOKS, 1 + random.nextInt(1000));
+			movies[i] = new Preference("movie" + i, PreferenceCategory.MOVIES, 1 + random.nextInt(1000));
+		}
+		for (int i = 0; i < books.length; i++) {
+			for (int j = 0; j < 5; j++) {
+				books[i].addCorrelation(new PreferenceCorrelation(books[random.nextInt(books.length)], 1 + random.nextInt(50)));
+				movies[i].addCorrelation(new PreferenceCorrelation(movies[random.nextInt(movies.length)], 1 + random.nextInt(50)));
+			}
+			correlationGraph.putPreference(books[i]);
+			correlationGraph.putPreference(movies[i]);
+		}
+		correlationGraph.putPreference(new Preference("Firefly", PreferenceCategory.TELEVISION, 10));
+		
+		Set<Preference> userBooks = new HashSet<Preference>();
+		Set<Preference> userMovies = new HashSet<Preference>();
+		for (int i = 0; i < 10; i++) {
+			userBooks.add(books[random.nextInt(books.length)]);
+			userMovies.add(movies[random.nextInt(movies.length)]);
+		}
+		UserProfile userProfile = new UserProfile("bposerow", ImmutableMap.of(PreferenceCategory.BOOKS, userBooks, 
+				PreferenceCategory.MOVIES, userMovies));
+		Set<PreferenceCategory> categories = EnumSet.of(PreferenceCategory.BOOKS, PreferenceCategory.MOVIES, 
+				PreferenceCategory.TELEVISION, PreferenceCategory.RESTAURANTS);
+		
+		for (GenerateRecommendationDaemon recommender : Arrays.asList(new GenerateRecommendationDaemon(7), 
+				new GenerateRecommendationDaemon(7, ScoringMode.NEIGHBORHOOD))) {
+			scans[0] = 0;
+			Map<PreferenceCategory, Optional<Recommendation>> recommendations = recommender.getRecommendationsByCategory(
+					categories, userProfile, correlationGraph);
+			// A catalog scan covers every category at once, neighborhood scoring never scans
+			assertTrue(scans[0] <= 1);
+			
+			assertEquals(categories, recommendations.keySet());
+			for (PreferenceCategory category : categories) {
+				Optional<Recommendation> expected = recommender.getRecommendation(category, userProfile, correlationGraph);
+				assertEquals(expected.isPresent(), recommendations.get(category).isPresent());
+				if (expected.isPresent()) {
+					assertEquals(expected.get().getCorrelatedPreference(), recommendations.get(category).get().getCorrelatedPreference());
+					assertTrue(Math.abs(expected.get().getScore() - recommendations.get(category).get().getScore()) < TOLERANCE);
+				}
+			}
+			assertTrue(recommendations.get(PreferenceCategory.BOOKS).isPresent());
+			assertTrue(recommendations.get(PreferenceCategory.MOVIES).isPresent());
+			assertTrue(!recommendations.get(PreferenceCategory.TELEVISION).isPresent());
+		}
+		
+		scans[0] = 0;
+		daemon.getRecommendationsByCategory(categories, userProfile, correlationGraph);
+		assertEquals(1, scans[0]);
+	}
+	
+	/**
+	 * Builds a graph of random books, each with a fixed number of random outgoing correlations.
+	 */
+	private LocalTransientPreferenceCorrelationGraph buildRandomBookGraph(Random random, int numBooks, int degree) {
+		Preference[] books = new Preference[numBooks];
+		LocalTransientPreferenceCorrelationGraph correlationGraph = new LocalTransientPreferenceCorrelationGraph();
+		for (int i = 0; i < books.length; i++) {
+			books[i] = new Preference("book" + i, PreferenceCategory.BOOKS, 1 + random.nextInt(1000));
+		}
+		for (Preference book : books) {
+			for (int j = 0; j < degree; j++) {
+				book.addCorrelation(new PreferenceCorrelation(books[random.nextInt(books.length)], 1 + random.nextInt(50)));
+			}
+			correlationGraph.putPreference(book);
+		}
+		return correlationGraph;
+	}
+	
+	/**
+	 * Builds a user with random books from the graph.  The user preferences carry the correlations from the graph.
+	 */
+	private UserProfile buildRandomBookUser(Random random, PreferenceCorrelationGraph correlationGraph, int numBooks, 
+			int numUserBooks) {
+		Set<Preference> userBooks = new HashSet<Preference>();
+		for (int i = 0; i < numUserBooks; i++) {
+			userBooks.add(correlationGraph.getPreference("book" + random.nextInt(numBooks), PreferenceCategory.BOOKS));
+		}
+		return new UserProfile("bposerow", ImmutableMap.of(PreferenceCategory.BOOKS, userBooks));
+	}
+	
 	@Test 
 	public void testOneUserPrefUpdate() {
 		Preference harryPotterPref = new Preference("Harry Potter", PreferenceCategory.BOOKS, 100);
@@ -0,0 +1,175 @@
+package server.daemons;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.proxy.LocalTransientUserProfileStore;
+import data.proxy.PreferenceCorrelationGraph;
+import data.proxy.UserProfileStore;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+import server.daemons.GraphRebuildJob.RebuildStats;
+
+public class GraphRebuildJobTest {
+	private final static int NUM_BOOKS = 80;
+	private final static int NUM_MOVIES = 30;
+	private final static int NUM_USERS = 200;
+
+	private UserProfileStore userStore;
+	private LocalTransientPreferenceCorrelationGraph propagatedGraph;
+
+	/**
+	 * Builds users with random books and movies, a few with none at all, and propagates every profile into a graph one
+	 *    user at a time.
+	 */
+	@Before
+	public void setUp() {
+		Random random = new Random(436);
+		userStore = new LocalTransientUserProfileStore();
+		propagatedGraph = new LocalTransientPreferenceCorrelationGraph();
+		UpdatePreferenceDaemon updater = new UpdatePreferenceDaemon(propagatedGraph);
+
+		for (int i = 0; i < NUM_USERS; i++) {
+			UserProfile user = new UserProfile("user" + i);
+			int numBooks = i % 10 == 0 ? 0 : random.nextInt(15);
+			for (int j = 0; j < numBooks; j++) {
+				user.addPreference(PreferenceCategory.BOOKS, "book" + random.nextInt(NUM_BOOKS));
+			}
+			int numMovies = i % 10 == 0 ? 0 : random.nextInt(5);
+			for (int j = 0; j < numMovies; j++) {
+				user.addPreference(PreferenceCategory.MOVIES, "movie" + random.nextInt(NUM_MOVIES));
+			}
+			userStore.write(user);
+			updater.propagateUserProfile(user);
+		}
+	}
+
+	/**
+	 * A rebuild on the calling thread must produce the same graph as propagating every user.
+	 */
+	@Test
+	public void testMatchesPropagatedGraph() {
+		LocalTransientPreferenceCorrelationGraph rebuilt = new LocalTransientPreferenceCorrelationGraph();
+		RebuildStats stats = new GraphRebuildJob(16).run(userStore, rebuilt);
+
+		assertEquals(NUM_USERS, stats.getUsers());
+		assertSameGraph(propagatedGraph, rebuilt, stats);
+	}
+
+	/**
+	 * A parallel rebuild, with more batches than sets of counts, must produce the same graph as propagating every user.
+	 */
+	@Test
+	public void testParallelMatchesPropagatedGraph() {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			LocalTransientPreferenceCorrelationGraph rebuilt = new LocalTransientPreferenceCorrelationGraph();
+			RebuildStats stats = new GraphRebuildJob(7, executor, 3).run(userStore, rebuilt);
+
+			assertEquals(NUM_USERS, stats.getUsers());
+			assertSameGraph(propagatedGraph, rebuilt, stats);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * A rebuild must repair counts that have drifted, e.g. a removal that was propagated twice.
+	 */
+	@Test
+	public void testRepairsDriftedCounts() {
+		UserProfile user = userStore.getProfile("user1");
+		for (int i = 2; user.getPreferencesForCategory(PreferenceCategory.BOOKS) == null; i++) {
+			user = userStore.getProfile("user" + i);
+		}
+		Preference book = user.getPreferencesForCategory(PreferenceCategory.BOOKS).iterator().next();
+		UserProfile drifted = new UserProfile(user.getId(), user.getPreferences());
+		drifted.removePreference(PreferenceCategory.BOOKS, book.getID());
+		UpdatePreferenceDaemon updater = new UpdatePreferenceDaemon(propagatedGraph);
+		updater.propagateRemovedPreference(drifted, book);
+		updater.propagateRemovedPreference(drifted, book);
+
+		LocalTransientPreferenceCorrelationGraph expected = new LocalTransientPreferenceCorrelationGraph();
+		updater = new UpdatePreferenceDaemon(expected);
+		Iterator<List<UserProfile>> batches = userStore.batchGetProfiles(50);
+		while (batches.hasNext()) {
+			for (UserProfile profile : batches.next()) {
+				updater.propagateUserProfile(profile);
+			}
+		}
+
+		LocalTransientPreferenceCorrelationGraph rebuilt = new LocalTransientPreferenceCorrelationGraph();
+		RebuildStats stats = new GraphRebuildJob(16).run(userStore, rebuilt);
+		assertTrue(propagatedGraph.getPreference(book.getID(), book.getCategory()).getPopularity() < rebuilt.getPreference(
+				book.getID(), book.getCategory()).getPopularity());
+		assertSameGraph(expected, rebuilt, stats);
+	}
+
+	/**
+	 * Asserts that two graphs hold the same preferences with the same popularities and correlation weights, and that the
+	 *    stats count the rebuilt graph.
+	 *
+	 * @param expected
+	 * @param rebuilt
+	 * @param stats
+	 */
+	private static void assertSameGraph(PreferenceCorrelationGraph expected, PreferenceCorrelationGraph rebuilt,
+			RebuildStats stats) {
+		Map<Preference, Map<Preference, Integer>> expectedWeights = weightsOf(expected);
+		Map<Preference, Map<Preference, Integer>> rebuiltWeights = weightsOf(rebuilt);
+		assertEquals(expectedWeights, rebuiltWeights);
+
+		long correlations = 0;
+		for (Preference preference : rebuiltWeights.keySet()) {
+			Preference expectedPreference = expected.getPreference(preference.getID(), preference.getCategory());
+			assertNotNull(expectedPreference);
+			assertEquals(expectedPreference.getPopularity(), rebuilt.getPreference(preference.getID(),
+					preference.getCategory()).getPopularity());
+			correlations += rebuiltWeights.get(preference).size();
+		}
+		assertEquals(rebuiltWeights.size(), stats.getPreferences());
+		assertEquals(correlations, stats.getCorrelations());
+	}
+
+	/**
+	 * Gets the positive correlation weights of every preference in a graph.
+	 *
+	 * @param graph
+	 * @return weights by preference and correlated preference
+	 */
+	private static Map<Preference, Map<Preference, Integer>> weightsOf(PreferenceCorrelationGraph graph) {
+		Map<Preference, Map<Preference, Integer>> weights = new HashMap<Preference, Map<Preference, Integer>>();
+		Iterator<List<Preference>> batches = graph.batchGetPreferences(EnumSet.allOf(PreferenceCategory.class), 50);
+		while (batches.hasNext()) {
+			for (Preference preference : batches.next()) {
+				if (preference.getPopularity() == 0) {
+					continue;
+				}
+				Map<Preference, Integer> preferenceWeights = new HashMap<Preference, Integer>();
+				for (PreferenceCorrelation correlation : preference.getCorrelations()) {
+					if (correlation.getWeight() > 0) {
+						preferenceWeights.put(correlation.getToPreference(), correlation.getWeight());
+					}
+				}
+				weights.put(preference, preferenceWeights);
+			}
+		}
+		return weights;
+	}
+}
@@ -0,0 +1,158 @@
+package server.daemons;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.proxy.PreferenceCorrelationGraph;
+import data.proxy.SymmetricPreferenceCorrelationGraph;
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.Recommendation;
+import data.structure.UserProfile;
+import server.daemons.GenerateRecommendationDaemon.ScoringMode;
+
+public class RecommendationScoreCacheTest {
+	private final static double TOLERANCE = 0.0001;
+
+	private PreferenceCorrelationGraph graph;
+	private UpdatePreferenceDaemon updater;
+	private RecommendationScoreCache cache;
+
+	@Before
+	public void setUp() {
+		graph = new LocalTransientPreferenceCorrelationGraph();
+		updater = new UpdatePreferenceDaemon(graph);
+		cache = new RecommendationScoreCache(graph, 100);
+		updater.addUpdateListener(cache);
+	}
+
+	/**
+	 * Materialize scores for one user, then let many other users add and remove books.  The cached scores must always match
+	 *    scores recalculated from scratch.
+	 */
+	@Test
+	public void testIncrementalUpdatesMatchRecalculation() {
+		Random random = new Random(436);
+		UserProfile[] users = new UserProfile[30];
+		for (int i = 0; i < users.length; i++) {
+			users[i] = new UserProfile("user" + i);
+			for (int j = 0; j < 8; j++) {
+				addBook(users[i], "book" + random.nextInt(40));
+			}
+		}
+
+		UserProfile cachedUser = users[0];
+		assertRecommendationsMatch(cachedUser);
+		assertEquals(1, cache.size());
+
+		for (int i = 0; i < 200; i++) {
+			UserProfile user = users[1 + random.nextInt(users.length - 1)];
+			String bookId = "book" + random.nextInt(40);
+			if (user.getPreferencesForCategory(PreferenceCategory.BOOKS).contains(new Preference(bookId, PreferenceCategory.BOOKS))) {
+				removeBook(user, bookId);
+			} else {
+				addBook(user, bookId);
+			}
+		}
+
+		// The entry must have been kept up to date rather than rebuilt
+		assertEquals(1, cache.size());
+		assertRecommendationsMatch(cachedUser);
+	}
+
+	/**
+	 * A graph with symmetric correlations is only written one direction of each pair, but the cache must still see the updates of
+	 *    both.
+	 */
+	@Test
+	public void testIncrementalUpdatesOnSymmetricGraph() {
+		graph = new SymmetricPreferenceCorrelationGraph();
+		updater = new UpdatePreferenceDaemon(graph);
+		cache = new RecommendationScoreCache(graph, 100);
+		updater.addUpdateListener(cache);
+
+		testIncrementalUpdatesMatchRecalculation();
+	}
+
+	/**
+	 * A user's own preference change must invalidate their cached scores.
+	 */
+	@Test
+	public void testOwnPreferenceChangeInvalidates() {
+		UserProfile alice = new UserProfile("alice");
+		UserProfile bob = new UserProfile("bob");
+		addBook(bob, "Harry Potter");
+		addBook(bob, "Xenocide");
+		addBook(alice, "Harry Potter");
+
+		assertEquals(new Preference("Xenocide", PreferenceCategory.BOOKS),
+				cache.getRecommendation(PreferenceCategory.BOOKS, alice).get().getCorrelatedPreference());
+		assertEquals(1, cache.size());
+
+		addBook(alice, "Xenocide");
+		assertEquals(0, cache.size());
+		assertTrue(!cache.getRecommendation(PreferenceCategory.BOOKS, alice).isPresent());
+	}
+
+	/**
+	 * An update that is delivered twice, or was never announced, must be ignored.
+	 */
+	@Test
+	public void testDuplicateUpdatesIgnored() {
+		UserProfile alice = new UserProfile("alice");
+		UserProfile bob = new UserProfile("bob");
+		addBook(bob, "Harry Potter");
+		addBook(bob, "Xenocide");
+		addBook(alice, "Harry Potter");
+		double score = cache.getRecommendation(PreferenceCategory.BOOKS, alice).get().getScore();
+
+		UpdatePreferenceRequest request = new UpdatePreferenceRequest(new Preference("Harry Potter", PreferenceCategory.BOOKS));
+		request.updatePopularity(UpdateAction.INC_CORRELATION);
+		request.setVersion(1000);
+		cache.onUpdateSubmitted(request);
+		graph.updatePreference(request, bob, UpdateAction.INC_CORRELATION);
+		cache.onUpdateCompleted(request, bob, UpdateAction.INC_CORRELATION, true);
+		cache.onUpdateCompleted(request, bob, UpdateAction.INC_CORRELATION, true);
+
+		UpdatePreferenceRequest unannounced = new UpdatePreferenceRequest(new Preference("Harry Potter", PreferenceCategory.BOOKS));
+		unannounced.updatePopularity(UpdateAction.INC_CORRELATION);
+		unannounced.setVersion(1001);
+		cache.onUpdateCompleted(unannounced, bob, UpdateAction.INC_CORRELATION, true);
+
+		assertEquals(2, cache.getDuplicateUpdateCount());
+		// Harry Potter's popularity went from 2 to 3 exactly once
+		assertTrue(Math.abs(score * 2.0 / 3.0 - cache.getRecommendation(PreferenceCategory.BOOKS, alice).get().getScore()) < TOLERANCE);
+		assertRecommendationsMatch(alice);
+	}
+
+	private void addBook(UserProfile user, String bookId) {
+		Preference addedPreference = user.addPreference(PreferenceCategory.BOOKS, bookId);
+		updater.propagateAddedPreference(user, addedPreference);
+	}
+
+	private void removeBook(UserProfile user, String bookId) {
+		Preference removedPreference = user.removePreference(PreferenceCategory.BOOKS, bookId);
+		updater.propagateRemovedPreference(user, removedPreference);
+	}
+
+	private void assertRecommendationsMatch(UserProfile user) {
+		List<Recommendation> expected = new GenerateRecommendationDaemon(10, ScoringMode.NEIGHBORHOOD)
+				.getRecommendations(PreferenceCategory.BOOKS, user, graph, 10);
+		List<Recommendation> recommendations = cache.getRecommendations(PreferenceCategory.BOOKS, user, 10);
+
+		assertEquals(expected.size(), recommendations.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getCorrelatedPreference(), recommendations.get(i).getCorrelatedPreference());
+			assertTrue(Math.abs(expected.get(i).getScore() - recommendations.get(i).getScore()) < TOLERANCE);
+		}
+	}
+}
@@ -0,0 +1,400 @@
+package server.daemons;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+
+import data.proxy.DDBPreferenceCorrelationGraph;
+import data.proxy.LocalTransientDynamoDBClient;
+import data.proxy.LocalTransientPreferenceCorrelationGraph;
+import data.proxy.PartialUpdateException;
+import data.proxy.adapter.DDBPreferenceAdapter;
+import data.proxy.request.UpdatePreferenceRequest;
+import data.proxy.request.UpdatePreferenceRequest.UpdateAction;
+import data.structure.Preference;
+import data.structure.PreferenceCategory;
+import data.structure.PreferenceCorrelation;
+import data.structure.UserProfile;
+
+public class UpdatePreferenceDaemonTest {
+	private static final long TIMEOUT_SECONDS = 5;
+
+	private GatedGraph graph;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		graph = new GatedGraph();
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		graph.gate.countDown();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Submitting returns before the graph has been written, and the future completes once the propagation has been applied.
+	 */
+	@Test
+	public void testSubmitDoesNotWaitForGraph() throws Exception {
+		UpdatePreferenceDaemon updater = new UpdatePreferenceDaemon(graph, executor, 10, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		UserProfile user = new UserProfile("user");
+		user.addPreference(PreferenceCategory.BOOKS, "Dune");
+		Preference added = user.addPreference(PreferenceCategory.BOOKS, "Hyperion");
+
+		CompletableFuture<Void> propagation = updater.submitAddedPreference(user, added);
+		assertFalse("Submitting waited for the graph!", propagation.isDone());
+		assertEquals(1, updater.getPendingUpdateCount());
+
+		graph.gate.countDown();
+		propagation.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		assertEquals(0, updater.getPendingUpdateCount());
+		Preference stored = graph.getPreference("Hyperion", PreferenceCategory.BOOKS);
+		assertEquals(1, stored.getPopularity());
+		assertEquals(1, stored.findCorrelation(new Preference("Dune", PreferenceCategory.BOOKS)).getWeight());
+	}
+
+	/**
+	 * Once the queue is full, submitting waits for the timeout and then rejects the propagation rather than dropping it silently
+	 *    or queueing without bound.
+	 */
+	@Test
+	public void testFullQueueRejectsAfterTimeout() throws Exception {
+		UpdatePreferenceDaemon updater = new UpdatePreferenceDaemon(graph, executor, 1, 50, TimeUnit.MILLISECONDS);
+		UserProfile user = new UserProfile("user");
+		CompletableFuture<Void> first = updater.submitAddedPreference(user, user.addPreference(PreferenceCategory.BOOKS, "Dune"));
+		CompletableFuture<Void> second = updater.submitAddedPreference(user, user.addPreference(PreferenceCategory.BOOKS, "Hyperion"));
+
+		assertTrue("The propagation was not rejected!", second.isCompletedExceptionally());
+		try {
+			second.get();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+
+		graph.gate.countDown();
+		first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		assertNull("The rejected propagation was applied!", graph.getPreference("Hyperion", PreferenceCategory.BOOKS));
+
+		// There is room again once the first propagation is done
+		updater.submitRemovedPreference(user, user.removePreference(PreferenceCategory.BOOKS, "Dune")).get(TIMEOUT_SECONDS,
+				TimeUnit.SECONDS);
+		assertEquals(0, graph.getPreference("Dune", PreferenceCategory.BOOKS).getPopularity());
+	}
+
+	/**
+	 * Changes the caller makes to the profile after submitting do not leak into the queued propagation.
+	 */
+	@Test
+	public void testPropagatesProfileAsSubmitted() throws Exception {
+		UpdatePreferenceDaemon updater = new UpdatePreferenceDaemon(graph, executor, 10, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		UserProfile user = new UserProfile("user");
+		user.addPreference(PreferenceCategory.BOOKS, "Dune");
+		CompletableFuture<Void> propagation = updater.submitAddedPreference(user, user.addPreference(PreferenceCategory.BOOKS, "Hyperion"));
+		user.addPreference(PreferenceCategory.BOOKS, "Neuromancer");
+
+		graph.gate.countDown();
+		propagation.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		Preference stored = graph.getPreference("Hyperion", PreferenceCategory.BOOKS);
+		assertNotNull(stored.findCorrelation(new Preference("Dune", PreferenceCategory.BOOKS)));
+		assertNull("A preference added after submitting was propagated!",
+				stored.findCorrelation(new Preference("Neuromancer", PreferenceCategory.BOOKS)));
+	}
+
+	/**
+	 * The propagations of one user run in the order they were submitted, even on several threads.
+	 */
+	@Test
+	public void testUserPropagationsRunInOrder() throws Exception {
+		executor.shutdownNow();
+		executor = Executors.newFixedThreadPool(4);
+		graph.gate.countDown();
+		UpdatePreferenceDaemon updater = new UpdatePreferenceDaemon(graph, executor, 100, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		// Filled on the worker threads, and checked on this one once every propagation has finished
+		List<Long> versions = Collections.synchronizedList(new ArrayList<Long>());
+		List<Integer> popularityDeltas = Collections.synchronizedList(new ArrayList<Integer>());
+		updater.addUpdateListener(new PreferenceUpdateListener() {
+			@Override
+			public void onUpdateSubmitted(UpdatePreferenceRequest request) {
+				versions.add(request.getVersion());
+				if (request.getPreferenceToUpdate().getID().equals("Hyperion")) {
+					popularityDeltas.add(request.getPopularityDelta());
+				}
+			}
+
+			@Override
+			public void onUpdateCompleted(UpdatePreferenceRequest request, UserProfile user, UpdateAction action, boolean applied) {
+			}
+		});
+
+		UserProfile user = new UserProfile("user");
+		user.addPreference(PreferenceCategory.BOOKS, "Dune");
+		List<CompletableFuture<Void>> propagations = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < 20; i++) {
+			Preference preference = user.addPreference(PreferenceCategory.BOOKS, "Hyperion");
+			propagations.add(updater.submitAddedPreference(user, preference));
+			propagations.add(updater.submitRemovedPreference(user, user.removePreference(PreferenceCategory.BOOKS, "Hyperion")));
+		}
+		for (CompletableFuture<Void> propagation : propagations) {
+			propagation.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		}
+		assertTrue(updater.awaitPendingUpdates(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+		List<Long> orderedVersions = new ArrayList<Long>(versions);
+		Collections.sort(orderedVersions);
+		assertEquals("Propagations of one user overlapped!", orderedVersions, versions);
+		assertEquals(40, popularityDeltas.size());
+		for (int i = 0; i < popularityDeltas.size(); i++) {
+			assertEquals("Propagations of one user ran out of order!", i % 2 == 0 ? 1 : -1, (int) popularityDeltas.get(i));
+		}
+
+		// Every addition was undone by the removal submitted after it
+		assertEquals(0, graph.getPreference("Hyperion", PreferenceCategory.BOOKS).getPopularity());
+		assertEquals(0, graph.getPreference("Dune", PreferenceCategory.BOOKS)
+				.findCorrelation(new Preference("Hyperion", PreferenceCategory.BOOKS)).getWeight());
+	}
+
+	/**
+	 * A bulk import leaves the graph exactly as propagating each addition in turn would, with one merged request per affected
+	 *    preference.
+	 */
+	@Test
+	public void testBulkAdditionMatchesSequentialPropagation() {
+		LocalTransientPreferenceCorrelationGraph sequentialGraph = new LocalTransientPreferenceCorrelationGraph();
+		LocalTransientPreferenceCorrelationGraph bulkGraph = new LocalTransientPreferenceCorrelationGraph();
+		UpdatePreferenceDaemon sequential = new UpdatePreferenceDaemon(sequentialGraph);
+		UpdatePreferenceDaemon bulk = new UpdatePreferenceDaemon(bulkGraph);
+		int[] bulkRequests = new int[1];
+		bulk.addUpdateListener(new PreferenceUpdateListener() {
+			@Override
+			public void onUpdateSubmitted(UpdatePreferenceRequest request) {
+				bulkRequests[0]++;
+			}
+
+			@Override
+			public void onUpdateCompleted(UpdatePreferenceRequest request, UserProfile user, UpdateAction action, boolean applied) {
+			}
+		});
+
+		// The user already had two books before the import
+		UserProfile sequentialUser = new UserProfile("user");
+		UserProfile bulkUser = new UserProfile("user");
+		for (String id : new String[] { "Dune", "Hyperion" }) {
+			sequential.propagateAddedPreference(sequentialUser, sequentialUser.addPreference(PreferenceCategory.BOOKS, id));
+			bulk.propagateAddedPreference(bulkUser, bulkUser.addPreference(PreferenceCategory.BOOKS, id));
+		}
+		bulkRequests[0] = 0;
+
+		List<Preference> imported = new ArrayList<Preference>();
+		for (int i = 0; i < 10; i++) {
+			sequential.propagateAddedPreference(sequentialUser, sequentialUser.addPreference(PreferenceCategory.BOOKS, "book" + i));
+			imported.add(bulkUser.addPreference(PreferenceCategory.BOOKS, "book" + i));
+		}
+		for (int i = 0; i < 3; i++) {
+			sequential.propagateAddedPreference(sequentialUser, sequentialUser.addPreference(PreferenceCategory.MOVIES, "movie" + i));
+			imported.add(bulkUser.addPreference(PreferenceCategory.MOVIES, "movie" + i));
+		}
+		bulk.propagateAddedPreferences(bulkUser, imported);
+
+		assertSameGraph(sequentialGraph, bulkGraph);
+		assertEquals("Each affected preference should get one request!", 15, bulkRequests[0]);
+	}
+
+	/**
+	 * A bulk removal undoes a bulk addition, and propagating a stored profile matches importing it.
+	 */
+	@Test
+	public void testBulkRemovalAndProfileBackfill() {
+		LocalTransientPreferenceCorrelationGraph importedGraph = new LocalTransientPreferenceCorrelationGraph();
+		LocalTransientPreferenceCorrelationGraph backfilledGraph = new LocalTransientPreferenceCorrelationGraph();
+		UpdatePreferenceDaemon importer = new UpdatePreferenceDaemon(importedGraph);
+		UserProfile user = new UserProfile("user");
+		user.addPreference(PreferenceCategory.BOOKS, "Dune");
+		user.addPreference(PreferenceCategory.BOOKS, "Hyperion");
+		importer.propagateUserProfile(user);
+		new UpdatePreferenceDaemon(backfilledGraph).propagateUserProfile(user);
+
+		List<Preference> imported = new ArrayList<Preference>();
+		for (int i = 0; i < 5; i++) {
+			imported.add(user.addPreference(PreferenceCategory.BOOKS, "book" + i));
+		}
+		importer.propagateAddedPreferences(user, imported);
+		for (Preference preference : imported) {
+			user.removePreference(preference.getCategory(), preference.getID());
+		}
+		importer.propagateRemovedPreferences(user, imported);
+
+		for (Preference preference : imported) {
+			Preference stored = importedGraph.getPreference(preference.getID(), preference.getCategory());
+			assertEquals(0, stored.getPopularity());
+			for (PreferenceCorrelation correlation : stored.getCorrelations()) {
+				assertEquals("A removal was not propagated!", 0, correlation.getWeight());
+			}
+		}
+		Preference dune = importedGraph.getPreference("Dune", PreferenceCategory.BOOKS);
+		assertEquals(1, dune.getPopularity());
+		assertEquals(1, dune.findCorrelation(new Preference("Hyperion", PreferenceCategory.BOOKS)).getWeight());
+		assertEquals(0, dune.findCorrelation(imported.get(0)).getWeight());
+		Preference backfilledDune = backfilledGraph.getPreference("Dune", PreferenceCategory.BOOKS);
+		assertEquals(backfilledDune.getPopularity(), dune.getPopularity());
+		assertEquals(backfilledDune.findCorrelation(new Preference("Hyperion", PreferenceCategory.BOOKS)).getWeight(),
+				dune.findCorrelation(new Preference("Hyperion", PreferenceCategory.BOOKS)).getWeight());
+	}
+
+	/**
+	 * Propagating the same event again rebuilds its requests with the same tokens, so a graph that checks tokens rejects
+	 *    them, while a new event is applied.
+	 */
+	@Test
+	public void testRedeliveredEventIsAppliedOnce() {
+		LocalTransientDynamoDBClient client = new LocalTransientDynamoDBClient(436);
+		client.createTable("Preferences", DDBPreferenceAdapter.PREFERENCE_ID_ATTRIBUTE);
+		DDBPreferenceCorrelationGraph ddbGraph = new DDBPreferenceCorrelationGraph(new DynamoDB(client), "Preferences");
+		UpdatePreferenceDaemon updater = new UpdatePreferenceDaemon(ddbGraph);
+		List<Boolean> applied = new ArrayList<Boolean>();
+		updater.addUpdateListener(new PreferenceUpdateListener() {
+			@Override
+			public void onUpdateSubmitted(UpdatePreferenceRequest request) {
+			}
+
+			@Override
+			public void onUpdateCompleted(UpdatePreferenceRequest request, UserProfile user, UpdateAction action, boolean wasApplied) {
+				applied.add(wasApplied);
+			}
+		});
+		UserProfile user = new UserProfile("user");
+		Preference dune = user.addPreference(PreferenceCategory.BOOKS, "Dune");
+		Preference hyperion = user.addPreference(PreferenceCategory.BOOKS, "Hyperion");
+
+		updater.propagateAddedPreference(user, hyperion, "event-1");
+		updater.propagateAddedPreference(user, hyperion, "event-1");
+		assertEquals(Arrays.asList(true, true, false, false), applied);
+		Preference stored = ddbGraph.getPreference("Hyperion", PreferenceCategory.BOOKS);
+		assertEquals(1, stored.getPopularity());
+		assertEquals(1, stored.findCorrelation(dune).getWeight());
+
+		updater.propagateAddedPreference(user, hyperion, "event-2");
+		assertEquals(2, ddbGraph.getPreference("Hyperion", PreferenceCategory.BOOKS).getPopularity());
+	}
+
+	/**
+	 * When some writes of a bulk propagation fail, the requests that were written are still reported as applied, and the
+	 *    failure reaches the caller.
+	 */
+	@Test
+	public void testPartialFailureReportsCompletedRequests() {
+		LocalTransientPreferenceCorrelationGraph failingGraph = new LocalTransientPreferenceCorrelationGraph() {
+			@Override
+			public List<Boolean> updatePreferences(List<UpdatePreferenceRequest> requests, UserProfile user, UpdateAction action) {
+				List<Boolean> applied = new ArrayList<Boolean>();
+				for (UpdatePreferenceRequest request : requests) {
+					boolean fails = request.getPreferenceToUpdate().getID().equals("Hyperion");
+					applied.add(fails ? null : updatePreference(request, user, action));
+				}
+				throw new PartialUpdateException(applied, new IllegalStateException("Hyperion is unavailable!"));
+			}
+		};
+		UpdatePreferenceDaemon updater = new UpdatePreferenceDaemon(failingGraph);
+		Map<String, Boolean> applied = new HashMap<String, Boolean>();
+		updater.addUpdateListener(new PreferenceUpdateListener() {
+			@Override
+			public void onUpdateSubmitted(UpdatePreferenceRequest request) {
+			}
+
+			@Override
+			public void onUpdateCompleted(UpdatePreferenceRequest request, UserProfile user, UpdateAction action, boolean wasApplied) {
+				applied.put(request.getPreferenceToUpdate().getID(), wasApplied);
+			}
+		});
+		UserProfile user = new UserProfile("user");
+		user.addPreference(PreferenceCategory.BOOKS, "Dune");
+		user.addPreference(PreferenceCategory.BOOKS, "Hyperion");
+		List<Preference> imported = new ArrayList<Preference>();
+		imported.add(user.addPreference(PreferenceCategory.BOOKS, "book0"));
+		imported.add(user.addPreference(PreferenceCategory.BOOKS, "book1"));
+
+		try {
+			updater.propagateAddedPreferences(user, imported);
+			fail("The failure was not thrown!");
+		} catch (PartialUpdateException e) {
+			// Expected
+		}
+		assertEquals(4, applied.size());
+		assertFalse("A failed request was reported as applied!", applied.get("Hyperion"));
+		for (String id : new String[] { "Dune", "book0", "book1" }) {
+			assertTrue("A written request was not reported as applied!", applied.get(id));
+		}
+		assertEquals(1, failingGraph.getPreference("book0", PreferenceCategory.BOOKS).getPopularity());
+	}
+
+	/**
+	 * Asserts that two graphs hold the same preferences, popularities and correlation weights.
+	 */
+	private static void assertSameGraph(LocalTransientPreferenceCorrelationGraph expected, LocalTransientPreferenceCorrelationGraph actual) {
+		int count = 0;
+		Iterator<List<Preference>> batches = expected.batchGetPreferences(EnumSet.allOf(PreferenceCategory.class), 100);
+		while (batches.hasNext()) {
+			for (Preference preference : batches.next()) {
+				Preference other = actual.getPreference(preference.getID(), preference.getCategory());
+				assertNotNull("A preference is missing!", other);
+				assertEquals("The popularities differ!", preference.getPopularity(), other.getPopularity());
+				assertEquals("The correlations differ!", preference.getCorrelations().size(), other.getCorrelations().size());
+				for (PreferenceCorrelation correlation : preference.getCorrelations()) {
+					assertEquals("The correlation weights differ!", correlation.getWeight(),
+							other.findCorrelation(correlation.getToPreference()).getWeight());
+				}
+				count++;
+			}
+		}
+		Iterator<List<Preference>> actualBatches = actual.batchGetPreferences(EnumSet.allOf(PreferenceCategory.class), 100);
+		while (actualBatches.hasNext()) {
+			count -= actualBatches.next().size();
+		}
+		assertEquals("The graphs hold different preferences!", 0, count);
+	}
+
+	/**
+	 * In-memory graph whose writes wait until the gate is opened, like a slow remote store.
+	 */
+	private static class GatedGraph extends LocalTransientPreferenceCorrelationGraph {
+		private final CountDownLatch gate = new CountDownLatch(1);
+
+		@Override
+		public boolean updatePreference(UpdatePreferenceRequest request, UserProfile user, UpdateAction action) {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+			return super.updatePreference(request, user, action);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DoubleScoreTableTest {
+	private final static double TOLERANCE = 0.0001;
+
+	/**
+	 * Random adds, puts and removals, including many resizes, must leave the same scores as a HashMap.
+	 */
+	@Test
+	public void testMatchesHashMap() {
+		Random random = new Random(436);
+		DoubleScoreTable table = new DoubleScoreTable(1);
+		Map<Integer, Double> expected = new HashMap<Integer, Double>();
+
+		for (int i = 0; i < 5000; i++) {
+			int key = random.nextInt(2000);
+			double score = random.nextInt(20) - 5;
+			if (random.nextBoolean()) {
+				assertEquals(expected.merge(key, score, Double::sum), table.add(key, score), TOLERANCE);
+			} else {
+				expected.put(key, score);
+				table.put(key, score);
+			}
+			if (i % 1000 == 999) {
+				expected.values().removeIf(value -> value <= 0);
+				table.removeIf(value -> value <= 0);
+			}
+		}
+
+		assertEquals(expected.size(), table.size());
+		assertEquals(expected, table.toMap());
+		for (int key : expected.keySet()) {
+			assertTrue(table.containsKey(key));
+			assertEquals(expected.get(key), table.get(key, Double.NaN), TOLERANCE);
+		}
+	}
+
+	/**
+	 * A key with a score of 0 is still present, and a missing key gets the default.
+	 */
+	@Test
+	public void testZeroScoreAndMissingKey() {
+		DoubleScoreTable table = new DoubleScoreTable();
+		table.add(0, 0.0);
+
+		assertTrue(table.containsKey(0));
+		assertFalse(table.containsKey(1));
+		assertFalse(table.containsKey(-1));
+		assertEquals(-1.0, table.get(1, -1.0), TOLERANCE);
+		assertEquals(1, table.size());
+	}
+
+	/**
+	 * A table grows to hold keys past its expected size, visits keys in increasing order and removes matching scores in
+	 *    place.
+	 */
+	@Test
+	public void testGrowsAndVisitsInKeyOrder() {
+		DoubleScoreTable table = new DoubleScoreTable(1);
+		for (int key = 999; key >= 0; key -= 3) {
+			table.put(key, key);
+		}
+		assertEquals(334, table.size());
+		List<Integer> visited = new ArrayList<Integer>();
+		table.forEach((key, score) -> {
+			assertEquals(key, score, TOLERANCE);
+			visited.add(key);
+		});
+		for (int i = 0; i < visited.size(); i++) {
+			assertEquals(i * 3, (int) visited.get(i));
+		}
+
+		assertTrue(table.removeIf(score -> score < 500));
+		assertEquals(167, table.size());
+		assertFalse(table.containsKey(498));
+		assertTrue(table.containsKey(501));
+		assertEquals(0.0, table.add(498, 0.0), TOLERANCE);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeKey() {
+		new DoubleScoreTable().put(-1, 1.0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testExpectedSizeTooLarge() {
+		new DoubleScoreTable(Integer.MAX_VALUE);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeExpectedSize() {
+		new DoubleScoreTable(-1);
+	}
+}
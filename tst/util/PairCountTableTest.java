@@ -0,0 +1,113 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PairCountTableTest {
+
+	/**
+	 * Random adds, including many resizes, and a merge must leave the same counts as a HashMap.
+	 */
+	@Test
+	public void testMatchesHashMap() {
+		Random random = new Random(436);
+		PairCountTable table = new PairCountTable(1);
+		PairCountTable other = new PairCountTable();
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+
+		for (int i = 0; i < 5000; i++) {
+			int first = random.nextInt(100);
+			int second = random.nextInt(100);
+			int delta = random.nextInt(5) + 1;
+			PairCountTable target = random.nextBoolean() ? table : other;
+			target.add(first, second, delta);
+			expected.merge(((long) first << 32) | second, delta, Integer::sum);
+		}
+		table.addAll(other);
+
+		Map<Long, Integer> actual = new HashMap<Long, Integer>();
+		table.forEach((first, second, count) -> actual.put(((long) first << 32) | second, count));
+		assertEquals(expected, actual);
+		assertEquals(expected.size(), table.size());
+	}
+
+	/**
+	 * A pair is distinct from its reverse, and a missing pair has a count of 0.
+	 */
+	@Test
+	public void testOrderedPairsAndMissingPair() {
+		PairCountTable table = new PairCountTable();
+		table.add(0, 1, 3);
+		table.add(1, 0, 1);
+
+		assertEquals(3, table.get(0, 1));
+		assertEquals(1, table.get(1, 0));
+		assertEquals(0, table.get(2, 2));
+		assertEquals(0, table.get(-1, 0));
+		assertEquals(2, table.size());
+	}
+
+	/**
+	 * Random adds and removes, which shift probe runs back, must leave the same counts as a HashMap.
+	 */
+	@Test
+	public void testRemoveMatchesHashMap() {
+		Random random = new Random(436);
+		PairCountTable table = new PairCountTable(1);
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+
+		for (int i = 0; i < 20000; i++) {
+			int first = random.nextInt(40);
+			int second = random.nextInt(40);
+			long key = ((long) first << 32) | second;
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key) != null, table.remove(first, second));
+			} else {
+				table.add(first, second, 1);
+				expected.merge(key, 1, Integer::sum);
+			}
+		}
+
+		Map<Long, Integer> actual = new HashMap<Long, Integer>();
+		table.forEach((first, second, count) -> actual.put(((long) first << 32) | second, count));
+		assertEquals(expected, actual);
+		assertEquals(expected.size(), table.size());
+	}
+
+	/**
+	 * A pair with a count of 0 is still in the table until it is removed.
+	 */
+	@Test
+	public void testContainsZeroCount() {
+		PairCountTable table = new PairCountTable();
+		table.add(0, 1, 0);
+
+		assertTrue(table.contains(0, 1));
+		assertFalse(table.contains(1, 0));
+		assertTrue(table.remove(0, 1));
+		assertFalse(table.contains(0, 1));
+		assertFalse(table.remove(0, 1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeIdIsRejected() {
+		new PairCountTable().add(-1, 0, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testExpectedSizeTooLarge() {
+		new PairCountTable(PairCountTable.MAXIMUM_SIZE + 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeExpectedSize() {
+		new PairCountTable(-1);
+	}
+}